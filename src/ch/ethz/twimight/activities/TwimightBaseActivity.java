@@ -35,12 +35,15 @@ import android.widget.TextView;
 import android.widget.Toast;
 import ch.ethz.twimight.R;
 import ch.ethz.twimight.data.HtmlPagesDbHelper;
+import ch.ethz.twimight.net.Html.HtmlPage;
+import ch.ethz.twimight.net.Html.OfflinePageCache;
 import ch.ethz.twimight.net.Html.StartServiceHelper;
 import ch.ethz.twimight.net.opportunistic.BluetoothStatus;
 import ch.ethz.twimight.net.twitter.Tweets;
 import ch.ethz.twimight.net.twitter.TwitterUsers;
 import ch.ethz.twimight.util.Constants;
 import ch.ethz.twimight.util.LogCollector;
+import ch.ethz.twimight.util.SDCardHelper;
 
 /**
  * The base activity for all Twimight activities.
@@ -261,6 +264,7 @@ public abstract class TwimightBaseActivity extends ThemeSelectorActivity impleme
 			HtmlPagesDbHelper htmlDbHelper = new HtmlPagesDbHelper(getApplicationContext());
 			htmlDbHelper.open();
 			htmlDbHelper.saveLinksFromCursor(cursor, HtmlPagesDbHelper.DOWNLOAD_FORCED);
+			htmlDbHelper.notifyChange();
 
 			return null;
 		}
@@ -268,7 +272,6 @@ public abstract class TwimightBaseActivity extends ThemeSelectorActivity impleme
 		@Override
 		protected void onPostExecute(Void params) {
 			StartServiceHelper.startService(getApplicationContext());
-			getContentResolver().notifyChange(Tweets.TABLE_TIMELINE_URI, null);
 		}
 	}
 
@@ -276,10 +279,14 @@ public abstract class TwimightBaseActivity extends ThemeSelectorActivity impleme
 
 		@Override
 		protected Void doInBackground(Void... params) {
-			Long timeSpan = (long) (0 * 24 * 3600 * 1000);
 			HtmlPagesDbHelper htmlDbHelper = new HtmlPagesDbHelper(getApplicationContext());
 			htmlDbHelper.open();
-			htmlDbHelper.clearHtmlPages(timeSpan);
+			SDCardHelper sdCardHelper = new SDCardHelper();
+			String[] filePath = { HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(getApplicationContext()) };
+			if (sdCardHelper.checkSDState(filePath)) {
+				new OfflinePageCache(getApplicationContext(), htmlDbHelper, sdCardHelper.getFileFromSDCard(filePath[0],
+						"")).clear();
+			}
 			return null;
 		}
 
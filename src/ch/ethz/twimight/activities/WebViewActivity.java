@@ -1,8 +1,6 @@
 package ch.ethz.twimight.activities;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
@@ -19,8 +17,11 @@ import android.widget.Toast;
 import ch.ethz.twimight.R;
 import ch.ethz.twimight.data.HtmlPagesDbHelper;
 import ch.ethz.twimight.net.Html.HtmlPage;
+import ch.ethz.twimight.net.Html.OfflinePageReader;
+import ch.ethz.twimight.net.Html.PageManifest;
+import ch.ethz.twimight.net.Html.PageManifestReader;
+import ch.ethz.twimight.net.Html.ResourceStore;
 import ch.ethz.twimight.net.Html.WebArchiveReader;
-import ch.ethz.twimight.net.twitter.Tweets;
 import ch.ethz.twimight.util.SDCardHelper;
 
 public class WebViewActivity extends Activity {
@@ -32,25 +33,25 @@ public class WebViewActivity extends Activity {
 	private ProgressDialog progressBar; 
 	Uri webUri;
 
-	private class ReadWebArchiveTask extends AsyncTask<InputStream,Void,Boolean>{
+	private class ReadWebArchiveTask extends AsyncTask<File,Void,Boolean>{
 
-		WebArchiveReader wr;
+		OfflinePageReader wr;
 		WebView web;
 		
-		public ReadWebArchiveTask(WebArchiveReader wr, WebView web) {
+		public ReadWebArchiveTask(OfflinePageReader wr, WebView web) {
 			this.wr = wr;
 			this.web = web;
 		}
 
 		@Override
-		protected Boolean doInBackground(InputStream... params) {
-			// To read from a file instead of an asset, use:
-			// FileInputStream is = new FileInputStream(fileName);
-			InputStream is =  params[0];
-			if (wr.readWebArchive(is)) 
-				return true;
-			else
+		protected Boolean doInBackground(File... params) {
+			if (!wr.read(params[0]))
 				return false;
+			// the page is the last to be evicted from the cache
+			HtmlPagesDbHelper htmlDbHelper = new HtmlPagesDbHelper(getApplicationContext());
+			htmlDbHelper.open();
+			htmlDbHelper.touchPage(url);
+			return true;
 		}
 
 		@Override
@@ -75,7 +76,7 @@ public class WebViewActivity extends Activity {
 									c.getLong(c.getColumnIndex(HtmlPage.COL_DISASTERID)),									
 									c.getInt(c.getColumnIndex(HtmlPage.COL_FORCED)),
 									c.getInt(c.getColumnIndex(HtmlPage.COL_ATTEMPTS)));
-			getContentResolver().notifyChange(Tweets.TABLE_TIMELINE_URI, null);		
+			htmlDbHelper.notifyChange();
 			Toast.makeText(getBaseContext(), getString(R.string.faulty_page), Toast.LENGTH_LONG).show();
 			if(progressBar.isShowing()){
 				progressBar.dismiss();
@@ -116,20 +117,27 @@ public class WebViewActivity extends Activity {
 		    webUri = Uri.fromFile(sdCardHelper.getFileFromSDCard(filePath[0], intent.getStringExtra("filename")));
 			Log.i(TAG, webUri.getPath());
 
-			try {
-
-				FileInputStream is = new FileInputStream(webUri.getPath());
-				WebArchiveReader wr = new WebArchiveReader() {
+			String filename = intent.getStringExtra("filename");
+			File file = new File(webUri.getPath());
+			OfflinePageReader wr;
+			if (PageManifest.isManifest(filename)) {
+				// fetched without a WebView, the resources are in the store
+				wr = new PageManifestReader(new ResourceStore(new File(file.getParentFile(), ResourceStore.DIRECTORY))) {
+					protected void onFinished(WebView v) {
+						Log.d(TAG, "load finished");
+						continueWhenLoaded(v);
+					}
+				};
+			} else {
+				wr = new WebArchiveReader() {
 					protected void onFinished(WebView v) {
 						// we are notified here when the page is fully loaded.
 						Log.d(TAG, "load finished");
 						continueWhenLoaded(v);
 					}
 				};
-				new ReadWebArchiveTask(wr, web).execute(is);
-				
-			} catch (IOException e) {			            
 			}
+			new ReadWebArchiveTask(wr, web).execute(file);
 			
 			
 
@@ -1,6 +1,7 @@
 package ch.ethz.twimight.application;
 
 import android.support.multidex.MultiDexApplication;
+import ch.ethz.twimight.util.StartupTrace;
 
 import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoader;
@@ -11,6 +12,7 @@ public class TwimightApplication extends MultiDexApplication {
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		StartupTrace.start();
 
 		// Create global configuration and initialize ImageLoader with this
 		// configuration
@@ -39,12 +39,13 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 	public static final String TABLE_USERS = "users";
 	public static final String TABLE_DMS = "dms";
 	public static final String TABLE_HTML = "htmls";
+	public static final String TABLE_LINKS = "links"; /** the urls each tweet links to */
 	static final String TABLE_STATISTICS = "statistics";
 	//public static final String TABLE_HTML_TRACKERS = "html_trackers";
 	
 	public static final String COL_ROW_ID = BaseColumns._ID;
 
-	private static final int DATABASE_VERSION = 57;
+	private static final int DATABASE_VERSION = 68;
 
 	// Database creation sql statement
 	private static final String TABLE_MACS_CREATE = "create table "+TABLE_MACS+" ("
@@ -53,7 +54,9 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 			+ MacsDBHelper.KEY_ATTEMPTS+ " integer, "
 			+ MacsDBHelper.KEY_SUCCESSFUL +" integer, "
 			+ MacsDBHelper.KEY_ACTIVE + " integer, "
-			+ MacsDBHelper.KEY_LAST +" integer);";
+			+ MacsDBHelper.KEY_LAST +" integer, "
+			+ MacsDBHelper.KEY_TWEETS_ACKED +" integer default 0, "
+			+ MacsDBHelper.KEY_DMS_ACKED +" integer default 0);";
 	
 	private static final String TABLE_STATISTICS_CREATE = "create table "+TABLE_STATISTICS+" ("
 			+ COL_ROW_ID + " integer primary key autoincrement not null, "			
@@ -73,6 +76,8 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 			+ COL_ROW_ID + " integer primary key autoincrement not null, "
 			+ "serial string not null, "
 			+ "until integer not null);";
+	private static final String TABLE_REVOCATION_INDEX_CREATE = "create unique index revocations_serial on "+TABLE_REVOCATIONS+" ("
+			+ RevocationDBHelper.KEY_REVOCATION_SERIAL + ");";
 	
 		
 
@@ -80,6 +85,8 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 			+ COL_ROW_ID + " integer primary key autoincrement not null, "
 			+ "twitter_id bigint not null, "
 			+ "key text not null);";
+	private static final String TABLE_FRIENDS_KEYS_INDEX_CREATE = "create unique index friends_keys_twitter_id on "+TABLE_FRIENDS_KEYS+" ("
+			+ FriendsKeysDBHelper.KEY_FRIENDS_KEY_TWITTER_ID + ");";
 	
 	// Tweets (including disaster tweets)
 	private static final String TABLE_TWEETS_CREATE = "create table "+TABLE_TWEETS+" ("
@@ -113,7 +120,12 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 			+ Tweets.COL_DISASTER_ID + " integer, "
 			+ Tweets.COL_IS_VERIFIED + " integer, "
 			+ Tweets.COL_SIGNATURE + " text, "
-			+ Tweets.COL_CERTIFICATE + " text);";
+			+ Tweets.COL_CERTIFICATE + " text, "
+			+ Tweets.COL_TDS_STATE + " integer default " + Tweets.TDS_STATE_PENDING + ", "
+			+ Tweets.COL_TDS_ATTEMPTS + " integer default 0);";
+	// the provider looks up the tweets still to be verified when it starts
+	private static final String TABLE_TWEETS_VERIFIED_INDEX_CREATE = "create index tweets_is_verified on "+TABLE_TWEETS+" ("
+			+ Tweets.COL_IS_VERIFIED + ");";
 
 	// Twitter Users
 	private static final String TABLE_USERS_CREATE = "create table "+TABLE_USERS+" ("
@@ -175,7 +187,25 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 			+ HtmlPage.COL_DISASTERID + " bigint REFERENCES " + TABLE_TWEETS + "(" + Tweets.COL_DISASTER_ID +") ON DELETE CASCADE, "			
 			+ HtmlPage.COL_FORCED + " integer default 0, "
 			+ HtmlPage.COL_ATTEMPTS + " integer default 0, "
+			+ HtmlPage.COL_SIZE + " integer default 0, "
+			+ HtmlPage.COL_LAST_ACCESS + " integer default 0, "
 			+ HtmlPage.COL_FILENAME + " string unique);";
+	// the timeline looks up the pages of every tweet
+	private static final String TABLE_HTML_DISASTERID_INDEX_CREATE = "create index htmls_disaster_id on "+TABLE_HTML+" ("
+			+ HtmlPage.COL_DISASTERID + ");";
+	// the cache evicts in this order
+	private static final String TABLE_HTML_EVICTION_INDEX_CREATE = "create index htmls_eviction on "+TABLE_HTML+" ("
+			+ HtmlPage.COL_FORCED + ", " + HtmlPage.COL_LAST_ACCESS + ");";
+
+	// the links of a tweet, written when the tweet is inserted. the primary
+	// key serves the lookups by tweet
+	private static final String TABLE_LINKS_CREATE = "create table "+TABLE_LINKS+" ("
+			+ HtmlPage.COL_DISASTERID + " bigint not null, "
+			+ HtmlPage.COL_URL + " string not null, "
+			+ "PRIMARY KEY (" + HtmlPage.COL_DISASTERID + ", " + HtmlPage.COL_URL + "));";
+	// the prefetch policy counts the tweets linking to a page
+	private static final String TABLE_LINKS_URL_INDEX_CREATE = "create index links_url on "+TABLE_LINKS+" ("
+			+ HtmlPage.COL_URL + ");";
 	
 	/*
 	// html pages trackers
@@ -242,11 +272,18 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 		database.execSQL(TABLE_MACS_CREATE);
 		database.execSQL(TABLE_STATISTICS_CREATE);
 		database.execSQL(TABLE_REVOCATION_CREATE);
+		database.execSQL(TABLE_REVOCATION_INDEX_CREATE);
 		database.execSQL(TABLE_FRIENDS_KEYS_CREATE);
+		database.execSQL(TABLE_FRIENDS_KEYS_INDEX_CREATE);
 		database.execSQL(TABLE_TWEETS_CREATE);
+		database.execSQL(TABLE_TWEETS_VERIFIED_INDEX_CREATE);
 		database.execSQL(TABLE_USERS_CREATE);
 		database.execSQL(TABLE_DMS_CREATE);
 		database.execSQL(TABLE_HTML_CREATE);
+		database.execSQL(TABLE_HTML_DISASTERID_INDEX_CREATE);
+		database.execSQL(TABLE_HTML_EVICTION_INDEX_CREATE);
+		database.execSQL(TABLE_LINKS_CREATE);
+		database.execSQL(TABLE_LINKS_URL_INDEX_CREATE);
 		//database.execSQL(TABLE_HTML_TRACKERS_CREATE);
 
 	
@@ -277,6 +314,7 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 		database.execSQL("DROP TABLE IF EXISTS "+TABLE_USERS);
 		database.execSQL("DROP TABLE IF EXISTS "+TABLE_DMS);
 		database.execSQL("DROP TABLE IF EXISTS "+TABLE_HTML);
+		database.execSQL("DROP TABLE IF EXISTS "+TABLE_LINKS);
 		//database.execSQL("DROP TABLE IF EXISTS "+TABLE_HTML_TRACKERS);
 
 		createTables(database);
@@ -296,7 +334,9 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 		database.execSQL("DELETE FROM "+TABLE_USERS);
 		database.execSQL("DELETE FROM "+TABLE_DMS);
 		database.execSQL("DELETE FROM "+TABLE_HTML);
+		database.execSQL("DELETE FROM "+TABLE_LINKS);
 		//database.execSQL("DELETE FROM "+TABLE_HTML_TRACKERS);
+		RevocationDBHelper.invalidate();
 
 	}
 }
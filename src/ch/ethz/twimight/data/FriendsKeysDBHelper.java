@@ -13,7 +13,8 @@
 
 package ch.ethz.twimight.data;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import android.content.Context;
@@ -21,8 +22,10 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.preference.PreferenceManager;
 import ch.ethz.twimight.net.tds.TDSPublicKey;
+import ch.ethz.twimight.security.CryptoContext;
 
 /**
  * Manages the FriendsKeys table in the DB.
@@ -38,6 +41,7 @@ public class FriendsKeysDBHelper {
 	
 	// Shared preferences
 	private static final String TDS_LAST_FRIENDS_KEYS_UPDATE = "tds_last_friends_keys_update";
+	private static final String TDS_FRIENDS_KEYS_SEQ = "tds_friends_keys_seq";
 
 	
 	private Context context;
@@ -65,7 +69,7 @@ public class FriendsKeysDBHelper {
 	 */
 	public long getLastUpdate(){
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		return prefs.getInt(TDS_LAST_FRIENDS_KEYS_UPDATE, 0);
+		return prefs.getLong(TDS_LAST_FRIENDS_KEYS_UPDATE, 0);
 	}
 	
 	/**
@@ -80,12 +84,30 @@ public class FriendsKeysDBHelper {
 
 	}
 	
+	/**
+	 * Gets the sequence number of the last change we applied
+	 * @return
+	 */
+	public long getSeq(){
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return prefs.getLong(TDS_FRIENDS_KEYS_SEQ, 0);
+	}
+
+	private void setSeq(long seq){
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		SharedPreferences.Editor prefEditor = prefs.edit();
+		prefEditor.putLong(TDS_FRIENDS_KEYS_SEQ, seq);
+		prefEditor.commit();
+	}
+
 	/**
 	 * Deletes all entries from DB
 	 */
 	public void flushKeyList(){
 		database.delete(DBOpenHelper.TABLE_FRIENDS_KEYS, null, null);
 		setLastUpdate(0);
+		setSeq(0);
+		CryptoContext.getInstance(context).invalidatePublicKeys();
 	}
 	
 	
@@ -95,7 +117,7 @@ public class FriendsKeysDBHelper {
 	 * @return
 	 */
 	public boolean hasKey(long twitterID){
-		Cursor c = database.query(DBOpenHelper.TABLE_FRIENDS_KEYS, null, KEY_FRIENDS_KEY_TWITTER_ID + "=" + twitterID, null, null, null, null);
+		Cursor c = database.query(DBOpenHelper.TABLE_FRIENDS_KEYS, new String[] {KEY_FRIENDS_KEY_ID}, KEY_FRIENDS_KEY_TWITTER_ID + "=?", new String[] {String.valueOf(twitterID)}, null, null, null);
 		boolean key = false;
 		if(c.getCount() > 0){
 			key = true;
@@ -113,17 +135,15 @@ public class FriendsKeysDBHelper {
 	public String getKey(long twitterID){
 		
 
-		Cursor c = database.query(DBOpenHelper.TABLE_FRIENDS_KEYS, null, KEY_FRIENDS_KEY_TWITTER_ID + "=" + twitterID, null, null, null, null);
+		Cursor c = database.query(DBOpenHelper.TABLE_FRIENDS_KEYS, new String[] {KEY_FRIENDS_KEY}, KEY_FRIENDS_KEY_TWITTER_ID + "=?", new String[] {String.valueOf(twitterID)}, null, null, null);
 
-		if(c.getCount() > 0){
-			c.moveToFirst();
-			String key = c.getString(c.getColumnIndex("key"));
-			c.close();
-			return key;
+		String key = null;
+		if(c.moveToFirst()){
+			key = c.getString(0);
 		} 
+		c.close();
 
-
-		return null;
+		return key;
 		
 	}
 	
@@ -134,32 +154,78 @@ public class FriendsKeysDBHelper {
 	 * @return
 	 */
 	public void insertKey(TDSPublicKey key){
-		// insert statement
-		if(!hasKey(key.getTwitterID())){
-			deleteKey(key.getTwitterID());
-		}
-		database.execSQL("INSERT OR IGNORE INTO "+DBOpenHelper.TABLE_FRIENDS_KEYS+" (" +KEY_FRIENDS_KEY_TWITTER_ID+ "," +KEY_FRIENDS_KEY+ ") VALUES ('" + key.getTwitterID() + "','" + key.getPemKey() + "')");
+		List<TDSPublicKey> keyList = new ArrayList<TDSPublicKey>(1);
+		keyList.add(key);
+		insertKeys(keyList);
 	}
 	
 	/**
 	 * Deletes a key of a given twitter ID
 	 */
 	public void deleteKey(long twitterID){
-		database.delete(DBOpenHelper.TABLE_FRIENDS_KEYS, KEY_FRIENDS_KEY_TWITTER_ID+"="+twitterID, null);
+		database.delete(DBOpenHelper.TABLE_FRIENDS_KEYS, KEY_FRIENDS_KEY_TWITTER_ID+"=?", new String[] {String.valueOf(twitterID)});
+		List<Long> twitterIds = new ArrayList<Long>(1);
+		twitterIds.add(twitterID);
+		CryptoContext.getInstance(context).invalidatePublicKeys(twitterIds);
 	}
 
 	/**
-	 * Revokes all entries of a list of revocation list entries
-	 * @param revocationList
+	 * Inserts or replaces the keys of a list of users in one transaction
+	 * @param keyList
 	 */
 	public void insertKeys(List<TDSPublicKey> keyList) {
-		// insert new macs in the DB
-		Iterator<TDSPublicKey> iterator = keyList.iterator(); 
-		while(iterator.hasNext()) {
-		    TDSPublicKey key = iterator.next();
-		    insertKey(key);
+		List<Long> twitterIds = new ArrayList<Long>(keyList.size());
+		// twitter_id is unique, an existing key of the user is replaced
+		SQLiteStatement upsert = database.compileStatement("INSERT OR REPLACE INTO "+DBOpenHelper.TABLE_FRIENDS_KEYS+" (" +KEY_FRIENDS_KEY_TWITTER_ID+ "," +KEY_FRIENDS_KEY+ ") VALUES (?,?)");
+		database.beginTransaction();
+		try {
+			for(TDSPublicKey key : keyList) {
+				upsert.bindLong(1, key.getTwitterID());
+				upsert.bindString(2, key.getPemKey());
+				upsert.executeInsert();
+				twitterIds.add(key.getTwitterID());
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			upsert.close();
 		}
+		CryptoContext.getInstance(context).invalidatePublicKeys(twitterIds);
+	}
 
+	/**
+	 * Applies a page of changes from the TDS in one transaction and remembers
+	 * where to continue. Applying the same page twice has no further effect.
+	 * @param added
+	 * @param removed the Twitter IDs of users whose keys are gone
+	 * @param seq the sequence number of the last change in the page
+	 */
+	public void applyDelta(Collection<TDSPublicKey> added, Collection<Long> removed, long seq) {
+		List<Long> twitterIds = new ArrayList<Long>(added.size() + removed.size());
+		SQLiteStatement delete = database.compileStatement("DELETE FROM "+DBOpenHelper.TABLE_FRIENDS_KEYS+" WHERE " +KEY_FRIENDS_KEY_TWITTER_ID+ "=?");
+		SQLiteStatement upsert = database.compileStatement("INSERT OR REPLACE INTO "+DBOpenHelper.TABLE_FRIENDS_KEYS+" (" +KEY_FRIENDS_KEY_TWITTER_ID+ "," +KEY_FRIENDS_KEY+ ") VALUES (?,?)");
+		database.beginTransaction();
+		try {
+			for(Long twitterId : removed) {
+				delete.bindLong(1, twitterId);
+				delete.execute();
+				twitterIds.add(twitterId);
+			}
+			for(TDSPublicKey key : added) {
+				upsert.bindLong(1, key.getTwitterID());
+				upsert.bindString(2, key.getPemKey());
+				upsert.executeInsert();
+				twitterIds.add(key.getTwitterID());
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			delete.close();
+			upsert.close();
+		}
+		// if we die before this, the page is applied again
+		setSeq(seq);
+		CryptoContext.getInstance(context).invalidatePublicKeys(twitterIds);
 	}
-	
+
 }
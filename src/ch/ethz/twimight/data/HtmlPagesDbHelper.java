@@ -1,6 +1,10 @@
 package ch.ethz.twimight.data;
 
-import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import twitter4j.URLEntity;
 import android.content.ContentValues;
@@ -8,13 +12,10 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.os.AsyncTask;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
-import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.net.Html.HtmlPage;
 import ch.ethz.twimight.net.twitter.Tweets;
-import ch.ethz.twimight.util.SDCardHelper;
-import ch.ethz.twimight.util.Serialization;
 
 public class HtmlPagesDbHelper {
 
@@ -24,9 +25,57 @@ public class HtmlPagesDbHelper {
 	public static final int DOWNLOAD_NORMAL = 0;
 	public static final int DOWNLOAD_FORCED = 1;
 
+	/** columns of getUndownloadedHtmls */
+	public static final String COL_POPULARITY = "popularity";
+	public static final String COL_DISASTER = "disaster";
+
+	/** SQLite allows 999 arguments per statement */
+	private static final int MAX_QUERY_ARGS = 500;
+	private static final String[] PAGE_INFO_COLUMNS = { HtmlPage.COL_URL, HtmlPage.COL_FILENAME,
+			HtmlPage.COL_DISASTERID, HtmlPage.COL_FORCED, HtmlPage.COL_ATTEMPTS };
+
+	/** is a disaster tweet, ours or a peer's, linking to the page of the htmls row? */
+	private static final String IS_DISASTER_PAGE = "EXISTS (SELECT 1 FROM " + DBOpenHelper.TABLE_LINKS + " JOIN "
+			+ DBOpenHelper.TABLE_TWEETS + " ON " + DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_DISASTER_ID + " = "
+			+ DBOpenHelper.TABLE_LINKS + "." + HtmlPage.COL_DISASTERID + " WHERE " + DBOpenHelper.TABLE_LINKS + "."
+			+ HtmlPage.COL_URL + " = " + DBOpenHelper.TABLE_HTML + "." + HtmlPage.COL_URL + " AND ("
+			+ DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_BUFFER + " & "
+			+ (Tweets.BUFFER_DISASTER | Tweets.BUFFER_MYDISASTER) + ") != 0)";
+
+	/** the queued pages, with how many tweets link to them and whether a disaster tweet does */
+	private static final String[] UNDOWNLOADED_COLUMNS = {
+			HtmlPage.COL_URL,
+			HtmlPage.COL_DISASTERID,
+			HtmlPage.COL_FORCED,
+			HtmlPage.COL_ATTEMPTS,
+			"(SELECT COUNT(*) FROM " + DBOpenHelper.TABLE_LINKS + " WHERE " + DBOpenHelper.TABLE_LINKS + "."
+					+ HtmlPage.COL_URL + " = " + DBOpenHelper.TABLE_HTML + "." + HtmlPage.COL_URL + ") AS "
+					+ COL_POPULARITY,
+			IS_DISASTER_PAGE + " AS " + COL_DISASTER };
+
 	private SQLiteDatabase database;
 	private DBOpenHelper dbHelper;
 
+	/**
+	 * A row of the htmls table
+	 */
+	public static class PageInfo {
+		public final String url;
+		/** null if the page is not stored */
+		public final String filename;
+		public final long disasterId;
+		public final int forced;
+		public final int attempts;
+
+		PageInfo(String url, String filename, long disasterId, int forced, int attempts) {
+			this.url = url;
+			this.filename = filename;
+			this.disasterId = disasterId;
+			this.forced = forced;
+			this.attempts = attempts;
+		}
+	}
+
 	/**
 	 * Constructor.
 	 * 
@@ -77,17 +126,30 @@ public class HtmlPagesDbHelper {
 		return false;
 	}
 
+	/**
+	 * Queues the pages linked from the tweets of the cursor, from the links
+	 * table
+	 */
 	public void saveLinksFromCursor(Cursor c, int type) {
 
 		if (c != null) {
 
+			List<Long> disasterIds = new ArrayList<Long>(c.getCount());
 			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-
-				Long disId = c.getLong(c.getColumnIndex(Tweets.COL_DISASTER_ID));
-				byte[] serializedUrlEntities = c.getBlob(c.getColumnIndex(Tweets.COL_URL_ENTITIES));
-				URLEntity[] urlEntities = Serialization.deserialize(serializedUrlEntities);
-
-				insertLinksIntoDb(urlEntities, disId, type);
+				disasterIds.add(c.getLong(c.getColumnIndex(Tweets.COL_DISASTER_ID)));
+			}
+			for (int i = 0; i < disasterIds.size(); i += MAX_QUERY_ARGS) {
+				List<Long> chunk = disasterIds.subList(i, Math.min(i + MAX_QUERY_ARGS, disasterIds.size()));
+				Object[] args = new Object[chunk.size() + 1];
+				args[0] = type;
+				for (int j = 0; j < chunk.size(); j++) {
+					args[j + 1] = chunk.get(j);
+				}
+				// urls we know already keep their page
+				database.execSQL("INSERT OR IGNORE INTO " + DBOpenHelper.TABLE_HTML + " (" + HtmlPage.COL_URL + ", "
+						+ HtmlPage.COL_DISASTERID + ", " + HtmlPage.COL_FORCED + ") SELECT " + HtmlPage.COL_URL + ", "
+						+ HtmlPage.COL_DISASTERID + ", ? FROM " + DBOpenHelper.TABLE_LINKS + " WHERE "
+						+ HtmlPage.COL_DISASTERID + " IN (" + placeholders(chunk.size()) + ")", args);
 			}
 		}
 	}
@@ -114,8 +176,7 @@ public class HtmlPagesDbHelper {
 
 		ContentValues cv = createContentValues(null, filename, tweetId, forced, tries);
 
-		String sql = HtmlPage.COL_URL + " = '" + url + "' ";
-		int row = database.update(DBOpenHelper.TABLE_HTML, cv, sql, null);
+		int row = database.update(DBOpenHelper.TABLE_HTML, cv, HtmlPage.COL_URL + " = ?", new String[] { url });
 
 		if (row != 0)
 			return true;
@@ -133,8 +194,7 @@ public class HtmlPagesDbHelper {
 	public boolean deletePage(String url) {
 
 		try {
-			String sql = HtmlPage.COL_URL + "='" + url + "'";
-			int result = database.delete(DBOpenHelper.TABLE_HTML, sql, null);
+			int result = database.delete(DBOpenHelper.TABLE_HTML, HtmlPage.COL_URL + " = ?", new String[] { url });
 
 			if (result != 0)
 				return true;
@@ -154,7 +214,7 @@ public class HtmlPagesDbHelper {
 	 */
 	public Cursor getPageInfo(String url) {
 
-		Cursor c = database.query(DBOpenHelper.TABLE_HTML, null, HtmlPage.COL_URL + " = '" + url + "'", null, null,
+		Cursor c = database.query(DBOpenHelper.TABLE_HTML, null, HtmlPage.COL_URL + " = ?", new String[] { url }, null,
 				null, null);
 		if (c == null || c.getCount() == 0)
 			return null;
@@ -164,11 +224,121 @@ public class HtmlPagesDbHelper {
 
 	}
 
+	/**
+	 * Looks up many pages at once, in one query for up to MAX_QUERY_ARGS urls
+	 * 
+	 * @return the pages we know, by url
+	 */
+	public Map<String, PageInfo> getPages(Collection<String> urls) {
+		Map<String, PageInfo> pages = new HashMap<String, PageInfo>();
+		List<String> chunk = new ArrayList<String>(Math.min(urls.size(), MAX_QUERY_ARGS));
+		for (String url : urls) {
+			chunk.add(url);
+			if (chunk.size() == MAX_QUERY_ARGS) {
+				readPages(chunk, pages);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty())
+			readPages(chunk, pages);
+		return pages;
+	}
+
+	private void readPages(List<String> urls, Map<String, PageInfo> pages) {
+		Cursor c = database.query(DBOpenHelper.TABLE_HTML, PAGE_INFO_COLUMNS, HtmlPage.COL_URL + " IN ("
+				+ placeholders(urls.size()) + ")", urls.toArray(new String[urls.size()]), null, null, null);
+		try {
+			while (c.moveToNext()) {
+				PageInfo page = readPageInfo(c);
+				pages.put(page.url, page);
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	private static PageInfo readPageInfo(Cursor c) {
+		return new PageInfo(c.getString(0), c.isNull(1) ? null : c.getString(1), c.getLong(2), c.getInt(3),
+				c.getInt(4));
+	}
+
+	private static String placeholders(int n) {
+		StringBuilder s = new StringBuilder(2 * n);
+		for (int i = 0; i < n; i++) {
+			s.append(i == 0 ? "?" : ",?");
+		}
+		return s.toString();
+	}
+
+	/**
+	 * @return the urls the tweet links to
+	 */
+	public List<String> getLinks(long disasterId) {
+		List<String> links = new ArrayList<String>();
+		Cursor c = database.query(DBOpenHelper.TABLE_LINKS, new String[] { HtmlPage.COL_URL },
+				HtmlPage.COL_DISASTERID + " = ?", new String[] { String.valueOf(disasterId) }, null, null, null);
+		try {
+			while (c.moveToNext()) {
+				links.add(c.getString(0));
+			}
+		} finally {
+			c.close();
+		}
+		return links;
+	}
+
+	/**
+	 * Looks up the known pages linked from many tweets at once
+	 * 
+	 * @return the pages by disaster id of the linking tweet, tweets without
+	 *         pages are left out
+	 */
+	public Map<Long, List<PageInfo>> getLinkedPages(Collection<Long> disasterIds) {
+		Map<Long, List<PageInfo>> pages = new HashMap<Long, List<PageInfo>>();
+		List<String> chunk = new ArrayList<String>(Math.min(disasterIds.size(), MAX_QUERY_ARGS));
+		for (Long disasterId : disasterIds) {
+			chunk.add(String.valueOf(disasterId));
+			if (chunk.size() == MAX_QUERY_ARGS) {
+				readLinkedPages(chunk, pages);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty())
+			readLinkedPages(chunk, pages);
+		return pages;
+	}
+
+	private void readLinkedPages(List<String> disasterIds, Map<Long, List<PageInfo>> pages) {
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (String column : PAGE_INFO_COLUMNS) {
+			sql.append(DBOpenHelper.TABLE_HTML).append('.').append(column).append(", ");
+		}
+		sql.append(DBOpenHelper.TABLE_LINKS).append('.').append(HtmlPage.COL_DISASTERID);
+		sql.append(" FROM " + DBOpenHelper.TABLE_LINKS + " JOIN " + DBOpenHelper.TABLE_HTML + " ON "
+				+ DBOpenHelper.TABLE_HTML + "." + HtmlPage.COL_URL + " = " + DBOpenHelper.TABLE_LINKS + "."
+				+ HtmlPage.COL_URL + " WHERE " + DBOpenHelper.TABLE_LINKS + "." + HtmlPage.COL_DISASTERID + " IN ("
+				+ placeholders(disasterIds.size()) + ")");
+		Cursor c = database.rawQuery(sql.toString(), disasterIds.toArray(new String[disasterIds.size()]));
+		try {
+			while (c.moveToNext()) {
+				Long disasterId = c.getLong(PAGE_INFO_COLUMNS.length);
+				List<PageInfo> tweetPages = pages.get(disasterId);
+				if (tweetPages == null) {
+					tweetPages = new ArrayList<PageInfo>();
+					pages.put(disasterId, tweetPages);
+				}
+				tweetPages.add(readPageInfo(c));
+			}
+		} finally {
+			c.close();
+		}
+	}
+
 	// return all urls for a tweet
 	public Cursor getTweetUrls(long tweetId) {
 
-		Cursor c = database.query(DBOpenHelper.TABLE_HTML, null, HtmlPage.COL_DISASTERID + " = " + tweetId, null, null,
-				null, null);
+		Cursor c = database.query(DBOpenHelper.TABLE_HTML, null, HtmlPage.COL_DISASTERID + " = ?",
+				new String[] { String.valueOf(tweetId) }, null, null, null);
 
 		return c;
 	}
@@ -202,7 +372,9 @@ public class HtmlPagesDbHelper {
 			sql = HtmlPage.COL_FILENAME + " is null and " + HtmlPage.COL_ATTEMPTS + " < " + HtmlPage.DOWNLOAD_LIMIT
 					+ "";
 		}
-		Cursor c = database.query(DBOpenHelper.TABLE_HTML, null, sql, null, null, null, HtmlPage.COL_FILENAME + " ASC");
+		// forced pages first, then in the order they were queued
+		Cursor c = database.query(DBOpenHelper.TABLE_HTML, UNDOWNLOADED_COLUMNS, sql, null, null, null,
+				HtmlPage.COL_FORCED + " DESC, " + HtmlPage.COL_PAGE_ID + " ASC");
 		return c;
 	}
 
@@ -218,6 +390,14 @@ public class HtmlPagesDbHelper {
 		return c;
 	}
 
+	/**
+	 * Tells the tweet lists that the download state of their pages changed, it
+	 * is part of the tweet queries (Tweets.COL_OFFLINE_STATUS)
+	 */
+	public void notifyChange() {
+		context.getContentResolver().notifyChange(Tweets.ALL_TWEETS_URI, null);
+	}
+
 	/**
 	 * Creates a Html page record to insert in the DB
 	 * 
@@ -250,53 +430,86 @@ public class HtmlPagesDbHelper {
 		return c;
 	}
 
-	public void clearHtmlPages(long timeSpan) {
-		new ClearHtmlPages().execute(timeSpan);
-	}
-
 	/**
-	 * clear all downloaded html pages
-	 * 
-	 * @author fshi
+	 * The page has been stored
 	 * 
+	 * @param size
+	 *            bytes the page takes, with its resources
 	 */
-	private class ClearHtmlPages extends AsyncTask<Long, Void, Boolean> {
-
-		@Override
-		protected Boolean doInBackground(Long... params) {
-			// TODO Auto-generated method stub
-
-			long timeSpan = params[0];
-			SDCardHelper sdCardHelper = new SDCardHelper();
-
-			Cursor c = getAll();
-
-			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-
-				if (!c.isNull(c.getColumnIndex(HtmlPage.COL_FILENAME))) {
-
-					String filename = c.getString(c.getColumnIndex(HtmlPage.COL_FILENAME));
-
-					Long createdTime = Long.parseLong(filename.substring(8, filename.length() - 4));
+	public boolean storePage(String url, String filename, long size) {
+		ContentValues cv = new ContentValues();
+		cv.put(HtmlPage.COL_FILENAME, filename);
+		cv.put(HtmlPage.COL_SIZE, size);
+		cv.put(HtmlPage.COL_LAST_ACCESS, System.currentTimeMillis());
+		return database.update(DBOpenHelper.TABLE_HTML, cv, HtmlPage.COL_URL + " = ?", new String[] { url }) != 0;
+	}
 
-					if ((System.currentTimeMillis() - createdTime) > timeSpan) {
+	/**
+	 * The page has been read, it is the last to be evicted from the cache
+	 */
+	public void touchPage(String url) {
+		ContentValues cv = new ContentValues();
+		cv.put(HtmlPage.COL_LAST_ACCESS, System.currentTimeMillis());
+		database.update(DBOpenHelper.TABLE_HTML, cv, HtmlPage.COL_URL + " = ?", new String[] { url });
+	}
 
-						String[] filePath = { HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(context) };
-						if (sdCardHelper.checkSDState(filePath)) {
-							File deleteFile = sdCardHelper.getFileFromSDCard(filePath[0], filename);
+	/**
+	 * @return the bytes all stored pages take
+	 */
+	public long getStoredSize() {
+		Cursor c = database.rawQuery("SELECT SUM(" + HtmlPage.COL_SIZE + ") FROM " + DBOpenHelper.TABLE_HTML
+				+ " WHERE " + HtmlPage.COL_FILENAME + " IS NOT NULL", null);
+		try {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
 
-							if (deleteFile.delete()) {
-								deletePage(c.getString(c.getColumnIndex(HtmlPage.COL_URL)));
-							}
+	/**
+	 * Stored pages in the order they are evicted from the cache: least recently
+	 * used first, forced pages after the others. Pages linked from disaster
+	 * tweets, ours or the peers', are never evicted, whichever tweet the page
+	 * was queued for.
+	 * 
+	 * @return row ID, filename and size of the pages
+	 */
+	public Cursor getEvictionCandidates() {
+		return database.rawQuery("SELECT " + HtmlPage.COL_PAGE_ID + ", " + HtmlPage.COL_FILENAME + ", "
+				+ HtmlPage.COL_SIZE + " FROM " + DBOpenHelper.TABLE_HTML + " WHERE " + HtmlPage.COL_FILENAME
+				+ " IS NOT NULL AND NOT " + IS_DISASTER_PAGE + " AND (" + HtmlPage.COL_DISASTERID + " IS NULL OR "
+				+ HtmlPage.COL_DISASTERID + " NOT IN (SELECT " + Tweets.COL_DISASTER_ID + " FROM "
+				+ DBOpenHelper.TABLE_TWEETS + " WHERE " + Tweets.COL_DISASTER_ID + " IS NOT NULL AND ("
+				+ Tweets.COL_BUFFER + " & " + (Tweets.BUFFER_DISASTER | Tweets.BUFFER_MYDISASTER)
+				+ ") != 0)) ORDER BY " + HtmlPage.COL_FORCED
+				+ " ASC, " + HtmlPage.COL_LAST_ACCESS + " ASC", null);
+	}
 
-						}
-					}
-				}
+	/**
+	 * @return row ID, filename and size of all stored pages
+	 */
+	public Cursor getStoredPages() {
+		return database.query(DBOpenHelper.TABLE_HTML, new String[] { HtmlPage.COL_PAGE_ID, HtmlPage.COL_FILENAME,
+				HtmlPage.COL_SIZE }, HtmlPage.COL_FILENAME + " IS NOT NULL", null, null, null, null);
+	}
 
+	/**
+	 * Deletes pages in one transaction, the files are left to the caller
+	 */
+	public void deletePages(Collection<Long> rowIds) {
+		SQLiteStatement delete = database.compileStatement("DELETE FROM " + DBOpenHelper.TABLE_HTML + " WHERE "
+				+ HtmlPage.COL_PAGE_ID + " = ?");
+		database.beginTransaction();
+		try {
+			for (Long rowId : rowIds) {
+				delete.bindLong(1, rowId);
+				delete.execute();
 			}
-			return null;
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			delete.close();
 		}
-
 	}
 
 }
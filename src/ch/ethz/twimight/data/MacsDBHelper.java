@@ -39,6 +39,8 @@ public class MacsDBHelper {
 	public static final String KEY_SUCCESSFUL = "successful";
 	public static final String KEY_ACTIVE = "active";
 	public static final String KEY_LAST = "last_update";
+	public static final String KEY_TWEETS_ACKED = "tweets_acked";
+	public static final String KEY_DMS_ACKED = "dms_acked";
 	
 	private Context context;
 	
@@ -80,7 +82,9 @@ public class MacsDBHelper {
 	public long createMac(String mac, int active) {
 		
 		Cursor mCursor = fetchMac(mac);
-		if(mCursor.moveToFirst())
+		boolean exists = mCursor.moveToFirst();
+		mCursor.close();
+		if(exists)
 			return -1;
 		
 		ContentValues initialValues = createContentValues(mac, 0, 0, active);
@@ -259,6 +263,50 @@ public class MacsDBHelper {
 
 	}
 
+	/**
+	 * Get the highest row ID of our disaster tweets the peer has acknowledged
+	 */
+	public long getTweetsAcked(String mac) {
+		return getAcked(mac, KEY_TWEETS_ACKED);
+	}
+
+	/**
+	 * Get the highest row ID of our disaster DMs the peer has acknowledged
+	 */
+	public long getDMsAcked(String mac) {
+		return getAcked(mac, KEY_DMS_ACKED);
+	}
+
+	private long getAcked(String mac, String column) {
+		String[] columns = {column};
+		Cursor c = database.query(DBOpenHelper.TABLE_MACS, columns, KEY_MAC + "=?", new String[] {mac}, null, null, null);
+		long acked = 0;
+		if(c.moveToFirst()){
+			acked = c.getLong(0);
+		}
+		c.close();
+		return acked;
+	}
+
+	/**
+	 * Moves the acknowledged high-water marks of a peer forward. Marks never
+	 * go back, so late or repeated acknowledgments are harmless.
+	 * @param tweetsAcked highest acknowledged tweet row ID, -1 if none
+	 * @param dmsAcked highest acknowledged DM row ID, -1 if none
+	 */
+	public void setAcked(String mac, long tweetsAcked, long dmsAcked) {
+		// peers which connected to us may not be in the table yet
+		createMac(mac, 0);
+		try{
+			database.execSQL("UPDATE " + DBOpenHelper.TABLE_MACS + " SET "
+					+ KEY_TWEETS_ACKED + "=max(ifnull(" + KEY_TWEETS_ACKED + ",0),?), "
+					+ KEY_DMS_ACKED + "=max(ifnull(" + KEY_DMS_ACKED + ",0),?) WHERE " + KEY_MAC + "=?",
+					new Object[] {tweetsAcked, dmsAcked, mac});
+		} catch (SQLiteException e){
+			Log.e(TAG, "SQLiteException: " + e.toString());
+		}
+	}
+
 	/**
 	 * Returns the number of successful connections to a MAC address entry
 	 */
@@ -13,7 +13,8 @@
 
 package ch.ethz.twimight.data;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import android.content.Context;
@@ -21,11 +22,14 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.preference.PreferenceManager;
 import ch.ethz.twimight.security.RevocationListEntry;
+import ch.ethz.twimight.security.RevocationSet;
 
 /**
- * Manages the revocation list in the DB.
+ * Manages the revocation list in the DB. Lookups are answered from an
+ * in-memory copy which is loaded once and kept up to date with the DB.
  * @author thossmann
  *
  */
@@ -38,7 +42,10 @@ public class RevocationDBHelper {
 	
 	// Shared preferences
 	private static final String TDS_REVOCATION_VERSION = "tds_revocation_version";
+	private static final String TDS_REVOCATION_SEQ = "tds_revocation_seq";
 
+	// in-memory copy of the revoked serials, null if it has to be (re)loaded
+	private static RevocationSet revocationSet;
 	
 	private Context context;
 	private DBOpenHelper dbHelper;
@@ -80,12 +87,30 @@ public class RevocationDBHelper {
 
 	}
 	
+	/**
+	 * Gets the sequence number of the last change we applied
+	 * @return
+	 */
+	public long getSeq(){
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return prefs.getLong(TDS_REVOCATION_SEQ, 0);
+	}
+
+	private void setSeq(long seq){
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		SharedPreferences.Editor prefEditor = prefs.edit();
+		prefEditor.putLong(TDS_REVOCATION_SEQ, seq);
+		prefEditor.commit();
+	}
+
 	/**
 	 * Deletes all entries from DB
 	 */
 	public void flushRevocationList(){
 		database.delete(DBOpenHelper.TABLE_REVOCATIONS, null, null);
 		setCurrentVersion(0);
+		setSeq(0);
+		invalidate();
 	}
 	
 	/**
@@ -94,10 +119,9 @@ public class RevocationDBHelper {
 	 * @return
 	 */
 	public void revoke(RevocationListEntry entry){
-		// We have to convert from milliseconds since 1970 to seconds since 1970
-		Long untilSeconds = (long) Math.round(entry.getUntil().getTime()/1000);
-		// insert statement
-		database.execSQL("INSERT OR IGNORE INTO "+DBOpenHelper.TABLE_REVOCATIONS+" (" +KEY_REVOCATION_SERIAL+ "," +KEY_REVOCATION_UNTIL+ ") VALUES ('" + entry.getSerial() + "'," + untilSeconds + ")");
+		List<RevocationListEntry> entries = new ArrayList<RevocationListEntry>(1);
+		entries.add(entry);
+		processUpdate(entries);
 	}
 	
 	/**
@@ -105,36 +129,120 @@ public class RevocationDBHelper {
 	 */
 	public void deleteExpired(){
 		Long until = (long) Math.round(System.currentTimeMillis()/1000);
-		database.delete(DBOpenHelper.TABLE_REVOCATIONS, "until<" + until, null);
+		if(database.delete(DBOpenHelper.TABLE_REVOCATIONS, KEY_REVOCATION_UNTIL + "<?", new String[] {until.toString()}) > 0){
+			invalidate();
+		}
 	}
 	
 	/**
-	 * Returns true if the certificate serial number is in the database.
+	 * Returns true if the certificate serial number is on the revocation list.
 	 * @param serial
 	 * @return
 	 */
 	public boolean isRevoked(String serial){
-		Cursor c = database.query(DBOpenHelper.TABLE_REVOCATIONS, null, KEY_REVOCATION_SERIAL + "='" + serial +"'", null, null, null, null);
-		boolean revoked = false;
-		if(c.getCount() > 0){
-			revoked = true;
-		} 
-		c.close();
-		return revoked;
+		return getRevocationSet().contains(serial);
 	}
 
 	/**
-	 * Revokes all entries of a list of revocation list entries
+	 * Revokes all entries of a list of revocation list entries in one
+	 * transaction
 	 * @param revocationList
 	 */
 	public void processUpdate(List<RevocationListEntry> revocationList) {
-		// insert new macs in the DB
-		Iterator<RevocationListEntry> iterator = revocationList.iterator(); 
-		while(iterator.hasNext()) {
-		    RevocationListEntry entry = iterator.next();
-		    revoke(entry);
+		List<String> serials = new ArrayList<String>(revocationList.size());
+		SQLiteStatement insert = database.compileStatement("INSERT OR REPLACE INTO "+DBOpenHelper.TABLE_REVOCATIONS+" (" +KEY_REVOCATION_SERIAL+ "," +KEY_REVOCATION_UNTIL+ ") VALUES (?,?)");
+		database.beginTransaction();
+		try {
+			for(RevocationListEntry entry : revocationList) {
+				// We have to convert from milliseconds since 1970 to seconds since 1970
+				long untilSeconds = Math.round(entry.getUntil().getTime()/1000);
+				insert.bindString(1, entry.getSerial());
+				insert.bindLong(2, untilSeconds);
+				insert.executeInsert();
+				serials.add(entry.getSerial());
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			insert.close();
+		}
+
+		synchronized (RevocationDBHelper.class) {
+			if(revocationSet != null){
+				revocationSet.addAll(serials);
+			}
+		}
+	}
+
+	/**
+	 * Applies a page of changes from the TDS in one transaction and remembers
+	 * where to continue. Applying the same page twice has no further effect.
+	 * @param added
+	 * @param removed serials which are no longer on the list
+	 * @param seq the sequence number of the last change in the page
+	 */
+	public void applyDelta(Collection<RevocationListEntry> added, Collection<String> removed, long seq) {
+		SQLiteStatement delete = database.compileStatement("DELETE FROM "+DBOpenHelper.TABLE_REVOCATIONS+" WHERE " +KEY_REVOCATION_SERIAL+ "=?");
+		SQLiteStatement insert = database.compileStatement("INSERT OR REPLACE INTO "+DBOpenHelper.TABLE_REVOCATIONS+" (" +KEY_REVOCATION_SERIAL+ "," +KEY_REVOCATION_UNTIL+ ") VALUES (?,?)");
+		List<String> serials = new ArrayList<String>(added.size());
+		database.beginTransaction();
+		try {
+			for(String serial : removed) {
+				delete.bindString(1, serial);
+				delete.execute();
+			}
+			for(RevocationListEntry entry : added) {
+				insert.bindString(1, entry.getSerial());
+				insert.bindLong(2, Math.round(entry.getUntil().getTime()/1000));
+				insert.executeInsert();
+				serials.add(entry.getSerial());
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			delete.close();
+			insert.close();
 		}
+		// if we die before this, the page is applied again
+		setSeq(seq);
 
+		if(!removed.isEmpty()){
+			// the set only grows, reload it
+			invalidate();
+		} else {
+			synchronized (RevocationDBHelper.class) {
+				if(revocationSet != null){
+					revocationSet.addAll(serials);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the in-memory copy of the list, loads it from the DB if needed.
+	 */
+	private RevocationSet getRevocationSet() {
+		synchronized (RevocationDBHelper.class) {
+			if(revocationSet == null){
+				List<String> serials = new ArrayList<String>();
+				Cursor c = database.query(DBOpenHelper.TABLE_REVOCATIONS, new String[] {KEY_REVOCATION_SERIAL}, null, null, null, null, null);
+				while(c.moveToNext()){
+					serials.add(c.getString(0));
+				}
+				c.close();
+				revocationSet = new RevocationSet(serials);
+			}
+			return revocationSet;
+		}
+	}
+
+	/**
+	 * The in-memory copy is reloaded on the next lookup
+	 */
+	static void invalidate() {
+		synchronized (RevocationDBHelper.class) {
+			revocationSet = null;
+		}
 	}
 	
 }
@@ -1,7 +1,7 @@
 package ch.ethz.twimight.fragments;
 
+import android.content.CursorLoader;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import ch.ethz.twimight.activities.TweetDetailActivity;
 import ch.ethz.twimight.net.twitter.Tweets;
@@ -18,19 +18,21 @@ public class FavoritesFragment extends TweetListFragment {
 	}
 
 	@Override
-	Cursor getCursor() {
-		Cursor cursor = mResolver
-				.query(Uri.parse("content://" + Tweets.TWEET_AUTHORITY
-						+ "/" + Tweets.TWEETS + "/"
-						+ Tweets.TWEETS_TABLE_FAVORITES + "/"
-						+ Tweets.TWEETS_SOURCE_ALL), null, null, null, null);
-		return cursor;
+	CursorLoader getCursorLoader() {
+		return new CursorLoader(getActivity(), Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS
+				+ "/" + Tweets.TWEETS_TABLE_FAVORITES + "/" + Tweets.TWEETS_SOURCE_ALL), null, null, null, null);
+	}
+
+	@Override
+	Intent getSyncIntent() {
+		Intent syncIntent = new Intent(getActivity(), TwitterSyncService.class);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_FAVORITES);
+		return syncIntent;
 	}
 
 	@Override
 	Intent getOverscrollIntent() {
-		Intent overscrollIntent = new Intent(getActivity(), TwitterSyncService.class);
-		overscrollIntent.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_FAVORITES);
+		Intent overscrollIntent = getSyncIntent();
 		overscrollIntent.putExtra(TwitterSyncService.EXTRA_KEY_FORCE_SYNC, true);
 		return overscrollIntent;
 	}
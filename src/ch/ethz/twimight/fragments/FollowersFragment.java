@@ -1,18 +1,24 @@
 package ch.ethz.twimight.fragments;
 
+import android.content.CursorLoader;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
+import ch.ethz.twimight.net.twitter.TwitterSyncService;
 import ch.ethz.twimight.net.twitter.TwitterUsers;
 
 public class FollowersFragment extends UserListFragment {
 
 	@Override
-	Cursor getCursor() {
-		Cursor cursor = mResolver.query(
-				Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/" + TwitterUsers.TWITTERUSERS
-						+ "/" + TwitterUsers.TWITTERUSERS_FOLLOWERS), null, null, null, null);
-		return cursor;
+	CursorLoader getCursorLoader() {
+		return new CursorLoader(getActivity(), Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/"
+				+ TwitterUsers.TWITTERUSERS + "/" + TwitterUsers.TWITTERUSERS_FOLLOWERS), null, null, null, null);
+	}
+
+	@Override
+	Intent getSyncIntent() {
+		Intent syncIntent = new Intent(getActivity(), TwitterSyncService.class);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_FOLLOWERS);
+		return syncIntent;
 	}
 
 	@Override
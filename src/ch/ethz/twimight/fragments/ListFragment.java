@@ -1,8 +1,11 @@
 package ch.ethz.twimight.fragments;
 
+import android.annotation.SuppressLint;
 import android.app.Fragment;
-import android.content.ContentResolver;
+import android.app.LoaderManager;
+import android.content.CursorLoader;
 import android.content.Intent;
+import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.util.Log;
@@ -16,31 +19,30 @@ import ch.ethz.twimight.util.Constants;
 import ch.ethz.twimight.views.PullToRefreshListView;
 import ch.ethz.twimight.views.PullToRefreshListView.PullToRefreshListener;
 
-public abstract class ListFragment extends Fragment implements PullToRefreshListener {
+/**
+ * A list backed by a cursor. The cursor is loaded by a {@link CursorLoader}:
+ * the query runs and fills its window in the background, and changes of the
+ * content reload it at most every LIST_UPDATE_THROTTLE milliseconds.
+ */
+public abstract class ListFragment extends Fragment implements PullToRefreshListener,
+		LoaderManager.LoaderCallbacks<Cursor> {
+
+	private static final int LIST_LOADER = 0;
 
 	Intent overscrollIntent;
 	int mType;
-	ContentResolver mResolver;
 	CursorAdapter mListAdapter;
-	Cursor mCursor;
 
 	PullToRefreshListView mListView;
+	/** false while the list is an unselected page of a pager */
+	private boolean mVisible = true;
 	protected static final String TAG = ListFragment.class.getSimpleName();
 
-	@Override
-	public void onCreate(Bundle savedInstanceState) {
-		super.onCreate(savedInstanceState);
-		mResolver = getActivity().getContentResolver();
-	}
-
+	/**
+	 * Loads the list again, for a new query
+	 */
 	void updateList() {
-		mCursor = getCursor();
-		overscrollIntent = getOverscrollIntent();
-		Cursor oldCursor = mListAdapter.swapCursor(mCursor);
-		mListAdapter.notifyDataSetChanged();
-		if (oldCursor != null) {
-			oldCursor.close();
-		}
+		getLoaderManager().restartLoader(LIST_LOADER, null, this);
 	}
 
 	@Override
@@ -53,17 +55,78 @@ public abstract class ListFragment extends Fragment implements PullToRefreshList
 
 		mListAdapter = getListAdapter();
 		mListView.setAdapter(mListAdapter);
-		updateList();
+		overscrollIntent = getOverscrollIntent();
 		return mListView;
 	}
 
+	@Override
+	public void onActivityCreated(Bundle savedInstanceState) {
+		super.onActivityCreated(savedInstanceState);
+		getLoaderManager().initLoader(LIST_LOADER, null, this);
+	}
+
+	@Override
+	public void onResume() {
+		super.onResume();
+		if (mVisible) {
+			requestSync();
+		}
+	}
+
+	// the pager adapters only call it on API 15+
+	@SuppressLint("NewApi")
+	@Override
+	public void setUserVisibleHint(boolean isVisibleToUser) {
+		super.setUserVisibleHint(isVisibleToUser);
+		mVisible = isVisibleToUser;
+		if (isVisibleToUser && isResumed()) {
+			requestSync();
+		}
+	}
+
+	/**
+	 * Syncs the list with Twitter, unless it was synced recently
+	 */
+	void requestSync() {
+		Intent syncIntent = getSyncIntent();
+		if (syncIntent != null) {
+			TwitterSyncService.requestSync(getActivity(), syncIntent);
+		}
+	}
+
 	@Override
 	public void onDestroyView() {
 		super.onDestroyView();
 		mListView.unregisterListener(this);
 	}
 
-	abstract Cursor getCursor();
+	@Override
+	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+		CursorLoader loader = getCursorLoader();
+		loader.setUpdateThrottle(Constants.LIST_UPDATE_THROTTLE);
+		return loader;
+	}
+
+	@Override
+	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+		// the loader closes the old cursor
+		mListAdapter.swapCursor(data);
+	}
+
+	@Override
+	public void onLoaderReset(Loader<Cursor> loader) {
+		mListAdapter.swapCursor(null);
+	}
+
+	/**
+	 * @return a loader for the cursor of the list
+	 */
+	abstract CursorLoader getCursorLoader();
+
+	/**
+	 * @return the intent which syncs the list, null if it is not synced
+	 */
+	abstract Intent getSyncIntent();
 
 	abstract Intent getOverscrollIntent();
 
@@ -1,18 +1,21 @@
 package ch.ethz.twimight.fragments;
 
+import android.content.CursorLoader;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import ch.ethz.twimight.net.twitter.TwitterUsers;
 
 public class PeersFragment extends UserListFragment {
 
 	@Override
-	Cursor getCursor() {
-		Cursor cursor = mResolver.query(
-				Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/" + TwitterUsers.TWITTERUSERS + "/"
-						+ TwitterUsers.TWITTERUSERS_DISASTER), null, null, null, null);
-		return cursor;
+	CursorLoader getCursorLoader() {
+		return new CursorLoader(getActivity(), Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/"
+				+ TwitterUsers.TWITTERUSERS + "/" + TwitterUsers.TWITTERUSERS_DISASTER), null, null, null, null);
+	}
+
+	@Override
+	Intent getSyncIntent() {
+		return null;
 	}
 
 	@Override
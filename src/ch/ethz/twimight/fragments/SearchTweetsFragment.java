@@ -1,7 +1,7 @@
 package ch.ethz.twimight.fragments;
 
+import android.content.CursorLoader;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -10,6 +10,7 @@ import android.view.ViewGroup;
 import ch.ethz.twimight.activities.SearchableActivity;
 import ch.ethz.twimight.activities.TweetDetailActivity;
 import ch.ethz.twimight.net.twitter.Tweets;
+import ch.ethz.twimight.net.twitter.TwitterSyncService;
 
 public class SearchTweetsFragment extends TweetListFragment {
 
@@ -29,11 +30,19 @@ public class SearchTweetsFragment extends TweetListFragment {
 	}
 
 	@Override
-	Cursor getCursor() {
-		Cursor cursor = mResolver.query(
-				Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/" + Tweets.SEARCH), null,
-				SearchableActivity.mQuery, null, null);
-		return cursor;
+	CursorLoader getCursorLoader() {
+		return new CursorLoader(getActivity(), Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS
+				+ "/" + Tweets.SEARCH), null, SearchableActivity.mQuery, null, null);
+	}
+
+	@Override
+	Intent getSyncIntent() {
+		if (SearchableActivity.mQuery == null)
+			return null;
+		Intent syncIntent = new Intent(getActivity(), TwitterSyncService.class);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SEARCH_TWEET);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_TWEET_SEARCH_QUERY, SearchableActivity.mQuery);
+		return syncIntent;
 	}
 
 	@Override
@@ -1,19 +1,29 @@
 package ch.ethz.twimight.fragments;
 
+import android.content.CursorLoader;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import ch.ethz.twimight.activities.SearchableActivity;
+import ch.ethz.twimight.net.twitter.TwitterSyncService;
 import ch.ethz.twimight.net.twitter.TwitterUsers;
 
 public class SearchUsersFragment extends UserListFragment {
 
 	@Override
-	Cursor getCursor() {
-		Cursor cursor = mResolver.query(
-				Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/" + TwitterUsers.TWITTERUSERS
-						+ "/" + TwitterUsers.TWITTERUSERS_SEARCH), null, SearchableActivity.mQuery, null, null);
-		return cursor;
+	CursorLoader getCursorLoader() {
+		return new CursorLoader(getActivity(), Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/"
+				+ TwitterUsers.TWITTERUSERS + "/" + TwitterUsers.TWITTERUSERS_SEARCH), null, SearchableActivity.mQuery,
+				null, null);
+	}
+
+	@Override
+	Intent getSyncIntent() {
+		if (SearchableActivity.mQuery == null)
+			return null;
+		Intent syncIntent = new Intent(getActivity(), TwitterSyncService.class);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SEARCH_USER);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_USER_SEARCH_QUERY, SearchableActivity.mQuery);
+		return syncIntent;
 	}
 
 	@Override
@@ -61,6 +61,7 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
 	 */
 	private void initializePreferenceStates() {
 		updateBackgroundUpdatePreference();
+		updateOfflineCacheSizePreference();
 		updateNotificationSoundPreference();
 	}
 
@@ -81,6 +82,23 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
 		}
 	}
 
+	/**
+	 * Sets the summary of the offline cache size preference to display the
+	 * selected value.
+	 */
+	private void updateOfflineCacheSizePreference() {
+		ListPreference cacheSizePreference = (ListPreference) findPreference(getString(R.string.pref_key_offline_cache_size));
+		String selectedValue = cacheSizePreference.getValue();
+		String[] values = getResources().getStringArray(R.array.offlineCacheSizeValues);
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null && values[i].equals(selectedValue)) {
+				String[] names = getResources().getStringArray(R.array.offlineCacheSizeNames);
+				cacheSizePreference.setSummary(names[i]);
+				break;
+			}
+		}
+	}
+
 	/**
 	 * Sets the summary of the notification ringtone preference to display the
 	 * name of the selected ringtone.
@@ -149,6 +167,8 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
 		} else if (key.equals(getString(R.string.pref_key_update_interval))) {
 			updateBackgroundUpdatePreference();
 			TwitterAlarm.initialize(getActivity());
+		} else if (key.equals(getString(R.string.pref_key_offline_cache_size))) {
+			updateOfflineCacheSizePreference();
 		} else if (key.equals(getString(R.string.pref_key_notification_ringtone))) {
 			updateNotificationSoundPreference();
 		} else if (key.equals(getString(R.string.pref_key_notify_tweets))) {
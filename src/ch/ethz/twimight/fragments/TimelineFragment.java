@@ -1,26 +1,39 @@
 package ch.ethz.twimight.fragments;
 
+import android.content.CursorLoader;
 import android.content.Intent;
+import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
 import ch.ethz.twimight.activities.TweetDetailActivity;
 import ch.ethz.twimight.net.twitter.Tweets;
 import ch.ethz.twimight.net.twitter.TwitterSyncService;
+import ch.ethz.twimight.util.StartupTrace;
 
 public class TimelineFragment extends TweetListFragment {
 
 	@Override
-	Cursor getCursor() {
-		Cursor cursor = mResolver.query(
-				Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/"
-						+ Tweets.TWEETS_TABLE_TIMELINE + "/" + Tweets.TWEETS_SOURCE_ALL), null, null, null, null);
-		return cursor;
+	CursorLoader getCursorLoader() {
+		return new CursorLoader(getActivity(), Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS
+				+ "/" + Tweets.TWEETS_TABLE_TIMELINE + "/" + Tweets.TWEETS_SOURCE_ALL), null, null, null, null);
+	}
+
+	@Override
+	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+		super.onLoadFinished(loader, data);
+		if (data != null && data.getCount() > 0)
+			StartupTrace.onFirstFrame(mListView, "first timeline frame");
+	}
+
+	@Override
+	Intent getSyncIntent() {
+		Intent syncIntent = new Intent(getActivity(), TwitterSyncService.class);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_TIMELINE);
+		return syncIntent;
 	}
 
 	Intent getOverscrollIntent() {
-		Intent overscrollIntent = new Intent(getActivity(), TwitterSyncService.class);
-		overscrollIntent = new Intent(getActivity(), TwitterSyncService.class);
-		overscrollIntent.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_TIMELINE);
+		Intent overscrollIntent = getSyncIntent();
 		overscrollIntent.putExtra(TwitterSyncService.EXTRA_KEY_FORCE_SYNC, true);
 		return overscrollIntent;
 	}
@@ -1,11 +1,12 @@
 package ch.ethz.twimight.fragments;
 
+import android.content.CursorLoader;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import ch.ethz.twimight.activities.TweetDetailActivity;
 import ch.ethz.twimight.net.twitter.Tweets;
+import ch.ethz.twimight.net.twitter.TwitterSyncService;
 
 public class UserTweetsFragment extends TweetListFragment {
 
@@ -27,11 +28,17 @@ public class UserTweetsFragment extends TweetListFragment {
 	}
 
 	@Override
-	Cursor getCursor() {
-		Cursor cursor = mResolver.query(
-				Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/" + Tweets.TWEETS_TABLE_USER
-						+ "/" + mUserId), null, null, null, null);
-		return cursor;
+	CursorLoader getCursorLoader() {
+		return new CursorLoader(getActivity(), Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS
+				+ "/" + Tweets.TWEETS_TABLE_USER + "/" + mUserId), null, null, null, null);
+	}
+
+	@Override
+	Intent getSyncIntent() {
+		Intent syncIntent = new Intent(getActivity(), TwitterSyncService.class);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_USER_TWEETS);
+		syncIntent.putExtra(TwitterSyncService.EXTRA_KEY_USER_TID, mUserId);
+		return syncIntent;
 	}
 
 	@Override
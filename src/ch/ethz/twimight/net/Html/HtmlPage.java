@@ -30,6 +30,8 @@ public class HtmlPage implements BaseColumns {
 	public static final String COL_ATTEMPTS= "attempts"; /** how many times app has tried to download the page */
 	public static final String COL_PAGE_ID = DBOpenHelper.COL_ROW_ID;
 	public static final String COL_FORCED = "forced"; /** Transactional flags */
+	public static final String COL_SIZE = "size"; /** bytes the stored page takes, with its resources */
+	public static final String COL_LAST_ACCESS = "last_access"; /** when the page was stored or last read */
 
 	
 
@@ -2,44 +2,46 @@ package ch.ethz.twimight.net.Html;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
-import android.net.http.SslError;
+import android.net.NetworkInfo;
 import android.os.AsyncTask;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Log;
-import android.webkit.SslErrorHandler;
-import android.webkit.ValueCallback;
-import android.webkit.WebView;
-import android.webkit.WebViewClient;
 import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.data.HtmlPagesDbHelper;
-import ch.ethz.twimight.net.twitter.Tweets;
+import ch.ethz.twimight.util.Constants;
 import ch.ethz.twimight.util.SDCardHelper;
 
 public class HtmlService extends Service {
 	
-	ArrayList<String> htmlUrls =  new ArrayList<String>();
 	public static final String TAG = "HtmlService";
 	
 	public static final int DOWNLOAD_ALL = 1;	
 	public static final int DOWNLOAD_ONLY_FORCED = 2;
 	public static final String DOWNLOAD_REQUEST = "download_request";	
 	public static final String DOWNLOAD_SINCE_TIME = "downloadSinceTime";
+	private static final String PREFETCH_WINDOW_START = "prefetchWindowStart";
+	private static final String PREFETCH_WINDOW_BYTES = "prefetchWindowBytes";
+	private static final String PREFETCH_PAGE_SIZE = "prefetchPageSize";
+	private static final String PREFETCH_COUNTERS = "prefetchCounters";
 	
 	private SDCardHelper sdCardHelper;
 	private HtmlPagesDbHelper htmlDbHelper;
-		
-	Cursor c = null;
+	private PageDownloadScheduler scheduler;
+	private PrefetchPolicy policy;
 	
 
 
@@ -50,30 +52,34 @@ public class HtmlService extends Service {
 		if(cm.getActiveNetworkInfo()==null || !cm.getActiveNetworkInfo().isConnected())			
 			return START_NOT_STICKY;		
 		
-		if(intent != null){
-			
+		if (htmlDbHelper == null) {
 			sdCardHelper = new SDCardHelper();
 			htmlDbHelper = new HtmlPagesDbHelper(getApplicationContext());
-			htmlDbHelper.open();			
+			htmlDbHelper.open();
+		}
 
-			int serviceCommand = intent.getIntExtra(DOWNLOAD_REQUEST,DOWNLOAD_ALL);
-			switch(serviceCommand){			
+		// restarted after we were killed, the queue is in the DB
+		if (intent == null) {
+			bulkDownloadHtmlPages(false);
+			return START_STICKY;
+		}
 
-			case DOWNLOAD_ALL:
-				bulkDownloadHtmlPages(false);
-				break;			
+		int serviceCommand = intent.getIntExtra(DOWNLOAD_REQUEST,DOWNLOAD_ALL);
+		switch(serviceCommand){			
 
-			case DOWNLOAD_ONLY_FORCED:
-				
-				bulkDownloadHtmlPages(true);
-				break;
+		case DOWNLOAD_ALL:
+			bulkDownloadHtmlPages(false);
+			break;			
 
-			default:
-				throw new IllegalArgumentException("Exception: Unknown download request");
-			}
-			return START_STICKY;
+		case DOWNLOAD_ONLY_FORCED:
+			
+			bulkDownloadHtmlPages(true);
+			break;
+
+		default:
+			throw new IllegalArgumentException("Exception: Unknown download request");
 		}
-		else return START_NOT_STICKY;
+		return START_STICKY;
 
 	}
 
@@ -95,8 +101,9 @@ public class HtmlService extends Service {
 	 */
 	private void bulkDownloadHtmlPages(boolean forced){
 		
+		// forced pages don't wait
 		long lastTime = getLastDownloadedTime(getBaseContext());
-		if((System.currentTimeMillis() - lastTime) < 1000*30){
+		if(!forced && (System.currentTimeMillis() - lastTime) < 1000*30){
 			return;
 		}
 		else{			
@@ -107,13 +114,13 @@ public class HtmlService extends Service {
 
 	}
 		
-	//if downloaded pages > 100, clear those created 1 days ago
+	// keep the stored pages within the budget before downloading more
 	private void checkCacheSize(){
 		
 		Log.i(TAG, "check cache size");
-		Cursor c = htmlDbHelper.getDownloadedHtmls();
-		if(c != null && c.getCount() > 100){
-			htmlDbHelper.clearHtmlPages(1*24*3600*1000);
+		String[] filePath = {HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(getApplicationContext())};
+		if (sdCardHelper.checkSDState(filePath)) {
+			new OfflinePageCache(getApplicationContext(), htmlDbHelper, sdCardHelper.getFileFromSDCard(filePath[0], "")).trim();
 		}
 	}
 	
@@ -199,7 +206,7 @@ public class HtmlService extends Service {
 	}
 	*/
 	
-	private class GetPagesTask extends AsyncTask<Void,Void,Void>{
+	private class GetPagesTask extends AsyncTask<Void,Void,List<PageDownloadScheduler.Page>>{
 		
         boolean forced;
 		
@@ -208,22 +215,31 @@ public class HtmlService extends Service {
 		}
 		
 		@Override
-		protected Void doInBackground(Void... params) {
-			// TODO Auto-generated method stub			
+		protected List<PageDownloadScheduler.Page> doInBackground(Void... params) {
 			//download unsuccessfully downloaded pages			
 			cleanupMess();
-			c = htmlDbHelper.getUndownloadedHtmls(forced);	
-			if (c != null && c.getCount() > 0) {
-				c.moveToFirst();				
-			}
-			
-			return null;
+			return PageDownloadScheduler.readPages(htmlDbHelper.getUndownloadedHtmls(forced));
 		}
 
 		@Override
-		protected void onPostExecute(Void param) {		
-			storePage();			
-
+		protected void onPostExecute(List<PageDownloadScheduler.Page> pages) {
+			String[] filePath = {HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(getApplicationContext())};
+			if (sdCardHelper.checkSDState(filePath)) {
+				// the policy decides on the pages which are not on their way yet
+				PageDownloadScheduler scheduler = getScheduler();
+				List<PrefetchPolicy.Candidate> candidates = new ArrayList<PrefetchPolicy.Candidate>();
+				for (PageDownloadScheduler.Page page : pages) {
+					if (!scheduler.isKnown(page.url))
+						candidates.add(page);
+				}
+				List<PageDownloadScheduler.Page> selected = new ArrayList<PageDownloadScheduler.Page>();
+				for (PrefetchPolicy.Candidate page : getPolicy().select(candidates, getConditions(),
+						System.currentTimeMillis())) {
+					selected.add((PageDownloadScheduler.Page) page);
+				}
+				Log.i(TAG, selected.size() + " of " + candidates.size() + " pages admitted");
+				scheduler.enqueue(selected);
+			}
 		}
 
 
@@ -237,71 +253,92 @@ public class HtmlService extends Service {
 		new GetPagesTask(forced).execute();	
 		
 	}
-	
-	public void storePage() {
-		
-		if (c != null && c.getCount() > 0 && (!c.isAfterLast())) {
-			
-			String htmlUrl = c.getString(c.getColumnIndex(HtmlPage.COL_URL));
-		
-			String[] filePath = {HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(getApplicationContext())};
 
-			if(sdCardHelper.checkSDState(filePath)){
+	/**
+	 * The scheduler of the logged in user
+	 */
+	private PageDownloadScheduler getScheduler() {
+		if (scheduler == null) {
+			String basePath = HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(getApplicationContext());
+			scheduler = new PageDownloadScheduler(getApplicationContext(), htmlDbHelper, sdCardHelper.getFileFromSDCard(basePath, ""), getPolicy());
+		}
+		return scheduler;
+	}
 
-				Cursor cursorInfo = htmlDbHelper.getPageInfo(htmlUrl);
+	private PrefetchPolicy getPolicy() {
+		if (policy == null) {
+			policy = loadPrefetchPolicy(getApplicationContext());
+		}
+		return policy;
+	}
 
-				switch(sdCardHelper.checkFileType(htmlUrl)){
-				case SDCardHelper.TYPE_XML:							
-					
-					
-					webDownload(cursorInfo);
-					break;
-				/*
-				case SDCardHelper.TYPE_PDF:
-
-					processFiles(htmlCV, "pdf");
-					break;
-
-				case SDCardHelper.TYPE_JPG:
-					processFiles(htmlCV, "jpg");
-					break;
-
-				case SDCardHelper.TYPE_PNG:
-					processFiles(htmlCV, "png");
-					break;	
-
-				case SDCardHelper.TYPE_GIF:
-					processFiles(htmlCV, "gif");
-					break;
-
-				case SDCardHelper.TYPE_MP3:
-					processFiles(htmlCV, "mp3");
-					break;
-
-				case SDCardHelper.TYPE_FLV:
-					processFiles(htmlCV, "flv");
-					break;		
-
-				case SDCardHelper.TYPE_RMVB:
-					processFiles(htmlCV, "rmvb");
-					break;
-
-				case SDCardHelper.TYPE_MP4:
-					processFiles(htmlCV, "mp4");
-					break;
-				*/
-				default:
-					break;
+	/**
+	 * Is the network metered, is the phone charging?
+	 */
+	@SuppressLint("NewApi")
+	private PrefetchPolicy.Conditions getConditions() {
+		ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+		boolean metered;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			metered = cm.isActiveNetworkMetered();
+		} else {
+			NetworkInfo info = cm.getActiveNetworkInfo();
+			metered = info == null
+					|| (info.getType() != ConnectivityManager.TYPE_WIFI && info.getType() != ConnectivityManager.TYPE_ETHERNET);
+		}
+		Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+		return new PrefetchPolicy.Conditions(metered, charging);
+	}
 
-				}
+	@Override
+	public void onDestroy() {
+		if (scheduler != null) {
+			scheduler.cancelAll();
+		}
+		if (policy != null) {
+			savePrefetchPolicy(getApplicationContext(), policy);
+		}
+		super.onDestroy();
+	}
 
+	/**
+	 * Restores the prefetch policy (the budget window and the counters) from
+	 * the preferences
+	 */
+	static PrefetchPolicy loadPrefetchPolicy(Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		PrefetchPolicy policy = new PrefetchPolicy(Constants.HTML_PREFETCH_WINDOW, Constants.HTML_PREFETCH_BUDGET,
+				Constants.HTML_PREFETCH_METERED_BUDGET, Constants.HTML_PREFETCH_PAGE_SIZE);
+		String[] values = prefs.getString(PREFETCH_COUNTERS, "").split(",");
+		long[] counters = new long[values.length];
+		try {
+			for (int i = 0; i < values.length; i++) {
+				counters[i] = Long.parseLong(values[i]);
 			}
-			c.moveToNext();
-			
-		} else if (c != null)
-			c.close();
-		
-		
+		} catch (NumberFormatException e) {
+			counters = new long[0];
+		}
+		policy.restore(prefs.getLong(PREFETCH_WINDOW_START, 0), prefs.getLong(PREFETCH_WINDOW_BYTES, 0),
+				prefs.getLong(PREFETCH_PAGE_SIZE, 0), counters);
+		return policy;
+	}
+
+	/**
+	 * Stores the state of the prefetch policy in the preferences
+	 */
+	static void savePrefetchPolicy(Context context, PrefetchPolicy policy) {
+		long[] counters = policy.getCounters();
+		String[] values = new String[counters.length];
+		for (int i = 0; i < counters.length; i++) {
+			values[i] = String.valueOf(counters[i]);
+		}
+		SharedPreferences.Editor prefEditor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+		prefEditor.putLong(PREFETCH_WINDOW_START, policy.getWindowStart());
+		prefEditor.putLong(PREFETCH_WINDOW_BYTES, policy.getWindowBytes());
+		prefEditor.putLong(PREFETCH_PAGE_SIZE, policy.getPageSize());
+		prefEditor.putString(PREFETCH_COUNTERS, TextUtils.join(",", values));
+		prefEditor.commit();
 	}
 
 
@@ -363,22 +400,6 @@ public class HtmlService extends Service {
 	}
 
 
-	private boolean webDownload(Cursor cursorHtml){
-		boolean result = true;
-		
-		WebView web = new WebView(getBaseContext());
-		// TODO Auto-generated method stub				
-		web.setWebViewClient(new WebClientDownload( cursorHtml));			
-		web.getSettings().setJavaScriptEnabled(true);
-		web.getSettings().setDomStorageEnabled(true);		
-		web.loadUrl(cursorHtml.getString(cursorHtml.getColumnIndex(HtmlPage.COL_URL)));
-		
-		return result;
-	}
-	
-
-	
-
 	/**
 	 * store the id for the tweets of which html pages have been downloaded
 	 * @param sinceId
@@ -405,106 +426,5 @@ public class HtmlService extends Service {
 		return lastTime;
 		
 	}
-	
-	
-	
-
-	//webview only to download webarchive
-	@SuppressLint("NewApi")
-	private class WebClientDownload extends WebViewClient {		
-		private String baseUrl;
-		private Long tweetId;		
-		private int forced;
-		private int attempts;
-		private boolean loadingFailed;
-		private String basePath = HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(HtmlService.this);
-
-		private class WebArchiveCallback implements ValueCallback<String> {
-
-			@Override
-			public void onReceiveValue(String filePath) {				
-				if (filePath == null) {
-					htmlDbHelper.updatePage(baseUrl, null, tweetId, forced, attempts);				   
-				}
-				else {							
-					
-					String[] pathSlices = filePath.split("/");
-					String filename = pathSlices[pathSlices.length-1];					
-					if (sdCardHelper.getFileFromSDCard(basePath, filename).length() > 1) {						
-
-						try {
-							htmlDbHelper.updatePage(baseUrl, filename, tweetId, forced, attempts);
-							getContentResolver().notifyChange(Tweets.TABLE_TIMELINE_URI, null);			
-						} catch (SQLException ex){
-							Log.i(TAG,"error updating page: ", ex);
-						}
-						
-					} 
-				}				
-				storePage();
-			}
-		}
-
-		public WebClientDownload(Cursor cursorHtml){
-
-			this.baseUrl = cursorHtml.getString(cursorHtml.getColumnIndex(HtmlPage.COL_URL));
-			this.tweetId = cursorHtml.getLong(cursorHtml.getColumnIndex(HtmlPage.COL_DISASTERID));	
-			this.forced = cursorHtml.getInt(cursorHtml.getColumnIndex(HtmlPage.COL_FORCED));
-			this.attempts = cursorHtml.getInt(cursorHtml.getColumnIndex(HtmlPage.COL_ATTEMPTS)) + 1;
-			this.loadingFailed = false;			
-		}
-		
-		@Override
-		public void onPageStarted(WebView view, String url, Bitmap favicon) {
-			// TODO Auto-generated method stub
-			//htmlDbHelper.updatePage(baseUrl, null, tweetId, forced, attempts);
-			Log.d(TAG, "on page started");			
-			super.onPageStarted(view, url, favicon);
-		}
-
-
-		@Override
-		public void onReceivedError(WebView view, int errorCode,
-				String description, String failingUrl) {
-			// TODO Auto-generated method stub
-			Log.d(TAG, "on received error" + failingUrl);
-			htmlDbHelper.updatePage(baseUrl, null, tweetId, forced, attempts);
-			loadingFailed = true;
-			super.onReceivedError(view, errorCode, description, failingUrl);
-		}
-
-
-		@Override
-		public void onReceivedSslError(WebView view, SslErrorHandler handler,
-				SslError error) {
-			// TODO Auto-generated method stub
-			Log.d(TAG, "on received ssl error");
-			htmlDbHelper.updatePage(baseUrl, null, tweetId, forced, attempts);
-			loadingFailed = true;
-			super.onReceivedSslError(view, handler, error);
-		}
-
-		@Override
-		public void onPageFinished(WebView view, String url) {
-			// TODO Auto-generated method stub
-			if(!loadingFailed){			
-				String filename = "twimight" + String.valueOf(System.currentTimeMillis()) + ".xml";		
-
-				//if (sdCardHelper.getFileFromSDCard(basePath, filename).createNewFile())
-				view.saveWebArchive(sdCardHelper.getFileFromSDCard(basePath, filename).getPath(), false , new WebArchiveCallback() );	
-
-			}
-
-		}
-
-		@Override
-		public boolean shouldOverrideUrlLoading(WebView view, String url) {
-			// TODO Auto-generated method stub
-			view.loadUrl(url);
-			Log.d(TAG, baseUrl + " redirect to:" + url);
-			return true;
-		}	
-
-	}
 
 }
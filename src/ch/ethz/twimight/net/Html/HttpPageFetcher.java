@@ -0,0 +1,247 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.os.Handler;
+import android.util.Log;
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * Fetches a page and the resources it references (stylesheets, scripts,
+ * images) over HTTP, without rendering it. The resources go to the
+ * {@link ResourceStore}, the page is stored as a {@link PageManifest}. Pages
+ * which need scripts to build their content are left to the
+ * {@link WebViewPageFetcher}.
+ */
+class HttpPageFetcher implements PageFetcher {
+
+	private static final String TAG = "HttpPageFetcher";
+
+	private static final ExecutorService executor = Executors.newFixedThreadPool(Constants.HTML_DOWNLOAD_THREADS);
+
+	private static final Pattern SRC = Pattern.compile(
+			"<(?:img|script|input|embed|source)\\b[^>]*?\\bsrc\\s*=\\s*[\"']([^\"']+)[\"']", Pattern.CASE_INSENSITIVE);
+	private static final Pattern LINK = Pattern.compile("<link\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+	private static final Pattern LINK_REL = Pattern.compile("\\brel\\s*=\\s*[\"']?[^\"'>]*\\b(?:stylesheet|icon)\\b",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern LINK_HREF = Pattern.compile("\\bhref\\s*=\\s*[\"']([^\"']+)[\"']",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern CHARSET = Pattern.compile("charset=[\"']?([\\w-]+)", Pattern.CASE_INSENSITIVE);
+
+	private final File dir;
+	private final ResourceStore store;
+	private final Handler handler = new Handler();
+
+	private volatile boolean cancelled;
+	private volatile HttpURLConnection connection;
+	// bytes of the manifest and its resources
+	private volatile long size;
+
+	/**
+	 * @param dir
+	 *            where the manifest goes
+	 */
+	HttpPageFetcher(File dir) {
+		this.dir = dir;
+		this.store = new ResourceStore(new File(dir, ResourceStore.DIRECTORY));
+	}
+
+	@Override
+	public void start(final String url, final Callback callback) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final File manifest = fetch(url);
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (cancelled)
+							return;
+						if (manifest != null) {
+							callback.onFetched(manifest.getName(), size);
+						} else {
+							callback.onFetched(null, 0);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void cancel() {
+		cancelled = true;
+		HttpURLConnection conn = connection;
+		if (conn != null)
+			conn.disconnect();
+	}
+
+	/**
+	 * @return the manifest, null if the page could not be fetched
+	 */
+	private File fetch(String url) {
+		try {
+			PageManifest manifest = new PageManifest();
+			PageManifest.Resource page = get(url);
+			if (page == null || !page.mimeType.contains("html"))
+				return null;
+			manifest.add(page);
+
+			String html = new String(store.read(page.hash), page.encoding);
+			for (String resourceUrl : findResources(page.url, html)) {
+				if (cancelled)
+					return null;
+				if (manifest.find(resourceUrl) != null)
+					continue;
+				try {
+					PageManifest.Resource resource = get(resourceUrl);
+					if (resource != null)
+						manifest.add(resource);
+				} catch (IOException e) {
+					// the page is still readable without it
+					Log.d(TAG, "resource not stored: " + resourceUrl);
+				}
+			}
+			if (cancelled)
+				return null;
+
+			File file = new File(dir, PageDownloadScheduler.newManifestName());
+			manifest.write(file);
+			size = file.length();
+			for (PageManifest.Resource resource : manifest.getResources()) {
+				size += store.getFile(resource.hash).length();
+			}
+			return file;
+		} catch (Exception e) {
+			Log.d(TAG, "error fetching " + url + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Downloads one resource into the store. Redirects are followed here, at
+	 * most HTML_MAX_REDIRECTS of them: HttpURLConnection does not follow them
+	 * from http to https, which is where most sites send us.
+	 * 
+	 * @return the resource, with the URL after redirects, null if the server
+	 *         did not answer with 200
+	 */
+	private PageManifest.Resource get(String url) throws IOException {
+		URL current = new URL(url);
+		for (int hops = 0; hops <= Constants.HTML_MAX_REDIRECTS && !cancelled; hops++) {
+			HttpURLConnection conn = (HttpURLConnection) current.openConnection();
+			connection = conn;
+			try {
+				conn.setConnectTimeout(Constants.HTTP_CONNECTION_TIMEOUT);
+				conn.setReadTimeout(Constants.HTTP_SOCKET_TIMEOUT);
+				conn.setInstanceFollowRedirects(false);
+				int code = conn.getResponseCode();
+				if (!isRedirect(code))
+					return read(conn, current, code);
+
+				String location = conn.getHeaderField("Location");
+				if (location == null)
+					return null;
+				current = new URL(current, location);
+				if (!"http".equals(current.getProtocol()) && !"https".equals(current.getProtocol()))
+					return null;
+			} finally {
+				conn.disconnect();
+				connection = null;
+			}
+		}
+		Log.d(TAG, "too many redirects: " + url);
+		return null;
+	}
+
+	private static boolean isRedirect(int code) {
+		return code == HttpURLConnection.HTTP_MOVED_PERM || code == HttpURLConnection.HTTP_MOVED_TEMP
+				|| code == HttpURLConnection.HTTP_SEE_OTHER || code == 307 || code == 308;
+	}
+
+	/**
+	 * Stores the body of a response
+	 * 
+	 * @param url
+	 *            the URL the response is from
+	 */
+	private PageManifest.Resource read(HttpURLConnection conn, URL url, int code) throws IOException {
+		if (code != HttpURLConnection.HTTP_OK)
+			return null;
+		if (conn.getContentLength() > Constants.HTML_MAX_RESOURCE_SIZE)
+			return null;
+
+		String mimeType = "application/octet-stream";
+		String encoding = "UTF-8";
+		String contentType = conn.getContentType();
+		if (contentType != null) {
+			mimeType = contentType.split(";")[0].trim().toLowerCase();
+			Matcher m = CHARSET.matcher(contentType);
+			if (m.find())
+				encoding = m.group(1);
+		}
+
+		InputStream in = conn.getInputStream();
+		try {
+			String hash = store.put(in, Constants.HTML_MAX_RESOURCE_SIZE);
+			return new PageManifest.Resource(url.toString(), hash, mimeType, encoding);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the absolute http(s) URLs of the resources the page references,
+	 *         at most HTML_MAX_RESOURCES
+	 */
+	static Set<String> findResources(String pageUrl, String html) {
+		Set<String> urls = new LinkedHashSet<String>();
+		URL base;
+		try {
+			base = new URL(pageUrl);
+		} catch (MalformedURLException e) {
+			return urls;
+		}
+
+		// stylesheets first, without them the page is hardly readable
+		Matcher link = LINK.matcher(html);
+		while (link.find() && urls.size() < Constants.HTML_MAX_RESOURCES) {
+			String tag = link.group();
+			if (LINK_REL.matcher(tag).find()) {
+				Matcher href = LINK_HREF.matcher(tag);
+				if (href.find())
+					addResource(urls, base, href.group(1));
+			}
+		}
+		Matcher src = SRC.matcher(html);
+		while (src.find() && urls.size() < Constants.HTML_MAX_RESOURCES) {
+			addResource(urls, base, src.group(1));
+		}
+		return urls;
+	}
+
+	private static void addResource(Set<String> urls, URL base, String reference) {
+		try {
+			URL url = new URL(base, reference.replace("&amp;", "&").trim());
+			if ("http".equals(url.getProtocol()) || "https".equals(url.getProtocol())) {
+				// the fragment is never sent to the server
+				String s = url.toString();
+				int hash = s.indexOf('#');
+				urls.add(hash < 0 ? s : s.substring(0, hash));
+			}
+		} catch (MalformedURLException e) {
+			// not a URL we can fetch
+		}
+	}
+}
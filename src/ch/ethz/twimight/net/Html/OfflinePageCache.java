@@ -0,0 +1,191 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.util.Log;
+import ch.ethz.twimight.R;
+import ch.ethz.twimight.data.HtmlPagesDbHelper;
+import ch.ethz.twimight.util.Constants;
+import ch.ethz.twimight.util.Preferences;
+
+/**
+ * Keeps the stored pages within the byte budget the user chose. Every page
+ * knows its size (with its resources) and when it was last read, the least
+ * recently used pages are evicted first, forced pages only after all others
+ * and pages linked from disaster tweets never. Rows are deleted in one
+ * transaction, then the files.
+ * <p>
+ * A resource shared by several pages counts for each of them, so the budget
+ * errs on the safe side. Resources no page uses anymore are deleted after
+ * each eviction.
+ */
+public class OfflinePageCache {
+
+	private static final String TAG = "OfflinePageCache";
+
+	private final Context context;
+	private final HtmlPagesDbHelper htmlDbHelper;
+	private final File dir;
+
+	/**
+	 * @param dir
+	 *            the offline pages of the user
+	 */
+	public OfflinePageCache(Context context, HtmlPagesDbHelper htmlDbHelper, File dir) {
+		this.context = context;
+		this.htmlDbHelper = htmlDbHelper;
+		this.dir = dir;
+	}
+
+	/**
+	 * @return the budget in bytes
+	 */
+	public long getBudget() {
+		String megabytes = Preferences.getString(context, R.string.pref_key_offline_cache_size,
+				String.valueOf(Constants.HTML_CACHE_SIZE));
+		try {
+			return Long.parseLong(megabytes) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			return Constants.HTML_CACHE_SIZE * 1024 * 1024L;
+		}
+	}
+
+	/**
+	 * Evicts pages until the stored pages fit the budget, not on the main
+	 * thread
+	 */
+	public void trim() {
+		long budget = getBudget();
+		long total = htmlDbHelper.getStoredSize();
+		if (total <= budget)
+			return;
+
+		List<Long> rowIds = new ArrayList<Long>();
+		List<String> filenames = new ArrayList<String>();
+		Cursor c = htmlDbHelper.getEvictionCandidates();
+		try {
+			while (total > budget && c.moveToNext()) {
+				rowIds.add(c.getLong(0));
+				filenames.add(c.getString(1));
+				total -= c.getLong(2);
+			}
+		} finally {
+			c.close();
+		}
+		if (total > budget)
+			Log.w(TAG, "pinned pages exceed the budget: " + total / 1024 + " kB");
+
+		evict(rowIds, filenames);
+		Log.i(TAG, rowIds.size() + " pages evicted, " + total / 1024 + " kB stored");
+	}
+
+	/**
+	 * Deletes all stored pages, not on the main thread
+	 */
+	public void clear() {
+		List<Long> rowIds = new ArrayList<Long>();
+		List<String> filenames = new ArrayList<String>();
+		Cursor c = htmlDbHelper.getStoredPages();
+		try {
+			while (c.moveToNext()) {
+				rowIds.add(c.getLong(0));
+				filenames.add(c.getString(1));
+			}
+		} finally {
+			c.close();
+		}
+		evict(rowIds, filenames);
+	}
+
+	/**
+	 * Trims the cache in the background
+	 */
+	public void trimAsync() {
+		new TrimTask().execute();
+	}
+
+	private void evict(List<Long> rowIds, List<String> filenames) {
+		if (rowIds.isEmpty())
+			return;
+		htmlDbHelper.deletePages(rowIds);
+		htmlDbHelper.notifyChange();
+
+		boolean manifests = false;
+		for (String filename : filenames) {
+			new File(dir, filename).delete();
+			manifests |= PageManifest.isManifest(filename);
+		}
+		if (manifests)
+			deleteUnusedResources();
+	}
+
+	/**
+	 * Deletes the resources no stored manifest lists. Resources of pages which
+	 * are being fetched are not listed yet, recent files are kept.
+	 */
+	private void deleteUnusedResources() {
+		Set<String> used = new HashSet<String>();
+		Cursor c = htmlDbHelper.getStoredPages();
+		try {
+			while (c.moveToNext()) {
+				String filename = c.getString(1);
+				if (!PageManifest.isManifest(filename))
+					continue;
+				try {
+					for (PageManifest.Resource resource : PageManifest.read(new File(dir, filename)).getResources()) {
+						used.add(resource.hash);
+					}
+				} catch (Exception e) {
+					Log.w(TAG, "cannot read " + filename);
+				}
+			}
+		} finally {
+			c.close();
+		}
+
+		File[] files = new File(dir, ResourceStore.DIRECTORY).listFiles();
+		if (files == null)
+			return;
+		long keepAfter = System.currentTimeMillis() - Constants.HTML_DOWNLOAD_TIMEOUT;
+		int deleted = 0;
+		for (File file : files) {
+			if (!used.contains(file.getName()) && file.lastModified() < keepAfter && file.delete())
+				deleted++;
+		}
+		Log.i(TAG, deleted + " unused resources deleted");
+	}
+
+	/**
+	 * @return bytes a stored page takes, with its resources
+	 */
+	public static long getPageSize(File dir, String filename) {
+		File file = new File(dir, filename);
+		long size = file.length();
+		if (PageManifest.isManifest(filename)) {
+			ResourceStore store = new ResourceStore(new File(dir, ResourceStore.DIRECTORY));
+			try {
+				for (PageManifest.Resource resource : PageManifest.read(file).getResources()) {
+					size += store.getFile(resource.hash).length();
+				}
+			} catch (Exception e) {
+				Log.w(TAG, "cannot read " + filename);
+			}
+		}
+		return size;
+	}
+
+	private class TrimTask extends AsyncTask<Void, Void, Void> {
+		@Override
+		protected Void doInBackground(Void... params) {
+			trim();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+
+import android.webkit.WebView;
+
+/**
+ * Shows a stored page in a WebView. The file is read in the background, then
+ * the page is loaded on the main thread.
+ */
+public abstract class OfflinePageReader {
+
+	protected abstract void onFinished(WebView webView);
+
+	/**
+	 * Reads the stored page, not on the main thread
+	 * 
+	 * @return false if the page cannot be shown
+	 */
+	public abstract boolean read(File file);
+
+	public abstract boolean loadToWebView(WebView v) throws Exception;
+}
@@ -0,0 +1,261 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.os.Handler;
+import android.util.Log;
+import ch.ethz.twimight.data.HtmlPagesDbHelper;
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * Downloads the queued pages with a bounded number of concurrent fetchers.
+ * Forced pages go first, a page which takes longer than
+ * HTML_DOWNLOAD_TIMEOUT is given up. The queue itself is the htmls table: an
+ * attempt is counted before the page is started, so a page which hangs or
+ * crashes us is not tried more than DOWNLOAD_LIMIT times. Pages are first
+ * fetched over HTTP without rendering them, the next attempt uses a WebView.
+ * Which pages are queued is up to the {@link PrefetchPolicy}, the scheduler
+ * reports the bytes it stored to it.
+ * <p>
+ * All methods are called on the main thread.
+ */
+class PageDownloadScheduler {
+
+	private static final String TAG = "PageDownloadScheduler";
+
+	/**
+	 * A page in the queue
+	 */
+	static class Page extends PrefetchPolicy.Candidate {
+		final long disasterId;
+		final int attempts;
+
+		Page(String url, long disasterId, boolean forced, int attempts, int popularity, boolean disaster) {
+			super(url, forced, popularity, disaster);
+			this.disasterId = disasterId;
+			this.attempts = attempts;
+		}
+	}
+
+	private static long lastArchiveTime;
+
+	private final Context context;
+	private final HtmlPagesDbHelper htmlDbHelper;
+	private final File dir;
+	private final PrefetchPolicy policy;
+	private final PageFetcher.Factory fetchers;
+	private final Handler handler = new Handler();
+
+	private final LinkedList<Page> forcedQueue = new LinkedList<Page>();
+	private final LinkedList<Page> normalQueue = new LinkedList<Page>();
+	// URLs which are queued or running
+	private final Set<String> known = new HashSet<String>();
+	private final Map<Page, PageFetcher> running = new HashMap<Page, PageFetcher>();
+
+	// statistics of the current run
+	private long runStarted;
+	private int pagesStored;
+	private int pagesFailed;
+
+	/**
+	 * @param dir
+	 *            where the pages are stored
+	 */
+	PageDownloadScheduler(Context context, HtmlPagesDbHelper htmlDbHelper, File dir, PrefetchPolicy policy) {
+		this(context, htmlDbHelper, dir, policy, createFetchers(context, dir));
+	}
+
+	/**
+	 * @param fetchers
+	 *            creates the fetchers of the pages, see createFetchers
+	 */
+	PageDownloadScheduler(Context context, HtmlPagesDbHelper htmlDbHelper, File dir, PrefetchPolicy policy,
+			PageFetcher.Factory fetchers) {
+		this.context = context;
+		this.htmlDbHelper = htmlDbHelper;
+		this.dir = dir;
+		this.policy = policy;
+		this.fetchers = fetchers;
+	}
+
+	/**
+	 * @return the fetchers which store pages in dir: over HTTP first, the
+	 *         WebView only if fetching the page directly failed
+	 */
+	static PageFetcher.Factory createFetchers(final Context context, final File dir) {
+		return new PageFetcher.Factory() {
+			@Override
+			public PageFetcher create(int attempts) {
+				return attempts % 2 == 0 ? new HttpPageFetcher(dir) : new WebViewPageFetcher(context, dir);
+			}
+		};
+	}
+
+	/**
+	 * Reads the pages of a cursor from HtmlPagesDbHelper.getUndownloadedHtmls
+	 * and closes it. Can be called off the main thread.
+	 */
+	static List<Page> readPages(Cursor c) {
+		List<Page> pages = new ArrayList<Page>();
+		if (c == null)
+			return pages;
+		int urlIndex = c.getColumnIndex(HtmlPage.COL_URL);
+		int disasterIdIndex = c.getColumnIndex(HtmlPage.COL_DISASTERID);
+		int forcedIndex = c.getColumnIndex(HtmlPage.COL_FORCED);
+		int attemptsIndex = c.getColumnIndex(HtmlPage.COL_ATTEMPTS);
+		int popularityIndex = c.getColumnIndex(HtmlPagesDbHelper.COL_POPULARITY);
+		int disasterIndex = c.getColumnIndex(HtmlPagesDbHelper.COL_DISASTER);
+		while (c.moveToNext()) {
+			pages.add(new Page(c.getString(urlIndex), c.getLong(disasterIdIndex),
+					c.getInt(forcedIndex) == HtmlPagesDbHelper.DOWNLOAD_FORCED, c.getInt(attemptsIndex),
+					c.getInt(popularityIndex), c.getInt(disasterIndex) != 0));
+		}
+		c.close();
+		return pages;
+	}
+
+	/**
+	 * Adds pages to the queue, pages we already have are ignored
+	 */
+	void enqueue(List<Page> pages) {
+		for (Page page : pages) {
+			if (known.add(page.url)) {
+				if (page.forced) {
+					forcedQueue.add(page);
+				} else {
+					normalQueue.add(page);
+				}
+			}
+		}
+		if (runStarted == 0 && !known.isEmpty()) {
+			runStarted = System.currentTimeMillis();
+		}
+		schedule();
+	}
+
+	/**
+	 * Stops all downloads
+	 */
+	void cancelAll() {
+		for (PageFetcher fetcher : running.values()) {
+			fetcher.cancel();
+		}
+		running.clear();
+		policy.onCancelled();
+		forcedQueue.clear();
+		normalQueue.clear();
+		known.clear();
+		handler.removeCallbacksAndMessages(null);
+	}
+
+	boolean isIdle() {
+		return known.isEmpty();
+	}
+
+	/**
+	 * @return true if the page is queued or running
+	 */
+	boolean isKnown(String url) {
+		return known.contains(url);
+	}
+
+	private void schedule() {
+		while (running.size() < Constants.HTML_DOWNLOAD_THREADS) {
+			Page page = forcedQueue.isEmpty() ? normalQueue.poll() : forcedQueue.poll();
+			if (page == null)
+				break;
+			start(page);
+		}
+		if (isIdle() && runStarted != 0) {
+			long minutes = Math.max(1, (System.currentTimeMillis() - runStarted) / 60000);
+			Log.i(TAG, pagesStored + " pages stored, " + pagesFailed + " failed, " + pagesStored / minutes
+					+ " pages/minute");
+			Log.i(TAG, "prefetch: " + policy);
+			HtmlService.savePrefetchPolicy(context, policy);
+			if (pagesStored > 0)
+				new OfflinePageCache(context, htmlDbHelper, dir).trimAsync();
+			runStarted = 0;
+			pagesStored = 0;
+			pagesFailed = 0;
+		}
+	}
+
+	private void start(final Page page) {
+		// count the attempt first, it may never return
+		htmlDbHelper.updatePage(page.url, null, page.disasterId, page.forced ? HtmlPagesDbHelper.DOWNLOAD_FORCED
+				: HtmlPagesDbHelper.DOWNLOAD_NORMAL, page.attempts + 1);
+
+		final PageFetcher fetcher = fetchers.create(page.attempts);
+		running.put(page, fetcher);
+
+		final Runnable timeout = new Runnable() {
+			@Override
+			public void run() {
+				Log.d(TAG, "timeout: " + page.url);
+				fetcher.cancel();
+				finish(page, null, 0);
+			}
+		};
+		handler.postDelayed(timeout, Constants.HTML_DOWNLOAD_TIMEOUT);
+
+		fetcher.start(page.url, new PageFetcher.Callback() {
+			@Override
+			public void onFetched(String filename, long size) {
+				handler.removeCallbacks(timeout);
+				finish(page, filename, size);
+			}
+		});
+	}
+
+	private void finish(Page page, String filename, long size) {
+		if (running.remove(page) == null)
+			return;
+		known.remove(page.url);
+
+		if (filename != null) {
+			policy.onFetched(page.url, size, System.currentTimeMillis());
+			try {
+				htmlDbHelper.storePage(page.url, filename, size);
+				htmlDbHelper.notifyChange();
+				pagesStored++;
+			} catch (SQLException ex) {
+				Log.i(TAG, "error updating page: ", ex);
+			}
+		} else {
+			policy.onFailed(page.url);
+			pagesFailed++;
+		}
+		schedule();
+	}
+
+	/**
+	 * @return a new file name for a web archive, the cache cleanup reads the
+	 *         time from it
+	 */
+	static String newArchiveName() {
+		return newFileName(".xml");
+	}
+
+	/**
+	 * @return a new file name for a page manifest
+	 */
+	static String newManifestName() {
+		return newFileName(PageManifest.EXTENSION);
+	}
+
+	private static synchronized String newFileName(String extension) {
+		// unique, even if two pages finish in the same millisecond
+		lastArchiveTime = Math.max(System.currentTimeMillis(), lastArchiveTime + 1);
+		return "twimight" + lastArchiveTime + extension;
+	}
+}
@@ -0,0 +1,36 @@
+package ch.ethz.twimight.net.Html;
+
+/**
+ * Fetches one page for offline reading. Fetchers are started and call back on
+ * the main thread.
+ */
+interface PageFetcher {
+
+	interface Callback {
+		/**
+		 * @param filename
+		 *            the file the page was stored in, null if fetching failed
+		 * @param size
+		 *            bytes the page takes, with its resources
+		 */
+		void onFetched(String filename, long size);
+	}
+
+	/**
+	 * Creates the fetcher for the next attempt at a page
+	 */
+	interface Factory {
+		/**
+		 * @param attempts
+		 *            how many times the page was tried before
+		 */
+		PageFetcher create(int attempts);
+	}
+
+	void start(String url, Callback callback);
+
+	/**
+	 * Stops fetching, the callback is not called anymore
+	 */
+	void cancel();
+}
@@ -0,0 +1,141 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The list of resources of an offline page fetched without a WebView. The
+ * resources themselves are in the {@link ResourceStore}, the first one is the
+ * page.
+ */
+public class PageManifest {
+
+	/** extension of manifest files, archives of the WebView end with .xml */
+	public static final String EXTENSION = ".json";
+
+	private static final String URL = "url";
+	private static final String RESOURCES = "resources";
+	private static final String HASH = "hash";
+	private static final String MIME_TYPE = "mime";
+	private static final String ENCODING = "enc";
+
+	/**
+	 * A resource of the page
+	 */
+	public static class Resource {
+		public final String url;
+		public final String hash;
+		public final String mimeType;
+		public final String encoding;
+
+		public Resource(String url, String hash, String mimeType, String encoding) {
+			this.url = url;
+			this.hash = hash;
+			this.mimeType = mimeType;
+			this.encoding = encoding;
+		}
+	}
+
+	private final List<Resource> resources = new ArrayList<Resource>();
+	private final Map<String, Resource> byUrl = new HashMap<String, Resource>();
+
+	public void add(Resource resource) {
+		if (!byUrl.containsKey(resource.url)) {
+			resources.add(resource);
+			byUrl.put(resource.url, resource);
+		}
+	}
+
+	/**
+	 * @return the page itself, null if the manifest is empty
+	 */
+	public Resource getPage() {
+		return resources.isEmpty() ? null : resources.get(0);
+	}
+
+	public Resource find(String url) {
+		return byUrl.get(url);
+	}
+
+	public List<Resource> getResources() {
+		return Collections.unmodifiableList(resources);
+	}
+
+	public static boolean isManifest(String filename) {
+		return filename != null && filename.endsWith(EXTENSION);
+	}
+
+	public static PageManifest read(File file) throws IOException, JSONException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int offset = 0;
+			int read;
+			while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+				offset += read;
+			}
+			return parse(new String(data, 0, offset, "UTF-8"));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @throws JSONException
+	 *             also if a resource hash is not one, manifests come from
+	 *             peers as well
+	 */
+	public static PageManifest parse(String json) throws JSONException {
+		PageManifest manifest = new PageManifest();
+		JSONArray array = new JSONObject(json).getJSONArray(RESOURCES);
+		for (int i = 0; i < array.length(); i++) {
+			JSONObject o = array.getJSONObject(i);
+			String hash = o.getString(HASH);
+			if (!ResourceStore.isHash(hash))
+				throw new JSONException("invalid resource hash " + hash);
+			manifest.add(new Resource(o.getString(URL), hash, o.optString(MIME_TYPE, "text/html"), o.optString(
+					ENCODING, "UTF-8")));
+		}
+		return manifest;
+	}
+
+	public void write(File file) throws IOException, JSONException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(toJson().getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	public String toJson() throws JSONException {
+		JSONArray array = new JSONArray();
+		for (Resource resource : resources) {
+			JSONObject o = new JSONObject();
+			o.put(URL, resource.url);
+			o.put(HASH, resource.hash);
+			o.put(MIME_TYPE, resource.mimeType);
+			o.put(ENCODING, resource.encoding);
+			array.put(o);
+		}
+		JSONObject manifest = new JSONObject();
+		Resource page = getPage();
+		if (page != null)
+			manifest.put(URL, page.url);
+		manifest.put(RESOURCES, array);
+		return manifest.toString();
+	}
+}
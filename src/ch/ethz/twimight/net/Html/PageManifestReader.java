@@ -0,0 +1,77 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.annotation.SuppressLint;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+/**
+ * Shows a page stored as a {@link PageManifest}, the WebView gets the
+ * resources from the {@link ResourceStore}.
+ */
+@SuppressLint("NewApi")
+public abstract class PageManifestReader extends OfflinePageReader {
+
+	private static final String TAG = "PageManifestReader";
+
+	private final ResourceStore store;
+	private PageManifest manifest;
+	private String html;
+	private volatile boolean loading;
+
+	public PageManifestReader(ResourceStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public boolean read(File file) {
+		try {
+			manifest = PageManifest.read(file);
+			PageManifest.Resource page = manifest.getPage();
+			if (page == null)
+				return false;
+			html = new String(store.read(page.hash), page.encoding);
+			return true;
+		} catch (Exception e) {
+			Log.e(TAG, "error reading " + file.getName(), e);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean loadToWebView(WebView v) throws Exception {
+		PageManifest.Resource page = manifest.getPage();
+		v.setWebViewClient(new WebClient());
+		loading = true;
+		v.loadDataWithBaseURL(page.url, html, page.mimeType, page.encoding, null);
+		return true;
+	}
+
+	private class WebClient extends WebViewClient {
+		@Override
+		public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+			if (!loading)
+				return null;
+			PageManifest.Resource resource = manifest.find(url);
+			if (resource == null)
+				return null;
+			try {
+				return new WebResourceResponse(resource.mimeType, resource.encoding, store.open(resource.hash));
+			} catch (IOException e) {
+				Log.d(TAG, "resource missing: " + url);
+				return null;
+			}
+		}
+
+		@Override
+		public void onPageFinished(WebView view, String url) {
+			view.setWebViewClient(null);
+			loading = false;
+			onFinished(view);
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package ch.ethz.twimight.net.Html;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which of the queued pages offline mode downloads now. Every page
+ * gets a score from
+ * <ul>
+ * <li>its media type, guessed from the url: we store web pages, pages of
+ * image, audio and video sites cost more than they give and files are left to
+ * the browser,</li>
+ * <li>its domain: how often pages of the domain could be stored lately,</li>
+ * <li>its popularity: how many tweets link to it,</li>
+ * <li>and whether a disaster tweet links to it.</li>
+ * </ul>
+ * Pages are admitted by score within a byte budget per window, which depends
+ * on whether the network is metered and the phone is charging. On a metered
+ * network on battery only pages scoring above METERED_MIN_SCORE are fetched.
+ * Forced pages (the user asked for them) are always admitted, their bytes
+ * count nevertheless. Admitted pages reserve the estimated page size until
+ * they are fetched or failed, so that pages in flight count against the
+ * budget of the next selection.
+ * <p>
+ * The class has no Android dependencies, the counters are kept with the
+ * window so that they can be read out to tune the budgets.
+ */
+public class PrefetchPolicy {
+
+	public static final int MEDIA_PAGE = 0;
+	public static final int MEDIA_IMAGE = 1;
+	public static final int MEDIA_AUDIO = 2;
+	public static final int MEDIA_VIDEO = 3;
+	/** files (pictures, documents, media), the page fetchers cannot store them */
+	public static final int MEDIA_FILE = 4;
+
+	/** below this score a page is not fetched on a metered network */
+	public static final float METERED_MIN_SCORE = 1;
+	/** links from disaster tweets count this much more */
+	private static final float DISASTER_BOOST = 3;
+	/** weight of the latest result in the success rate of a domain */
+	private static final float SUCCESS_WEIGHT = (float) 0.3;
+	private static final float MIN_SUCCESS_RATE = (float) 0.1;
+	/** how many domains we remember */
+	private static final int MAX_DOMAINS = 200;
+	/** weight of the latest page in the estimated page size */
+	private static final float SIZE_WEIGHT = (float) 0.1;
+
+	private static final String[] VIDEO_HOSTS = { "youtube.com", "youtu.be", "vimeo.com", "vine.co",
+			"dailymotion.com", "twitch.tv" };
+	private static final String[] AUDIO_HOSTS = { "soundcloud.com", "spotify.com", "mixcloud.com" };
+	private static final String[] IMAGE_HOSTS = { "instagram.com", "instagr.am", "twitpic.com", "flickr.com",
+			"imgur.com", "pic.twitter.com" };
+	private static final String[] FILE_EXTENSIONS = { ".pdf", ".jpg", ".jpeg", ".png", ".gif", ".mp3", ".flv",
+			".rmvb", ".mp4", ".zip", ".apk" };
+
+	/**
+	 * A page waiting to be downloaded
+	 */
+	public static class Candidate {
+		public final String url;
+		public final boolean forced;
+		/** how many tweets link to it */
+		public final int popularity;
+		/** is it linked from a disaster tweet? */
+		public final boolean disaster;
+
+		public Candidate(String url, boolean forced, int popularity, boolean disaster) {
+			this.url = url;
+			this.forced = forced;
+			this.popularity = popularity;
+			this.disaster = disaster;
+		}
+	}
+
+	/**
+	 * The state of the phone when we decide
+	 */
+	public static class Conditions {
+		public final boolean metered;
+		public final boolean charging;
+
+		public Conditions(boolean metered, boolean charging) {
+			this.metered = metered;
+			this.charging = charging;
+		}
+	}
+
+	private final long window;
+	private final long unmeteredBudget;
+	private final long meteredBudget;
+
+	private long windowStart;
+	private long windowBytes;
+	// estimated bytes of the admitted pages in flight, by url
+	private final Map<String, Long> reservations = new HashMap<String, Long>();
+	private long reservedBytes;
+	private float pageSize;
+	private boolean metered;
+	private final Map<String, Float> successRates = new LinkedHashMap<String, Float>(16, (float) 0.75, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+			return size() > MAX_DOMAINS;
+		}
+	};
+
+	// counters, since the counters were reset
+	private long candidates;
+	private long admitted;
+	private long skippedType;
+	private long skippedScore;
+	private long skippedBudget;
+	private long fetched;
+	private long failed;
+	private long meteredBytes;
+	private long unmeteredBytes;
+
+	/**
+	 * @param window
+	 *            milliseconds over which the budgets are counted
+	 * @param unmeteredBudget
+	 *            bytes per window on an unmetered network while charging, half
+	 *            of it on battery
+	 * @param meteredBudget
+	 *            bytes per window on a metered network
+	 * @param pageSize
+	 *            initial guess of the bytes a page takes
+	 */
+	public PrefetchPolicy(long window, long unmeteredBudget, long meteredBudget, long pageSize) {
+		this.window = window;
+		this.unmeteredBudget = unmeteredBudget;
+		this.meteredBudget = meteredBudget;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Picks the pages to download now
+	 *
+	 * @return the admitted pages, forced pages first, then by score
+	 */
+	public List<Candidate> select(List<Candidate> pages, Conditions conditions, long now) {
+		startWindow(now);
+		metered = conditions.metered;
+		long remaining = getBudget(conditions) - windowBytes - reservedBytes;
+
+		List<Candidate> forced = new ArrayList<Candidate>();
+		List<Candidate> normal = new ArrayList<Candidate>();
+		final Map<Candidate, Float> scores = new LinkedHashMap<Candidate, Float>();
+		for (Candidate page : pages) {
+			candidates++;
+			if (page.forced) {
+				forced.add(page);
+				continue;
+			}
+			float score = getScore(page);
+			if (score <= 0) {
+				skippedType++;
+			} else if (conditions.metered && !conditions.charging && score < METERED_MIN_SCORE) {
+				skippedScore++;
+			} else {
+				scores.put(page, score);
+				normal.add(page);
+			}
+		}
+		Collections.sort(normal, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				return Float.compare(scores.get(b), scores.get(a));
+			}
+		});
+
+		List<Candidate> selected = new ArrayList<Candidate>(forced);
+		for (Candidate page : forced) {
+			reserve(page.url);
+		}
+		remaining -= forced.size() * (long) pageSize;
+		for (Candidate page : normal) {
+			if (remaining < pageSize) {
+				skippedBudget++;
+				continue;
+			}
+			selected.add(page);
+			reserve(page.url);
+			remaining -= pageSize;
+		}
+		admitted += selected.size();
+		return selected;
+	}
+
+	/**
+	 * @return how much the page is worth fetching, 0 if not at all
+	 */
+	public float getScore(Candidate page) {
+		float score;
+		switch (getMediaType(page.url)) {
+		case MEDIA_PAGE:
+			score = 1;
+			break;
+		case MEDIA_IMAGE:
+			score = (float) 0.5;
+			break;
+		case MEDIA_AUDIO:
+		case MEDIA_VIDEO:
+			score = (float) 0.1;
+			break;
+		default:
+			return 0;
+		}
+		score *= getSuccessRate(getHost(page.url));
+		// every doubling of the links adds as much as the first link
+		score *= 1 + (float) (Math.log(Math.max(page.popularity, 1)) / Math.log(2));
+		if (page.disaster)
+			score *= DISASTER_BOOST;
+		return score;
+	}
+
+	/**
+	 * Counts a downloaded page
+	 */
+	public void onFetched(String url, long bytes, long now) {
+		startWindow(now);
+		release(url);
+		fetched++;
+		windowBytes += bytes;
+		if (metered) {
+			meteredBytes += bytes;
+		} else {
+			unmeteredBytes += bytes;
+		}
+		pageSize = (1 - SIZE_WEIGHT) * pageSize + SIZE_WEIGHT * bytes;
+		updateSuccessRate(getHost(url), 1);
+	}
+
+	/**
+	 * Counts a page which could not be downloaded
+	 */
+	public void onFailed(String url) {
+		release(url);
+		failed++;
+		updateSuccessRate(getHost(url), 0);
+	}
+
+	/**
+	 * Releases the reservations of all admitted pages, called when the
+	 * downloads are cancelled
+	 */
+	public void onCancelled() {
+		reservations.clear();
+		reservedBytes = 0;
+	}
+
+	/**
+	 * @return bytes per window under the conditions
+	 */
+	public long getBudget(Conditions conditions) {
+		if (conditions.metered)
+			return meteredBudget;
+		return conditions.charging ? unmeteredBudget : unmeteredBudget / 2;
+	}
+
+	private void reserve(String url) {
+		if (reservations.containsKey(url))
+			return;
+		long bytes = (long) pageSize;
+		reservations.put(url, bytes);
+		reservedBytes += bytes;
+	}
+
+	private void release(String url) {
+		Long bytes = reservations.remove(url);
+		if (bytes != null)
+			reservedBytes -= bytes;
+	}
+
+	private void startWindow(long now) {
+		if (now - windowStart >= window || now < windowStart) {
+			windowStart = now;
+			windowBytes = 0;
+		}
+	}
+
+	private float getSuccessRate(String host) {
+		Float rate = successRates.get(host);
+		return rate == null ? 1 : rate;
+	}
+
+	private void updateSuccessRate(String host, int success) {
+		float rate = (1 - SUCCESS_WEIGHT) * getSuccessRate(host) + SUCCESS_WEIGHT * success;
+		successRates.put(host, Math.max(rate, MIN_SUCCESS_RATE));
+	}
+
+	/**
+	 * @return what the url links to, judging from its host and file extension
+	 */
+	public static int getMediaType(String url) {
+		String host = getHost(url);
+		if (matches(host, VIDEO_HOSTS))
+			return MEDIA_VIDEO;
+		if (matches(host, AUDIO_HOSTS))
+			return MEDIA_AUDIO;
+		if (matches(host, IMAGE_HOSTS))
+			return MEDIA_IMAGE;
+
+		String path = url.toLowerCase(Locale.ENGLISH);
+		int end = path.length();
+		for (char c : new char[] { '?', '#' }) {
+			int i = path.indexOf(c);
+			if (i >= 0 && i < end)
+				end = i;
+		}
+		path = path.substring(0, end);
+		for (String extension : FILE_EXTENSIONS) {
+			if (path.endsWith(extension))
+				return MEDIA_FILE;
+		}
+		return MEDIA_PAGE;
+	}
+
+	/**
+	 * @return the host of the url without "www.", lower case
+	 */
+	static String getHost(String url) {
+		String host = url.toLowerCase(Locale.ENGLISH);
+		int start = host.indexOf("://");
+		if (start >= 0)
+			host = host.substring(start + 3);
+		int end = host.length();
+		for (char c : new char[] { '/', ':', '?', '#' }) {
+			int i = host.indexOf(c);
+			if (i >= 0 && i < end)
+				end = i;
+		}
+		host = host.substring(0, end);
+		return host.startsWith("www.") ? host.substring(4) : host;
+	}
+
+	private static boolean matches(String host, String[] domains) {
+		for (String domain : domains) {
+			if (host.equals(domain) || host.endsWith("." + domain))
+				return true;
+		}
+		return false;
+	}
+
+	public long getWindowStart() {
+		return windowStart;
+	}
+
+	public long getWindowBytes() {
+		return windowBytes;
+	}
+
+	public long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	public long getPageSize() {
+		return (long) pageSize;
+	}
+
+	/**
+	 * Restores the window and the counters
+	 *
+	 * @param counters
+	 *            as returned by getCounters
+	 */
+	public void restore(long windowStart, long windowBytes, long pageSize, long[] counters) {
+		this.windowStart = windowStart;
+		this.windowBytes = windowBytes;
+		if (pageSize > 0)
+			this.pageSize = pageSize;
+		if (counters.length == COUNTER_NAMES.length) {
+			candidates = counters[0];
+			admitted = counters[1];
+			skippedType = counters[2];
+			skippedScore = counters[3];
+			skippedBudget = counters[4];
+			fetched = counters[5];
+			failed = counters[6];
+			meteredBytes = counters[7];
+			unmeteredBytes = counters[8];
+		}
+	}
+
+	/** the names of the counters, in the order of getCounters */
+	public static final String[] COUNTER_NAMES = { "candidates", "admitted", "skippedType", "skippedScore",
+			"skippedBudget", "fetched", "failed", "meteredBytes", "unmeteredBytes" };
+
+	public long[] getCounters() {
+		return new long[] { candidates, admitted, skippedType, skippedScore, skippedBudget, fetched, failed,
+				meteredBytes, unmeteredBytes };
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		long[] counters = getCounters();
+		for (int i = 0; i < counters.length; i++) {
+			s.append(i == 0 ? "" : ", ").append(COUNTER_NAMES[i]).append(' ').append(counters[i]);
+		}
+		s.append(", window ").append(windowBytes / 1024).append(" kB, reserved ").append(reservedBytes / 1024)
+				.append(" kB, page ").append(getPageSize() / 1024)
+				.append(" kB");
+		return s.toString();
+	}
+}
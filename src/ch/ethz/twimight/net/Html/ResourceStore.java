@@ -0,0 +1,167 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content addressed store for the resources of offline pages (HTML, CSS,
+ * scripts, images). Every resource is stored once, in a file named after the
+ * SHA-1 of its content, no matter how many pages use it.
+ * <p>
+ * The class has no Android dependencies.
+ */
+public class ResourceStore {
+
+	/** the sub directory of the offline pages directory */
+	public static final String DIRECTORY = "resources";
+
+	private final File dir;
+
+	public ResourceStore(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Stores a resource while reading it. A resource we have already is
+	 * touched, the cleanup of the offline pages keeps it then.
+	 * 
+	 * @param maxBytes
+	 *            larger resources are not stored
+	 * @return the hash of the resource
+	 * @throws IOException
+	 *             if reading fails or the resource is too large
+	 */
+	public String put(InputStream in, long maxBytes) throws IOException {
+		dir.mkdirs();
+		MessageDigest digest = newDigest();
+		File tmp = File.createTempFile("res", ".tmp", dir);
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				byte[] buffer = new byte[8192];
+				long total = 0;
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					total += read;
+					if (total > maxBytes)
+						throw new IOException("resource larger than " + maxBytes + " bytes");
+					digest.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+			String hash = toHex(digest.digest());
+			File target = getFile(hash);
+			if (target.exists())
+				target.setLastModified(System.currentTimeMillis());
+			else if (!tmp.renameTo(target))
+				throw new IOException("cannot store resource " + hash);
+			return hash;
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Stores a resource we received from a peer, touches it if we have it
+	 * already
+	 * 
+	 * @return false if the data does not match the hash
+	 */
+	public boolean put(String hash, byte[] data) throws IOException {
+		if (!isHash(hash) || !hash.equals(toHex(newDigest().digest(data))))
+			return false;
+		File target = getFile(hash);
+		if (target.exists()) {
+			target.setLastModified(System.currentTimeMillis());
+			return true;
+		}
+		dir.mkdirs();
+		File tmp = File.createTempFile("res", ".tmp", dir);
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			return target.exists() || tmp.renameTo(target);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	public boolean has(String hash) {
+		return isHash(hash) && getFile(hash).exists();
+	}
+
+	public InputStream open(String hash) throws IOException {
+		return new FileInputStream(getFile(hash));
+	}
+
+	public byte[] read(String hash) throws IOException {
+		File file = getFile(hash);
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			int read;
+			while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+				offset += read;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the hash is not one, hashes from peers must not name
+	 *             files outside the store
+	 */
+	public File getFile(String hash) {
+		if (!isHash(hash))
+			throw new IllegalArgumentException("not a resource hash: " + hash);
+		return new File(dir, hash);
+	}
+
+	/**
+	 * @return true if the string is a hash as we compute them, 40 lower case
+	 *         hex digits
+	 */
+	public static boolean isHash(String hash) {
+		if (hash == null || hash.length() != 40)
+			return false;
+		for (int i = 0; i < hash.length(); i++) {
+			char c = hash.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+		return true;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// every platform has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] hash) {
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
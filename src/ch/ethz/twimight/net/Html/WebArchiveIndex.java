@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+package ch.ethz.twimight.net.Html;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of the resources in a web archive saved by the WebView:
+ *
+ * <pre>
+ * &lt;Archive&gt;&lt;mainResource&gt;&lt;ArchiveResource&gt;
+ *   &lt;url&gt;BASE64&lt;/url&gt;&lt;mimeType&gt;BASE64&lt;/mimeType&gt;&lt;textEncoding&gt;BASE64&lt;/textEncoding&gt;&lt;data&gt;BASE64&lt;/data&gt;
+ * &lt;/ArchiveResource&gt;&lt;/mainResource&gt;&lt;subresources&gt;&lt;ArchiveResource&gt;...
+ * </pre>
+ *
+ * The archive is scanned once, keeping only the url, mime type and encoding
+ * of each resource and where its data is in the file. The data is decoded
+ * from the file when it is requested, so memory use does not grow with the
+ * size of the archive.
+ * <p>
+ * The class has no Android dependencies.
+ */
+public class WebArchiveIndex {
+
+	private static final String RESOURCE = "ArchiveResource";
+	private static final String URL = "url";
+	private static final String MIME_TYPE = "mimeType";
+	private static final String ENCODING = "textEncoding";
+	private static final String DATA = "data";
+
+	/** longer urls (data: urls mostly) are not indexed */
+	private static final int MAX_FIELD = 64 * 1024;
+
+	/**
+	 * A resource in the archive
+	 */
+	public static class Entry {
+		public final String url;
+		public final String mimeType;
+		public final String encoding;
+		// the Base64 data in the file
+		final long dataOffset;
+		final long dataLength;
+
+		Entry(String url, String mimeType, String encoding, long dataOffset, long dataLength) {
+			this.url = url;
+			this.mimeType = mimeType;
+			this.encoding = encoding;
+			this.dataOffset = dataOffset;
+			this.dataLength = dataLength;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Entry> entries;
+	private final Entry mainResource;
+
+	private WebArchiveIndex(File file, Map<String, Entry> entries, Entry mainResource) {
+		this.file = file;
+		this.entries = entries;
+		this.mainResource = mainResource;
+	}
+
+	/**
+	 * Scans the archive
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or has no resource
+	 */
+	public static WebArchiveIndex read(File file) throws IOException {
+		Map<String, Entry> entries = new HashMap<String, Entry>();
+		Entry mainResource = null;
+
+		Scanner in = new Scanner(new FileInputStream(file));
+		try {
+			String url = null;
+			String mimeType = null;
+			String encoding = null;
+			long dataOffset = -1;
+			long dataLength = 0;
+			// the url, mime type or encoding we are in
+			String field = null;
+			ByteArrayOutputStream fieldValue = new ByteArrayOutputStream();
+
+			int c;
+			while ((c = in.read()) != -1) {
+				if (c != '<') {
+					if (field != null && fieldValue.size() < MAX_FIELD)
+						fieldValue.write(c);
+					continue;
+				}
+				long tagStart = in.getOffset() - 1;
+				c = in.read();
+				if (c == '?' || c == '!') {
+					// declaration or comment
+					while (c != -1 && c != '>')
+						c = in.read();
+					continue;
+				}
+				boolean closing = c == '/';
+				if (closing)
+					c = in.read();
+				StringBuilder name = new StringBuilder();
+				while (c != -1 && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+					name.append((char) c);
+					c = in.read();
+				}
+				int previous = c;
+				while (c != -1 && c != '>') {
+					previous = c;
+					c = in.read();
+				}
+				boolean empty = previous == '/';
+				String tag = name.toString();
+
+				if (!closing) {
+					if (RESOURCE.equals(tag)) {
+						url = null;
+						mimeType = null;
+						encoding = null;
+						dataOffset = -1;
+						dataLength = 0;
+					} else if (DATA.equals(tag)) {
+						if (!empty)
+							dataOffset = in.getOffset();
+					} else if (URL.equals(tag) || MIME_TYPE.equals(tag) || ENCODING.equals(tag)) {
+						if (!empty) {
+							field = tag;
+							fieldValue.reset();
+						}
+					}
+				} else if (tag.equals(field)) {
+					String value = fieldValue.size() < MAX_FIELD ? new String(decode(fieldValue.toByteArray()),
+							"UTF-8") : null;
+					if (URL.equals(field)) {
+						url = value;
+					} else if (MIME_TYPE.equals(field)) {
+						mimeType = value;
+					} else {
+						encoding = value;
+					}
+					field = null;
+				} else if (DATA.equals(tag)) {
+					if (dataOffset >= 0)
+						dataLength = tagStart - dataOffset;
+				} else if (RESOURCE.equals(tag)) {
+					if (url != null && dataOffset >= 0) {
+						Entry entry = new Entry(url, mimeType != null ? mimeType : "text/html",
+								encoding != null ? encoding : "UTF-8", dataOffset, dataLength);
+						// the main resource comes first
+						if (mainResource == null)
+							mainResource = entry;
+						if (!entries.containsKey(url))
+							entries.put(url, entry);
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		if (mainResource == null)
+			throw new IOException("no resource in " + file.getName());
+		return new WebArchiveIndex(file, entries, mainResource);
+	}
+
+	public Entry getMainResource() {
+		return mainResource;
+	}
+
+	/**
+	 * @return the resource, null if it is not in the archive
+	 */
+	public Entry find(String url) {
+		return entries.get(url);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the decoded data of the resource, read from the archive while it
+	 *         is consumed
+	 */
+	public InputStream open(Entry entry) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(entry.dataOffset);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return new Base64InputStream(new Scanner(new LimitedInputStream(in, entry.dataLength)));
+	}
+
+	public byte[] readData(Entry entry) throws IOException {
+		InputStream in = open(entry);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) (entry.dataLength * 3 / 4));
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Decodes Base64, line breaks and other characters outside the alphabet
+	 * are skipped
+	 */
+	static byte[] decode(byte[] base64) throws IOException {
+		InputStream in = new Base64InputStream(new ByteArrayInputStream(base64));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(base64.length * 3 / 4);
+		int b;
+		while ((b = in.read()) != -1) {
+			out.write(b);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Buffered stream which knows how far it has read
+	 */
+	private static class Scanner extends InputStream {
+
+		private final InputStream in;
+		private final byte[] buffer = new byte[16 * 1024];
+		private int position;
+		private int limit;
+		private long offset;
+
+		Scanner(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			offset++;
+			return buffer[position++] & 0xff;
+		}
+
+		long getOffset() {
+			return offset;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static class LimitedInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		LimitedInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			remaining--;
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int read = super.read(b, off, (int) Math.min(len, remaining));
+			if (read > 0)
+				remaining -= read;
+			return read;
+		}
+	}
+
+	private static class Base64InputStream extends InputStream {
+
+		private static final int[] VALUES = new int[128];
+		static {
+			for (int i = 0; i < VALUES.length; i++) {
+				VALUES[i] = -1;
+			}
+			String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+			for (int i = 0; i < alphabet.length(); i++) {
+				VALUES[alphabet.charAt(i)] = i;
+			}
+		}
+
+		private final InputStream in;
+		private int bits;
+		private int bitCount;
+		private boolean end;
+
+		Base64InputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (bitCount < 8) {
+				if (end)
+					return -1;
+				int c = in.read();
+				if (c == -1 || c == '=') {
+					end = true;
+					return -1;
+				}
+				int value = c < VALUES.length ? VALUES[c] : -1;
+				if (value < 0)
+					continue;
+				bits = (bits << 6 | value) & 0xffffff;
+				bitCount += 6;
+			}
+			bitCount -= 8;
+			return (bits >> bitCount) & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int count = 0;
+			while (count < len) {
+				int value = read();
+				if (value == -1)
+					break;
+				b[off + count++] = (byte) value;
+			}
+			return count == 0 ? -1 : count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
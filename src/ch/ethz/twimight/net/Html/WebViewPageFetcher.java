@@ -0,0 +1,132 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.net.http.SslError;
+import android.os.Handler;
+import android.util.Log;
+import android.webkit.SslErrorHandler;
+import android.webkit.ValueCallback;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+/**
+ * Renders a page in a WebView and saves it as a web archive
+ */
+@SuppressLint("NewApi")
+class WebViewPageFetcher implements PageFetcher {
+
+	private static final String TAG = "WebViewPageFetcher";
+
+	private final Context context;
+	private final File dir;
+	private final Handler handler = new Handler();
+
+	private WebView web;
+	private Callback callback;
+	private String baseUrl;
+	// we call back once, later events of the WebView are ignored
+	private boolean done;
+	private boolean saving;
+
+	/**
+	 * @param dir
+	 *            where the archive goes
+	 */
+	WebViewPageFetcher(Context context, File dir) {
+		this.context = context;
+		this.dir = dir;
+	}
+
+	@Override
+	public void start(String url, Callback callback) {
+		this.callback = callback;
+		this.baseUrl = url;
+		web = new WebView(context);
+		web.setWebViewClient(new WebClientDownload());
+		web.getSettings().setJavaScriptEnabled(true);
+		web.getSettings().setDomStorageEnabled(true);
+		web.loadUrl(url);
+	}
+
+	@Override
+	public void cancel() {
+		done = true;
+		release();
+	}
+
+	private void finish(String filename, long size) {
+		if (done)
+			return;
+		done = true;
+		// not from within the callbacks of the WebView
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				release();
+			}
+		});
+		callback.onFetched(filename, size);
+	}
+
+	private void release() {
+		if (web != null) {
+			web.stopLoading();
+			web.destroy();
+			web = null;
+		}
+	}
+
+	private class WebArchiveCallback implements ValueCallback<String> {
+
+		private final String filename;
+
+		WebArchiveCallback(String filename) {
+			this.filename = filename;
+		}
+
+		@Override
+		public void onReceiveValue(String filePath) {
+			long size = new File(dir, filename).length();
+			if (filePath != null && size > 1) {
+				finish(filename, size);
+			} else {
+				finish(null, 0);
+			}
+		}
+	}
+
+	private class WebClientDownload extends WebViewClient {
+
+		@Override
+		public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
+			Log.d(TAG, "on received error" + failingUrl);
+			finish(null, 0);
+		}
+
+		@Override
+		public void onReceivedSslError(WebView view, SslErrorHandler handler, SslError error) {
+			Log.d(TAG, "on received ssl error");
+			super.onReceivedSslError(view, handler, error);
+			finish(null, 0);
+		}
+
+		@Override
+		public void onPageFinished(WebView view, String url) {
+			if (done || saving)
+				return;
+			saving = true;
+			String filename = PageDownloadScheduler.newArchiveName();
+			view.saveWebArchive(new File(dir, filename).getPath(), false, new WebArchiveCallback(filename));
+		}
+
+		@Override
+		public boolean shouldOverrideUrlLoading(WebView view, String url) {
+			view.loadUrl(url);
+			Log.d(TAG, baseUrl + " redirect to:" + url);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+package ch.ethz.twimight.net.opportunistic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+import ch.ethz.twimight.util.AvatarCache;
+
+import com.nostra13.universalimageloader.core.ImageLoader;
+
+/**
+ * Keeps track of which profile images have to be sent to the current peer. At
+ * the beginning of a session both peers send the hashes of the images they
+ * have (the inventory). An image is then sent at most once per session, and
+ * only if it is not in the inventory of the peer. Peers which don't send an
+ * inventory get the image inline with the first tweet of each author.
+ */
+public class AvatarExchange {
+
+	private static final String TAG = "AvatarExchange";
+
+	/** Prefix of the inventory control message */
+	public static final String INVENTORY_PREFIX = "<avatars>";
+
+	private final AvatarCache cache;
+	/** hashes of the images behind the profile image URIs we have seen */
+	private final Map<String, String> uriHashes = Collections.synchronizedMap(new HashMap<String, String>());
+
+	// session state
+	private Set<String> peerHashes = null;
+	private final Set<String> sent = new HashSet<String>();
+
+	public AvatarExchange(AvatarCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the control message announcing the images we have
+	 */
+	public String getInventoryMessage() {
+		return INVENTORY_PREFIX + TextUtils.join(",", cache.getHashes());
+	}
+
+	/**
+	 * Called when the inventory of the peer arrives
+	 */
+	public synchronized void onInventoryReceived(String message) {
+		Set<String> hashes = new HashSet<String>();
+		String list = message.substring(INVENTORY_PREFIX.length());
+		if (list.length() > 0) {
+			for (String hash : list.split(",")) {
+				hashes.add(hash);
+			}
+		}
+		peerHashes = hashes;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the inventory of the peer.
+	 *
+	 * @return true if we have the inventory, false if the peer didn't send one
+	 *         in time
+	 */
+	public synchronized boolean awaitPeerInventory(long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (peerHashes == null && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			remaining = end - System.currentTimeMillis();
+		}
+		return peerHashes != null;
+	}
+
+	public synchronized boolean hasPeerInventory() {
+		return peerHashes != null;
+	}
+
+	/**
+	 * Decides whether the image has to be sent in this session: the peer
+	 * doesn't have it and we haven't sent it yet (see markSent).
+	 */
+	public synchronized boolean needsSending(String hash) {
+		return !sent.contains(hash) && (peerHashes == null || !peerHashes.contains(hash));
+	}
+
+	/**
+	 * Records that the image is queued for the peer, it is not sent again in
+	 * this session
+	 */
+	public synchronized void markSent(String hash) {
+		sent.add(hash);
+	}
+
+	/**
+	 * Forgets the session state, called when the connection ends
+	 */
+	public synchronized void reset() {
+		peerHashes = null;
+		sent.clear();
+	}
+
+	/**
+	 * Finds the hash of the profile image behind the given URI, storing the
+	 * image in the cache if needed.
+	 *
+	 * @return the hash or null if the image is not available
+	 */
+	public String getHash(String imageUri) {
+		if (imageUri == null) {
+			return null;
+		}
+		String hash = cache.getHashOfUri(imageUri);
+		if (hash != null) {
+			return hash;
+		}
+		hash = uriHashes.get(imageUri);
+		if (hash != null && cache.has(hash)) {
+			return hash;
+		}
+		byte[] image = loadImage(imageUri);
+		if (image == null) {
+			return null;
+		}
+		hash = cache.put(image);
+		if (hash != null) {
+			uriHashes.put(imageUri, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the bytes of a cached image, null if we don't have it
+	 */
+	public byte[] getImage(String hash) {
+		return readFile(cache.getFile(hash));
+	}
+
+	/**
+	 * Gets the encoded image, from the file or the image loader disc cache if
+	 * possible so that we don't have to compress it again.
+	 */
+	private byte[] loadImage(String imageUri) {
+		Uri uri = Uri.parse(imageUri);
+		File file = null;
+		if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+			file = new File(uri.getPath());
+		} else if (ImageLoader.getInstance().isInited()) {
+			file = ImageLoader.getInstance().getDiscCache().get(imageUri);
+		}
+		if (file != null && file.exists()) {
+			byte[] image = readFile(file);
+			if (image != null) {
+				return image;
+			}
+		}
+
+		Bitmap profileImage = ImageLoader.getInstance().loadImageSync(imageUri);
+		if (profileImage == null) {
+			return null;
+		}
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		profileImage.compress(Bitmap.CompressFormat.PNG, 100, stream);
+		return stream.toByteArray();
+	}
+
+	private byte[] readFile(File file) {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[4096];
+			int length;
+			while ((length = in.read(buffer)) != -1) {
+				bos.write(buffer, 0, length);
+			}
+			return bos.toByteArray();
+		} catch (IOException e) {
+			Log.w(TAG, "could not read " + file);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -61,6 +61,19 @@ public class BluetoothComms{
     private ConnectedThread mConnectedThread;
     private int mState;
     private final Context mContext;
+    private volatile DataReceivedListener mListener;
+
+    /**
+     * Receives the messages read from the connected socket. Called on the
+     * reading thread, so an implementation blocking here throttles the peer.
+     */
+    public static interface DataReceivedListener {
+
+        public void onDataReceived(String data);
+
+        /** Called on the reading thread once the connection has ended. */
+        public void onConnectionClosed();
+    }
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -68,8 +81,6 @@ public class BluetoothComms{
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
     
-    
-    ObjectOutputStream out;
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -83,6 +94,14 @@ public class BluetoothComms{
         mHandler = handler;
     }
 
+    /**
+     * Set the listener for received data. If no listener is set, received
+     * data is delivered to the Handler as MESSAGE_READ.
+     */
+    public void setListener(DataReceivedListener listener) {
+        mListener = listener;
+    }
+
     /**
      * Set the current state of the chat connection
      * @param state  An integer defining the current connection state
@@ -224,7 +243,8 @@ public class BluetoothComms{
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Write to the ConnectedThread. Called from the send thread and the
+     * handler, ConnectedThread.write keeps their frames apart.
      * @param out The bytes to write
      * @see ConnectedThread#write(byte[])
      */
@@ -458,12 +478,21 @@ public class BluetoothComms{
                     Object buffer;
                     
                     buffer = in.readObject();
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, -1, -1, buffer)
-                    .sendToTarget();
+                    DataReceivedListener listener = mListener;
+                    if (listener != null) {
+                        listener.onDataReceived(buffer.toString());
+                    } else {
+                        // Send the obtained bytes to the UI Activity
+                        mHandler.obtainMessage(Constants.MESSAGE_READ, -1, -1, buffer)
+                        .sendToTarget();
+                    }
                     
                 } catch (IOException e) {
                     Log.e(TAG, "disconnected");
+                    DataReceivedListener listener = mListener;
+                    if (listener != null) {
+                        listener.onConnectionClosed();
+                    }
                     connectionLost();
                     break;
                 } catch (ClassNotFoundException e) {
@@ -479,9 +508,10 @@ public class BluetoothComms{
          * @param buffer  The bytes to write
          */
         //not to write String, but Object
-        public void write(String buffer) {
+        //synchronized since the send and receive threads both write
+        public synchronized void write(String buffer) {
             try {
-            	out = new ObjectOutputStream(mmOutStream);
+            	ObjectOutputStream out = new ObjectOutputStream(mmOutStream);
                 // Send it
                 out.writeObject(buffer);                
                 out.flush(); 
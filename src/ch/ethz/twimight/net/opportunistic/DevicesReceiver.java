@@ -11,11 +11,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.Bundle;
 import android.os.ParcelUuid;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Log;
 import ch.ethz.twimight.data.MacsDBHelper;
+import ch.ethz.twimight.util.Constants;
 
 public class DevicesReceiver extends BroadcastReceiver {
 
@@ -33,15 +34,12 @@ public class DevicesReceiver extends BroadcastReceiver {
 	SharedPreferences sharedPref;
 
 	private static final String DISCOVERY_FINISHED_TIMESTAMP = "discovery_finished_timestamp";
-	private ArrayList<String> newDeviceList = null;
+	private ArrayList<String> newDeviceList = new ArrayList<String>();
 
 	public static final String SCAN_PROBABILITY = "scan_probability";
+	public static final String SCAN_SUCCESS_RATE = "scan_success_rate";
 	public static final String DEVICE_LIST = "device_list";
 
-	private static final float INIT_PROB = (float) 0.5;
-	private static final float MAX_PROB = (float) 1.0;
-	private static final float MIN_PROB = (float) 0.1;
-
 	private int discoveredSmartphonesCount = 0;
 
 	public DevicesReceiver(Context context) {
@@ -82,11 +80,11 @@ public class DevicesReceiver extends BroadcastReceiver {
 			// Get the BluetoothDevice object from the Intent
 			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
-			// newDeviceList.add(device.getAddress().toString());
 			if (device.getBluetoothClass().getDeviceClass() == BluetoothClass.Device.PHONE_SMART
 					&& device.getBondState() != BluetoothDevice.BOND_BONDED) {
 				Log.d(T, "ACTION_FOUND special: " + device.getName() + " (" + device.getAddress() + ")");
 				discoveredSmartphonesCount++;
+				newDeviceList.add(device.getAddress().toString());
 				if (android.os.Build.VERSION.SDK_INT >= 15) {
 					ParcelUuid[] uuids = device.getUuids();
 					if (uuids != null) {
@@ -109,9 +107,9 @@ public class DevicesReceiver extends BroadcastReceiver {
 			if ((System.currentTimeMillis() - sharedPref.getLong(DISCOVERY_FINISHED_TIMESTAMP, 0)) > 10000) {
 				setDiscoveryFinishedTimestamp(sharedPref, System.currentTimeMillis());
 				// addPairedDevices();
+				compareDevice();
 				if (sf != null)
 					sf.onScanningFinished();
-				// compareDevice();
 			}
 
 		}
@@ -124,88 +122,48 @@ public class DevicesReceiver extends BroadcastReceiver {
 		edit.commit();
 	}
 
+	/**
+	 * Feeds the devices found in this round into the scanning policy
+	 */
 	private void compareDevice() {
-		Bundle scanInfo = getScanInfo();
-		ArrayList<String> oldDeviceList = scanInfo.getStringArrayList(DEVICE_LIST);
-		float oldProb = scanInfo.getFloat(SCAN_PROBABILITY);
-		int newDevice = 0;
-		int oldDevice = 0;
-		for (String device : newDeviceList) {
-			if (oldDeviceList.indexOf(device) != -1) {
-				oldDevice++;
-			} else {
-				newDevice++;
-			}
-		}
-		float dp = 0;
-
-		if (oldDevice > 0 || newDevice > 0) {
-			if (oldDeviceList.size() == 0) {
-				dp = oldProb;
-			} else {
-				dp = (float) oldProb
-						* (float) 0.5
-						* ((float) newDevice / (float) (newDeviceList.size()) + (1 - (float) oldDevice
-								/ (float) (oldDeviceList.size())));
-			}
-
-			Log.i(TAG, "delta p is:" + String.valueOf(dp));
-			oldProb = Math.min(oldProb + dp, MAX_PROB);
-
-		} else {
-			oldProb = Math.max((float) oldProb / (float) 2, MIN_PROB);
-		}
-		setScanInfo(oldProb, newDeviceList);
+		ScanningPolicy policy = loadScanningPolicy(sharedPref);
+		policy.onScanFinished(newDeviceList);
+		newDeviceList.clear();
+		saveScanningPolicy(sharedPref, policy);
+		Log.i(TAG, "scan probability is now " + policy.getProbability());
 	}
 
 	public void setListener(ScanningFinished sf) {
 		this.sf = sf;
 	}
 
-	// set scan info(device list and probability) to current scan
-	private void setScanInfo(float probability, ArrayList<String> deviceList) {
-
-		Log.i(TAG, "set scan probability to:" + String.valueOf(probability));
-
-		SharedPreferences.Editor prefEditor = sharedPref.edit();
-		prefEditor.putFloat(SCAN_PROBABILITY, probability);
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < deviceList.size(); i++) {
-			if (i == 0) {
-				sb.append(deviceList.get(i));
-			} else {
-				sb.append(",");
-				sb.append(deviceList.get(i));
-			}
-
-		}
-		Log.i(TAG, "set device list to:" + sb.toString());
-		prefEditor.putString(DEVICE_LIST, sb.toString());
-		prefEditor.commit();
-	}
-
-	// get scan info(device list and probability) of last scan
-	public Bundle getScanInfo() {
-
-		float probability = sharedPref.getFloat(SCAN_PROBABILITY, INIT_PROB);
-		String[] tmpList = sharedPref.getString(DEVICE_LIST, "").split(",");
+	/**
+	 * Restores the scanning policy (probability, success rate and devices seen
+	 * in the last round) from the preferences
+	 */
+	public static ScanningPolicy loadScanningPolicy(SharedPreferences sharedPref) {
+		float probability = sharedPref.getFloat(SCAN_PROBABILITY, ScanningPolicy.INIT_PROB);
+		float successRate = sharedPref.getFloat(SCAN_SUCCESS_RATE, ScanningPolicy.MAX_PROB);
 
 		ArrayList<String> deviceList = new ArrayList<String>();
-		for (String device : tmpList) {
-			deviceList.add(device);
+		for (String device : sharedPref.getString(DEVICE_LIST, "").split(",")) {
+			if (device.length() > 0) {
+				deviceList.add(device);
+			}
 		}
-		Log.i(TAG, "current scan probability is:" + String.valueOf(probability));
-		Log.i(TAG, "devices scanned during last time are:" + deviceList.toString());
-		Bundle mBundle = new Bundle();
-		mBundle.putFloat(SCAN_PROBABILITY, probability);
-		mBundle.putStringArrayList(DEVICE_LIST, deviceList);
-		return mBundle;
+		return new ScanningPolicy(Constants.SCANNING_MIN_INTERVAL, Constants.SCANNING_MAX_INTERVAL, probability,
+				successRate, deviceList);
 	}
 
-	// initialize device list for a new scan
-	public void initDeivceList() {
-
-		newDeviceList = new ArrayList<String>();
+	/**
+	 * Stores the state of the scanning policy in the preferences
+	 */
+	public static void saveScanningPolicy(SharedPreferences sharedPref, ScanningPolicy policy) {
+		SharedPreferences.Editor prefEditor = sharedPref.edit();
+		prefEditor.putFloat(SCAN_PROBABILITY, policy.getProbability());
+		prefEditor.putFloat(SCAN_SUCCESS_RATE, policy.getSuccessRate());
+		prefEditor.putString(DEVICE_LIST, TextUtils.join(",", policy.getLastDevices()));
+		prefEditor.commit();
 	}
 
 }
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+package ch.ethz.twimight.net.opportunistic;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * Worker threads for the Bluetooth exchange. Outgoing sessions (reading the
+ * disaster tweets and DMs from the DB, building the JSON and writing it to the
+ * socket) and incoming messages (parsing and inserting into the DB) are each
+ * processed sequentially on their own background thread, so that neither the
+ * main looper nor the shared AsyncTask executor is blocked during an
+ * encounter.
+ *
+ * Both queues are bounded. When the receive queue is full, the submitting
+ * thread (the Bluetooth reader) blocks until there is room again, which stops
+ * reading from the socket and throttles the peer. When the send queue is full,
+ * the oldest pending session is dropped since only the most recent connection
+ * can still be alive.
+ */
+public class ExchangeExecutor {
+
+	private static final String TAG = "ExchangeExecutor";
+
+	private final ThreadPoolExecutor mSendExecutor;
+	private final ThreadPoolExecutor mReceiveExecutor;
+
+	public ExchangeExecutor() {
+		mSendExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+				Constants.EXCHANGE_SEND_QUEUE_SIZE), new ExchangeThreadFactory("ExchangeSend"),
+				new ThreadPoolExecutor.DiscardOldestPolicy());
+		mReceiveExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+				Constants.EXCHANGE_RECEIVE_QUEUE_SIZE), new ExchangeThreadFactory("ExchangeReceive"),
+				new BlockingPolicy());
+	}
+
+	/**
+	 * Queues an outgoing exchange session. Never blocks.
+	 */
+	public void submitSend(Runnable task) {
+		if (!mSendExecutor.isShutdown()) {
+			mSendExecutor.execute(task);
+		}
+	}
+
+	/**
+	 * Queues the processing of a received message. Blocks the caller while the
+	 * receive queue is full.
+	 */
+	public void submitReceive(Runnable task) {
+		if (!mReceiveExecutor.isShutdown()) {
+			mReceiveExecutor.execute(task);
+		}
+	}
+
+	/**
+	 * Stops both threads and drops the queued work. Dropped messages were not
+	 * acknowledged, the peer sends them again in the next session.
+	 */
+	public void shutdown() {
+		mSendExecutor.shutdownNow();
+		mReceiveExecutor.shutdownNow();
+	}
+
+	/**
+	 * Waits for room in the queue instead of rejecting the task.
+	 */
+	private static class BlockingPolicy implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				Log.w(TAG, "executor shut down, dropping task");
+				return;
+			}
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Log.w(TAG, "interrupted while waiting for queue space, dropping task");
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Creates named background priority threads.
+	 */
+	private static class ExchangeThreadFactory implements ThreadFactory {
+
+		private final String mName;
+
+		ExchangeThreadFactory(String name) {
+			mName = name;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, mName);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+package ch.ethz.twimight.net.opportunistic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.ethz.twimight.net.Html.ResourceStore;
+
+/**
+ * Decides which resources of a page stored as a manifest have to be sent to
+ * the current peer. Before the page we offer the hashes of its resources, the
+ * peer answers with the hashes it does not have in its ResourceStore, and only
+ * those are sent with the page. Peers which don't answer get all resources,
+ * and are not asked again in the session.
+ * <p>
+ * Control messages: <code>&lt;resources&gt;id:hash,hash,...</code> and the
+ * answer <code>&lt;missing_resources&gt;id:hash,...</code>, the id matches
+ * the answer to the offer.
+ */
+public class ResourceExchange {
+
+	/** Prefix of the offer control message */
+	public static final String OFFER_PREFIX = "<resources>";
+	/** Prefix of the answer control message */
+	public static final String MISSING_PREFIX = "<missing_resources>";
+
+	// session state
+	private int offerId;
+	private Set<String> missing;
+	private boolean peerSilent;
+
+	/**
+	 * @return the control message offering the resources, the answer is
+	 *         returned by awaitMissing
+	 */
+	public synchronized String getOfferMessage(Collection<String> hashes) {
+		offerId++;
+		missing = null;
+		return OFFER_PREFIX + offerId + ":" + join(hashes);
+	}
+
+	/**
+	 * Answers an offer of the peer, offered strings which are not hashes are
+	 * left out
+	 *
+	 * @param store
+	 *            our resources, null if we cannot store any
+	 * @return the answer control message, null if the offer is malformed
+	 */
+	public static String getMissingMessage(String offer, ResourceStore store) {
+		int colon = offer.indexOf(':');
+		if (colon < 0)
+			return null;
+		List<String> lacking = new ArrayList<String>();
+		for (String hash : split(offer.substring(colon + 1))) {
+			if (ResourceStore.isHash(hash) && (store == null || !store.has(hash)))
+				lacking.add(hash);
+		}
+		return MISSING_PREFIX + offer.substring(OFFER_PREFIX.length(), colon) + ":" + join(lacking);
+	}
+
+	/**
+	 * Called when the answer of the peer arrives, late answers are ignored
+	 */
+	public synchronized void onMissingReceived(String message) {
+		int colon = message.indexOf(':');
+		if (colon < 0 || !String.valueOf(offerId).equals(message.substring(MISSING_PREFIX.length(), colon)))
+			return;
+		missing = new HashSet<String>(split(message.substring(colon + 1)));
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the answer to the last offer
+	 *
+	 * @return the hashes the peer does not have, null if it did not answer in
+	 *         time (send all of them then)
+	 */
+	public synchronized Set<String> awaitMissing(long timeout) {
+		if (peerSilent)
+			return null;
+		long end = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (missing == null && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			remaining = end - System.currentTimeMillis();
+		}
+		if (missing == null)
+			peerSilent = true;
+		return missing;
+	}
+
+	/**
+	 * @return false if the peer did not answer an earlier offer, we don't wait
+	 *         for it again
+	 */
+	public synchronized boolean isPeerAnswering() {
+		return !peerSilent;
+	}
+
+	/**
+	 * Forgets the session state, called when the connection ends
+	 */
+	public synchronized void reset() {
+		missing = null;
+		peerSilent = false;
+	}
+
+	private static String join(Collection<String> hashes) {
+		StringBuilder list = new StringBuilder();
+		for (String hash : hashes) {
+			if (list.length() > 0)
+				list.append(',');
+			list.append(hash);
+		}
+		return list.toString();
+	}
+
+	private static List<String> split(String list) {
+		List<String> hashes = new ArrayList<String>();
+		if (list.length() > 0) {
+			for (String hash : list.split(",")) {
+				hashes.add(hash);
+			}
+		}
+		return hashes;
+	}
+}
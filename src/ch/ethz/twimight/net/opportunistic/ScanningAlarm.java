@@ -39,6 +39,7 @@ public class ScanningAlarm extends BroadcastReceiver {
 	public static final String FORCE_SCAN = "force_scan"; /** To force a scan, put this extra in the starting intent */
 	public static final String FORCE_SCAN_DELAY = "force_scan_delay"; /** To force a scan after a given delay, put this extra in the starting intent */	
 	public static ScanningAlarm instance = null;
+	private static final String SCANNING_INTERVAL = "scanning_interval"; /** interval chosen by the scanning policy */
 
 	/**
 	 * This constructor is called the alarm manager.
@@ -120,7 +121,24 @@ public class ScanningAlarm extends BroadcastReceiver {
 	 * @param time after how many milliseconds (0 for immediately)?
 	 */
 	public void scheduleScanning(Context context, long time) {		
+		long interval = PreferenceManager.getDefaultSharedPreferences(context).getLong(SCANNING_INTERVAL, Constants.SCANNING_INTERVAL);
+		scheduleScanning(context, time, interval);
+	}
+
+	/**
+	 * Re-schedules the scanning with the interval chosen by the scanning policy,
+	 * the next round starts one interval from now.
+	 * @param interval milliseconds between two scans
+	 */
+	public static void rescheduleScanning(Context context, long interval) {
+		SharedPreferences.Editor prefEditor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+		prefEditor.putLong(SCANNING_INTERVAL, interval);
+		prefEditor.commit();
+
+		scheduleScanning(context, System.currentTimeMillis() + interval, interval);
+	}
 
+	private static void scheduleScanning(Context context, long time, long interval) {
 
 		if(PreferenceManager.getDefaultSharedPreferences(context).getBoolean("prefDisasterMode", Constants.DISASTER_DEFAULT_ON) == true){
 
@@ -132,7 +150,7 @@ public class ScanningAlarm extends BroadcastReceiver {
 			alarmMgr.cancel(pendingIntent);
 			
 			long delay = Math.round(Math.random()*Constants.RANDOMIZATION_INTERVAL) - Math.round(Math.random()*Constants.RANDOMIZATION_INTERVAL);
-			alarmMgr.setRepeating(AlarmManager.RTC_WAKEUP, time, Constants.SCANNING_INTERVAL+ delay, pendingIntent);
+			alarmMgr.setRepeating(AlarmManager.RTC_WAKEUP, time, interval + delay, pendingIntent);
 		
 		} 
 	}
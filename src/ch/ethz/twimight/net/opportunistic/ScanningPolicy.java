@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+package ch.ethz.twimight.net.opportunistic;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Adaptive duty cycle for Bluetooth discovery. Discovery is the dominant
+ * energy cost in disaster mode, so we scan often only when it pays off:
+ * <ul>
+ * <li>the scan activity grows when the set of devices around us changes
+ * (churn) and decays when nothing is found,</li>
+ * <li>it is damped when connection attempts keep failing (devices around us
+ * which don't run Twimight),</li>
+ * <li>and the interval is shortened while we have data to hand out.</li>
+ * </ul>
+ * The class has no Android dependencies so that it can be driven by the
+ * ScanningSimulator (in the tests) with recorded traces.
+ */
+public class ScanningPolicy {
+
+	public static final float INIT_PROB = (float) 0.5;
+	public static final float MAX_PROB = (float) 1.0;
+	public static final float MIN_PROB = (float) 0.1;
+
+	/** weight of the latest connection result in the success rate */
+	private static final float SUCCESS_WEIGHT = (float) 0.2;
+	/** from how many pending messages on we scan at the highest rate */
+	private static final int PENDING_SATURATION = 10;
+
+	private final long minInterval;
+	private final long maxInterval;
+
+	private float probability;
+	private float successRate;
+	private Set<String> lastDevices;
+
+	public ScanningPolicy(long minInterval, long maxInterval) {
+		this(minInterval, maxInterval, INIT_PROB, MAX_PROB, new HashSet<String>());
+	}
+
+	public ScanningPolicy(long minInterval, long maxInterval, float probability, float successRate,
+			Collection<String> lastDevices) {
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.probability = clamp(probability, MIN_PROB, MAX_PROB);
+		this.successRate = clamp(successRate, 0, 1);
+		this.lastDevices = new HashSet<String>(lastDevices);
+	}
+
+	/**
+	 * Updates the scan activity with the devices found in a discovery round.
+	 */
+	public void onScanFinished(Collection<String> devices) {
+		Set<String> newDevices = new HashSet<String>(devices);
+		int oldDevice = 0;
+		int newDevice = 0;
+		for (String device : newDevices) {
+			if (lastDevices.contains(device)) {
+				oldDevice++;
+			} else {
+				newDevice++;
+			}
+		}
+
+		if (oldDevice > 0 || newDevice > 0) {
+			float dp;
+			if (lastDevices.isEmpty()) {
+				dp = probability;
+			} else {
+				// fraction of new devices plus fraction of devices which left
+				dp = probability
+						* (float) 0.5
+						* ((float) newDevice / (float) newDevices.size() + (1 - (float) oldDevice
+								/ (float) lastDevices.size()));
+			}
+			probability = Math.min(probability + dp, MAX_PROB);
+		} else {
+			probability = Math.max(probability / 2, MIN_PROB);
+		}
+		lastDevices = newDevices;
+	}
+
+	/**
+	 * Updates the success rate with the outcome of a connection attempt.
+	 */
+	public void onConnectionResult(boolean success) {
+		successRate = (1 - SUCCESS_WEIGHT) * successRate + SUCCESS_WEIGHT * (success ? 1 : 0);
+	}
+
+	/**
+	 * @param pendingMessages
+	 *            how many messages we have which no peer got from us yet
+	 * @return milliseconds until the next discovery round
+	 */
+	public long getInterval(int pendingMessages) {
+		// failing connections reduce the activity by at most half
+		float activity = probability * ((float) 0.5 + (float) 0.5 * successRate);
+		double interval = maxInterval - activity * (maxInterval - minInterval);
+
+		// pending data brings us at most half way closer to the minimum
+		float pending = (float) Math.min(Math.max(pendingMessages, 0), PENDING_SATURATION) / PENDING_SATURATION;
+		interval -= pending * (interval - minInterval) / 2;
+
+		return Math.max(minInterval, Math.min(maxInterval, Math.round(interval)));
+	}
+
+	public float getProbability() {
+		return probability;
+	}
+
+	public float getSuccessRate() {
+		return successRate;
+	}
+
+	public Set<String> getLastDevices() {
+		return new HashSet<String>(lastDevices);
+	}
+
+	private static float clamp(float value, float min, float max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -20,11 +20,19 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import org.apache.http.util.ByteArrayBuffer;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -38,10 +46,10 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -54,15 +62,20 @@ import android.util.Log;
 import ch.ethz.twimight.R;
 import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.activities.TwimightBaseActivity;
+import ch.ethz.twimight.data.DBOpenHelper;
 import ch.ethz.twimight.data.HtmlPagesDbHelper;
 import ch.ethz.twimight.data.MacsDBHelper;
 import ch.ethz.twimight.net.Html.HtmlPage;
+import ch.ethz.twimight.net.Html.OfflinePageCache;
+import ch.ethz.twimight.net.Html.PageManifest;
+import ch.ethz.twimight.net.Html.ResourceStore;
 import ch.ethz.twimight.net.twitter.DirectMessages;
 import ch.ethz.twimight.net.twitter.Tweets;
 import ch.ethz.twimight.net.twitter.TweetsContentProvider;
 import ch.ethz.twimight.net.twitter.TwitterUsers;
+import ch.ethz.twimight.security.SignatureVerifier;
+import ch.ethz.twimight.util.AvatarCache;
 import ch.ethz.twimight.util.Constants;
-import ch.ethz.twimight.util.InternalStorageHelper;
 import ch.ethz.twimight.util.SDCardHelper;
 
 /**
@@ -73,7 +86,7 @@ import ch.ethz.twimight.util.SDCardHelper;
  */
 
 public class ScanningService extends Service implements DevicesReceiver.ScanningFinished,
-		StateChangedReceiver.BtSwitchingFinished {
+		StateChangedReceiver.BtSwitchingFinished, BluetoothComms.DataReceivedListener {
 
 	private static final String T = "btdebug";
 	private static final String TAG = ScanningService.class.getSimpleName();
@@ -87,6 +100,24 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 
 	// manage bluetooth communication
 	public BluetoothComms bluetoothHelper = null;
+	// background threads for sending and processing exchanged messages
+	private ExchangeExecutor exchangeExecutor;
+	// messages received in the current session, only accessed on the receive
+	// thread
+	private final ArrayList<ContentValues> receivedTweets = new ArrayList<ContentValues>();
+	private final ArrayList<ContentValues> receivedDMs = new ArrayList<ContentValues>();
+	private final ArrayList<ContentValues> receivedUsers = new ArrayList<ContentValues>();
+	// highest sequence numbers received in the current batch, -1 for none
+	private long receivedTweetsSeq = -1;
+	private long receivedDMsSeq = -1;
+	// the peer of the current session, its acknowledgments move our marks
+	private volatile String exchangePeer;
+
+	// profile images
+	private AvatarCache avatarCache;
+	private AvatarExchange avatarExchange;
+	// resources of offline pages
+	private final ResourceExchange resourceExchange = new ResourceExchange();
 
 	// private Date lastScan;
 
@@ -109,8 +140,24 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 	public static final int MESSAGE_TYPE_DM = 1;
 	public static final int MESSAGE_TYPE_PHOTO = 2;
 	public static final int MESSAGE_TYPE_HTML = 3;
+	public static final int MESSAGE_TYPE_AVATAR = 4;
+
+	/** sequence number of a tweet or DM, the row ID on the sending side */
+	private static final String SEQ = "exchange_seq";
+	/** Prefix of the acknowledgment control message */
+	private static final String ACK_PREFIX = "<ack>";
+
+	private static final String AVATAR_HASH = "hash";
+	private static final String AVATAR_IMAGE = "image";
+
+	/** resources of a page stored as a manifest, [{hash, data}, ...] */
+	private static final String HTML_RESOURCES = "resources";
+	private static final String RESOURCE_HASH = "hash";
+	private static final String RESOURCE_DATA = "data";
 
 	public static final String FORCED_BLUE_SCAN = "forced_bluetooth_scan";
+	/** when did we last exchange data with a peer */
+	private static final String LAST_ENCOUNTER_TIMESTAMP = "last_encounter_timestamp";
 
 	// photo
 	private String photoPath;
@@ -140,7 +187,9 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		handler = new Handler();
 		// set up Bluetooth
 
+		exchangeExecutor = new ExchangeExecutor();
 		bluetoothHelper = new BluetoothComms(this, mHandler);
+		bluetoothHelper.setListener(this);
 		bluetoothHelper.start();
 		dbHelper = new MacsDBHelper(getApplicationContext());
 		dbHelper.open();
@@ -151,6 +200,9 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		htmlDbHelper = new HtmlPagesDbHelper(getApplicationContext());
 		htmlDbHelper.open();
 
+		avatarCache = new AvatarCache(getApplicationContext());
+		avatarExchange = new AvatarExchange(avatarCache);
+
 		mBtAdapter = BluetoothAdapter.getDefaultAdapter();
 	}
 
@@ -261,7 +313,10 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		mHandler.removeMessages(Constants.MESSAGE_CONNECTION_SUCCEEDED);
 		mHandler.removeMessages(Constants.BLUETOOTH_RESTART);
 		releaseWakeLock();
+		bluetoothHelper.setListener(null);
 		bluetoothHelper.stop();
+		// the receive tasks must not touch the DB after we are gone
+		exchangeExecutor.shutdown();
 		// Make sure we're not doing discovery anymore
 		if (mBtAdapter != null) {
 			mBtAdapter.cancelDiscovery();
@@ -403,12 +458,65 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		}
 		removeConnectionAttemptTimeout();
 
+		// adapt the time until the next round to what we have seen
+		ScanningPolicy policy = DevicesReceiver.loadScanningPolicy(PreferenceManager.getDefaultSharedPreferences(this));
+		long interval = policy.getInterval(countPendingMessages());
+		Log.i(TAG, "next scanning round in " + interval / 1000 + "s");
+		ScanningAlarm.rescheduleScanning(getApplicationContext(), interval);
+
 		// restart bluetooth because it MIGHT help to keep in it a good state
 		Message msg = mHandler.obtainMessage(Constants.BLUETOOTH_RESTART, -1, -1, null);
 		mHandler.sendMessage(msg);
 
 	}
 
+	/**
+	 * Counts the disaster tweets and DMs we got since the last successful
+	 * connection, nobody got those from us yet.
+	 */
+	private int countPendingMessages() {
+		String since = String.valueOf(PreferenceManager.getDefaultSharedPreferences(this).getLong(
+				LAST_ENCOUNTER_TIMESTAMP, 0));
+		String[] count = new String[] { "count(*)" };
+		int pending = 0;
+
+		Cursor c = getContentResolver().query(
+				Tweets.ALL_TWEETS_URI,
+				count,
+				Tweets.COL_RECEIVED + ">? AND (" + Tweets.COL_BUFFER + "&"
+						+ (Tweets.BUFFER_DISASTER | Tweets.BUFFER_MYDISASTER) + ")!=0", new String[] { since }, null);
+		if (c != null) {
+			if (c.moveToFirst())
+				pending += c.getInt(0);
+			c.close();
+		}
+
+		c = getContentResolver().query(DirectMessages.CONTENT_URI, count,
+				DirectMessages.COL_RECEIVED + ">? AND " + DirectMessages.COL_ISDISASTER + "=1", new String[] { since },
+				null);
+		if (c != null) {
+			if (c.moveToFirst())
+				pending += c.getInt(0);
+			c.close();
+		}
+		return pending;
+	}
+
+	/**
+	 * Feeds the outcome of a connection attempt into the scanning policy
+	 */
+	private void recordConnectionResult(boolean success) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		ScanningPolicy policy = DevicesReceiver.loadScanningPolicy(prefs);
+		policy.onConnectionResult(success);
+		DevicesReceiver.saveScanningPolicy(prefs, policy);
+		if (success) {
+			SharedPreferences.Editor prefEditor = prefs.edit();
+			prefEditor.putLong(LAST_ENCOUNTER_TIMESTAMP, System.currentTimeMillis());
+			prefEditor.commit();
+		}
+	}
+
 	private void removeConnectionAttemptTimeout() {
 		if (connTimeout != null) { // I need to remove the timeout started at
 									// the beginning
@@ -445,10 +553,7 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 						Log.i(TAG, "ack closing request received, connection shutdown");
 					bluetoothHelper.start();
 				} else
-					new ProcessDataReceived().execute(msg.obj.toString()); // not
-																			// String,
-																			// object
-																			// instead
+					exchangeExecutor.submitReceive(new ProcessDataReceived(msg.obj.toString()));
 
 				break;
 
@@ -466,16 +571,11 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 
 				// Insert successful connection into DB
 				dbHelper.updateMacSuccessful(msg.obj.toString(), 1);
+				recordConnectionResult(true);
+				exchangePeer = msg.obj.toString();
 
 				// Here starts the protocol for Tweet exchange.
-				Long last = dbHelper.getLastSuccessful(msg.obj.toString());
-				// new SendDisasterData(msg.obj.toString()).execute(last);
-				sendDisasterTweets(last);
-				sendDisasterDM(last);
-				if (bluetoothHelper != null) {
-					bluetoothHelper.write("<closing_request>");
-					dbHelper.setLastSuccessful(msg.obj.toString(), new Date());
-				}
+				exchangeExecutor.submitSend(new SendDisasterData(msg.obj.toString()));
 
 				break;
 			case Constants.MESSAGE_CONNECTION_FAILED:
@@ -484,6 +584,7 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 
 				// Insert failed connection into DB
 				dbHelper.updateMacAttempts(msg.obj.toString(), 1);
+				recordConnectionResult(false);
 				removeConnectionAttemptTimeout();
 				// Next scan
 				if (bluetoothHelper != null)
@@ -525,40 +626,201 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		}
 	};
 
+	/**
+	 * Called on the Bluetooth reading thread. Control messages go to the
+	 * handler, everything else is queued for processing (blocking the reader
+	 * while the queue is full).
+	 */
+	@Override
+	public void onDataReceived(String data) {
+		if (data.equals("<closing_request>")) {
+			// acknowledge what we got before agreeing to close
+			exchangeExecutor.submitReceive(closeSessionTask);
+		} else if (data.equals("<ack_closing_request>")) {
+			mHandler.obtainMessage(Constants.MESSAGE_READ, -1, -1, data).sendToTarget();
+		} else if (data.startsWith(ACK_PREFIX)) {
+			onAckReceived(data);
+		} else if (data.startsWith(AvatarExchange.INVENTORY_PREFIX)) {
+			avatarExchange.onInventoryReceived(data);
+		} else if (data.startsWith(ResourceExchange.OFFER_PREFIX)) {
+			// answered right away, the send thread of the peer waits for it
+			String answer = ResourceExchange.getMissingMessage(data, getResourceStore());
+			if (answer != null)
+				bluetoothHelper.write(answer);
+		} else if (data.startsWith(ResourceExchange.MISSING_PREFIX)) {
+			resourceExchange.onMissingReceived(data);
+		} else {
+			exchangeExecutor.submitReceive(new ProcessDataReceived(data));
+		}
+	}
+
+	/**
+	 * Called on the Bluetooth reading thread when the session is over. Commits
+	 * what we have received after all queued messages are processed. The socket
+	 * is gone, so the peer is not acknowledged; it sends the uncommitted
+	 * messages again next time.
+	 */
+	@Override
+	public void onConnectionClosed() {
+		avatarExchange.reset();
+		resourceExchange.reset();
+		SignatureVerifier.getInstance(this).endSession();
+		exchangeExecutor.submitReceive(commitReceivedTask);
+	}
+
+	private final Runnable commitReceivedTask = new Runnable() {
+		@Override
+		public void run() {
+			commitReceived(false);
+		}
+	};
+
+	private final Runnable closeSessionTask = new Runnable() {
+		@Override
+		public void run() {
+			commitReceived(true);
+			bluetoothHelper.write("<ack_closing_request>");
+		}
+	};
+
+	/**
+	 * The peer has stored our tweets and DMs up to the given sequence numbers,
+	 * we don't have to send them again. Called on the Bluetooth reading thread.
+	 */
+	private void onAckReceived(String data) {
+		String peer = exchangePeer;
+		String[] seqs = data.substring(ACK_PREFIX.length()).split(",");
+		if (peer == null || seqs.length < 2) {
+			return;
+		}
+		try {
+			dbHelper.setAcked(peer, Long.parseLong(seqs[0]), Long.parseLong(seqs[1]));
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "malformed acknowledgment " + data);
+		}
+	}
+
+	/**
+	 * Inserts all tweets, DMs and users received so far in one bulk operation
+	 * each. Runs on the receive thread.
+	 * 
+	 * @param acknowledge
+	 *            whether to acknowledge them to the peer, false once the
+	 *            connection is closed
+	 */
+	private void commitReceived(boolean acknowledge) {
+		if (!receivedTweets.isEmpty() || !receivedDMs.isEmpty() || !receivedUsers.isEmpty()) {
+			insertReceived();
+		}
+		if (receivedTweetsSeq >= 0 || receivedDMsSeq >= 0) {
+			// everything up to these numbers is in the DB now
+			if (acknowledge && bluetoothHelper != null) {
+				bluetoothHelper.write(ACK_PREFIX + receivedTweetsSeq + "," + receivedDMsSeq);
+			}
+			receivedTweetsSeq = -1;
+			receivedDMsSeq = -1;
+		}
+	}
+
+	private void insertReceived() {
+		Log.i(TAG, "committing " + receivedTweets.size() + " tweets, " + receivedDMs.size() + " dms");
+
+		if (!receivedUsers.isEmpty()) {
+			Uri insertUserUri = Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/"
+					+ TwitterUsers.TWITTERUSERS);
+			getContentResolver().bulkInsert(insertUserUri,
+					receivedUsers.toArray(new ContentValues[receivedUsers.size()]));
+			receivedUsers.clear();
+		}
+		if (!receivedTweets.isEmpty()) {
+			Uri insertUri = Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/"
+					+ Tweets.TWEETS_TABLE_TIMELINE + "/" + Tweets.TWEETS_SOURCE_DISASTER);
+			getContentResolver().bulkInsert(insertUri, receivedTweets.toArray(new ContentValues[receivedTweets.size()]));
+			receivedTweets.clear();
+		}
+		if (!receivedDMs.isEmpty()) {
+			Uri insertUri = Uri.parse("content://" + DirectMessages.DM_AUTHORITY + "/" + DirectMessages.DMS + "/"
+					+ DirectMessages.DMS_LIST + "/" + DirectMessages.DMS_SOURCE_DISASTER);
+			getContentResolver().bulkInsert(insertUri, receivedDMs.toArray(new ContentValues[receivedDMs.size()]));
+			receivedDMs.clear();
+		}
+		getContentResolver().notifyChange(Tweets.TABLE_TIMELINE_URI, null);
+	}
+
+	/**
+	 * Sends our disaster tweets and DMs to the connected peer. Runs on the
+	 * exchange send thread.
+	 */
+	private class SendDisasterData implements Runnable {
+
+		private final String mMac;
+
+		SendDisasterData(String mac) {
+			mMac = mac;
+		}
+
+		@Override
+		public void run() {
+			// tell the peer which profile images we have and wait for its list
+			bluetoothHelper.write(avatarExchange.getInventoryMessage());
+			if (!avatarExchange.awaitPeerInventory(Constants.AVATAR_INVENTORY_TIMEOUT)) {
+				Log.i(TAG, "no avatar inventory from peer, sending profile images inline");
+			}
+
+			// resume after what the peer has acknowledged in earlier sessions
+			sendDisasterTweets(dbHelper.getTweetsAcked(mMac));
+			sendDisasterDM(dbHelper.getDMsAcked(mMac));
+			if (bluetoothHelper != null) {
+				bluetoothHelper.write("<closing_request>");
+				dbHelper.setLastSuccessful(mMac, new Date());
+			}
+		}
+	}
+
 	/**
 	 * process all the data received via bluetooth
 	 * 
 	 * @author pcarta
 	 */
-	private class ProcessDataReceived extends AsyncTask<String, Void, Void> {
+	private class ProcessDataReceived implements Runnable {
+
+		private final String mData;
+
+		ProcessDataReceived(String data) {
+			mData = data;
+		}
 
 		@Override
-		protected Void doInBackground(String... s) {
+		public void run() {
 			JSONObject o;
 			try {
-				// if input parameter is String, then cast it to String
-				o = new JSONObject(s[0]);
+				o = new JSONObject(mData);
 				if (o.getInt(TYPE) == MESSAGE_TYPE_TWEET) {
 					Log.d("disaster", "receive a tweet");
 					processTweet(o);
+					receivedTweetsSeq = Math.max(receivedTweetsSeq, o.optLong(SEQ, -1));
 				} else if (o.getInt(TYPE) == MESSAGE_TYPE_PHOTO) {
 					Log.d("disaster", "receive a photo");
 					processPhoto(o);
 				} else if (o.getInt(TYPE) == MESSAGE_TYPE_HTML) {
 					Log.d("disaster", "receive xml");
 					processHtml(o);
+				} else if (o.getInt(TYPE) == MESSAGE_TYPE_AVATAR) {
+					Log.d("disaster", "receive a profile image");
+					processAvatar(o);
 				} else {
 					Log.d("disaster", "receive a dm");
 					processDM(o);
+					receivedDMsSeq = Math.max(receivedDMsSeq, o.optLong(SEQ, -1));
+				}
+				// don't keep too much in memory if the peer has a lot to send
+				if (receivedTweets.size() + receivedDMs.size() >= Constants.EXCHANGE_RECEIVE_BATCH_SIZE) {
+					commitReceived(true);
 				}
-				getContentResolver().notifyChange(Tweets.TABLE_TIMELINE_URI, null);
-				// if input parameter is a photo, then extract the photo and
-				// save it locally
 
 			} catch (JSONException e) {
 				Log.e(TAG, "error", e);
 			}
-			return null;
 		}
 	}
 
@@ -570,16 +832,10 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 			if (!dmValues.getAsLong(DirectMessages.COL_SENDER).toString()
 					.equals(LoginActivity.getTwitterId(getApplicationContext()))) {
 
-				ContentValues cvUser = getUserCV(o);
-				// insert the tweet
-				Uri insertUri = Uri.parse("content://" + DirectMessages.DM_AUTHORITY + "/" + DirectMessages.DMS + "/"
-						+ DirectMessages.DMS_LIST + "/" + DirectMessages.DMS_SOURCE_DISASTER);
-				getContentResolver().insert(insertUri, dmValues);
-
-				// insert the user
-				Uri insertUserUri = Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/"
-						+ TwitterUsers.TWITTERUSERS);
-				getContentResolver().insert(insertUserUri, cvUser);
+				// queue the message and the user, they are inserted at the end
+				// of the session
+				receivedDMs.add(dmValues);
+				receivedUsers.add(getUserCV(o));
 
 			}
 
@@ -599,17 +855,10 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 			if (!cvTweet.getAsLong(Tweets.COL_USER_TID).toString()
 					.equals(LoginActivity.getTwitterId(getApplicationContext()))) {
 
-				ContentValues cvUser = getUserCV(o);
-
-				// insert the tweet
-				Uri insertUri = Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/"
-						+ Tweets.TWEETS_TABLE_TIMELINE + "/" + Tweets.TWEETS_SOURCE_DISASTER);
-				getContentResolver().insert(insertUri, cvTweet);
-
-				// insert the user
-				Uri insertUserUri = Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/"
-						+ TwitterUsers.TWITTERUSERS);
-				getContentResolver().insert(insertUserUri, cvUser);
+				// queue the tweet and the user, they are inserted at the end of
+				// the session
+				receivedTweets.add(cvTweet);
+				receivedUsers.add(getUserCV(o));
 			}
 
 		} catch (JSONException e1) {
@@ -639,6 +888,20 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		}
 	}
 
+	private void processAvatar(JSONObject o) {
+		try {
+			String hash = o.getString(AVATAR_HASH);
+			if (!avatarCache.has(hash)) {
+				byte[] image = Base64.decode(o.getString(AVATAR_IMAGE), Base64.DEFAULT);
+				if (!hash.equals(avatarCache.put(image))) {
+					Log.w(TAG, "profile image does not match its hash " + hash);
+				}
+			}
+		} catch (JSONException e1) {
+			Log.e(TAG, "Exception while receiving profile image", e1);
+		}
+	}
+
 	private void processHtml(JSONObject o) {
 		try {
 			Log.i(TAG, "process HTML");
@@ -647,21 +910,82 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 			Long tweetId = o.getLong(HtmlPage.COL_DISASTERID);
 			String htmlUrl = o.getString(HtmlPage.COL_URL);
 
+			// names and hashes from the peer must not lead out of our pages
+			if (filename.indexOf('/') >= 0 || filename.indexOf('\\') >= 0
+					|| (PageManifest.isManifest(filename) && !isValidManifest(xmlContent))) {
+				Log.w(TAG, "dropping page with invalid file name or manifest " + htmlUrl);
+				return;
+			}
+
 			String[] filePath = { HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(getApplicationContext()) };
+			long size = 0;
 			if (sdCardHelper.checkSDState(filePath)) {
 				File targetFile = sdCardHelper.getFileFromSDCard(filePath[0], filename);// photoFileParent,
 																						// photoFilename));
+				// the resources first, a manifest without them is useless
+				if (o.has(HTML_RESOURCES)
+						&& !saveResources(targetFile.getParentFile(), o.getJSONArray(HTML_RESOURCES))) {
+					return;
+				}
 				if (saveFile(targetFile, xmlContent)) {
-					// downloaded = 1;
+					size = OfflinePageCache.getPageSize(targetFile.getParentFile(), filename);
 				}
 			}
 			htmlDbHelper.insertPage(htmlUrl, filename, tweetId, 0);
+			if (size > 0) {
+				// also if we knew the link but had not downloaded it
+				htmlDbHelper.storePage(htmlUrl, filename, size);
+			}
+			htmlDbHelper.notifyChange();
 
 		} catch (JSONException e1) {
 			Log.e(TAG, "Exception while receiving disaster tweet photo", e1);
 		}
 	}
 
+	/**
+	 * Stores the resources of a page we received, unless they don't match their
+	 * hashes
+	 */
+	private boolean saveResources(File dir, JSONArray resources) throws JSONException {
+		ResourceStore store = new ResourceStore(new File(dir, ResourceStore.DIRECTORY));
+		try {
+			for (int i = 0; i < resources.length(); i++) {
+				JSONObject resource = resources.getJSONObject(i);
+				String hash = resource.getString(RESOURCE_HASH);
+				if (!ResourceStore.isHash(hash)) {
+					Log.w(TAG, "invalid page resource hash " + hash);
+					return false;
+				}
+				if (!store.put(hash, Base64.decode(resource.getString(RESOURCE_DATA), Base64.DEFAULT))) {
+					Log.w(TAG, "page resource does not match its hash " + hash);
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "error storing page resources", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the Base64 content is a manifest with valid hashes
+	 */
+	private boolean isValidManifest(String content) {
+		try {
+			PageManifest.parse(new String(Base64.decode(content, Base64.DEFAULT), "UTF-8"));
+			return true;
+		} catch (JSONException e) {
+			Log.w(TAG, "invalid page manifest", e);
+		} catch (UnsupportedEncodingException e) {
+			Log.e(TAG, "UTF-8 not supported", e);
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "page manifest is not Base64", e);
+		}
+		return false;
+	}
+
 	private boolean saveFile(File file, String fileContent) {
 
 		try {
@@ -681,23 +1005,32 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		return false;
 	}
 
-	private void sendDisasterDM(Long last) {
+	/**
+	 * Sends the disaster DMs the peer has not acknowledged yet, in the order we
+	 * got them.
+	 * 
+	 * @param acked
+	 *            highest row ID acknowledged by the peer
+	 */
+	private void sendDisasterDM(long acked) {
 
 		Uri uriQuery = Uri.parse("content://" + DirectMessages.DM_AUTHORITY + "/" + DirectMessages.DMS + "/"
 				+ DirectMessages.DMS_LIST + "/" + DirectMessages.DMS_SOURCE_DISASTER);
-		Cursor c = getContentResolver().query(uriQuery, null, null, null, null);
+		Cursor c = getContentResolver().query(uriQuery, null, null, null, DirectMessages.COL_ROW_ID + " ASC");
 		Log.i(TAG, "c.getCount: " + c.getCount());
 		if (c.getCount() > 0) {
 			c.moveToFirst();
 
 			while (!c.isAfterLast()) {
-				if (c.getLong(c.getColumnIndex(DirectMessages.COL_RECEIVED)) > (last - 1 * 30 * 1000L)) {
+				long seq = c.getLong(c.getColumnIndex(DirectMessages.COL_ROW_ID));
+				if (seq > acked) {
 					JSONObject dmToSend;
 
 					try {
 						dmToSend = getDmJSON(c);
 						if (dmToSend != null) {
 							Log.i(TAG, "sending dm");
+							dmToSend.put(SEQ, seq);
 
 							bluetoothHelper.write(dmToSend.toString());
 						}
@@ -712,69 +1045,50 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 
 	}
 
-	private void sendDisasterTweets(Long last) {
+	/**
+	 * Sends the disaster tweets the peer has not acknowledged yet, in the order
+	 * we got them. A tweet carries the row ID up to which we have sent
+	 * everything, so the peer's acknowledgment never moves past a tweet we
+	 * held back for lack of pages.
+	 * 
+	 * @param acked
+	 *            highest row ID acknowledged by the peer
+	 */
+	private void sendDisasterTweets(long acked) {
 		// get disaster tweets
 
 		Uri queryUri = Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/"
 				+ Tweets.TWEETS_TABLE_TIMELINE + "/" + Tweets.TWEETS_SOURCE_DISASTER);
 
-		Cursor c = getContentResolver().query(queryUri, null, null, null, null);
+		Cursor c = getContentResolver().query(queryUri, null, null, null,
+				DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_ROW_ID + " ASC");
 		Log.d(TAG, "count:" + String.valueOf(c.getCount()));
 		boolean prefWebShare = PreferenceManager.getDefaultSharedPreferences(this).getBoolean("prefWebShare", false);
 		Log.d(TAG, "web share:" + String.valueOf(prefWebShare));
+		Map<Long, List<HtmlPagesDbHelper.PageInfo>> pages = prefWebShare ? getDisasterPages(c, acked) : null;
+		// everything up to here is sent, stops moving at the first skipped tweet
+		long sentSeq = acked;
+		boolean skipped = false;
 		if (c.getCount() > 0) {
 			c.moveToFirst();
 			while (!c.isAfterLast()) {
 
+				long seq = c.getLong(c.getColumnIndex(Tweets.COL_ROW_ID));
 				try {
-					if (prefWebShare) {
-						if (c.getInt(c.getColumnIndex(Tweets.COL_HTML_PAGES)) == 1) {
-
-							if (c.getLong(c.getColumnIndex(Tweets.COL_RECEIVED)) > (last - 10 * 60 * 1000L)) {
-								JSONObject toSend;
-
-								toSend = getJSON(c);
-								if (toSend != null) {
-									// if there is a photo related to this
-									// tweet, send it first!
-									if (c.getString(c.getColumnIndex(Tweets.COL_MEDIA_URIS)) != null) {
-										sendDisasterPhoto(c);
-									}
-									Log.i(TAG, "sending tweet");
-									Log.d(TAG, toSend.toString(5));
-									bluetoothHelper.write(toSend.toString());
-								}
-								sendDisasterHtmls(c);
-							}
-						}
-
+					if (seq <= acked) {
+						// the peer has it already
+					} else if (prefWebShare && c.getInt(c.getColumnIndex(Tweets.COL_HTML_PAGES)) != 1) {
+						// not sent, the peer must not acknowledge it
+						skipped = true;
 					} else {
-						if (c.getString(c.getColumnIndex(Tweets.COL_MEDIA_URIS)) != null) {
-							if (c.getLong(c.getColumnIndex(Tweets.COL_RECEIVED)) > (last - 5 * 60 * 1000L)) {
-								JSONObject toSend;
-
-								toSend = getJSON(c);
-								if (toSend != null) {
-									// if there is a photo related to this
-									// tweet, send it first!
-									if (c.getString(c.getColumnIndex(Tweets.COL_MEDIA_URIS)) != null) {
-										sendDisasterPhoto(c);
-									}
-									Log.i(TAG, "sending tweet");
-									Log.d(TAG, toSend.toString(5));
-									bluetoothHelper.write(toSend.toString());
-								}
-							}
-						} else if (c.getLong(c.getColumnIndex(Tweets.COL_RECEIVED)) > (last - 1 * 30 * 1000L)) {
-							JSONObject toSend;
-
-							toSend = getJSON(c);
-							if (toSend != null) {
-								Log.i(TAG, "sending tweet");
-								Log.d(TAG, toSend.toString(5));
-								bluetoothHelper.write(toSend.toString());
-							}
+						if (!skipped) {
+							sentSeq = seq;
+						}
+						if (prefWebShare) {
+							// the pages go first, the tweet completes the item
+							sendDisasterHtmls(pages.get(c.getLong(c.getColumnIndex(Tweets.COL_DISASTER_ID))));
 						}
+						sendDisasterTweet(c, sentSeq);
 					}
 
 				} catch (JSONException e) {
@@ -789,6 +1103,41 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		c.close();
 	}
 
+	/**
+	 * Looks up the pages of all unacknowledged tweets in one go rather than
+	 * one query per link while sending.
+	 */
+	private Map<Long, List<HtmlPagesDbHelper.PageInfo>> getDisasterPages(Cursor c, long acked) {
+		Set<Long> disasterIds = new HashSet<Long>();
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			if (c.getLong(c.getColumnIndex(Tweets.COL_ROW_ID)) > acked
+					&& c.getInt(c.getColumnIndex(Tweets.COL_HTML_PAGES)) == 1) {
+				disasterIds.add(c.getLong(c.getColumnIndex(Tweets.COL_DISASTER_ID)));
+			}
+		}
+		return htmlDbHelper.getLinkedPages(disasterIds);
+	}
+
+	/**
+	 * Sends the tweet under the cursor, preceded by its photo if it has one.
+	 * 
+	 * @param seq
+	 *            row ID the peer may acknowledge once it has stored the tweet
+	 */
+	private void sendDisasterTweet(Cursor c, long seq) throws JSONException {
+		JSONObject toSend = getJSON(c);
+		if (toSend != null) {
+			// if there is a photo related to this tweet, send it first!
+			if (c.getString(c.getColumnIndex(Tweets.COL_MEDIA_URIS)) != null) {
+				sendDisasterPhoto(c);
+			}
+			toSend.put(SEQ, seq);
+			Log.i(TAG, "sending tweet");
+			Log.d(TAG, toSend.toString(5));
+			bluetoothHelper.write(toSend.toString());
+		}
+	}
+
 	private boolean sendDisasterPhoto(Cursor c) throws JSONException {
 		String photoFileUri = c.getString(c.getColumnIndex(Tweets.COL_MEDIA_URIS));
 		SDCardHelper sdCardHelper = new SDCardHelper();
@@ -824,55 +1173,94 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 		return encodedImage;
 	}
 
-	private void sendDisasterHtmls(Cursor c) throws JSONException {
-
-		JSONObject toSendXml;
-
-		// String userId = String.valueOf(c.getLong(c
-		// .getColumnIndex(Tweets.COL_TWITTERUSER)));
-
-		String substr = Html.fromHtml(c.getString(c.getColumnIndex(Tweets.COL_TEXT))).toString();
-
-		String[] strarr = substr.split(" ");
-
-		// check the urls of the tweet
-		for (String subStrarr : strarr) {
-
-			if (subStrarr.indexOf("http://") >= 0 || subStrarr.indexOf("https://") >= 0) {
-				String subUrl = null;
-				if (subStrarr.indexOf("http://") >= 0) {
-					subUrl = subStrarr.substring(subStrarr.indexOf("http://"));
-				} else if (subStrarr.indexOf("https://") >= 0) {
-					subUrl = subStrarr.substring(subStrarr.indexOf("https://"));
+	/**
+	 * Sends the stored pages linked from a tweet
+	 * 
+	 * @param pages
+	 *            the pages of the tweet, from getDisasterPages
+	 */
+	private void sendDisasterHtmls(List<HtmlPagesDbHelper.PageInfo> pages) throws JSONException {
+
+		String[] filePath = { HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(this) };
+		if (pages == null || !sdCardHelper.checkSDState(filePath))
+			return;
+
+		for (HtmlPagesDbHelper.PageInfo page : pages) {
+			if (page.filename == null)
+				continue;
+
+			File xmlFile = sdCardHelper.getFileFromSDCard(filePath[0], page.filename);
+			if (xmlFile.exists()) {
+				JSONObject toSendXml = getJSONFromXml(xmlFile);
+				if (toSendXml == null)
+					continue;
+				if (PageManifest.isManifest(page.filename) && !putResources(toSendXml, xmlFile)) {
+					continue;
 				}
-				Cursor cursorHtml = htmlDbHelper.getPageInfo(subUrl);
-
-				if (cursorHtml != null) {
-
-					if (!cursorHtml.isNull(cursorHtml.getColumnIndex(HtmlPage.COL_FILENAME))) {
-
-						String[] filePath = { HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(this) };
-						String filename = cursorHtml.getString(cursorHtml.getColumnIndex(HtmlPage.COL_FILENAME));
-						Long tweetId = cursorHtml.getLong(cursorHtml.getColumnIndex(HtmlPage.COL_DISASTERID));
-						if (sdCardHelper.checkSDState(filePath)) {
-
-							File xmlFile = sdCardHelper.getFileFromSDCard(filePath[0], filename);
-							if (xmlFile.exists()) {
-								toSendXml = getJSONFromXml(xmlFile);
-								toSendXml.put(HtmlPage.COL_URL, subUrl);
-								toSendXml.put(HtmlPage.COL_FILENAME, filename);
-								toSendXml.put(HtmlPage.COL_DISASTERID, tweetId);
-								Log.d(TAG, "sending htmls");
-								Log.d(TAG, toSendXml.toString(5));
-								bluetoothHelper.write(toSendXml.toString());
+				toSendXml.put(HtmlPage.COL_URL, page.url);
+				toSendXml.put(HtmlPage.COL_FILENAME, page.filename);
+				toSendXml.put(HtmlPage.COL_DISASTERID, page.disasterId);
+				Log.d(TAG, "sending htmls");
+				Log.d(TAG, toSendXml.toString(5));
+				bluetoothHelper.write(toSendXml.toString());
+			}
+		}
+	}
 
-							}
+	/**
+	 * Adds the resources of a page stored as a manifest, each one once and
+	 * only those the peer does not have (see ResourceExchange). The message is
+	 * kept below HTML_MAX_RESOURCE_SIZE, the stylesheets come first in the
+	 * manifest so what is left out is mostly images.
+	 * 
+	 * @return false if the page cannot be sent
+	 */
+	private boolean putResources(JSONObject o, File manifestFile) {
+		ResourceStore store = new ResourceStore(new File(manifestFile.getParentFile(), ResourceStore.DIRECTORY));
+		try {
+			Set<String> hashes = new LinkedHashSet<String>();
+			for (PageManifest.Resource resource : PageManifest.read(manifestFile).getResources()) {
+				if (store.has(resource.hash))
+					hashes.add(resource.hash);
+			}
+			if (!hashes.isEmpty() && resourceExchange.isPeerAnswering()) {
+				bluetoothHelper.write(resourceExchange.getOfferMessage(hashes));
+				Set<String> missing = resourceExchange.awaitMissing(Constants.HTML_RESOURCE_OFFER_TIMEOUT);
+				if (missing != null)
+					hashes.retainAll(missing);
+			}
 
-						}
-					}
-				}
+			JSONArray resources = new JSONArray();
+			long total = 0;
+			for (String hash : hashes) {
+				long size = store.getFile(hash).length();
+				if (total + size > Constants.HTML_MAX_RESOURCE_SIZE)
+					continue;
+				total += size;
+				JSONObject r = new JSONObject();
+				r.put(RESOURCE_HASH, hash);
+				r.put(RESOURCE_DATA, Base64.encodeToString(store.read(hash), Base64.DEFAULT));
+				resources.put(r);
 			}
+			o.put(HTML_RESOURCES, resources);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "error reading page resources", e);
+		} catch (JSONException e) {
+			Log.e(TAG, "error reading page manifest", e);
 		}
+		return false;
+	}
+
+	/**
+	 * @return the store for the resources of the pages we receive, null if we
+	 *         cannot store pages
+	 */
+	private ResourceStore getResourceStore() {
+		String[] filePath = { HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(getApplicationContext()) };
+		if (!sdCardHelper.checkSDState(filePath))
+			return null;
+		return new ResourceStore(new File(sdCardHelper.getFileFromSDCard(filePath[0], ""), ResourceStore.DIRECTORY));
 	}
 
 	private JSONObject getJSONFromXml(File xml) {
@@ -1001,13 +1389,27 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 					&& c.getColumnIndex(TweetsContentProvider.COL_USER_ROW_ID) >= 0) {
 
 				String imageUri = c.getString(c.getColumnIndex(TwitterUsers.COL_PROFILE_IMAGE_URI));
-				Bitmap profileImage = ImageLoader.getInstance().loadImageSync(imageUri);
-				if (profileImage != null) {
-					ByteArrayOutputStream stream = new ByteArrayOutputStream();
-					profileImage.compress(Bitmap.CompressFormat.PNG, 100, stream);
-					byte[] byteArray = stream.toByteArray();
-					String profileImageBase64 = Base64.encodeToString(byteArray, Base64.DEFAULT);
-					o.put(TwitterUsers.JSON_FIELD_PROFILE_IMAGE, profileImageBase64);
+				String hash = avatarExchange.getHash(imageUri);
+				if (hash != null) {
+					o.put(TwitterUsers.JSON_FIELD_PROFILE_IMAGE_HASH, hash);
+					// the image goes out at most once per session, and only if
+					// the peer doesn't have it yet
+					if (avatarExchange.needsSending(hash)) {
+						byte[] image = avatarExchange.getImage(hash);
+						if (image != null) {
+							String profileImageBase64 = Base64.encodeToString(image, Base64.DEFAULT);
+							if (avatarExchange.hasPeerInventory()) {
+								JSONObject avatar = new JSONObject();
+								avatar.put(TYPE, MESSAGE_TYPE_AVATAR);
+								avatar.put(AVATAR_HASH, hash);
+								avatar.put(AVATAR_IMAGE, profileImageBase64);
+								bluetoothHelper.write(avatar.toString());
+							} else {
+								o.put(TwitterUsers.JSON_FIELD_PROFILE_IMAGE, profileImageBase64);
+							}
+							avatarExchange.markSent(hash);
+						}
+					}
 				}
 			}
 
@@ -1148,13 +1550,19 @@ public class ScanningService extends Service implements DevicesReceiver.Scanning
 			cv.put(TwitterUsers.COL_SCREEN_NAME, o.getString(TwitterUsers.COL_SCREEN_NAME));
 		}
 
-		if (o.has(TwitterUsers.JSON_FIELD_PROFILE_IMAGE) && screenName != null) {
-			InternalStorageHelper helper = new InternalStorageHelper(getBaseContext());
-			byte[] image = Base64.decode(o.getString(TwitterUsers.JSON_FIELD_PROFILE_IMAGE), Base64.DEFAULT);
-			helper.writeImage(image, screenName);
-			String profileImageUri = Uri.fromFile(new File(getFilesDir(), screenName)).toString();
-			Log.d(TAG, "storing profile image at: " + profileImageUri);
-			cv.put(TwitterUsers.COL_PROFILE_IMAGE_URI, profileImageUri);
+		if (screenName != null) {
+			String hash = null;
+			if (o.has(TwitterUsers.JSON_FIELD_PROFILE_IMAGE)) {
+				// sent inline (by peers without avatar inventory)
+				byte[] image = Base64.decode(o.getString(TwitterUsers.JSON_FIELD_PROFILE_IMAGE), Base64.DEFAULT);
+				hash = avatarCache.put(image);
+			} else if (o.has(TwitterUsers.JSON_FIELD_PROFILE_IMAGE_HASH)) {
+				// sent before in this or an earlier session
+				hash = o.getString(TwitterUsers.JSON_FIELD_PROFILE_IMAGE_HASH);
+			}
+			if (avatarCache.has(hash)) {
+				cv.put(TwitterUsers.COL_PROFILE_IMAGE_URI, avatarCache.getUri(hash).toString());
+			}
 		}
 
 		if (o.has(Tweets.COL_USER_TID)) {
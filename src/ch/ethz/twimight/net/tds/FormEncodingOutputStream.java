@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ * 
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes the bytes written to it for an application/x-www-form-urlencoded
+ * body, the same way URLEncoder encodes UTF-8 strings. Closing the stream only
+ * flushes it, the underlying stream stays open.
+ */
+class FormEncodingOutputStream extends FilterOutputStream {
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E',
+			'F' };
+
+	private final byte[] buffer = new byte[3 * 1024];
+	private int count;
+
+	FormEncodingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count > buffer.length - 3) {
+			flushBuffer();
+		}
+		b &= 0xff;
+		if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.' || b == '-'
+				|| b == '*' || b == '_') {
+			buffer[count++] = (byte) b;
+		} else if (b == ' ') {
+			buffer[count++] = '+';
+		} else {
+			buffer[count++] = '%';
+			buffer[count++] = HEX[b >> 4];
+			buffer[count++] = HEX[b & 0x0f];
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			write(b[i]);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+}
@@ -53,9 +53,7 @@ public class TDSAlarm extends BroadcastReceiver {
 	 */
 	public TDSAlarm(Context context, long timeOut) {
 
-		// determine the time of the last successful update
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		Long lastUpdate = prefs.getLong("LastUpdate", 0);
+		TDSSchedule schedule = TDSService.loadSchedule(context);
 
 		AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
 
@@ -65,14 +63,50 @@ public class TDSAlarm extends BroadcastReceiver {
 		// cancel scheduled alarms
 		alarmMgr.cancel(pendingIntent);
 
-		if (System.currentTimeMillis() - lastUpdate >= Constants.TDS_UPDATE_INTERVAL) {
-			// schedule one immediately
-			alarmMgr.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + (90 * 1000L), pendingIntent);
+		// if an update is due, give the system some time to start up
+		alarmMgr.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + Math.max(schedule.getDelay(), 90 * 1000L),
+				pendingIntent);
+	}
 
-		} else {
-			// schedule update interval after last update
-			alarmMgr.set(AlarmManager.RTC_WAKEUP, lastUpdate + Constants.TDS_UPDATE_INTERVAL, pendingIntent);
+	/**
+	 * New disaster tweets should go to the TDS. Many requests in a short time
+	 * result in a single update, see TDSSchedule.
+	 * 
+	 * @param context
+	 */
+	public static void requestUpload(Context context) {
+		if (isTdsEnabled(context)) {
+			TDSSchedule schedule;
+			synchronized (TDSService.SCHEDULE_LOCK) {
+				schedule = TDSService.loadSchedule(context);
+				schedule.onUploadRequested();
+				TDSService.saveSchedule(context, schedule);
+			}
+			// replaces the alarm scheduled by the previous request
+			scheduleCommunication(context, schedule.getDelay());
+		}
+	}
 
+	/**
+	 * Called on connectivity changes. When we are connected, a failed update
+	 * is retried without waiting for the backoff. The alarm waits a bit for the
+	 * connection to settle, a burst of changes results in one update.
+	 * 
+	 * @param context
+	 * @param connected
+	 */
+	public static void onConnectivityChanged(Context context, boolean connected) {
+		if (!connected) {
+			// pooled connections belong to the old network
+			TDSHttpClient.closeIdleConnections();
+		} else if (isTdsEnabled(context)) {
+			TDSSchedule schedule;
+			synchronized (TDSService.SCHEDULE_LOCK) {
+				schedule = TDSService.loadSchedule(context);
+				schedule.onConnectivityRegained();
+				TDSService.saveSchedule(context, schedule);
+			}
+			scheduleCommunication(context, Math.max(schedule.getDelay(), Constants.WAIT_FOR_CONNECTIVITY));
 		}
 	}
 
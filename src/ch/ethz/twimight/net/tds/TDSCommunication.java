@@ -14,27 +14,31 @@
 package ch.ethz.twimight.net.tds;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.security.KeyPair;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.ParseException;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 import ch.ethz.twimight.activities.TwimightBaseActivity;
 import ch.ethz.twimight.security.RevocationListEntry;
@@ -56,16 +60,23 @@ public class TDSCommunication {
 	private static final String STATISTIC = "statistic";	
 	private static final String DISASTER_TWEETS = "disaster_tweets";	
 	private static final String NOTIFICATION = "notification";
+	private static final String ADDED = "added";
+	private static final String REMOVED = "removed";
 	
 	private static final String TAG = "TDSCommunication";
+	private Context context;
 	private TDSRequestMessage tdsRequest;
 	private TDSResponseMessage tdsResponse;
+	// the changes we asked for, see TDSDelta
+	private long revocationSeq;
+	private long followerSeq;
 	
 	/**
 	 * In the constructor we create the request message and populate it with the mandatory objects
 	 * @throws JSONException 
 	 */
 	public TDSCommunication(Context context, int consumerId, String oauthAccessToken, String oauthAccessTokenSecret) throws JSONException{
+		this.context = context;
 		tdsRequest = new TDSRequestMessage(context);
 		tdsRequest.createAuthenticationObject(consumerId, oauthAccessToken, oauthAccessTokenSecret);
 		
@@ -101,8 +112,9 @@ public class TDSCommunication {
 	 * @return
 	 * @throws JSONException 
 	 */
-	public int createRevocationObject(int currentVersion) throws Exception{
-		tdsRequest.createRevocationObject(currentVersion);
+	public int createRevocationObject(int currentVersion, long seq) throws Exception{
+		tdsRequest.createRevocationObject(currentVersion, seq);
+		revocationSeq = seq;
 		return 0;
 	}
 	
@@ -111,8 +123,9 @@ public class TDSCommunication {
 	 * @return
 	 * @throws JSONException 
 	 */
-	public int createFollowerObject(long lastUpdate) throws Exception{
-		tdsRequest.createFollowerObject(lastUpdate);
+	public int createFollowerObject(long lastUpdate, long seq) throws Exception{
+		tdsRequest.createFollowerObject(lastUpdate, seq);
+		followerSeq = seq;
 		return 0;
 	}
 	
@@ -137,7 +150,9 @@ public class TDSCommunication {
 	}
 	
 	/**
-	 * Sends the request to the Twimight disaster server. Blocking!
+	 * Sends the request to the Twimight disaster server. Blocking! The request
+	 * is written to the connection while it is assembled and the response is
+	 * parsed while it is read.
 	 * @return
 	 */
 	public boolean sendRequest(HttpClient client, String url){
@@ -145,206 +160,420 @@ public class TDSCommunication {
 		// check the parameters
 		if(client==null) return false;
 		
-		// first we fetch the request object
-		JSONObject requestObject;
-		try {
-			requestObject = assembleRequest();
-		} catch (Exception e) {
-			if (TwimightBaseActivity.D) Log.e(TAG, "JSON exception while assembling request!");
-			return false;
-		}
-		
-		// do we have a request object?
-		if(requestObject== null) return false;
-		
+		// do we have the mandatory fields?
+		if(!tdsRequest.hasVersion() || !tdsRequest.hasAuthenticationObject()) return false;
 
 		// create the HTTP request
 		HttpPost post = new HttpPost(url);
+		post.setEntity(createRequestEntity());
 
-		// now we serialize the JSON Object into the post request
-		List<NameValuePair> params = new ArrayList<NameValuePair>();
-		params.add(new BasicNameValuePair(MESSAGE,requestObject.toString()));
-
-		UrlEncodedFormEntity ent = null;
 		try {
-			ent = new UrlEncodedFormEntity(params);
-		} catch (UnsupportedEncodingException e) {
-			if (TwimightBaseActivity.D) Log.e(TAG,"Unsupported Encoding Exception!",e);
-			return false;
-		}
-
-		post.setEntity(ent);			
-
-		// and make the actual request!
-		HttpResponse response = null;
-		try {
-			response = client.execute(post);
-		} catch (ClientProtocolException e) {
-			if (TwimightBaseActivity.D) Log.d(TAG,"HTTP POST request failed! " + e.toString());
-			return false;
-		} catch (IOException e) {
-			if (TwimightBaseActivity.D) Log.d(TAG,"HTTP POST request failed!" + e.toString());
-			return false;
-		}	
-
-		// read the response
-		HttpEntity resEntity = response.getEntity();
-		
-		if (resEntity != null) {		
-			
-			String result = null;
+			// and make the actual request!
+			HttpResponse response = null;
 			try {
-				result = EntityUtils.toString(resEntity);
-			} catch (ParseException e) {
-				if (TwimightBaseActivity.D) Log.e(TAG,"Parse Error while parsing response!" + e.toString());
+				response = client.execute(post);
+			} catch (ClientProtocolException e) {
+				if (TwimightBaseActivity.D) Log.d(TAG,"HTTP POST request failed! " + e.toString());
 				return false;
 			} catch (IOException e) {
-				if (TwimightBaseActivity.D) Log.e(TAG,"IO Error while parsing response!" + e.toString());
+				if (TwimightBaseActivity.D) Log.d(TAG,"HTTP POST request failed!" + e.toString());
+				return false;
+			} catch (IllegalStateException e) {
+				// e.g., the connection manager was shut down meanwhile, an I/O
+				// failure for us
+				if (TwimightBaseActivity.D) Log.d(TAG,"HTTP POST request failed!" + e.toString());
 				return false;
 			}
-			if (TwimightBaseActivity.D) Log.i(TAG,"result = " + result);
+
+			// read the response
+			HttpEntity resEntity = response.getEntity();
+			if (resEntity == null) return false;
 
 			try {
-				if(disassembleResponse(result) != 0){
+				if(disassembleResponse(resEntity.getContent()) != 0){
 					if (TwimightBaseActivity.D) Log.e(TAG, "Error while parsing result");
+					return false;
 				}
-				
+			} catch (IOException e) {
+				if (TwimightBaseActivity.D) Log.e(TAG,"IO Error while parsing response!" + e.toString());
+				return false;
 			} catch (Exception e) {
 				if (TwimightBaseActivity.D) Log.e(TAG,"JSON Error while parsing result!" + e.toString());
 				return false;
-			}					
-		} else 
-			return false;
+			}
+		} finally {
+			tdsRequest.close();
+		}
 		
 		return true;
 		
 	}
 	
 	/**
-	 * Assemples the request to one big JSON Object. Returns null if mandatory fields are missing.
-	 * @throws JSONException 
+	 * The entity of the request, package private for the tests
 	 */
-	private JSONObject assembleRequest() throws Exception{
-		JSONObject requestObject = new JSONObject();
-		
-		// first, we add the version
-		if(tdsRequest.hasVersion()){
-			requestObject.put(VERSION, tdsRequest.getVersion());
-		} else {
-			return null;
+	HttpEntity createRequestEntity(){
+		return new RequestEntity();
+	}
+
+	/**
+	 * The form encoded request, written in chunks while the JSON message is
+	 * assembled
+	 */
+	private class RequestEntity extends AbstractHttpEntity {
+
+		RequestEntity() {
+			setContentType("application/x-www-form-urlencoded");
+			setChunked(true);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
 		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public InputStream getContent() {
+			throw new UnsupportedOperationException("the request can only be written");
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+
+		@Override
+		public void writeTo(OutputStream outstream) throws IOException {
+			outstream.write((MESSAGE + "=").getBytes("US-ASCII"));
+			OutputStream out = new FormEncodingOutputStream(outstream);
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			try {
+				writeRequest(writer, out);
+			} catch (JSONException e) {
+				throw new IOException("JSON exception while assembling request: " + e.getMessage());
+			}
+			writer.flush();
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes the request as one big JSON Object.
+	 */
+	private void writeRequest(Writer writer, OutputStream out) throws IOException, JSONException{
+		// first, we add the version
+		writer.write("{");
+		writer.write(JSONObject.quote(VERSION) + ":" + tdsRequest.getVersion());
 		
 		// the authentication
-		if(tdsRequest.hasAuthenticationObject()){
-			requestObject.put(AUTHENTICATION, tdsRequest.getAuthenticationObject());
-		} else {
-			return null;
-		}		
+		writeObject(writer, AUTHENTICATION, tdsRequest.getAuthenticationObject());
 	
 		// bluetooth
 		if(tdsRequest.hasBluetoothObject()){
-			requestObject.put(BLUETOOTH, tdsRequest.getBluetoothObject());
+			writeObject(writer, BLUETOOTH, tdsRequest.getBluetoothObject());
 		}		
 
 		// certificate
 		if(tdsRequest.hasCertificatObject()){
-			requestObject.put(CERTIFICATE, tdsRequest.getCertificateObject());
+			writeObject(writer, CERTIFICATE, tdsRequest.getCertificateObject());
 		}
 
 		// revocation
 		if(tdsRequest.hasRevocationObject()){
-			requestObject.put(REVOCATION, tdsRequest.getRevocationObject());
+			writeObject(writer, REVOCATION, tdsRequest.getRevocationObject());
 		}
 
 		// follower
 		if(tdsRequest.hasFollowerObject()){
-			requestObject.put(FOLLOWER, tdsRequest.getFollowerObject());
+			writeObject(writer, FOLLOWER, tdsRequest.getFollowerObject());
 		}
 		
 		// statistics
 		if(tdsRequest.hasStatisticObject()){
-			requestObject.put(STATISTIC, tdsRequest.getStatisticObject());
+			writeObject(writer, STATISTIC, tdsRequest.getStatisticObject());
 		}
-		
 
-		// disaster tweets
+		// disaster tweets, written straight from the cursor
 		if(tdsRequest.hasDisTweetsObject()){
-			requestObject.put(DISASTER_TWEETS, tdsRequest.getDisTweetsObject());
+			writer.write("," + JSONObject.quote(DISASTER_TWEETS) + ":");
+			tdsRequest.writeDisTweets(writer, out);
 		}
 
-		if (TwimightBaseActivity.D) Log.i(TAG, requestObject.toString(5));
-		return requestObject;
+		writer.write("}");
+	}
+
+	private void writeObject(Writer writer, String name, JSONObject object) throws IOException {
+		writer.write("," + JSONObject.quote(name) + ":" + object.toString());
 	}
 	
-	private int disassembleResponse(String responseString) throws Exception{
-		
-		JSONObject responseObject = new JSONObject(responseString);
-		JSONObject messageObject = responseObject.getJSONObject(MESSAGE);		
+	/**
+	 * Parses the response while reading it. Small objects are kept as JSON,
+	 * the revocation list and the follower keys are parsed into entries right
+	 * away. Package private for the tests.
+	 * 
+	 * @return 0 if the response was accepted, -1 if not, in which case none
+	 *         of its objects are used
+	 */
+	int disassembleResponse(InputStream in) throws IOException, JSONException{
 		
-		if(messageObject == null) return -1;	
+		JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			boolean hasMessage = false;
+			int result = 0;
+			reader.beginObject();
+			while(reader.hasNext()){
+				if(MESSAGE.equals(reader.nextName())){
+					hasMessage = true;
+					result = readMessage(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if(!hasMessage) throw new JSONException("No message object");
+			return result;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads the message into a new response, which replaces the current one
+	 * only if the version matches and we are authenticated. The version may
+	 * come after the other objects.
+	 */
+	private int readMessage(JsonReader reader) throws IOException, JSONException{
 		
+		TDSResponseMessage response = new TDSResponseMessage(context);
+		Integer responseVersion = null;
+		boolean hasAuthentication = false;
+
+		reader.beginObject();
+		while(reader.hasNext()){
+			String name = reader.nextName();
+			if(reader.peek() == JsonToken.NULL){
+				reader.nextNull();
+			} else if(VERSION.equals(name)){
+				responseVersion = reader.nextInt();
+			} else if(AUTHENTICATION.equals(name)){
+				response.setAuthenticationObject(readObject(reader));
+				hasAuthentication = true;
+			} else if(BLUETOOTH.equals(name)){
+				response.setBluetoothObject(readObject(reader));
+			} else if(CERTIFICATE.equals(name)){
+				response.setCertificateObject(readObject(reader));
+			} else if(REVOCATION.equals(name)){
+				readRevocation(reader, response);
+			} else if(FOLLOWER.equals(name)){
+				readFollower(reader, response);
+			} else if(NOTIFICATION.equals(name)){
+				response.setNotificationObject(readObject(reader));
+			} else if(DISASTER_TWEETS.equals(name)){
+				response.setDisTweetsObject(readObject(reader));
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
 		// version
-		int responseVersion = messageObject.getInt("version"); 
-		if(responseVersion != tdsResponse.getVersion()){
+		if(responseVersion == null) throw new JSONException("No version");
+		if(responseVersion != response.getVersion()){
 			if (TwimightBaseActivity.D) Log.e(TAG, "TDS message version mismatch!");
 			return -1;
 		}
-		
+
 		// authentication
-		try {
-			JSONObject authenticationObject = messageObject.getJSONObject(AUTHENTICATION);			
-			if(authenticationObject != null){				
-				tdsResponse.setAuthenticationObject(authenticationObject);
+		if(!hasAuthentication){
+			if (TwimightBaseActivity.D) Log.e(TAG, "Authentication failed");
+			return -1;
+		}
+
+		tdsResponse = response;
+		return 0;
+	}
+
+	/**
+	 * Reads the revocation object. A full update is a list of [serial, expiration in seconds since 1970],
+	 * a delta has the lists "added" of [seq, serial, expiration] and "removed" of [seq, serial].
+	 */
+	private void readRevocation(JsonReader reader, TDSResponseMessage response) throws IOException, JSONException{
+		JSONObject revocationObject = new JSONObject();
+		List<RevocationListEntry> revocationList = null;
+		TDSDelta<String, RevocationListEntry> delta = null;
+
+		reader.beginObject();
+		while(reader.hasNext()){
+			String name = reader.nextName();
+			if(ADDED.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY){
+				if(delta == null) delta = new TDSDelta<String, RevocationListEntry>(revocationSeq);
+				reader.beginArray();
+				while(reader.hasNext()){
+					reader.beginArray();
+					long seq = reader.nextLong();
+					String serial = reader.nextString();
+					Date until = new Date(1000*reader.nextLong());
+					skipRest(reader);
+					reader.endArray();
+					delta.add(seq, serial, new RevocationListEntry(serial, until));
+				}
+				reader.endArray();
+			} else if(REMOVED.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY){
+				if(delta == null) delta = new TDSDelta<String, RevocationListEntry>(revocationSeq);
+				reader.beginArray();
+				while(reader.hasNext()){
+					reader.beginArray();
+					long seq = reader.nextLong();
+					String serial = reader.nextString();
+					skipRest(reader);
+					reader.endArray();
+					delta.remove(seq, serial);
+				}
+				reader.endArray();
+			} else if("update".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY){
+				revocationList = new ArrayList<RevocationListEntry>();
+				reader.beginArray();
+				while(reader.hasNext()){
+					reader.beginArray();
+					String serial = reader.nextString();
+					Date until = new Date(1000*reader.nextLong());
+					skipRest(reader);
+					reader.endArray();
+					revocationList.add(new RevocationListEntry(serial, until));
+				}
+				reader.endArray();
 			} else {
-				if (TwimightBaseActivity.D) Log.e(TAG, "Authentication failed");
-				return -1;
+				revocationObject.put(name, readValue(reader));
 			}
-			
-		} catch (JSONException ex) {}
-		
-	
-		
-		try{
-			// bluetooth
-			JSONObject bluetoothObject = messageObject.getJSONObject(BLUETOOTH);
-			tdsResponse.setBluetoothObject(bluetoothObject);
-		} catch(JSONException e) {
-			if (TwimightBaseActivity.D) Log.i(TAG, "No Bluetooth object");
-		}		
-
-		try{
-			// certificate
-			JSONObject certificateObject = messageObject.getJSONObject(CERTIFICATE);
-			tdsResponse.setCertificateObject(certificateObject);
-		} catch(JSONException e){
-			if (TwimightBaseActivity.D) Log.i(TAG, "No certificate object");
 		}
+		reader.endObject();
+
+		response.setRevocationObject(revocationObject, revocationList);
+		response.setRevocationDelta(delta);
+	}
 
-		try{
-			// revocation
-			JSONObject revocationObject = messageObject.getJSONObject(REVOCATION);
-			tdsResponse.setRevocationObject(revocationObject);
-		} catch(JSONException e){
-			if (TwimightBaseActivity.D) Log.i(TAG, "No revocation object");
+	/**
+	 * Reads the follower object. A full update is a list of [twitter id, PEM key], a delta has
+	 * the lists "added" of [seq, twitter id, PEM key] and "removed" of [seq, twitter id].
+	 */
+	private void readFollower(JsonReader reader, TDSResponseMessage response) throws IOException, JSONException{
+		JSONObject followerObject = new JSONObject();
+		List<TDSPublicKey> keyList = null;
+		TDSDelta<Long, TDSPublicKey> delta = null;
+
+		reader.beginObject();
+		while(reader.hasNext()){
+			String name = reader.nextName();
+			if(ADDED.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY){
+				if(delta == null) delta = new TDSDelta<Long, TDSPublicKey>(followerSeq);
+				reader.beginArray();
+				while(reader.hasNext()){
+					reader.beginArray();
+					long seq = reader.nextLong();
+					long twitterId = reader.nextLong();
+					String keyPem = reader.nextString();
+					skipRest(reader);
+					reader.endArray();
+					delta.add(seq, twitterId, new TDSPublicKey(twitterId, keyPem));
+				}
+				reader.endArray();
+			} else if(REMOVED.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY){
+				if(delta == null) delta = new TDSDelta<Long, TDSPublicKey>(followerSeq);
+				reader.beginArray();
+				while(reader.hasNext()){
+					reader.beginArray();
+					long seq = reader.nextLong();
+					long twitterId = reader.nextLong();
+					skipRest(reader);
+					reader.endArray();
+					delta.remove(seq, twitterId);
+				}
+				reader.endArray();
+			} else if("update".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY){
+				if (TwimightBaseActivity.D) Log.i(TAG, "reading update");
+				keyList = new ArrayList<TDSPublicKey>();
+				reader.beginArray();
+				while(reader.hasNext()){
+					reader.beginArray();
+					long twitterId = reader.nextLong();
+					String keyPem = null;
+					if(reader.peek() == JsonToken.NULL){
+						reader.nextNull();
+					} else {
+						keyPem = reader.nextString();
+					}
+					skipRest(reader);
+					reader.endArray();
+					if(twitterId!=0 && keyPem!=null){
+						keyList.add(new TDSPublicKey(twitterId, keyPem));
+					}
+				}
+				reader.endArray();
+			} else {
+				followerObject.put(name, readValue(reader));
+			}
 		}
+		reader.endObject();
 
-		try{
-			// follower
-			JSONObject followerObject = messageObject.getJSONObject(FOLLOWER);
-			tdsResponse.setFollowerObject(followerObject);
-		} catch(JSONException e){
-			if (TwimightBaseActivity.D) Log.i(TAG, "No follower object");
+		response.setFollowerObject(followerObject, keyList);
+		response.setFollowerDelta(delta);
+	}
+
+	private static void skipRest(JsonReader reader) throws IOException{
+		while(reader.hasNext()){
+			reader.skipValue();
 		}
-		
-		try{
-			// notification
-			JSONObject notificationObject = messageObject.getJSONObject(NOTIFICATION);
-			tdsResponse.setNotificationObject(notificationObject);
-		} catch(JSONException e){
-			if (TwimightBaseActivity.D) Log.i(TAG, "No notification object");
+	}
+
+	/**
+	 * Reads the next object into a JSONObject
+	 */
+	private static JSONObject readObject(JsonReader reader) throws IOException, JSONException{
+		JSONObject object = new JSONObject();
+		reader.beginObject();
+		while(reader.hasNext()){
+			String name = reader.nextName();
+			object.put(name, readValue(reader));
 		}
+		reader.endObject();
+		return object;
+	}
 
-		return 0;
+	private static Object readValue(JsonReader reader) throws IOException, JSONException{
+		switch(reader.peek()){
+		case BEGIN_OBJECT:
+			return readObject(reader);
+		case BEGIN_ARRAY:
+			JSONArray array = new JSONArray();
+			reader.beginArray();
+			while(reader.hasNext()){
+				array.put(readValue(reader));
+			}
+			reader.endArray();
+			return array;
+		case BOOLEAN:
+			return reader.nextBoolean();
+		case NUMBER:
+			String number = reader.nextString();
+			if(number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0){
+				try {
+					return Long.valueOf(number);
+				} catch (NumberFormatException e) {
+					// too long, fall through
+				}
+			}
+			return Double.valueOf(number);
+		case NULL:
+			reader.nextNull();
+			return JSONObject.NULL;
+		default:
+			return reader.nextString();
+		}
 	}
 	
 	public String parseAuthentication() throws Exception{
@@ -384,6 +613,14 @@ public class TDSCommunication {
 		return tdsResponse.parseFollowerLastUpdate();
 	}
 
+	public TDSDelta<String, RevocationListEntry> parseRevocationDelta() throws Exception{
+		return tdsResponse.parseRevocationDelta();
+	}
+
+	public TDSDelta<Long, TDSPublicKey> parseFollowerDelta() throws Exception{
+		return tdsResponse.parseFollowerDelta();
+	}
+
 
 	
 }
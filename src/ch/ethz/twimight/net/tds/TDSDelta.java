@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One page of changes of a list we mirror from the TDS (follower keys,
+ * revocation list). Every change carries a sequence number, we send the
+ * highest one we have applied and the TDS answers with the changes after it:
+ *
+ * <pre>
+ * {"status": 200, "seq": 1234, "more": true,
+ *  "added": [[seq, key, value...], ...], "removed": [[seq, key], ...]}
+ * </pre>
+ *
+ * "seq" is the sequence number to continue from, "more" tells if there are
+ * further pages. Changes we already applied are ignored and of several
+ * changes to the same key only the latest counts, so the added and removed
+ * keys are disjoint and a page can be applied more than once.
+ */
+public class TDSDelta<K, V> {
+
+	private final long fromSeq;
+	private long seq;
+	private boolean more;
+
+	private final Map<K, Long> latest = new HashMap<K, Long>();
+	private final Map<K, V> added = new LinkedHashMap<K, V>();
+	private final Set<K> removed = new LinkedHashSet<K>();
+
+	/**
+	 * @param fromSeq
+	 *            the sequence number we sent
+	 */
+	public TDSDelta(long fromSeq) {
+		this.fromSeq = fromSeq;
+		this.seq = fromSeq;
+	}
+
+	void add(long changeSeq, K key, V value) {
+		if (isLatest(changeSeq, key)) {
+			removed.remove(key);
+			added.put(key, value);
+		}
+	}
+
+	void remove(long changeSeq, K key) {
+		if (isLatest(changeSeq, key)) {
+			added.remove(key);
+			removed.add(key);
+		}
+	}
+
+	private boolean isLatest(long changeSeq, K key) {
+		if (changeSeq <= fromSeq)
+			return false;
+		Long previous = latest.get(key);
+		if (previous != null && previous > changeSeq)
+			return false;
+		latest.put(key, changeSeq);
+		return true;
+	}
+
+	/**
+	 * Sets the position in the list after this page
+	 */
+	void setPage(long seq, boolean more) {
+		// never go back
+		this.seq = Math.max(seq, fromSeq);
+		this.more = more;
+	}
+
+	public Collection<V> getAdded() {
+		return added.values();
+	}
+
+	public Collection<K> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @return the sequence number to send in the next request
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * @return true if the TDS has more changes for us
+	 */
+	public boolean hasMore() {
+		return more && seq > fromSeq;
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty();
+	}
+}
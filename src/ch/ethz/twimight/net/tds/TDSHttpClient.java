@@ -0,0 +1,394 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.params.ConnManagerPNames;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import ch.ethz.twimight.util.Constants;
+import ch.ethz.twimight.util.EasySSLSocketFactory;
+
+/**
+ * The HTTP client of the TDS requests, shared by the whole process. The SSL
+ * context is created once and connections are pooled and kept alive, so the
+ * requests of a synch (e.g., the chunks of a disaster tweet upload) use one TLS
+ * connection.
+ * <p>
+ * Responses are requested with gzip. Request bodies are gzipped once the TDS
+ * told us it accepts them (an <code>Accept-Encoding: gzip</code> header in a
+ * response), a 415 response switches this off again.
+ * <p>
+ * Counts TLS handshakes and bytes on the wire (after compression), see
+ * {@link #resetMetrics()}. Apart from HttpClient, the class has no Android
+ * dependencies, it can be pointed at a local HTTPS server.
+ */
+class TDSHttpClient {
+
+	private static final String GZIP = "gzip";
+
+	private static DefaultHttpClient client;
+
+	// does the TDS accept gzip request bodies?
+	private static volatile boolean gzipRequests;
+
+	private static final AtomicInteger handshakes = new AtomicInteger();
+	private static final AtomicLong bytesSent = new AtomicLong();
+	private static final AtomicLong bytesReceived = new AtomicLong();
+
+	private TDSHttpClient() {
+	}
+
+	/**
+	 * @return the shared client
+	 */
+	static synchronized HttpClient getInstance() {
+		if (client == null) {
+			client = createClient();
+		}
+		client.getConnectionManager().closeExpiredConnections();
+		return client;
+	}
+
+	/**
+	 * Closes the pooled connections which are not in use, e.g., when we lost
+	 * connectivity. Running requests keep their connections, they fail on
+	 * their own if the network is gone. The client is not shut down, it may
+	 * be in use by a running task.
+	 */
+	static synchronized void closeIdleConnections() {
+		if (client != null) {
+			client.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+			client.getConnectionManager().closeExpiredConnections();
+		}
+	}
+
+	static void resetMetrics() {
+		handshakes.set(0);
+		bytesSent.set(0);
+		bytesReceived.set(0);
+	}
+
+	static int getHandshakes() {
+		return handshakes.get();
+	}
+
+	static long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	static long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	static String getMetrics() {
+		return handshakes.get() + " TLS handshakes, " + bytesSent.get() + " bytes sent, " + bytesReceived.get()
+				+ " bytes received";
+	}
+
+	private static DefaultHttpClient createClient() {
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", new HandshakeCountingSocketFactory(), 443));
+
+		HttpParams params = new BasicHttpParams();
+		params.setParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, Constants.TDS_MAX_CONNECTIONS);
+		params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(
+				Constants.TDS_MAX_CONNECTIONS));
+		params.setParameter(HttpProtocolParams.USE_EXPECT_CONTINUE, false);
+
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpConnectionParams.setConnectionTimeout(params, Constants.HTTP_CONNECTION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, Constants.HTTP_SOCKET_TIMEOUT);
+
+		DefaultHttpClient httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry),
+				params);
+
+		// keep connections as long as the server allows, but not longer than
+		// TDS_KEEP_ALIVE
+		httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? Math.min(duration, Constants.TDS_KEEP_ALIVE) : Constants.TDS_KEEP_ALIVE;
+			}
+		});
+
+		httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+			@Override
+			public void process(HttpRequest request, HttpContext context) {
+				if (!request.containsHeader("Accept-Encoding")) {
+					request.addHeader("Accept-Encoding", GZIP);
+				}
+				if (!(request instanceof HttpEntityEnclosingRequest))
+					return;
+
+				HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+				HttpEntity entity = entityRequest.getEntity();
+				if (entity == null)
+					return;
+				// the interceptor runs again when the request is retried
+				if (!(entity instanceof CountingEntity)) {
+					if (gzipRequests && entity.getContentEncoding() == null) {
+						entity = new GzipRequestEntity(entity);
+					}
+					entity = new CountingEntity(entity, bytesSent);
+					entityRequest.setEntity(entity);
+				}
+				if (entity.getContentEncoding() != null && !request.containsHeader(HTTP.CONTENT_ENCODING)) {
+					request.addHeader(entity.getContentEncoding());
+				}
+			}
+		});
+
+		httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+			@Override
+			public void process(HttpResponse response, HttpContext context) {
+				if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+					gzipRequests = false;
+				} else {
+					Header accept = response.getFirstHeader("Accept-Encoding");
+					if (accept != null && accept.getValue().toLowerCase().contains(GZIP)) {
+						gzipRequests = true;
+					}
+				}
+
+				HttpEntity entity = response.getEntity();
+				if (entity == null)
+					return;
+				Header encoding = entity.getContentEncoding();
+				entity = new CountingEntity(entity, bytesReceived);
+				if (encoding != null && GZIP.equalsIgnoreCase(encoding.getValue())) {
+					entity = new GunzipEntity(entity);
+				}
+				response.setEntity(entity);
+			}
+		});
+
+		return httpClient;
+	}
+
+	/**
+	 * Counts the bytes written or read through the wrapped entity
+	 */
+	private static class CountingEntity extends HttpEntityWrapper {
+
+		private final AtomicLong counter;
+
+		CountingEntity(HttpEntity wrapped, AtomicLong counter) {
+			super(wrapped);
+			this.counter = counter;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(wrappedEntity.getContent()) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0)
+						counter.incrementAndGet();
+					return b;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int count) throws IOException {
+					int read = super.read(buffer, offset, count);
+					if (read > 0)
+						counter.addAndGet(read);
+					return read;
+				}
+			};
+		}
+
+		@Override
+		public void writeTo(OutputStream outstream) throws IOException {
+			wrappedEntity.writeTo(new FilterOutputStream(outstream) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					counter.incrementAndGet();
+				}
+
+				@Override
+				public void write(byte[] buffer, int offset, int count) throws IOException {
+					out.write(buffer, offset, count);
+					counter.addAndGet(count);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Compresses a request body while it is written
+	 */
+	private static class GzipRequestEntity extends HttpEntityWrapper {
+
+		GzipRequestEntity(HttpEntity wrapped) {
+			super(wrapped);
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return new BasicHeader(HTTP.CONTENT_ENCODING, GZIP);
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public boolean isChunked() {
+			return true;
+		}
+
+		@Override
+		public InputStream getContent() {
+			throw new UnsupportedOperationException("the request can only be written");
+		}
+
+		@Override
+		public void writeTo(OutputStream outstream) throws IOException {
+			GZIPOutputStream gzip = new GZIPOutputStream(outstream);
+			wrappedEntity.writeTo(gzip);
+			// don't close, the connection belongs to the client
+			gzip.finish();
+		}
+	}
+
+	/**
+	 * Decompresses a gzip response while it is read
+	 */
+	private static class GunzipEntity extends HttpEntityWrapper {
+
+		GunzipEntity(HttpEntity wrapped) {
+			super(wrapped);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+	}
+
+	/**
+	 * The SSL socket factory of the TDS, counting the TLS handshakes
+	 */
+	private static class HandshakeCountingSocketFactory implements LayeredSocketFactory {
+
+		private static final HandshakeCompletedListener COUNTER = new HandshakeCompletedListener() {
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				handshakes.incrementAndGet();
+			}
+		};
+
+		private final EasySSLSocketFactory factory = new EasySSLSocketFactory();
+
+		@Override
+		public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+				HttpParams params) throws IOException, UnknownHostException, ConnectTimeoutException {
+			return factory.connectSocket(sock != null ? sock : createSocket(), host, port, localAddress, localPort,
+					params);
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return count(factory.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException,
+				UnknownHostException {
+			return count(factory.createSocket(socket, host, port, autoClose));
+		}
+
+		@Override
+		public boolean isSecure(Socket socket) throws IllegalArgumentException {
+			return factory.isSecure(socket);
+		}
+
+		private static Socket count(Socket socket) {
+			if (socket instanceof SSLSocket) {
+				((SSLSocket) socket).addHandshakeCompletedListener(COUNTER);
+			}
+			return socket;
+		}
+
+		// the connection manager compares socket factories
+		@Override
+		public boolean equals(Object obj) {
+			return obj != null && obj.getClass().equals(HandshakeCountingSocketFactory.class);
+		}
+
+		@Override
+		public int hashCode() {
+			return HandshakeCountingSocketFactory.class.hashCode();
+		}
+	}
+}
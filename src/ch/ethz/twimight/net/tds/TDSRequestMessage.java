@@ -13,6 +13,9 @@
 
 package ch.ethz.twimight.net.tds;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.security.KeyPair;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -25,11 +28,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.preference.PreferenceManager;
+import android.util.Base64;
+import android.util.Base64OutputStream;
 import android.util.Log;
 import ch.ethz.twimight.R;
 import ch.ethz.twimight.data.StatisticsDBHelper;
 import ch.ethz.twimight.net.twitter.Tweets;
-import ch.ethz.twimight.security.CertificateManager;
 import ch.ethz.twimight.security.KeyManager;
 import ch.ethz.twimight.util.Constants;
 import ch.ethz.twimight.util.Preferences;
@@ -54,7 +58,8 @@ public class TDSRequestMessage {
 	private JSONObject revocationObject;
 	private JSONObject followerObject;
 	private JSONObject statisticObject;
-	private JSONObject disTweetsObject;
+	// disaster tweets are written from the cursor when the request is sent
+	private Cursor disTweets;
 
 	/*
 	 * Field in the DISASTER_TWEETS object that doesn't correspond to a tweet
@@ -100,48 +105,96 @@ public class TDSRequestMessage {
 		bluetoothObject.put("mac", mac);
 	}
 
-	public void createDisTweetsObject(Cursor tweets) throws JSONException {
-
-		if (tweets != null && tweets.getCount() > 0) {
-
-			tweets.moveToFirst();
-			disTweetsObject = new JSONObject();
-			JSONArray disTweetsArray = new JSONArray();
-			CertificateManager cm = new CertificateManager(context.getApplicationContext());
-
-			while (!tweets.isAfterLast()) {
-
-				if (!tweets.isNull(tweets.getColumnIndex(Tweets.COL_SIGNATURE))) {
-					JSONObject row = new JSONObject();
-					row.put(Tweets.COL_TEXT_PLAIN, tweets.getString(tweets.getColumnIndex(Tweets.COL_TEXT_PLAIN)));
-					row.put(Tweets.COL_USER_TID, tweets.getLong(tweets.getColumnIndex(Tweets.COL_USER_TID)));
-					row.put(Tweets.COL_DISASTER_ID, tweets.getLong(tweets.getColumnIndex(Tweets.COL_DISASTER_ID)));
-					row.put(Tweets.COL_SIGNATURE, tweets.getString(tweets.getColumnIndex(Tweets.COL_SIGNATURE)));
-
-					SimpleDateFormat simpleFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-					row.put(Tweets.COL_CREATED_AT + "_phone",
-							simpleFormat.format(new Date(tweets.getLong(tweets.getColumnIndex(Tweets.COL_CREATED_AT)))));
-					// add picture if available
-					if (tweets.getString(tweets.getColumnIndex(Tweets.COL_MEDIA_URIS)) != null) {
-						SDCardHelper sdCardHelper = new SDCardHelper();
-						String base64Photo = sdCardHelper.getImageAsBas64Jpeg(
-								tweets.getString(tweets.getColumnIndex(Tweets.COL_MEDIA_URIS)), null);
-						Log.d(TAG, base64Photo);
-						row.put(PHOTO, base64Photo);
-					}
+	/**
+	 * Keeps the cursor of disaster tweets to upload, if it has signed tweets.
+	 * The tweets are only read when the request is written.
+	 */
+	public void createDisTweetsObject(Cursor tweets) {
+		if (tweets == null)
+			return;
+
+		int signatureIndex = tweets.getColumnIndex(Tweets.COL_SIGNATURE);
+		boolean hasSigned = false;
+		for (tweets.moveToFirst(); !tweets.isAfterLast(); tweets.moveToNext()) {
+			if (!tweets.isNull(signatureIndex)) {
+				hasSigned = true;
+				break;
+			}
+		}
 
-					disTweetsArray.put(row);
-				}
+		if (hasSigned) {
+			disTweets = tweets;
+		} else {
+			tweets.close();
+		}
+	}
 
-				tweets.moveToNext();
+	/**
+	 * Writes the content array of the disaster tweets object. Photos are
+	 * Base64 encoded straight from the image files into the form encoded
+	 * stream the writer writes to.
+	 * 
+	 * @param writer
+	 *            writes JSON
+	 * @param out
+	 *            the stream under the writer
+	 */
+	public void writeDisTweets(Writer writer, OutputStream out) throws IOException, JSONException {
+		SimpleDateFormat simpleFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		SDCardHelper sdCardHelper = new SDCardHelper();
+		int signatureIndex = disTweets.getColumnIndex(Tweets.COL_SIGNATURE);
+		int mediaIndex = disTweets.getColumnIndex(Tweets.COL_MEDIA_URIS);
+		boolean first = true;
+
+		writer.write("{\"content\":[");
+		// the request may be sent again, so we always start at the top
+		disTweets.moveToPosition(-1);
+		while (disTweets.moveToNext()) {
+			if (disTweets.isNull(signatureIndex))
+				continue;
+
+			JSONObject row = new JSONObject();
+			row.put(Tweets.COL_TEXT_PLAIN, disTweets.getString(disTweets.getColumnIndex(Tweets.COL_TEXT_PLAIN)));
+			row.put(Tweets.COL_USER_TID, disTweets.getLong(disTweets.getColumnIndex(Tweets.COL_USER_TID)));
+			row.put(Tweets.COL_DISASTER_ID, disTweets.getLong(disTweets.getColumnIndex(Tweets.COL_DISASTER_ID)));
+			row.put(Tweets.COL_SIGNATURE, disTweets.getString(signatureIndex));
+			row.put(Tweets.COL_CREATED_AT + "_phone",
+					simpleFormat.format(new Date(disTweets.getLong(disTweets.getColumnIndex(Tweets.COL_CREATED_AT)))));
+			String rowString = row.toString();
+
+			if (!first)
+				writer.write(',');
+			first = false;
+
+			String mediaUri = disTweets.getString(mediaIndex);
+			if (mediaUri == null) {
+				writer.write(rowString);
+				continue;
 			}
-			tweets.close();
 
-			if (disTweetsArray.length() > 0)
-				disTweetsObject.put("content", disTweetsArray);
-			else
-				disTweetsObject = null;
+			// add picture: we leave the row object open and stream the photo
+			// into it
+			writer.write(rowString, 0, rowString.length() - 1);
+			writer.write(",\"" + PHOTO + "\":\"");
+			writer.flush();
+			Base64OutputStream photo = new Base64OutputStream(out, Base64.NO_WRAP);
+			if (!sdCardHelper.writeImageAsJpeg(mediaUri, photo)) {
+				Log.w(TAG, "could not read photo " + mediaUri);
+			}
+			// only flushes out
+			photo.close();
+			writer.write("\"}");
+		}
+		writer.write("]}");
+	}
 
+	/**
+	 * Releases the disaster tweets once the request is done
+	 */
+	public void close() {
+		if (disTweets != null) {
+			disTweets.close();
+			disTweets = null;
 		}
 	}
 
@@ -193,11 +246,15 @@ public class TDSRequestMessage {
 	/**
 	 * Creates a JSON object for the revocation list update request
 	 * 
-	 * @param lastUpdate
+	 * @param currentVersion
+	 * @param seq
+	 *            the last change we applied, see TDSDelta
 	 */
-	public void createRevocationObject(int currentVersion) throws JSONException {
+	public void createRevocationObject(int currentVersion, long seq) throws JSONException {
 		revocationObject = new JSONObject();
 		revocationObject.put("version", currentVersion);
+		revocationObject.put("seq", seq);
+		revocationObject.put("page_size", Constants.TDS_DELTA_PAGE_SIZE);
 	}
 
 	/**
@@ -222,11 +279,15 @@ public class TDSRequestMessage {
 	 * Creates the JSON object for a request for follower keys
 	 * 
 	 * @param lastUpdate
+	 * @param seq
+	 *            the last change we applied, see TDSDelta
 	 * @throws JSONException
 	 */
-	public void createFollowerObject(long lastUpdate) throws JSONException {
+	public void createFollowerObject(long lastUpdate, long seq) throws JSONException {
 		followerObject = new JSONObject();
 		followerObject.put("last_update", lastUpdate);
+		followerObject.put("seq", seq);
+		followerObject.put("page_size", Constants.TDS_DELTA_PAGE_SIZE);
 	}
 
 	/**
@@ -262,7 +323,7 @@ public class TDSRequestMessage {
 	 * @return
 	 */
 	public boolean hasDisTweetsObject() {
-		return disTweetsObject != null;
+		return disTweets != null;
 	}
 
 	/**
@@ -326,15 +387,6 @@ public class TDSRequestMessage {
 		return bluetoothObject;
 	}
 
-	/**
-	 * Getter
-	 * 
-	 * @return
-	 */
-	public JSONObject getDisTweetsObject() {
-		return disTweetsObject;
-	}
-
 	/**
 	 * Getter
 	 * 
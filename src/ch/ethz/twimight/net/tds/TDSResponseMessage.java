@@ -14,7 +14,6 @@
 package ch.ethz.twimight.net.tds;
 
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +44,12 @@ public class TDSResponseMessage {
 	private JSONObject followerObject;
 	private JSONObject notificationObject;
 	private JSONObject disTweetsObject;
+	// the long lists are parsed while reading the response, not kept as JSON
+	private List<RevocationListEntry> revocationList;
+	private List<TDSPublicKey> followerKeys;
+	// delta updates, null if the TDS sent full updates
+	private TDSDelta<String, RevocationListEntry> revocationDelta;
+	private TDSDelta<Long, TDSPublicKey> followerDelta;
 	
 	private Context context;
 	
@@ -70,14 +75,32 @@ public class TDSResponseMessage {
 		this.certificateObject = certificateObject;
 	}
 	
-	public void setRevocationObject(JSONObject revocationObject) {
+	/**
+	 * @param revocationList
+	 *            the entries of the update, null if there was none
+	 */
+	public void setRevocationObject(JSONObject revocationObject, List<RevocationListEntry> revocationList) {
 		this.revocationObject = revocationObject;
+		this.revocationList = revocationList;
 	}
 
-	public void setFollowerObject(JSONObject followerObject) {
+	/**
+	 * @param followerKeys
+	 *            the keys of the update, null if there was none
+	 */
+	public void setFollowerObject(JSONObject followerObject, List<TDSPublicKey> followerKeys) {
 		this.followerObject = followerObject;
+		this.followerKeys = followerKeys;
 	}
 	
+	public void setRevocationDelta(TDSDelta<String, RevocationListEntry> revocationDelta) {
+		this.revocationDelta = revocationDelta;
+	}
+
+	public void setFollowerDelta(TDSDelta<Long, TDSPublicKey> followerDelta) {
+		this.followerDelta = followerDelta;
+	}
+
 	public void setNotificationObject(JSONObject notificationObject) {
 		this.notificationObject = notificationObject;
 	}
@@ -129,14 +152,37 @@ public class TDSResponseMessage {
 	
 	
 	/**
-	 * Parses the authentication object
+	 * Parses the acknowledgements of the uploaded disaster tweets. The content
+	 * is a list of [disaster id, twitter id of the posted tweet].
+	 * 
+	 * @return disaster id -> twitter id, null if the TDS did not send a
+	 *         disaster tweets object (older servers)
+	 * @throws JSONException
+	 *             also if the TDS returned an error status, none of the
+	 *             tweets was posted then
 	 */
 	public Map<Long,Long> parseDisTweetsResponse() throws JSONException{
 		
 		Log.i(TAG,"parsing dis tweets result");
 		if(!hasDisTweetsObject()) return null;
+
+		if(disTweetsObject.has("status")){
+			int statusCode = disTweetsObject.getInt("status"); 
+			if(statusCode != 200) {
+				if (TwimightBaseActivity.D) Log.e(TAG, "TDS returned disaster tweets status error code" + statusCode);
+				throw new JSONException("disaster tweets status " + statusCode);
+			}
+		}
 		
-		return new HashMap<Long,Long>();
+		Map<Long,Long> posted = new HashMap<Long,Long>();
+		JSONArray entries = disTweetsObject.optJSONArray("content");
+		if(entries != null){
+			for(int i = 0 ; i < entries.length(); i++){
+				JSONArray entry = entries.getJSONArray(i);
+				posted.put(entry.getLong(0), entry.optLong(1));
+			}
+		}
+		return posted;
 		
 	}
 	
@@ -222,17 +268,7 @@ public class TDSResponseMessage {
 			return null;
 		}
 		
-		List<RevocationListEntry> revocationList = new ArrayList<RevocationListEntry>();
-		JSONArray entries = revocationObject.getJSONArray("update");
-		
-		if(entries!= null){
-			for(int i = 0 ; i < entries.length(); i++){
-				JSONArray entry = entries.getJSONArray(i);
-				String serial = entry.getString(0);
-				Date until = new Date(1000*entry.getLong(1)); // we get the date in Seconds since 1970
-				revocationList.add(new RevocationListEntry(serial, until));
-			}
-		}
+		if(revocationList == null) return new ArrayList<RevocationListEntry>();
 
 		return revocationList;
 	}
@@ -268,27 +304,7 @@ public class TDSResponseMessage {
 			return null;
 		}
 
-		List<TDSPublicKey> keyList = null;
-		
-		if(followerObject.has("update")){
-			keyList = new ArrayList<TDSPublicKey>();
-			JSONArray entries = followerObject.getJSONArray("update");
-			
-			if (TwimightBaseActivity.D) Log.i(TAG, "reading update");
-			
-			if(entries!= null){
-				for(int i = 0 ; i < entries.length(); i++){
-					JSONArray entry = entries.getJSONArray(i);
-					long twitterId = entry.getLong(0);
-					String keyPem = entry.getString(1);
-					if(twitterId!=0 && keyPem!=null){
-						keyList.add(new TDSPublicKey(twitterId, keyPem));
-					}
-				}
-			}
-		}
-		
-		return keyList;
+		return followerKeys;
 
 	}
 
@@ -309,6 +325,40 @@ public class TDSResponseMessage {
 		return followerObject.getLong("last_update");
 	}
 
+	/**
+	 * Reads the delta of the revocation list
+	 * @return null if the TDS did not send a delta
+	 * @throws JSONException
+	 */
+	public TDSDelta<String, RevocationListEntry> parseRevocationDelta() throws JSONException{
+		if(!hasRevocationObject() || revocationDelta == null) return null;
+
+		int statusCode = revocationObject.getInt("status"); 
+		if(statusCode != 200) {
+			if (TwimightBaseActivity.D) Log.e(TAG, "TDS returned revocation status error code" + statusCode);
+			return null;
+		}
+		revocationDelta.setPage(revocationObject.getLong("seq"), revocationObject.optBoolean("more"));
+		return revocationDelta;
+	}
+
+	/**
+	 * Reads the delta of the follower keys
+	 * @return null if the TDS did not send a delta
+	 * @throws JSONException
+	 */
+	public TDSDelta<Long, TDSPublicKey> parseFollowerDelta() throws JSONException{
+		if(!hasFollowerObject() || followerDelta == null) return null;
+
+		int statusCode = followerObject.getInt("status"); 
+		if(statusCode != 200) {
+			if (TwimightBaseActivity.D) Log.e(TAG, "TDS returned follower status error code" + statusCode);
+			return null;
+		}
+		followerDelta.setPage(followerObject.getLong("seq"), followerObject.optBoolean("more"));
+		return followerDelta;
+	}
+
 	
 	public int getVersion(){
 		return version;
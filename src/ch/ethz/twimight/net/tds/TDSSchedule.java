@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.util.Random;
+
+/**
+ * Decides when we talk to the TDS next:
+ * <ul>
+ * <li>periodically, the update interval after the last successful update,</li>
+ * <li>after a failed update with exponential backoff, from the minimum retry
+ * interval up to the update interval. A random jitter of up to half the
+ * interval is added, so that the devices which lost the TDS at the same time
+ * do not all retry at the same time,</li>
+ * <li>when connectivity comes back, the backoff is reset and a failed update
+ * is retried right away,</li>
+ * <li>uploads of new disaster tweets are debounced: the update is due a short
+ * time after the latest request, but not later than a maximum delay after the
+ * first one.</li>
+ * </ul>
+ * The class has no Android dependencies, time comes from a {@link Clock} and
+ * the jitter from a Random so the schedule can be tested without waiting.
+ */
+public class TDSSchedule {
+
+	/**
+	 * Source of the current time
+	 */
+	public static interface Clock {
+		public long currentTimeMillis();
+	}
+
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private final Clock clock;
+	private final Random random;
+	private final long updateInterval;
+	private final long minRetryInterval;
+	private final long debounce;
+	private final long maxDebounce;
+
+	// time of the last successful update, 0 if never
+	private long lastSuccess;
+	// time of the next retry after a failure, 0 if the last update succeeded
+	private long retryAt;
+	// the backoff for the next failure
+	private long retryInterval;
+	// pending upload requests, 0 if none
+	private long firstUploadRequest;
+	private long lastUploadRequest;
+	// when did the running (or last) update start?
+	private long syncStarted;
+
+	public TDSSchedule(Clock clock, long updateInterval, long minRetryInterval, long debounce, long maxDebounce) {
+		this(clock, new Random(), updateInterval, minRetryInterval, debounce, maxDebounce);
+	}
+
+	public TDSSchedule(Clock clock, Random random, long updateInterval, long minRetryInterval, long debounce,
+			long maxDebounce) {
+		this.clock = clock;
+		this.random = random;
+		this.updateInterval = updateInterval;
+		this.minRetryInterval = minRetryInterval;
+		this.debounce = debounce;
+		this.maxDebounce = maxDebounce;
+		retryInterval = minRetryInterval;
+	}
+
+	/**
+	 * Restores the state saved from the getters
+	 */
+	public void restore(long lastSuccess, long retryAt, long retryInterval, long firstUploadRequest,
+			long lastUploadRequest, long syncStarted) {
+		this.lastSuccess = lastSuccess;
+		this.retryAt = retryAt;
+		this.retryInterval = Math.max(minRetryInterval, Math.min(retryInterval, updateInterval));
+		this.firstUploadRequest = firstUploadRequest;
+		this.lastUploadRequest = lastUploadRequest;
+		this.syncStarted = syncStarted;
+	}
+
+	/**
+	 * New disaster tweets should be uploaded
+	 */
+	public void onUploadRequested() {
+		long now = clock.currentTimeMillis();
+		if (firstUploadRequest == 0) {
+			firstUploadRequest = now;
+		}
+		lastUploadRequest = now;
+	}
+
+	/**
+	 * We have connectivity again, a failed update does not have to wait for the
+	 * backoff
+	 */
+	public void onConnectivityRegained() {
+		retryInterval = minRetryInterval;
+		if (retryAt != 0) {
+			retryAt = clock.currentTimeMillis();
+		}
+	}
+
+	public void onSyncStarted() {
+		syncStarted = clock.currentTimeMillis();
+	}
+
+	/**
+	 * Uploads requested before the update started are done (or will be retried
+	 * with the update), later ones are still pending.
+	 */
+	public void onSyncFinished(boolean success) {
+		long now = clock.currentTimeMillis();
+		if (success) {
+			lastSuccess = now;
+			retryAt = 0;
+			retryInterval = minRetryInterval;
+		} else {
+			retryAt = now + retryInterval + (long) (random.nextDouble() * retryInterval / 2);
+			retryInterval = Math.min(2 * retryInterval, updateInterval);
+		}
+
+		if (lastUploadRequest <= syncStarted) {
+			firstUploadRequest = 0;
+			lastUploadRequest = 0;
+		} else if (firstUploadRequest <= syncStarted) {
+			firstUploadRequest = syncStarted + 1;
+		}
+	}
+
+	/**
+	 * @return the time of the next update
+	 */
+	public long getNextSync() {
+		// after a failure the periodic update is overdue, the backoff decides
+		long next = retryAt != 0 ? retryAt : lastSuccess + updateInterval;
+		if (firstUploadRequest != 0) {
+			next = Math.min(next, Math.min(lastUploadRequest + debounce, firstUploadRequest + maxDebounce));
+		}
+		return next;
+	}
+
+	/**
+	 * @return milliseconds until the next update, 0 if it is due
+	 */
+	public long getDelay() {
+		return Math.max(0, getNextSync() - clock.currentTimeMillis());
+	}
+
+	public boolean isDue() {
+		return getDelay() == 0;
+	}
+
+	public long getLastSuccess() {
+		return lastSuccess;
+	}
+
+	public long getRetryAt() {
+		return retryAt;
+	}
+
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+
+	public long getFirstUploadRequest() {
+		return firstUploadRequest;
+	}
+
+	public long getLastUploadRequest() {
+		return lastUploadRequest;
+	}
+
+	public long getSyncStarted() {
+		return syncStarted;
+	}
+}
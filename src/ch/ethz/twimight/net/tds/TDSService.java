@@ -1,21 +1,8 @@
 package ch.ethz.twimight.net.tds;
 
-import java.security.GeneralSecurityException;
 import java.util.List;
+import java.util.Map;
 
-import org.apache.http.HttpVersion;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.params.ConnManagerPNames;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -26,7 +13,6 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -40,12 +26,11 @@ import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.activities.TwimightBaseActivity;
 import ch.ethz.twimight.data.FriendsKeysDBHelper;
 import ch.ethz.twimight.data.RevocationDBHelper;
-import ch.ethz.twimight.net.twitter.Tweets;
 import ch.ethz.twimight.security.CertificateManager;
 import ch.ethz.twimight.security.KeyManager;
 import ch.ethz.twimight.security.RevocationListEntry;
+import ch.ethz.twimight.security.SignatureVerifier;
 import ch.ethz.twimight.util.Constants;
-import ch.ethz.twimight.util.EasySSLSocketFactory;
 import ch.ethz.twimight.util.Preferences;
 
 /**
@@ -61,6 +46,16 @@ public class TDSService extends Service {
 	private static final String TDS_LAST_UPDATE = "TDSLastUpdate";
 	/** Name of the last update in shared preferences */
 	private static final String TDS_UPDATE_INTERVAL = "TDSUpdateInterval";
+	// schedule state, see TDSSchedule
+	private static final String TDS_RETRY_AT = "TDSRetryAt";
+	private static final String TDS_FIRST_UPLOAD_REQUEST = "TDSFirstUploadRequest";
+	private static final String TDS_LAST_UPLOAD_REQUEST = "TDSLastUploadRequest";
+	private static final String TDS_SYNC_STARTED = "TDSSyncStarted";
+	/**
+	 * Held from loading the schedule to saving it, the receivers and the
+	 * update task change it concurrently
+	 */
+	static final Object SCHEDULE_LOCK = new Object();
 	/** Name of the update interval in shared preference */
 
 	public static final int SYNCH_ALL = 1;
@@ -78,6 +73,9 @@ public class TDSService extends Service {
 	private static final int NOTIFY_MESSAGE = 1;
 	private static final int NOTIFY_ACTION = 2;
 
+	// only one SynchAllTask at a time
+	private static boolean synchAllRunning;
+
 	Intent bugResponseIntent;
 
 	TDSCommunication tds;
@@ -105,8 +103,10 @@ public class TDSService extends Service {
 		ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 		if (cm.getActiveNetworkInfo() == null || !cm.getActiveNetworkInfo().isConnected()) {
 			if (TwimightBaseActivity.D)
-				Log.d(TAG, "Error synching: no connectivity");
-			schedulePeriodic(false);
+				Log.d(TAG, "no connectivity, waiting for connectivity change");
+			// CommunicationReceiver reschedules when we are connected again,
+			// the periodic alarm is only a fallback
+			TDSAlarm.scheduleCommunication(getBaseContext(), Constants.TDS_UPDATE_INTERVAL);
 
 			return START_NOT_STICKY;
 
@@ -163,14 +163,11 @@ public class TDSService extends Service {
 	 * Regular TDS update, if needed
 	 */
 	private void synchAll() {
-
-		if (needUpdate()) {
-			if (TwimightBaseActivity.D)
-				Log.d(TAG, "starting synch task");
-			new SynchAllTask().execute();
+		TDSSchedule schedule = loadSchedule(getBaseContext());
+		if (schedule.isDue()) {
+			startSynchAll();
 		} else {
-			TDSAlarm.scheduleCommunication(this, Constants.TDS_UPDATE_INTERVAL
-					- (System.currentTimeMillis() - getLastUpdate(getBaseContext())));
+			TDSAlarm.scheduleCommunication(this, schedule.getDelay());
 			if (TwimightBaseActivity.D)
 				Log.d(TAG, "no synch needed");
 		}
@@ -180,10 +177,23 @@ public class TDSService extends Service {
 	 * Regular TDS update, forced (outside the update schedule)
 	 */
 	private void synchAllForce() {
+		startSynchAll();
+	}
+
+	/**
+	 * Starts a SynchAllTask, unless one is running. The running one will
+	 * reschedule when it is done.
+	 */
+	private void startSynchAll() {
+		if (synchAllRunning) {
+			if (TwimightBaseActivity.D)
+				Log.d(TAG, "synch task already running");
+			return;
+		}
 		if (TwimightBaseActivity.D)
-			Log.i(TAG, "starting synch task");
+			Log.d(TAG, "starting synch task");
+		synchAllRunning = true;
 		new SynchAllTask().execute();
-
 	}
 
 	/**
@@ -201,51 +211,20 @@ public class TDSService extends Service {
 	}
 
 	/**
-	 * Schedule the next periodic TDS communication
+	 * Schedule the next TDS communication after an update
 	 */
 	private void schedulePeriodic(boolean result) {
-		if (result) {
-			// remember the time of successful update
-			setLastUpdate();
-
-			// reset retry interval
-			setUpdateInterval(Constants.TDS_UPDATE_RETRY_INTERVAL);
-
-			// reschedule
-			TDSAlarm.scheduleCommunication(getBaseContext(), Constants.TDS_UPDATE_INTERVAL);
-
-			if (TwimightBaseActivity.D)
-				Log.i(TAG, "update successful");
-		} else {
-			// get the last successful update
-			Long lastUpdate = getLastUpdate(getBaseContext());
-
-			// get from shared preferences
-			Long currentUpdateInterval = getUpdateInterval();
-
-			// when should the next update be scheduled?
-			Long nextUpdate = 0L;
-			if (System.currentTimeMillis() - lastUpdate > Constants.TDS_UPDATE_INTERVAL) {
-				nextUpdate = currentUpdateInterval;
-			} else {
-				nextUpdate = Constants.TDS_UPDATE_INTERVAL - (System.currentTimeMillis() - lastUpdate);
-			}
-
-			// exponentially schedule again after TDS_UPDAT_RETRY_INTERVAL
-			TDSAlarm.scheduleCommunication(getBaseContext(), nextUpdate);
-
-			currentUpdateInterval *= 2;
-			// cap at TDS_UPDATE_INTERVAL
-			if (currentUpdateInterval > Constants.TDS_UPDATE_INTERVAL) {
-				currentUpdateInterval = Constants.TDS_UPDATE_INTERVAL;
-			}
-
-			// write back to shared preferences
-			setUpdateInterval(currentUpdateInterval);
-			if (TwimightBaseActivity.D)
-				Log.i(TAG, "update not successful");
+		TDSSchedule schedule;
+		synchronized (SCHEDULE_LOCK) {
+			schedule = loadSchedule(getBaseContext());
+			schedule.onSyncFinished(result);
+			saveSchedule(getBaseContext(), schedule);
 		}
+		TDSAlarm.scheduleCommunication(getBaseContext(), schedule.getDelay());
 
+		if (TwimightBaseActivity.D)
+			Log.i(TAG, "update " + (result ? "successful" : "not successful") + ", next in " + schedule.getDelay()
+					+ " ms");
 	}
 
 	/**
@@ -258,89 +237,58 @@ public class TDSService extends Service {
 	}
 
 	/**
-	 * Set the current time (unix time stamp) as the time of last successful
-	 * update
-	 */
-	private void setLastUpdate() {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
-		SharedPreferences.Editor prefEditor = prefs.edit();
-		prefEditor.putLong(TDS_LAST_UPDATE, System.currentTimeMillis());
-		prefEditor.commit();
-	}
-
-	/**
-	 * Get the current update interval from Shared preferences
+	 * Reads the schedule state from the shared preferences. Hold
+	 * SCHEDULE_LOCK until the changed schedule is saved.
 	 */
-	private Long getUpdateInterval() {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
-		return prefs.getLong(TDS_UPDATE_INTERVAL, Constants.TDS_UPDATE_RETRY_INTERVAL);
-
+	static TDSSchedule loadSchedule(Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		TDSSchedule schedule = new TDSSchedule(TDSSchedule.SYSTEM_CLOCK, Constants.TDS_UPDATE_INTERVAL,
+				Constants.TDS_UPDATE_RETRY_INTERVAL, Constants.TDS_UPLOAD_DEBOUNCE, Constants.TDS_UPLOAD_MAX_DELAY);
+		schedule.restore(prefs.getLong(TDS_LAST_UPDATE, 0), prefs.getLong(TDS_RETRY_AT, 0),
+				prefs.getLong(TDS_UPDATE_INTERVAL, Constants.TDS_UPDATE_RETRY_INTERVAL),
+				prefs.getLong(TDS_FIRST_UPLOAD_REQUEST, 0), prefs.getLong(TDS_LAST_UPLOAD_REQUEST, 0),
+				prefs.getLong(TDS_SYNC_STARTED, 0));
+		return schedule;
 	}
 
 	/**
-	 * Stores the current update interval in Shared preferences
+	 * Stores the schedule state in the shared preferences
 	 */
-	private void setUpdateInterval(Long updateInterval) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
-		SharedPreferences.Editor prefEditor = prefs.edit();
-		prefEditor.putLong(TDS_UPDATE_INTERVAL, updateInterval);
+	static void saveSchedule(Context context, TDSSchedule schedule) {
+		SharedPreferences.Editor prefEditor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+		prefEditor.putLong(TDS_LAST_UPDATE, schedule.getLastSuccess());
+		prefEditor.putLong(TDS_RETRY_AT, schedule.getRetryAt());
+		prefEditor.putLong(TDS_UPDATE_INTERVAL, schedule.getRetryInterval());
+		prefEditor.putLong(TDS_FIRST_UPLOAD_REQUEST, schedule.getFirstUploadRequest());
+		prefEditor.putLong(TDS_LAST_UPLOAD_REQUEST, schedule.getLastUploadRequest());
+		prefEditor.putLong(TDS_SYNC_STARTED, schedule.getSyncStarted());
 		prefEditor.commit();
-
-	}
-
-	/**
-	 * Do we need a periodic update?
-	 */
-	private boolean needUpdate() {
-
-		// when was the last successful update?
-		if (System.currentTimeMillis() - getLastUpdate(getBaseContext()) > Constants.TDS_UPDATE_INTERVAL) {
-			return true;
-		} else {
-			return false;
-		}
 	}
 
 	public static void resetLastUpdate(Context context) {
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 		SharedPreferences.Editor prefEditor = prefs.edit();
 		prefEditor.putLong(TDS_LAST_UPDATE, 0L);
-		prefEditor.commit();
+		prefEditor.remove(TDS_RETRY_AT);
+		prefEditor.remove(TDS_FIRST_UPLOAD_REQUEST);
+		prefEditor.remove(TDS_LAST_UPLOAD_REQUEST);
+		prefEditor.remove(TDS_SYNC_STARTED);
+		synchronized (SCHEDULE_LOCK) {
+			prefEditor.commit();
+		}
 	}
 
+	/**
+	 * Forgets the retry backoff, the next failure retries after
+	 * TDS_UPDATE_RETRY_INTERVAL again
+	 */
 	public static void resetUpdateInterval(Context context) {
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 		SharedPreferences.Editor prefEditor = prefs.edit();
-		prefEditor.putLong(TDS_UPDATE_INTERVAL, Constants.TDS_UPDATE_INTERVAL);
-		prefEditor.commit();
-	}
-
-	/**
-	 * Set up an HTTP client.
-	 * 
-	 * @return
-	 * @throws GeneralSecurityException
-	 */
-	private DefaultHttpClient getClient() throws GeneralSecurityException {
-
-		SchemeRegistry schemeRegistry = new SchemeRegistry();
-		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-		schemeRegistry.register(new Scheme("https", new EasySSLSocketFactory(), 443));
-
-		HttpParams params = new BasicHttpParams();
-		params.setParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, 30);
-		params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(30));
-		params.setParameter(HttpProtocolParams.USE_EXPECT_CONTINUE, false);
-
-		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-		HttpConnectionParams.setConnectionTimeout(params, Constants.HTTP_CONNECTION_TIMEOUT); // Connection
-																								// timeout
-		HttpConnectionParams.setSoTimeout(params, Constants.HTTP_SOCKET_TIMEOUT); // Socket
-																					// timeout
-
-		ClientConnectionManager cm = new SingleClientConnManager(params, schemeRegistry);
-		return new DefaultHttpClient(cm, params);
-
+		prefEditor.remove(TDS_UPDATE_INTERVAL);
+		synchronized (SCHEDULE_LOCK) {
+			prefEditor.commit();
+		}
 	}
 
 	/**
@@ -351,17 +299,15 @@ public class TDSService extends Service {
 	 */
 	private class SynchAllTask extends AsyncTask<Void, Void, Boolean> {
 
+		private final TDSUploadQueue uploadQueue = new TDSUploadQueue(getBaseContext());
+
 		/**
 		 * The task
 		 */
 		@Override
 		protected Boolean doInBackground(Void... params) {
+			List<List<Long>> chunks;
 			try {
-				// wait a bit until we have connectivity
-				// TODO: This is a hack, we should wait for a connectivity
-				// change intent, or a timeout, to proceed.
-				Thread.sleep(Constants.WAIT_FOR_CONNECTIVITY);
-
 				// request potential bluetooth peers
 				String mac = PreferenceManager.getDefaultSharedPreferences(getBaseContext()).getString("mac", null);
 				if (mac != null) {
@@ -371,7 +317,7 @@ public class TDSService extends Service {
 				// revocation list
 				RevocationDBHelper rm = new RevocationDBHelper(getApplicationContext());
 				rm.open();
-				tds.createRevocationObject(rm.getCurrentVersion());
+				tds.createRevocationObject(rm.getCurrentVersion(), rm.getSeq());
 
 				// do we need a new certificate?
 				CertificateManager cm = new CertificateManager(getBaseContext());
@@ -384,20 +330,19 @@ public class TDSService extends Service {
 
 				// follower key list
 				FriendsKeysDBHelper fm = new FriendsKeysDBHelper(getApplicationContext());
-				tds.createFollowerObject(fm.getLastUpdate());
+				tds.createFollowerObject(fm.getLastUpdate(), fm.getSeq());
 
 				// send statistics
 //				StatisticsDBHelper statisticAdapter = new StatisticsDBHelper(getApplicationContext());
 //				statisticAdapter.open();
 //				tds.createStatisticObject(statisticAdapter.getData(), statisticAdapter.getFollowersCount());
 
-				// Preparing disaster tweets to be sent to the server
-				Cursor cursor = getContentResolver().query(
-						Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/"
-								+ Tweets.TWEETS_TABLE_TIMELINE + "/" + Tweets.TWEETS_SOURCE_DISASTER + "/"
-								+ Tweets.TWEETS_SINCE_LAST_UPDATE), null, null, null, null);
-
-				tds.createDisTweetsObject(cursor);
+				// Preparing disaster tweets to be sent to the server, the first
+				// chunk goes with this request
+				chunks = uploadQueue.getChunks();
+				if (!chunks.isEmpty()) {
+					tds.createDisTweetsObject(uploadQueue.query(chunks.get(0)));
+				}
 
 			} catch (Exception e) {
 				if (TwimightBaseActivity.D)
@@ -405,20 +350,16 @@ public class TDSService extends Service {
 				return false;
 			}
 
-			boolean success = false;
 			// Send the request
-			try {
-				success = tds.sendRequest(getClient(), REQUEST_URL);
-			} catch (GeneralSecurityException e) {
-				if (TwimightBaseActivity.D)
-					Log.e(TAG, "GeneralSecurityException while sending TDS request");
-			}
+			boolean success = tds.sendRequest(TDSHttpClient.getInstance(), REQUEST_URL);
 
 			if (!success)
 				return false;
 
 			if (TwimightBaseActivity.D)
 				Log.i(TAG, "success");
+			boolean revocationMore = false;
+			boolean followerMore = false;
 			try {
 
 				// delete old logs
@@ -444,45 +385,12 @@ public class TDSService extends Service {
 					Log.d(TAG, "certificate parsed");
 
 				// revocation
-				RevocationDBHelper rm = new RevocationDBHelper(getApplicationContext());
-				rm.open();
-				rm.deleteExpired();
-				// first, we check the version
-				int revocationListVersion = tds.parseRevocationVersion();
-				if (revocationListVersion != 0 && revocationListVersion > rm.getCurrentVersion()) {
-					// next, we get the update of the list
-					List<RevocationListEntry> revocationList = tds.parseRevocation();
-					if (!revocationList.isEmpty()) {
-						rm.processUpdate(revocationList);
-					}
-					rm.setCurrentVersion(revocationListVersion);
-					// check if our certificate is on the new revocation list
-					CertificateManager cm = new CertificateManager(getBaseContext());
-					if (rm.isRevoked(cm.getSerial())) {
-						if (TwimightBaseActivity.D)
-							Log.i(TAG, "Our certificate got revoked! Deleting key and certificate");
-						cm.deleteCertificate();
-						KeyManager km = new KeyManager(getBaseContext());
-						km.deleteKey();
-					}
-				} else {
-					if (TwimightBaseActivity.D)
-						Log.d(TAG, "no new revocations");
-				}
+				revocationMore = applyRevocation(tds);
 				if (TwimightBaseActivity.D)
 					Log.d(TAG, "revocation parsed");
 
 				// Followers
-				FriendsKeysDBHelper fm = new FriendsKeysDBHelper(getApplicationContext());
-				fm.open();
-				List<TDSPublicKey> keyList = tds.parseFollower();
-				if (keyList != null) {
-					fm.insertKeys(keyList);
-					long lastUpdate = tds.parseFollowerLastUpdate();
-					if (lastUpdate != 0) {
-						fm.setLastUpdate(lastUpdate);
-					}
-				}
+				followerMore = applyFollower(tds);
 				if (TwimightBaseActivity.D)
 					Log.i(TAG, "followers parsed");
 
@@ -503,19 +411,204 @@ public class TDSService extends Service {
 					ex.printStackTrace();
 				}
 
-				// TODO: parsing list of tweets posted to the twitter servers
-				tds.parseDisTweets();
+				// the tweets the TDS posted to twitter
+				if (!chunks.isEmpty()) {
+					uploadQueue.applyResult(chunks.get(0), tds.parseDisTweets());
+				}
 
 			} catch (Exception e) {
 				if (TwimightBaseActivity.D)
 					Log.e(TAG, "Exception while parsing response", e);
 			}
 
+			// large revocation list and follower key updates come in pages
+			fetchDeltaPages(revocationMore, followerMore);
+
+			// the remaining chunks, each in its own request. If one fails we
+			// stop, its tweets stay pending for the next update.
+			for (int i = 1; i < chunks.size(); i++) {
+				if (!uploadChunk(chunks.get(i))) {
+					if (TwimightBaseActivity.D)
+						Log.i(TAG, "upload of disaster tweets interrupted");
+					break;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Applies the revocation list update of a response
+		 * 
+		 * @return true if the TDS has more changes for us
+		 */
+		private boolean applyRevocation(TDSCommunication tds) throws Exception {
+			RevocationDBHelper rm = new RevocationDBHelper(getApplicationContext());
+			rm.open();
+			rm.deleteExpired();
+
+			boolean changed = false;
+			boolean more = false;
+			int revocationListVersion = tds.parseRevocationVersion();
+			TDSDelta<String, RevocationListEntry> delta = tds.parseRevocationDelta();
+			if (delta != null) {
+				if (!delta.isEmpty()) {
+					rm.applyDelta(delta.getAdded(), delta.getRemoved(), delta.getSeq());
+					changed = true;
+				}
+				if (revocationListVersion != 0) {
+					rm.setCurrentVersion(revocationListVersion);
+				}
+				more = delta.hasMore();
+			} else if (revocationListVersion != 0 && revocationListVersion > rm.getCurrentVersion()) {
+				// a full update, from a TDS without deltas
+				List<RevocationListEntry> revocationList = tds.parseRevocation();
+				if (!revocationList.isEmpty()) {
+					rm.processUpdate(revocationList);
+					changed = true;
+				}
+				rm.setCurrentVersion(revocationListVersion);
+			}
+
+			if (changed) {
+				// earlier verifications may not hold anymore
+				SignatureVerifier.getInstance(getApplicationContext()).invalidate();
+				// check if our certificate is on the new revocation list
+				CertificateManager cm = new CertificateManager(getBaseContext());
+				if (rm.isRevoked(cm.getSerial())) {
+					if (TwimightBaseActivity.D)
+						Log.i(TAG, "Our certificate got revoked! Deleting key and certificate");
+					cm.deleteCertificate();
+					KeyManager km = new KeyManager(getBaseContext());
+					km.deleteKey();
+				}
+			} else {
+				if (TwimightBaseActivity.D)
+					Log.d(TAG, "no new revocations");
+			}
+			return more;
+		}
+
+		/**
+		 * Applies the follower key update of a response
+		 * 
+		 * @return true if the TDS has more changes for us
+		 */
+		private boolean applyFollower(TDSCommunication tds) throws Exception {
+			FriendsKeysDBHelper fm = new FriendsKeysDBHelper(getApplicationContext());
+			fm.open();
+
+			boolean more = false;
+			TDSDelta<Long, TDSPublicKey> delta = tds.parseFollowerDelta();
+			if (delta != null) {
+				if (!delta.isEmpty()) {
+					fm.applyDelta(delta.getAdded(), delta.getRemoved(), delta.getSeq());
+				}
+				more = delta.hasMore();
+			} else {
+				// a full update, from a TDS without deltas
+				List<TDSPublicKey> keyList = tds.parseFollower();
+				if (keyList != null) {
+					fm.insertKeys(keyList);
+					long lastUpdate = tds.parseFollowerLastUpdate();
+					if (lastUpdate != 0) {
+						fm.setLastUpdate(lastUpdate);
+					}
+				}
+			}
+			return more;
+		}
+
+		/**
+		 * Fetches further pages of the revocation list and follower key
+		 * deltas, each in a request of its own. We continue from the last
+		 * applied page in the next update if we stop early.
+		 */
+		private void fetchDeltaPages(boolean revocationMore, boolean followerMore) {
+			for (int page = 0; (revocationMore || followerMore) && page < Constants.TDS_DELTA_MAX_PAGES; page++) {
+				try {
+					TDSCommunication pageTds = new TDSCommunication(getBaseContext(), Constants.CONSUMER_ID,
+							LoginActivity.getAccessToken(getBaseContext()),
+							LoginActivity.getAccessTokenSecret(getBaseContext()));
+					if (revocationMore) {
+						RevocationDBHelper rm = new RevocationDBHelper(getApplicationContext());
+						pageTds.createRevocationObject(rm.getCurrentVersion(), rm.getSeq());
+					}
+					if (followerMore) {
+						FriendsKeysDBHelper fm = new FriendsKeysDBHelper(getApplicationContext());
+						pageTds.createFollowerObject(fm.getLastUpdate(), fm.getSeq());
+					}
+
+					if (!pageTds.sendRequest(TDSHttpClient.getInstance(), REQUEST_URL))
+						return;
+					if (!LoginActivity.getTwitterId(getBaseContext()).equals(pageTds.parseAuthentication())) {
+						if (TwimightBaseActivity.D)
+							Log.e(TAG, "Twitter ID mismatch!");
+						return;
+					}
+
+					if (revocationMore)
+						revocationMore = applyRevocation(pageTds);
+					if (followerMore)
+						followerMore = applyFollower(pageTds);
+				} catch (Exception e) {
+					if (TwimightBaseActivity.D)
+						Log.e(TAG, "Exception while fetching delta page", e);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Uploads one chunk of disaster tweets in a request of its own
+		 */
+		private boolean uploadChunk(List<Long> chunk) {
+			TDSCommunication chunkTds;
+			try {
+				chunkTds = new TDSCommunication(getBaseContext(), Constants.CONSUMER_ID,
+						LoginActivity.getAccessToken(getBaseContext()),
+						LoginActivity.getAccessTokenSecret(getBaseContext()));
+				chunkTds.createDisTweetsObject(uploadQueue.query(chunk));
+			} catch (Exception e) {
+				if (TwimightBaseActivity.D)
+					Log.e(TAG, "Exception while assembling request", e);
+				return false;
+			}
+
+			try {
+				if (!chunkTds.sendRequest(TDSHttpClient.getInstance(), REQUEST_URL))
+					return false;
+
+				if (!LoginActivity.getTwitterId(getBaseContext()).equals(chunkTds.parseAuthentication())) {
+					if (TwimightBaseActivity.D)
+						Log.e(TAG, "Twitter ID mismatch!");
+					return false;
+				}
+				Map<Long, Long> posted = chunkTds.parseDisTweets();
+				uploadQueue.applyResult(chunk, posted);
+			} catch (Exception e) {
+				if (TwimightBaseActivity.D)
+					Log.e(TAG, "Exception while uploading disaster tweets", e);
+				return false;
+			}
 			return true;
 		}
 
+		@Override
+		protected void onPreExecute() {
+			TDSHttpClient.resetMetrics();
+			synchronized (SCHEDULE_LOCK) {
+				TDSSchedule schedule = loadSchedule(getBaseContext());
+				schedule.onSyncStarted();
+				saveSchedule(getBaseContext(), schedule);
+			}
+		}
+
 		@Override
 		protected void onPostExecute(Boolean result) {
+			synchAllRunning = false;
+			if (TwimightBaseActivity.D)
+				Log.i(TAG, "synch: " + TDSHttpClient.getMetrics());
 			schedulePeriodic(result);
 		}
 
@@ -578,14 +671,8 @@ public class TDSService extends Service {
 				return false;
 			}
 
-			boolean success = false;
 			// Send the request
-			try {
-				success = tds.sendRequest(getClient(), REQUEST_URL);
-			} catch (GeneralSecurityException e) {
-				if (TwimightBaseActivity.D)
-					Log.e(TAG, "GeneralSecurityException while sending TDS request");
-			}
+			boolean success = tds.sendRequest(TDSHttpClient.getInstance(), REQUEST_URL);
 
 			if (!success) {
 				if (TwimightBaseActivity.D)
@@ -671,14 +758,8 @@ public class TDSService extends Service {
 				return false;
 			}
 
-			boolean success = false;
 			// Send the request
-			try {
-				success = tds.sendRequest(getClient(), REQUEST_URL);
-			} catch (GeneralSecurityException e) {
-				if (TwimightBaseActivity.D)
-					Log.e(TAG, "GeneralSecurityException while sending TDS request");
-			}
+			boolean success = tds.sendRequest(TDSHttpClient.getInstance(), REQUEST_URL);
 
 			if (!success) {
 				if (TwimightBaseActivity.D)
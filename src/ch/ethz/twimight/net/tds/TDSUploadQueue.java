@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+import ch.ethz.twimight.net.twitter.Tweets;
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * The disaster tweets which still have to be uploaded to the TDS, split into
+ * chunks which are sent in separate requests. Tweets the TDS acknowledged are
+ * never uploaded again, the tweets of a failed request stay pending. Tweets
+ * the TDS received but did not acknowledge are uploaded again in later
+ * synchronizations, up to TDS_UPLOAD_MAX_ATTEMPTS times.
+ */
+class TDSUploadQueue {
+
+	private static final String TAG = "TDSUploadQueue";
+
+	private static final Uri PENDING_URI = Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/"
+			+ Tweets.TWEETS_TABLE_TIMELINE + "/" + Tweets.TWEETS_SOURCE_DISASTER + "/"
+			+ Tweets.TWEETS_SINCE_LAST_UPDATE);
+
+	/** JSON overhead of a tweet in the request */
+	private static final int TWEET_OVERHEAD = 256;
+	/** size we assume for a photo we cannot measure */
+	private static final long PHOTO_ESTIMATE = 256 * 1024L;
+
+	private final Context context;
+
+	TDSUploadQueue(Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Splits the pending tweets into chunks of at most TDS_UPLOAD_CHUNK_TWEETS
+	 * tweets and roughly TDS_UPLOAD_CHUNK_BYTES bytes. A tweet larger than the
+	 * cap is sent alone.
+	 *
+	 * @return lists of row IDs, oldest tweets first
+	 */
+	List<List<Long>> getChunks() {
+		List<List<Long>> chunks = new ArrayList<List<Long>>();
+		Cursor c = context.getContentResolver().query(PENDING_URI,
+				new String[] { Tweets.COL_ROW_ID, Tweets.COL_TEXT_PLAIN, Tweets.COL_MEDIA_URIS }, null, null, null);
+		if (c == null)
+			return chunks;
+
+		List<Long> chunk = new ArrayList<Long>();
+		long chunkBytes = 0;
+		while (c.moveToNext()) {
+			long size = estimateSize(c.getString(1), c.getString(2));
+			boolean full = chunk.size() >= Constants.TDS_UPLOAD_CHUNK_TWEETS
+					|| chunkBytes + size > Constants.TDS_UPLOAD_CHUNK_BYTES;
+			if (!chunk.isEmpty() && full) {
+				chunks.add(chunk);
+				chunk = new ArrayList<Long>();
+				chunkBytes = 0;
+			}
+			chunk.add(c.getLong(0));
+			chunkBytes += size;
+		}
+		c.close();
+		if (!chunk.isEmpty())
+			chunks.add(chunk);
+
+		Log.i(TAG, chunks.size() + " chunks to upload");
+		return chunks;
+	}
+
+	/**
+	 * @return the tweets of a chunk, for TDSCommunication.createDisTweetsObject
+	 */
+	Cursor query(List<Long> chunk) {
+		return context.getContentResolver().query(PENDING_URI, null, getChunkSelection(chunk), null, null);
+	}
+
+	/**
+	 * Applies the successful response of the TDS to a chunk we uploaded. For a
+	 * failed request (error status, version mismatch) nothing is applied and
+	 * the chunk stays pending.
+	 *
+	 * @param posted
+	 *            the acknowledged tweets (disaster id -> twitter id), null if
+	 *            the TDS did not send acknowledgements. Older servers don't,
+	 *            then the successful request counts for all tweets.
+	 */
+	void applyResult(List<Long> chunk, Map<Long, Long> posted) {
+		String chunkSelection = getChunkSelection(chunk);
+		ContentValues values = new ContentValues();
+
+		if (posted == null) {
+			values.put(Tweets.COL_TDS_STATE, Tweets.TDS_STATE_UPLOADED);
+			context.getContentResolver().update(PENDING_URI, values, chunkSelection, null);
+			return;
+		}
+
+		if (!posted.isEmpty()) {
+			values.put(Tweets.COL_TDS_STATE, Tweets.TDS_STATE_UPLOADED);
+			String postedSelection = Tweets.COL_DISASTER_ID + " IN (" + TextUtils.join(",", posted.keySet()) + ")";
+			context.getContentResolver().update(PENDING_URI, values, chunkSelection + " AND " + postedSelection, null);
+		}
+		// what the TDS saw but did not post stays pending, until it failed
+		// too often
+		Cursor c = context.getContentResolver().query(PENDING_URI,
+				new String[] { Tweets.COL_ROW_ID, Tweets.COL_TDS_ATTEMPTS }, chunkSelection, null, null);
+		if (c == null)
+			return;
+		int rejected = 0;
+		while (c.moveToNext()) {
+			int attempts = c.getInt(1) + 1;
+			values.clear();
+			values.put(Tweets.COL_TDS_ATTEMPTS, attempts);
+			if (attempts >= Constants.TDS_UPLOAD_MAX_ATTEMPTS) {
+				values.put(Tweets.COL_TDS_STATE, Tweets.TDS_STATE_REJECTED);
+				rejected++;
+			}
+			context.getContentResolver().update(PENDING_URI, values, Tweets.COL_ROW_ID + " = " + c.getLong(0), null);
+		}
+		if (c.getCount() > 0)
+			Log.w(TAG, c.getCount() + " tweets not acknowledged by the TDS, " + rejected + " given up");
+		c.close();
+	}
+
+	private static String getChunkSelection(List<Long> chunk) {
+		return Tweets.COL_ROW_ID + " IN (" + TextUtils.join(",", chunk) + ")";
+	}
+
+	private static long estimateSize(String text, String mediaUri) {
+		long size = TWEET_OVERHEAD + (text != null ? text.length() : 0);
+		if (mediaUri != null) {
+			Uri uri = Uri.parse(mediaUri);
+			File file = "file".equals(uri.getScheme()) && uri.getPath() != null ? new File(uri.getPath()) : null;
+			long photoBytes = file != null && file.isFile() ? file.length() : PHOTO_ESTIMATE;
+			// Base64
+			size += photoBytes * 4 / 3;
+		}
+		return size;
+	}
+}
@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
+import ch.ethz.twimight.R;
 import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.data.DBOpenHelper;
 import ch.ethz.twimight.security.CertificateManager;
@@ -336,101 +337,157 @@ public class DirectMessagesContentProvider extends ContentProvider {
 
 		case LIST_DISASTER:
 			Log.d(TAG, "Insert LIST_DISASTER");
-			// in disaster mode, we set the is disaster flag, encrypt and sign
-			// the message
-			// and sign the tweet (if we have a certificate for our key pair)
-			values.put(DirectMessages.COL_ISDISASTER, 1);
-
 			// if we already have a disaster tweet with the same disaster ID,
 			// we discard the new one
-			disasterId = getDisasterID(values);
-			c = database.query(DBOpenHelper.TABLE_DMS, null, DirectMessages.COL_DISASTERID + "=" + disasterId + " AND "
-					+ DirectMessages.COL_ISDISASTER + ">0", null, null, null, null);
-			if (c.getCount() > 0) {
-				c.moveToFirst();
-				Uri oldUri = Uri.parse("content://" + DirectMessages.DM_AUTHORITY + "/" + DirectMessages.DMS + "/"
-						+ Long.toString(c.getLong(c.getColumnIndex("_id"))));
-				c.close();
-				return oldUri;
+			insertUri = getExistingDisasterDM(values);
+			if (insertUri == null) {
+				insertUri = insertDisasterDM(values, new CertificateManager(getContext()), new KeyManager(getContext()
+						.getApplicationContext()));
 			}
+			// purgeTweets(values);
 
-			CertificateManager cm = new CertificateManager(getContext());
-			KeyManager km = new KeyManager(getContext().getApplicationContext());
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported URI: " + uri);
+		}
 
-			// verify whether I was the author or not
-			if (LoginActivity.getTwitterId(getContext()).equals(
-					values.getAsInteger(DirectMessages.COL_SENDER).toString())) {
+		return insertUri;
+	}
 
-				if (cm.hasCertificate()) {
+	/**
+	 * Looks for a disaster message with the same disaster ID
+	 * 
+	 * @return the URI of the stored message, null if there is none
+	 */
+	private Uri getExistingDisasterDM(ContentValues values) {
+		int disasterId = getDisasterID(values);
+		Cursor c = database.query(DBOpenHelper.TABLE_DMS, new String[] { "_id" }, DirectMessages.COL_DISASTERID + "="
+				+ disasterId + " AND " + DirectMessages.COL_ISDISASTER + ">0", null, null, null, null);
+		Uri oldUri = null;
+		if (c.moveToFirst()) {
+			oldUri = Uri.parse("content://" + DirectMessages.DM_AUTHORITY + "/" + DirectMessages.DMS + "/"
+					+ Long.toString(c.getLong(0)));
+		}
+		c.close();
+		return oldUri;
+	}
 
-					// we put the signature
-					String text = values.getAsString(DirectMessages.COL_TEXT);
-					String userId = LoginActivity.getTwitterId(getContext()).toString();
+	/**
+	 * Signs (own messages) or verifies (messages for us) a new disaster message
+	 * and inserts it. The caller checks for duplicates first.
+	 */
+	private Uri insertDisasterDM(ContentValues values, CertificateManager cm, KeyManager km) {
+		// in disaster mode, we set the is disaster flag, encrypt and sign
+		// the message
+		// and sign the tweet (if we have a certificate for our key pair)
+		values.put(DirectMessages.COL_ISDISASTER, 1);
+
+		// verify whether I was the author or not
+		if (LoginActivity.getTwitterId(getContext()).equals(
+				values.getAsInteger(DirectMessages.COL_SENDER).toString())) {
+
+			if (cm.hasCertificate()) {
+
+				// we put the signature
+				String text = values.getAsString(DirectMessages.COL_TEXT);
+				String userId = LoginActivity.getTwitterId(getContext()).toString();
+
+				String signature = km.getSignature(new String(text + userId));
+				values.put(DirectMessages.COL_SIGNATURE, signature);
+				// and the certificate
+				values.put(DirectMessages.COL_CERTIFICATE, cm.getCertificate());
+				// and set the is_verified flag to show that the tweet is
+				// signed
+				values.put(DirectMessages.COL_ISVERIFIED, 1);
+
+				// encrypt if we have the public key of the receiver, otherwise
+				// the text is carried in the clear as before
+				String cipherText = null;
+				resolveReceiver(values);
+				if (values.containsKey(DirectMessages.COL_RECEIVER)) {
+					cipherText = km.encrypt(text, values.getAsLong(DirectMessages.COL_RECEIVER));
+				}
+				values.put(DirectMessages.COL_CRYPTEXT, cipherText != null ? cipherText : text);
 
-					String signature = km.getSignature(new String(text + userId));
-					values.put(DirectMessages.COL_SIGNATURE, signature);
-					// and the certificate
-					values.put(DirectMessages.COL_CERTIFICATE, cm.getCertificate());
-					// and set the is_verified flag to show that the tweet is
-					// signed
-					values.put(DirectMessages.COL_ISVERIFIED, 1);
+			} else
+				values.put(DirectMessages.COL_ISVERIFIED, 0);
+
+		} else {
+			// Is it for me?
+			if (values.getAsLong(DirectMessages.COL_RECEIVER).toString()
+					.equals(LoginActivity.getTwitterId(getContext()))) {
+
+				values.put(DirectMessages.COL_BUFFER, DirectMessages.BUFFER_DISASTER_ME
+						| DirectMessages.BUFFER_MESSAGES);
+				String cipherText = values.getAsString(DirectMessages.COL_CRYPTEXT);
+				String plainText = km.decrypt(cipherText);
+				if (plainText == null && km.isEncrypted(cipherText)) {
+					// encrypted but we cannot read it (e.g., for an older key
+					// of ours), never show the cipher text as the message
+					values.put(DirectMessages.COL_TEXT, getContext().getString(R.string.dm_undecryptable));
+					values.put(DirectMessages.COL_ISVERIFIED, 0);
+					return insertDM(values);
+				}
+				if (plainText == null) {
+					// sent in the clear, the sender did not have our key
+					plainText = cipherText;
+				}
+				values.put(DirectMessages.COL_TEXT, plainText);
 
-					// Long twitterId =
-					// getIdFromScreenName(values.getAsString(DirectMessages.COL_RECEIVER_SCREENNAME));
+				// check signature
+				String signature = values.getAsString(DirectMessages.COL_SIGNATURE);
+				String certificate = values.getAsString(DirectMessages.COL_CERTIFICATE);
 
-					// TODO: obtain peers public keys and encrypt
-					values.put(DirectMessages.COL_CRYPTEXT, text);
-					/*
-					 * if (twitterId != null) { String cipherText =
-					 * km.encrypt(text,twitterId ); Log.i(TAG, "ciphertext: " +
-					 * cipherText ); if (cipherText != null) {
-					 * values.put(DirectMessages.COL_CRYPTEXT,cipherText );
-					 * 
-					 * } }
-					 */
+				String textForSignatureCheck = plainText + values.getAsString(DirectMessages.COL_SENDER);
 
+				if (km.checkSignature(cm.parsePem(certificate), signature, textForSignatureCheck)) {
+					values.put(DirectMessages.COL_ISVERIFIED, 1);
 				} else
 					values.put(DirectMessages.COL_ISVERIFIED, 0);
 
-			} else {
-				// Is it for me?
-				if (values.getAsLong(DirectMessages.COL_RECEIVER).toString()
-						.equals(LoginActivity.getTwitterId(getContext()))) {
-
-					values.put(DirectMessages.COL_BUFFER, DirectMessages.BUFFER_DISASTER_ME
-							| DirectMessages.BUFFER_MESSAGES);
-					// TODO: DECRYPT THE MESSAGE
-					// String plainText =
-					// km.decrypt(values.getAsString(DirectMessages.COL_CRYPTEXT));
-					String plainText = values.getAsString(DirectMessages.COL_CRYPTEXT);
-					// values.remove(DirectMessages.COL_CRYPTEXT);
-					values.put(DirectMessages.COL_TEXT, plainText);
-
-					// check signature
-					String signature = values.getAsString(DirectMessages.COL_SIGNATURE);
-					String certificate = values.getAsString(DirectMessages.COL_CERTIFICATE);
-
-					String textForSignatureCheck = plainText + values.getAsString(DirectMessages.COL_SENDER);
-
-					if (km.checkSignature(cm.parsePem(certificate), signature, textForSignatureCheck)) {
-						values.put(DirectMessages.COL_ISVERIFIED, 1);
-					} else
-						values.put(DirectMessages.COL_ISVERIFIED, 0);
-
-				} else
-					values.put(DirectMessages.COL_BUFFER, DirectMessages.BUFFER_DISASTER_OTHERS);
+			} else
+				values.put(DirectMessages.COL_BUFFER, DirectMessages.BUFFER_DISASTER_OTHERS);
 
-			}
-			c.close();
-			insertUri = insertDM(values);
-			// purgeTweets(values);
+		}
+		return insertDM(values);
+	}
 
-			break;
-		default:
-			throw new IllegalArgumentException("Unsupported URI: " + uri);
+	/**
+	 * Inserts a batch of disaster messages (e.g., all messages received from a
+	 * peer during one Bluetooth session) in one transaction, sharing the
+	 * certificate and key managers and purging the buffers once at the end.
+	 */
+	@Override
+	public synchronized int bulkInsert(Uri uri, ContentValues[] values) {
+		if (dmUriMatcher.match(uri) != LIST_DISASTER) {
+			return super.bulkInsert(uri, values);
 		}
 
-		return insertUri;
+		int numInserted = 0;
+		CertificateManager cm = new CertificateManager(getContext());
+		KeyManager km = new KeyManager(getContext().getApplicationContext());
+
+		database.beginTransaction();
+		try {
+			for (ContentValues value : values) {
+				try {
+					if (value != null && getExistingDisasterDM(value) == null
+							&& insertDisasterDM(value, cm, km) != null) {
+						numInserted++;
+					}
+				} catch (IllegalStateException ex) {
+					Log.e(TAG, "could not insert disaster message", ex);
+				}
+			}
+			ContentValues purge = new ContentValues();
+			purge.put(DirectMessages.COL_BUFFER, DirectMessages.BUFFER_DISASTER_OTHERS
+					| DirectMessages.BUFFER_DISASTER_ME);
+			purgeDMs(purge);
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+		return numInserted;
 	}
 
 	/**
@@ -586,6 +643,28 @@ public class DirectMessagesContentProvider extends ContentProvider {
 		return true;
 	}
 
+	/**
+	 * For our own new messages, we have a receiver screenname but no ID. Check
+	 * if we have a corresponding ID in the TwitterUsers
+	 */
+	private void resolveReceiver(ContentValues values) {
+		if (!values.containsKey(DirectMessages.COL_RECEIVER)
+				&& values.containsKey(DirectMessages.COL_RECEIVER_SCREENNAME)) {
+			String[] projection = { TwitterUsers.COL_TWITTER_USER_ID };
+			String where = TwitterUsers.COL_SCREEN_NAME + "='"
+					+ values.getAsString(DirectMessages.COL_RECEIVER_SCREENNAME) + "'";
+			Cursor c = getContext().getContentResolver()
+					.query(Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/"
+							+ TwitterUsers.TWITTERUSERS), projection, where, null, null);
+			if (c.getCount() > 0) {
+				c.moveToFirst();
+				values.put(DirectMessages.COL_RECEIVER,
+						c.getLong(c.getColumnIndex(TwitterUsers.COL_TWITTER_USER_ID)));
+			}
+			c.close();
+		}
+	}
+
 	/**
 	 * Inserts a direct message into the DB
 	 */
@@ -608,24 +687,7 @@ public class DirectMessagesContentProvider extends ContentProvider {
 				values.put(DirectMessages.COL_DISASTERID, getDisasterID(values));
 			}
 
-			// for our own new messages, we have a receiver screenname but no
-			// ID.
-			// Check if we have a corresponding ID in the TwitterUsers
-			if (!values.containsKey(DirectMessages.COL_RECEIVER)
-					&& values.containsKey(DirectMessages.COL_RECEIVER_SCREENNAME)) {
-				String[] projection = { TwitterUsers.COL_TWITTER_USER_ID };
-				String where = TwitterUsers.COL_SCREEN_NAME + "='"
-						+ values.getAsString(DirectMessages.COL_RECEIVER_SCREENNAME) + "'";
-				Cursor c = getContext().getContentResolver()
-						.query(Uri.parse("content://" + TwitterUsers.TWITTERUSERS_AUTHORITY + "/"
-								+ TwitterUsers.TWITTERUSERS), projection, where, null, null);
-				if (c.getCount() > 0) {
-					c.moveToFirst();
-					values.put(DirectMessages.COL_RECEIVER,
-							c.getLong(c.getColumnIndex(TwitterUsers.COL_TWITTER_USER_ID)));
-				}
-				c.close();
-			}
+			resolveReceiver(values);
 
 			long rowId = database.insert(DBOpenHelper.TABLE_DMS, null, values);
 			if (rowId >= 0) {
@@ -2,11 +2,8 @@ package ch.ethz.twimight.net.twitter;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
-import twitter4j.MediaEntity;
-import twitter4j.URLEntity;
 import android.app.IntentService;
 import android.content.ContentValues;
 import android.content.Intent;
@@ -20,7 +17,6 @@ import ch.ethz.twimight.net.Html.HtmlPage;
 import ch.ethz.twimight.net.Html.StartServiceHelper;
 import ch.ethz.twimight.util.Constants;
 import ch.ethz.twimight.util.SDCardHelper;
-import ch.ethz.twimight.util.Serialization;
 
 /**
  * Initiates an action on a single tweet.
@@ -117,10 +113,9 @@ public class TweetActionService extends IntentService {
 
 		}
 		// delete html pages
-		List<String> linkUrls = getLinkUrls();
-
 		HtmlPagesDbHelper htmlDbHelper = new HtmlPagesDbHelper(this);
 		htmlDbHelper.open();
+		List<String> linkUrls = getLinkUrls(htmlDbHelper);
 
 		if (!linkUrls.isEmpty()) {
 			for (String htmlUrl : linkUrls) {
@@ -194,34 +189,21 @@ public class TweetActionService extends IntentService {
 		getContentResolver().update(mUri, cv, null, null);
 	}
 
-	private List<String> getLinkUrls() {
-		List<String> linkUrls = new LinkedList<String>();
-		byte[] serializedMediaEntities = mCursor.getBlob(mCursor.getColumnIndex(Tweets.COL_MEDIA_ENTITIES));
-		MediaEntity[] mediaEntities = Serialization.deserialize(serializedMediaEntities);
-		if (mediaEntities != null) {
-			for (URLEntity mediaEntity : mediaEntities) {
-				linkUrls.add(mediaEntity.getURL());
-			}
-		}
-		byte[] serializedUrlEntities = mCursor.getBlob(mCursor.getColumnIndex(Tweets.COL_URL_ENTITIES));
-		URLEntity[] urlEntities = Serialization.deserialize(serializedUrlEntities);
-		if (urlEntities != null) {
-			for (URLEntity urlEntity : urlEntities) {
-				linkUrls.add(urlEntity.getURL());
-			}
-		}
-		return linkUrls;
+	/**
+	 * The urls of the tweet, written to the links table when it was inserted
+	 */
+	private List<String> getLinkUrls(HtmlPagesDbHelper htmlDbHelper) {
+		return htmlDbHelper.getLinks(mCursor.getLong(mCursor.getColumnIndex(Tweets.COL_DISASTER_ID)));
 	}
 
 	/**
 	 * Downloads the links contained in the specified tweet.
 	 */
 	private void cacheLinks() {
-		List<String> linkUrls = getLinkUrls();
-		List<String> urlsToDownload = new ArrayList<String>();
-
 		HtmlPagesDbHelper htmlDbHelper = new HtmlPagesDbHelper(this);
 		htmlDbHelper.open();
+		List<String> linkUrls = getLinkUrls(htmlDbHelper);
+		List<String> urlsToDownload = new ArrayList<String>();
 		String ownTwitterId = LoginActivity.getTwitterId(this);
 		for (String linkUrl : linkUrls) {
 			Cursor cursorInfo = htmlDbHelper.getPageInfo(linkUrl);
@@ -278,7 +260,7 @@ public class TweetActionService extends IntentService {
 				}
 			}
 
-			getContentResolver().notifyChange(Tweets.TABLE_TIMELINE_URI, null);
+			htmlDbHelper.notifyChange();
 			// insert database and start downloading service
 			StartServiceHelper.startService(this);
 		}
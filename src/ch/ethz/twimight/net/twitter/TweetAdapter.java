@@ -44,9 +44,9 @@ public class TweetAdapter extends CursorAdapter {
 		setSelectedId(NO_ITEM_SELECTED);
 	}
 
-	/** Constructor */
+	/** Constructor, the cursor is reloaded by the loader of the list */
 	public TweetAdapter(Context context, Cursor c) {
-		super(context, c, true);
+		super(context, c, 0);
 	}
 
 	@Override
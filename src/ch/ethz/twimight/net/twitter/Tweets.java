@@ -158,6 +158,11 @@ public class Tweets implements BaseColumns {
 	// public static final String COL_URLS = "";
 	/** status of html pages related to this tweet, 0: not have, 1: does have */
 	public static final String COL_HTML_PAGES = "html_pages";
+	/**
+	 * download state of the linked pages, one of the OFFLINE_ constants.
+	 * Computed in queries of the provider, not stored.
+	 */
+	public static final String COL_OFFLINE_STATUS = "offline_status";
 
 	// for disaster mode
 	/**
@@ -166,12 +171,24 @@ public class Tweets implements BaseColumns {
 	 * TWEETS_COLUMNS_TEXT+TWEETS_COLUMNS_USER
 	 */
 	public static final String COL_DISASTER_ID = "d_id";
-	/** is the signature of the disaster tweet valid? */
+	/** is the signature of the disaster tweet valid? 1 yes, 0 no, VERIFICATION_PENDING not known yet */
 	public static final String COL_IS_VERIFIED = "is_verified";
+	/** value of COL_IS_VERIFIED while the signature is checked in the background */
+	public static final int VERIFICATION_PENDING = -1;
 	/** the signature of the disaster tweet */
 	public static final String COL_SIGNATURE = "signature";
 	/** the certificate of the user */
 	public static final String COL_CERTIFICATE = "certificate";
+	/** has the disaster tweet been uploaded to the TDS? One of the TDS_STATE values */
+	public static final String COL_TDS_STATE = "tds_state";
+	/** not uploaded yet, or the upload failed */
+	public static final int TDS_STATE_PENDING = 0;
+	/** the TDS acknowledged the tweet */
+	public static final int TDS_STATE_UPLOADED = 1;
+	/** the TDS did not acknowledge the tweet in TDS_UPLOAD_MAX_ATTEMPTS uploads, we don't try again */
+	public static final int TDS_STATE_REJECTED = 2;
+	/** how many times the TDS received the disaster tweet without acknowledging it */
+	public static final String COL_TDS_ATTEMPTS = "tds_attempts";
 
 	public static final String DEFAULT_SORT_ORDER = COL_CREATED_AT + " desc";
 	public static final String REVERSE_SORT_ORDER = COL_CREATED_AT + " asc";
@@ -207,4 +224,12 @@ public class Tweets implements BaseColumns {
 	/** Results obtained from searching on Twitter */
 	public static final int BUFFER_SEARCH = 64;
 
+	// values of COL_OFFLINE_STATUS
+	/** No linked pages */
+	public static final int OFFLINE_NONE = 0;
+	/** Some linked pages are not stored yet */
+	public static final int OFFLINE_DOWNLOADING = 1;
+	/** All linked pages are stored */
+	public static final int OFFLINE_DOWNLOADED = 2;
+
 }
@@ -13,8 +13,15 @@
 
 package ch.ethz.twimight.net.twitter;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
+import twitter4j.MediaEntity;
+import twitter4j.URLEntity;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -26,18 +33,23 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 import android.text.Html;
 import android.text.TextUtils;
 import android.util.Log;
 import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.data.DBOpenHelper;
+import ch.ethz.twimight.net.Html.HtmlPage;
 import ch.ethz.twimight.net.opportunistic.ScanningService;
-import ch.ethz.twimight.net.tds.TDSService;
+import ch.ethz.twimight.net.tds.TDSAlarm;
 import ch.ethz.twimight.security.CertificateManager;
 import ch.ethz.twimight.security.KeyManager;
+import ch.ethz.twimight.security.SignatureVerifier;
 import ch.ethz.twimight.util.Constants;
+import ch.ethz.twimight.util.Serialization;
 
 /**
  * The content provider for all kinds of tweets (normal, disaster, favorites,
@@ -94,6 +106,18 @@ public class TweetsContentProvider extends ContentProvider {
 			+ DBOpenHelper.TABLE_USERS + " on " + DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_SCREEN_NAME + "="
 			+ DBOpenHelper.TABLE_USERS + "." + TwitterUsers.COL_SCREEN_NAME;
 
+	/**
+	 * The download state of the pages linked from a tweet, so the list does not
+	 * have to look it up for every row it binds. The links of the tweet come
+	 * from the links table, their pages from the htmls by url.
+	 */
+	private static final String OFFLINE_STATUS_COLUMN = "(SELECT CASE WHEN COUNT(*) = 0 THEN " + Tweets.OFFLINE_NONE
+			+ " WHEN COUNT(" + HtmlPage.COL_FILENAME + ") < COUNT(*) THEN " + Tweets.OFFLINE_DOWNLOADING + " ELSE "
+			+ Tweets.OFFLINE_DOWNLOADED + " END FROM " + DBOpenHelper.TABLE_LINKS + " JOIN " + DBOpenHelper.TABLE_HTML
+			+ " ON " + DBOpenHelper.TABLE_HTML + "." + HtmlPage.COL_URL + " = " + DBOpenHelper.TABLE_LINKS + "."
+			+ HtmlPage.COL_URL + " WHERE " + DBOpenHelper.TABLE_LINKS + "." + HtmlPage.COL_DISASTERID + " = "
+			+ DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_DISASTER_ID + ") AS " + Tweets.COL_OFFLINE_STATUS;
+
 	private static final String[] TWEETS_WITH_USERS_COLUMNS = new String[] {
 			DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_ROW_ID, DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_TID,
 			DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_USER_MENTION_ENTITIES,
@@ -113,6 +137,7 @@ public class TweetsContentProvider extends ContentProvider {
 			DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_FLAGS, DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_BUFFER,
 			DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_MEDIA_URIS,
 			DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_HTML_PAGES,
+			OFFLINE_STATUS_COLUMN,
 			DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_DISASTER_ID,
 			DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_IS_VERIFIED,
 			DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_RETWEETED_BY,
@@ -189,6 +214,7 @@ public class TweetsContentProvider extends ContentProvider {
 		dbHelper = DBOpenHelper.getInstance(getContext().getApplicationContext());
 		database = dbHelper.getWritableDatabase();
 		localScreenName = LoginActivity.getTwitterScreenname(getContext());
+		new VerifyPendingTask().execute();
 		return true;
 	}
 
@@ -255,7 +281,9 @@ public class TweetsContentProvider extends ContentProvider {
 	}
 
 	/**
-	 * Query the timeline table TODO: Create the queries more elegantly..
+	 * Query the timeline table. Queries do not sync with Twitter, the lists
+	 * request a sync with TwitterSyncService.requestSync when they are shown.
+	 * TODO: Create the queries more elegantly..
 	 */
 	@Override
 	public Cursor query(Uri uri, String[] projection, String where, String[] whereArgs, String sortOrder) {
@@ -263,8 +291,6 @@ public class TweetsContentProvider extends ContentProvider {
 		if (TextUtils.isEmpty(sortOrder)) {
 			sortOrder = Tweets.DEFAULT_SORT_ORDER;
 		}
-		
-		Intent i;
 
 		/*
 		 * Components of the resulting query
@@ -284,12 +310,18 @@ public class TweetsContentProvider extends ContentProvider {
 
 		case TWEETS_TIMELINE_DISASTER_NEW:
 
+			// signed disaster tweets which still have to be uploaded to the
+			// TDS, oldest first
 			table = DBOpenHelper.TABLE_TWEETS;
-			columns = null;
-			long timestamp_dis = TDSService.getLastUpdate(getContext());
+			columns = projection;
 			selection = Tweets.COL_BUFFER + " & (" + Tweets.BUFFER_DISASTER + "|" + Tweets.BUFFER_MYDISASTER
-					+ ") != 0 AND " + Tweets.COL_RECEIVED + " >= " + timestamp_dis;
-			orderBy = Tweets.DEFAULT_SORT_ORDER;
+					+ ") != 0 AND " + Tweets.COL_SIGNATURE + " IS NOT NULL AND " + Tweets.COL_TDS_STATE + " = "
+					+ Tweets.TDS_STATE_PENDING;
+			if (where != null) {
+				selection += " AND (" + where + ")";
+				selectionArgs = whereArgs;
+			}
+			orderBy = Tweets.COL_ROW_ID + " ASC";
 
 			break;
 
@@ -340,11 +372,6 @@ public class TweetsContentProvider extends ContentProvider {
 			selectionArgs = new String[] { "%" + where + "%" };
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			// start synch service with a synch timeline request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SEARCH_TWEET);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_TWEET_SEARCH_QUERY, where);
-			getContext().startService(i);
 			break;
 
 		case TWEETS_TIMELINE_NORMAL:
@@ -355,10 +382,6 @@ public class TweetsContentProvider extends ContentProvider {
 					+ ")!=0";
 			orderBy = Tweets.REVERSE_SORT_ORDER;
 
-			// start synch service with a synch timeline request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_TIMELINE);
-			getContext().startService(i);
 			break;
 		case TWEETS_TIMELINE_DISASTER:
 
@@ -367,7 +390,8 @@ public class TweetsContentProvider extends ContentProvider {
 			selection = "(" + DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_BUFFER + "&" + Tweets.BUFFER_DISASTER
 					+ ")!=0 or (" + DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_BUFFER + "&"
 					+ Tweets.BUFFER_MYDISASTER + ")!=0";
-			orderBy = Tweets.DEFAULT_SORT_ORDER;
+			// the Bluetooth exchange sends in insertion order
+			orderBy = TextUtils.isEmpty(sortOrder) ? Tweets.DEFAULT_SORT_ORDER : sortOrder;
 
 			break;
 		case TWEETS_TIMELINE_ALL:
@@ -380,10 +404,6 @@ public class TweetsContentProvider extends ContentProvider {
 					+ "&" + Tweets.BUFFER_TIMELINE + ")!=0";
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			// start synch service with a synch timeline request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_TIMELINE);
-			getContext().startService(i);
 			break;
 		case TWEETS_TIMELINE_RECEIVED_AFTER:
 
@@ -418,13 +438,6 @@ public class TweetsContentProvider extends ContentProvider {
 			selectionArgs = new String[] { uri.getLastPathSegment(), screenName };
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			if (userCursor.getCount() > 0) {
-				// start synch service with a synch user tweets request
-				i = new Intent(getContext(), TwitterSyncService.class);
-				i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_USER_TWEETS);
-				i.putExtra(TwitterSyncService.EXTRA_KEY_SCREEN_NAME, screenName);
-				getContext().startService(i);
-			}
 			userCursor.close();
 
 			break;
@@ -438,11 +451,6 @@ public class TweetsContentProvider extends ContentProvider {
 					+ Tweets.BUFFER_DISASTER + "|" + Tweets.BUFFER_MYDISASTER + "))=0";
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			// start synch service with a synch favorites request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_FAVORITES);
-			getContext().startService(i);
-
 			break;
 		case TWEETS_FAVORITES_DISASTER:
 
@@ -453,10 +461,6 @@ public class TweetsContentProvider extends ContentProvider {
 					+ Tweets.BUFFER_DISASTER + "|" + Tweets.BUFFER_MYDISASTER + "))!=0";
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			// start synch service with a synch favorites request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_FAVORITES);
-			getContext().startService(i);
 			break;
 
 		case TWEETS_FAVORITES_ALL:
@@ -467,10 +471,6 @@ public class TweetsContentProvider extends ContentProvider {
 					+ ")!=0";
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			// start synch service with a synch favorites request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_FAVORITES);
-			getContext().startService(i);
 			break;
 
 		case TWEETS_MENTIONS_NORMAL:
@@ -482,11 +482,6 @@ public class TweetsContentProvider extends ContentProvider {
 					+ Tweets.BUFFER_DISASTER + "|" + Tweets.BUFFER_MYDISASTER + "))=0";
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			// start synch service with a synch mentions request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_MENTIONS);
-			getContext().startService(i);
-
 			break;
 		case TWEETS_MENTIONS_DISASTER:
 			table = TABLE_TWEETS_WITH_USERS;
@@ -496,11 +491,6 @@ public class TweetsContentProvider extends ContentProvider {
 					+ Tweets.BUFFER_DISASTER + "|" + Tweets.BUFFER_MYDISASTER + ")) !=0";
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			// start synch service with a synch mentions request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_MENTIONS);
-			getContext().startService(i);
-
 			break;
 		case TWEETS_MENTIONS_ALL:
 			table = TABLE_TWEETS_WITH_USERS;
@@ -509,11 +499,6 @@ public class TweetsContentProvider extends ContentProvider {
 					+ ")!=0";
 			orderBy = Tweets.DEFAULT_SORT_ORDER;
 
-			// start synch service with a synch mentions request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_MENTIONS);
-			getContext().startService(i);
-
 			break;
 		case TWEETS_MENTIONS_RECEIVED_AFTER:
 			table = TABLE_TWEETS_WITH_USERS;
@@ -539,6 +524,10 @@ public class TweetsContentProvider extends ContentProvider {
 	 */
 	@Override
 	public int bulkInsert(Uri uri, ContentValues[] values) {
+		if (tweetUriMatcher.match(uri) == TWEETS_TIMELINE_DISASTER) {
+			return bulkInsertDisasterTweets(values);
+		}
+
 		int numInserted = 0;
 		database.beginTransaction();
 		try {
@@ -559,6 +548,40 @@ public class TweetsContentProvider extends ContentProvider {
 		return numInserted;
 	}
 
+	/**
+	 * Inserts a batch of disaster tweets (e.g., all tweets received from a peer
+	 * during one Bluetooth session) in one transaction. The certificate and key
+	 * managers are shared by the whole batch, and the buffer is purged and the
+	 * upload to the TDS is triggered only once at the end.
+	 */
+	private int bulkInsertDisasterTweets(ContentValues[] values) {
+		int numInserted = 0;
+		CertificateManager cm = new CertificateManager(getContext().getApplicationContext());
+		KeyManager km = new KeyManager(getContext().getApplicationContext());
+		List<SignatureVerifier.Request> pending = new ArrayList<SignatureVerifier.Request>();
+
+		database.beginTransaction();
+		try {
+			for (ContentValues value : values) {
+				if (value != null && getExistingDisasterTweet(value) == null
+						&& insertDisasterTweet(value, cm, km, pending) != null) {
+					numInserted++;
+				}
+			}
+			purgeTweets(Tweets.BUFFER_DISASTER | Tweets.BUFFER_MYDISASTER);
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+
+		// the whole batch is verified in the background
+		SignatureVerifier.getInstance(getContext()).verify(pending, verificationListener);
+		if (numInserted > 0) {
+			triggerDisasterUpload();
+		}
+		return numInserted;
+	}
+
 	/**
 	 * Insert a tweet into the DB
 	 */
@@ -575,7 +598,16 @@ public class TweetsContentProvider extends ContentProvider {
 
 		case TWEETS_TIMELINE_DISASTER:
 
-			insertUri = insertDisasterTweet(values);
+			// if we already have a disaster tweet with the same disaster ID,
+			// we discard the new one
+			insertUri = getExistingDisasterTweet(values);
+			if (insertUri == null) {
+				List<SignatureVerifier.Request> pending = new ArrayList<SignatureVerifier.Request>();
+				insertUri = insertDisasterTweet(values, new CertificateManager(getContext().getApplicationContext()),
+						new KeyManager(getContext().getApplicationContext()), pending);
+				SignatureVerifier.getInstance(getContext()).verify(pending, verificationListener);
+				triggerDisasterUpload();
+			}
 			break;
 
 		default:
@@ -586,33 +618,52 @@ public class TweetsContentProvider extends ContentProvider {
 		return insertUri;
 	}
 
-	private Uri insertDisasterTweet(ContentValues values) {
+	/**
+	 * Request an upload to the Twimight Disaster Server. The requests of a
+	 * burst of new tweets are coalesced into one upload.
+	 */
+	private void triggerDisasterUpload() {
+		TDSAlarm.requestUpload(getContext());
+	}
+
+	/**
+	 * Looks for a disaster tweet with the same disaster ID
+	 * 
+	 * @return the URI of the stored tweet, null if there is none
+	 */
+	private Uri getExistingDisasterTweet(ContentValues values) {
+		int disasterId = getDisasterID(values);
+
+		Cursor c = database.query(DBOpenHelper.TABLE_TWEETS, new String[] { Tweets.COL_ROW_ID },
+				Tweets.COL_DISASTER_ID + "=" + disasterId + " AND (" + DBOpenHelper.TABLE_TWEETS + "."
+						+ Tweets.COL_BUFFER + " & (" + Tweets.BUFFER_DISASTER + "|" + Tweets.BUFFER_MYDISASTER
+						+ ") )!=0 ", null, null, null, null);
+		Uri oldUri = null;
+		if (c.moveToFirst()) {
+			oldUri = Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/"
+					+ Long.toString(c.getLong(0)));
+		}
+		c.close();
+		return oldUri;
+	}
+
+	/**
+	 * Signs (own tweets) or verifies (tweets of others) a new disaster tweet
+	 * and inserts it. The caller checks for duplicates first.
+	 * 
+	 * @param pending
+	 *            tweets of others whose signature we have not checked before
+	 *            are inserted as pending and added here, the caller hands them
+	 *            to the SignatureVerifier
+	 */
+	private Uri insertDisasterTweet(ContentValues values, CertificateManager cm, KeyManager km,
+			List<SignatureVerifier.Request> pending) {
 
-		int disasterId;
-		Cursor c;
 		Uri insertUri = null; // the return value;
 
 		// in disaster mode, we set the is disaster flag
 		// and sign the tweet (if we have a certificate for our key pair)
 
-		// if we already have a disaster tweet with the same disaster ID,
-		// we discard the new one
-		disasterId = getDisasterID(values);
-
-		c = database.query(DBOpenHelper.TABLE_TWEETS, null, Tweets.COL_DISASTER_ID + "=" + disasterId + " AND ("
-				+ DBOpenHelper.TABLE_TWEETS + "." + Tweets.COL_BUFFER + " & (" + Tweets.BUFFER_DISASTER + "|"
-				+ Tweets.BUFFER_MYDISASTER + ") )!=0 ", null, null, null, null);
-		if (c.getCount() > 0) {
-			c.moveToFirst();
-			Uri oldUri = Uri.parse("content://" + Tweets.TWEET_AUTHORITY + "/" + Tweets.TWEETS + "/"
-					+ Long.toString(c.getLong(c.getColumnIndex("_id"))));
-			return oldUri;
-		}
-		c.close();
-
-		CertificateManager cm = new CertificateManager(getContext().getApplicationContext());
-		KeyManager km = new KeyManager(getContext().getApplicationContext());
-
 		// verify whether I was the author or not
 		if (LoginActivity.getTwitterId(getContext()).equals(values.getAsInteger(Tweets.COL_USER_TID).toString())) {
 
@@ -629,40 +680,86 @@ public class TweetsContentProvider extends ContentProvider {
 				Intent i = new Intent(getContext().getApplicationContext(), ScanningService.class);
 				getContext().getApplicationContext().startService(i);
 			}
+			insertUri = insertTweet(values);
+
 		} else {
 
-			verifySignature(cm, km, values);
+			String certificate = values.getAsString(Tweets.COL_CERTIFICATE);
+			String signature = values.getAsString(Tweets.COL_SIGNATURE);
+			String text = values.getAsString(Tweets.COL_TEXT) + values.getAsString(Tweets.COL_USER_TID);
 
-		}
+			// did we see this tweet before (e.g., from another peer)?
+			Boolean verified = SignatureVerifier.getInstance(getContext()).getCachedResult(certificate, signature, text);
+			if (verified != null) {
+				values.put(Tweets.COL_IS_VERIFIED, verified ? 1 : 0);
+			} else {
+				values.put(Tweets.COL_IS_VERIFIED, Tweets.VERIFICATION_PENDING);
+			}
 
-		insertUri = insertTweet(values);
+			insertUri = insertTweet(values);
 
-		// trigger upload to Twimight Disaster Server
-		Intent synchIntent = new Intent(getContext(), TDSService.class);
-		synchIntent.putExtra("synch_request", TDSService.SYNCH_ALL_FORCE);
-		getContext().startService(synchIntent);
+			if (verified == null && insertUri != null) {
+				pending.add(new SignatureVerifier.Request(ContentUris.parseId(insertUri), certificate, values
+						.getAsString(Tweets.COL_USER_TID), signature, text));
+			}
+		}
 
 		return insertUri;
 	}
 
-	private void verifySignature(CertificateManager cm, KeyManager km, ContentValues values) {
-		String certificate = values.getAsString(Tweets.COL_CERTIFICATE);
-		// check validity
-		if (cm.checkCertificate(cm.parsePem(certificate), values.getAsLong(Tweets.COL_USER_TID).toString())) {
-
-			// check signature
-			String signature = values.getAsString(Tweets.COL_SIGNATURE);
-			String text = values.getAsString(Tweets.COL_TEXT) + values.getAsString(Tweets.COL_USER_TID);
-			if (km.checkSignature(cm.parsePem(certificate), signature, text)) {
-				values.put(Tweets.COL_IS_VERIFIED, 1);
-			} else {
-				values.put(Tweets.COL_IS_VERIFIED, 0);
+	/**
+	 * Stores the results of a verified batch
+	 */
+	private final SignatureVerifier.Listener verificationListener = new SignatureVerifier.Listener() {
+
+		@Override
+		public void onVerified(Map<Long, Boolean> results) {
+			database.beginTransaction();
+			try {
+				ContentValues cv = new ContentValues();
+				for (Map.Entry<Long, Boolean> result : results.entrySet()) {
+					cv.put(Tweets.COL_IS_VERIFIED, result.getValue() ? 1 : 0);
+					database.update(DBOpenHelper.TABLE_TWEETS, cv, Tweets.COL_ROW_ID + "=?",
+							new String[] { result.getKey().toString() });
+				}
+				database.setTransactionSuccessful();
+			} finally {
+				database.endTransaction();
 			}
+			getContext().getContentResolver().notifyChange(Tweets.ALL_TWEETS_URI, null);
+		}
+	};
 
-		} else {
-			values.put(Tweets.COL_IS_VERIFIED, 0);
+	/**
+	 * Tweets can stay pending if we were killed before their batch was
+	 * verified, we verify them again after a restart. Not on the main thread.
+	 */
+	private void verifyPendingTweets() {
+		Cursor c = database.query(DBOpenHelper.TABLE_TWEETS, new String[] { Tweets.COL_ROW_ID, Tweets.COL_TEXT,
+				Tweets.COL_USER_TID, Tweets.COL_CERTIFICATE, Tweets.COL_SIGNATURE }, Tweets.COL_IS_VERIFIED + "="
+				+ Tweets.VERIFICATION_PENDING, null, null, null, null);
+		List<SignatureVerifier.Request> pending = new ArrayList<SignatureVerifier.Request>();
+		while (c.moveToNext()) {
+			String twitterId = c.getString(c.getColumnIndex(Tweets.COL_USER_TID));
+			pending.add(new SignatureVerifier.Request(c.getLong(c.getColumnIndex(Tweets.COL_ROW_ID)), c.getString(c
+					.getColumnIndex(Tweets.COL_CERTIFICATE)), twitterId, c.getString(c
+					.getColumnIndex(Tweets.COL_SIGNATURE)), c.getString(c.getColumnIndex(Tweets.COL_TEXT)) + twitterId));
+			// in batches, so that the results are stored as they come
+			if (pending.size() == Constants.VERIFICATION_BATCH_SIZE) {
+				SignatureVerifier.getInstance(getContext()).verify(pending, verificationListener);
+				pending = new ArrayList<SignatureVerifier.Request>();
+			}
 		}
+		c.close();
+		SignatureVerifier.getInstance(getContext()).verify(pending, verificationListener);
+	}
 
+	private class VerifyPendingTask extends AsyncTask<Void, Void, Void> {
+		@Override
+		protected Void doInBackground(Void... params) {
+			verifyPendingTweets();
+			return null;
+		}
 	}
 
 	private void signTweet(CertificateManager cm, KeyManager km, ContentValues values) {
@@ -707,6 +804,8 @@ public class TweetsContentProvider extends ContentProvider {
 		if (c.getCount() == 1) {
 			Log.d(TAG, "tweet with disaster id " + disasterId + " exists in db");
 			c.moveToFirst();
+			// a disaster tweet we sent gets its entities from Twitter
+			insertLinks(disasterId, values);
 			if (Long.toString(c.getLong(c.getColumnIndex(Tweets.COL_USER_TID))).equals(
 					LoginActivity.getTwitterId(getContext()))) {
 				// clear the to insert flag
@@ -775,6 +874,11 @@ public class TweetsContentProvider extends ContentProvider {
 	@Override
 	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
 
+		if (tweetUriMatcher.match(uri) == TWEETS_TIMELINE_DISASTER_NEW) {
+			// the upload state of disaster tweets, nothing to notify
+			return database.update(DBOpenHelper.TABLE_TWEETS, values, selection, selectionArgs);
+		}
+
 		if (tweetUriMatcher.match(uri) != TWEETS_ROW_ID) {
 			throw new IllegalArgumentException("Unsupported URI: " + uri);
 		}
@@ -822,6 +926,7 @@ public class TweetsContentProvider extends ContentProvider {
 		}
 
 		int nrRows = database.delete(DBOpenHelper.TABLE_TWEETS, "_id=" + uri.getLastPathSegment(), null);
+		deleteOrphanedLinks();
 		getContext().getContentResolver().notifyChange(uri, null);
 		getContext().getContentResolver().notifyChange(Tweets.TABLE_FAVORITES_URI, null);
 		getContext().getContentResolver().notifyChange(Tweets.TABLE_TIMELINE_URI, null);
@@ -893,10 +998,66 @@ public class TweetsContentProvider extends ContentProvider {
 		// now delete all the tweets that aren't in any buffer anymore
 		int result = database.delete(DBOpenHelper.TABLE_TWEETS, Tweets.COL_BUFFER + "=0", null);
 		Log.d(TAG, "deleted " + result + " tweets");
+		if (result > 0)
+			deleteOrphanedLinks();
 
 		getContext().getContentResolver().notifyChange(Tweets.ALL_TWEETS_URI, null);
 	}
 
+	/**
+	 * Writes the links of a tweet to the links table, so they are not looked
+	 * for in the text again. Tweets from Twitter come with their url and media
+	 * entities, disaster tweets only with their text.
+	 */
+	private void insertLinks(long disasterId, ContentValues values) {
+		Set<String> urls = new LinkedHashSet<String>();
+		URLEntity[] urlEntities = Serialization.deserialize(values.getAsByteArray(Tweets.COL_URL_ENTITIES));
+		MediaEntity[] mediaEntities = Serialization.deserialize(values.getAsByteArray(Tweets.COL_MEDIA_ENTITIES));
+		if (urlEntities != null || mediaEntities != null) {
+			if (urlEntities != null) {
+				for (URLEntity urlEntity : urlEntities) {
+					urls.add(urlEntity.getExpandedURL());
+				}
+			}
+			if (mediaEntities != null) {
+				for (MediaEntity mediaEntity : mediaEntities) {
+					urls.add(mediaEntity.getExpandedURL());
+				}
+			}
+		} else if (values.getAsString(Tweets.COL_TEXT) != null) {
+			String text = Html.fromHtml(values.getAsString(Tweets.COL_TEXT)).toString();
+			for (String word : text.split("\\s+")) {
+				int start = word.indexOf("http://");
+				if (start < 0)
+					start = word.indexOf("https://");
+				if (start >= 0)
+					urls.add(word.substring(start));
+			}
+		}
+		if (urls.isEmpty())
+			return;
+
+		SQLiteStatement insert = database.compileStatement("INSERT OR IGNORE INTO " + DBOpenHelper.TABLE_LINKS + " ("
+				+ HtmlPage.COL_DISASTERID + ", " + HtmlPage.COL_URL + ") VALUES (?, ?)");
+		try {
+			for (String url : urls) {
+				insert.bindLong(1, disasterId);
+				insert.bindString(2, url);
+				insert.executeInsert();
+			}
+		} finally {
+			insert.close();
+		}
+	}
+
+	/**
+	 * Deletes the links of tweets which are gone
+	 */
+	private void deleteOrphanedLinks() {
+		database.delete(DBOpenHelper.TABLE_LINKS, HtmlPage.COL_DISASTERID + " NOT IN (SELECT "
+				+ Tweets.COL_DISASTER_ID + " FROM " + DBOpenHelper.TABLE_TWEETS + ")", null);
+	}
+
 	/**
 	 * Computes the java String object hash code (32 bit) as the disaster ID of
 	 * the tweet TODO: For security reasons (to prevent intentional hash
@@ -966,6 +1127,7 @@ public class TweetsContentProvider extends ContentProvider {
 
 			if (rowId >= 0) {
 				Uri insertUri = ContentUris.withAppendedId(Tweets.ALL_TWEETS_URI, rowId);
+				insertLinks(values.getAsLong(Tweets.COL_DISASTER_ID), values);
 
 				// trigger twitter upload
 				// --> deactivated for now. is done in NewTweetActivity
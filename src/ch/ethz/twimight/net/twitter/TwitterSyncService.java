@@ -3,8 +3,13 @@ package ch.ethz.twimight.net.twitter;
 import java.io.File;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -82,6 +87,8 @@ public class TwitterSyncService extends IntentService {
 	public static final String EXTRA_KEY_TWEET_ROW_ID = "tweet_row_id";
 	public static final String EXTRA_KEY_SCREEN_NAME = "screen_name";
 	public static final String EXTRA_KEY_TWEET_TID = "tweet_tid";
+	public static final String EXTRA_KEY_USER_TID = "user_tid";
+	private static final String EXTRA_KEY_STREAM = "stream";
 
 	public static final String EXTRA_KEY_FORCE_SYNC = "force_sync";
 
@@ -105,6 +112,21 @@ public class TwitterSyncService extends IntentService {
 	private static final String PREF_INCOMING_DMS_SINCE_ID = "incoming_dms_since_id";
 	private static final String PREF_OUTGOING_DMS_SINCE_ID = "outgoing_dms_since_id";
 	private static final long DMS_MIN_SYNCH_INTERVAL = 20 * 1000L;
+	/** how many searches and user timelines we remember the sync time of */
+	private static final int MAX_STREAM_UPDATES = 50;
+
+	/** the streams requested with requestSync which are not synced yet */
+	private static final Set<String> pendingStreams = Collections.synchronizedSet(new HashSet<String>());
+	/** when the streams without a stored update time were last synced */
+	private static final Map<String, Long> streamUpdates = Collections
+			.synchronizedMap(new LinkedHashMap<String, Long>(16, (float) 0.75, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+					return size() > MAX_STREAM_UPDATES;
+				}
+			});
 
 	/**
 	 * Main thread handler for posting toasts
@@ -126,6 +148,17 @@ public class TwitterSyncService extends IntentService {
 
 	@Override
 	public void onHandleIntent(Intent intent) {
+		try {
+			handleIntent(intent);
+		} finally {
+			String stream = intent.getStringExtra(EXTRA_KEY_STREAM);
+			if (stream != null) {
+				pendingStreams.remove(stream);
+			}
+		}
+	}
+
+	private void handleIntent(Intent intent) {
 		// if we have no connectivity -> do nothing
 		if (isDisconnected()) {
 			return;
@@ -182,6 +215,103 @@ public class TwitterSyncService extends IntentService {
 		Log.d(TAG, "TwitterSyncService onHandleIntent() done");
 	}
 
+	/**
+	 * Starts a sync of the stream of the intent (the timeline, the mentions, a
+	 * search, ...) unless the stream was synced recently or a sync of it is
+	 * still pending. Content provider queries do not sync, the lists call this
+	 * when they are shown.
+	 * 
+	 * @param intent
+	 *            a sync intent, with EXTRA_KEY_FORCE_SYNC the stream is synced
+	 *            even if it is fresh
+	 * @return true if a sync was started
+	 */
+	public static boolean requestSync(Context context, Intent intent) {
+		String action = intent.getStringExtra(EXTRA_KEY_ACTION);
+		String stream = getStream(intent);
+		if (!intent.getBooleanExtra(EXTRA_KEY_FORCE_SYNC, false)
+				&& System.currentTimeMillis() - getLastStreamUpdate(context, action, stream) < getMinSyncInterval(action)) {
+			return false;
+		}
+		if (!pendingStreams.add(stream)) {
+			Log.d(TAG, "sync of " + stream + " is pending");
+			return false;
+		}
+		intent.putExtra(EXTRA_KEY_STREAM, stream);
+		context.startService(intent);
+		return true;
+	}
+
+	/**
+	 * @return the action of the intent, with the search query or the user for
+	 *         searches and user timelines
+	 */
+	private static String getStream(Intent intent) {
+		String action = intent.getStringExtra(EXTRA_KEY_ACTION);
+		if (EXTRA_ACTION_SEARCH_TWEET.equals(action)) {
+			return action + "/" + intent.getStringExtra(EXTRA_KEY_TWEET_SEARCH_QUERY);
+		} else if (EXTRA_ACTION_SEARCH_USER.equals(action)) {
+			return action + "/" + intent.getStringExtra(EXTRA_KEY_USER_SEARCH_QUERY);
+		} else if (EXTRA_ACTION_SYNC_USER_TWEETS.equals(action)) {
+			String screenName = intent.getStringExtra(EXTRA_KEY_SCREEN_NAME);
+			return action + "/" + (screenName != null ? screenName : intent.getLongExtra(EXTRA_KEY_USER_TID, 0));
+		}
+		return action;
+	}
+
+	/**
+	 * @return the minimum time between two syncs started by requestSync
+	 */
+	private static long getMinSyncInterval(String action) {
+		if (EXTRA_ACTION_SYNC_TIMELINE.equals(action)) {
+			return Constants.TIMELINE_MIN_SYNCH;
+		} else if (EXTRA_ACTION_SYNC_MENTIONS.equals(action)) {
+			return Constants.MENTIONS_MIN_SYNCH;
+		} else if (EXTRA_ACTION_SYNC_FAVORITES.equals(action)) {
+			return Constants.FAVORITES_MIN_SYNCH;
+		} else if (EXTRA_ACTION_SYNC_FRIENDS.equals(action)) {
+			return Constants.FRIENDS_MIN_SYNCH;
+		} else if (EXTRA_ACTION_SYNC_FOLLOWERS.equals(action)) {
+			return Constants.FOLLOWERS_MIN_SYNCH;
+		} else if (EXTRA_ACTION_SYNC_USER_TWEETS.equals(action)) {
+			return Constants.USER_TWEETS_MIN_SYNCH;
+		} else if (EXTRA_ACTION_SEARCH_TWEET.equals(action) || EXTRA_ACTION_SEARCH_USER.equals(action)) {
+			return Constants.SEARCH_MIN_SYNCH;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return when the stream was last synced, 0 if we don't know
+	 */
+	private static long getLastStreamUpdate(Context context, String action, String stream) {
+		String preferenceName = null;
+		if (EXTRA_ACTION_SYNC_TIMELINE.equals(action)) {
+			preferenceName = PREF_LAST_TIMELINE_UPDATE;
+		} else if (EXTRA_ACTION_SYNC_MENTIONS.equals(action)) {
+			preferenceName = PREF_LAST_MENTIONS_UPDATE;
+		} else if (EXTRA_ACTION_SYNC_FAVORITES.equals(action)) {
+			preferenceName = PREF_LAST_FAVORITES_UPDATE;
+		} else if (EXTRA_ACTION_SYNC_FRIENDS.equals(action)) {
+			preferenceName = PREF_LAST_FRIENDS_UPDATE;
+		} else if (EXTRA_ACTION_SYNC_FOLLOWERS.equals(action)) {
+			preferenceName = PREF_LAST_FOLLOWERS_UPDATE;
+		}
+		if (preferenceName != null) {
+			return PreferenceManager.getDefaultSharedPreferences(context).getLong(preferenceName, 0);
+		}
+		Long timestamp = streamUpdates.get(stream);
+		return timestamp != null ? timestamp : 0;
+	}
+
+	/**
+	 * Remembers that the stream of the start intent was synced, for the
+	 * streams without a stored update time
+	 */
+	private void setStreamUpdated() {
+		streamUpdates.put(getStream(mStartIntent), System.currentTimeMillis());
+	}
+
 	private boolean isDisconnected() {
 		ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 		NetworkInfo currentNetworkInfo = connectivityManager.getActiveNetworkInfo();
@@ -1602,6 +1732,9 @@ public class TwitterSyncService extends IntentService {
 		if (queryString != null) {
 			List<Status> searchResults = loadSearchTweets(queryString);
 			insertSearchTweets(searchResults);
+			if (searchResults != null) {
+				setStreamUpdated();
+			}
 		}
 		Log.d(TAG, "SearchTweetService executeSync() exit");
 	}
@@ -1648,6 +1781,9 @@ public class TwitterSyncService extends IntentService {
 		if (queryString != null) {
 			List<User> searchResults = loadSearchUsers(queryString);
 			insertSearchUsers(searchResults);
+			if (!searchResults.isEmpty()) {
+				setStreamUpdated();
+			}
 		}
 	}
 
@@ -1950,10 +2086,33 @@ public class TwitterSyncService extends IntentService {
 
 	private void syncUserTweets() {
 		String screenName = mStartIntent.getStringExtra(EXTRA_KEY_SCREEN_NAME);
+		if (screenName == null && mStartIntent.hasExtra(EXTRA_KEY_USER_TID)) {
+			screenName = getScreenName(mStartIntent.getLongExtra(EXTRA_KEY_USER_TID, 0));
+		}
 		if (screenName != null) {
 			List<Status> userTweets = loadUserTweets(screenName);
 			insertUserTweets(userTweets);
+			if (userTweets != null) {
+				setStreamUpdated();
+			}
+		}
+	}
+
+	/**
+	 * @return the screen name of the user with the given Twitter ID, null if
+	 *         we don't have the user
+	 */
+	private String getScreenName(long userTid) {
+		String screenName = null;
+		Cursor c = getContentResolver().query(TwitterUsers.CONTENT_URI, new String[] { TwitterUsers.COL_SCREEN_NAME },
+				TwitterUsers.COL_TWITTER_USER_ID + "=?", new String[] { String.valueOf(userTid) }, null);
+		if (c != null) {
+			if (c.moveToFirst()) {
+				screenName = c.getString(0);
+			}
+			c.close();
 		}
+		return screenName;
 	}
 
 	private List<Status> loadUserTweets(String screenName) {
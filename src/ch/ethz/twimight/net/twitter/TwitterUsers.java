@@ -125,6 +125,8 @@ public class TwitterUsers implements BaseColumns {
 	
 	/** this is used only in disaster mode to sent the profile image */
 	public static final String JSON_FIELD_PROFILE_IMAGE = "image";
+	/** content hash of the profile image, used in disaster mode */
+	public static final String JSON_FIELD_PROFILE_IMAGE_HASH = "image_hash";
 
 	public static final String DEFAULT_SORT_ORDER = COL_SCREEN_NAME;
 
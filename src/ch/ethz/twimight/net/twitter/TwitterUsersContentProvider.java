@@ -18,7 +18,6 @@ import java.util.Locale;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
-import android.content.Intent;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -118,8 +117,6 @@ public class TwitterUsersContentProvider extends ContentProvider {
 	@Override
 	public synchronized Cursor query(Uri uri, String[] projection, String where, String[] whereArgs, String sortOrder) {
 
-		Intent i;
-
 		Cursor c = null;
 		switch (twitterusersUriMatcher.match(uri)) {
 		case USERS:
@@ -143,11 +140,6 @@ public class TwitterUsersContentProvider extends ContentProvider {
 			c.setNotificationUri(getContext().getContentResolver(), uri);
 			c.setNotificationUri(getContext().getContentResolver(), TwitterUsers.USERS_FOLLOWERS_URI);
 
-			// start synch service with a synch followers request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_FOLLOWERS);
-			getContext().startService(i);
-
 			break;
 		case USERS_FRIENDS:
 			Log.i(TAG, "Query USERS_FRIENDS");
@@ -156,10 +148,6 @@ public class TwitterUsersContentProvider extends ContentProvider {
 			Log.i(TAG, "cursor count: " + c.getCount());
 			c.setNotificationUri(getContext().getContentResolver(), TwitterUsers.USERS_FRIENDS_URI);
 			c.setNotificationUri(getContext().getContentResolver(), uri);
-			// start synch service with a synch friends request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SYNC_FRIENDS);
-			getContext().startService(i);
 
 			break;
 		case USERS_DISASTER:
@@ -175,12 +163,6 @@ public class TwitterUsersContentProvider extends ContentProvider {
 					+ " AND " + TwitterUsers.COL_SCREEN_NAME + " LIKE '%" + where + "%' OR " + TwitterUsers.COL_NAME
 					+ " LIKE '%" + where + "%' ", whereArgs, null, null, sortOrder);
 			c.setNotificationUri(getContext().getContentResolver(), TwitterUsers.USERS_SEARCH_URI);
-
-			// start synch service with a synch followers request
-			i = new Intent(getContext(), TwitterSyncService.class);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_ACTION, TwitterSyncService.EXTRA_ACTION_SEARCH_USER);
-			i.putExtra(TwitterSyncService.EXTRA_KEY_USER_SEARCH_QUERY, where);
-			getContext().startService(i);
 			break;
 		default:
 			throw new IllegalArgumentException("Unsupported URI: " + uri);
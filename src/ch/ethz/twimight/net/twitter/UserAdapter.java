@@ -44,9 +44,9 @@ public class UserAdapter extends CursorAdapter {
 		}
 	}
 
-	/** Constructor */
+	/** Constructor, the cursor is reloaded by the loader of the list */
 	public UserAdapter(Context context, Cursor c) {
-		super(context, c, true);
+		super(context, c, 0);
 	}
 
 	@Override
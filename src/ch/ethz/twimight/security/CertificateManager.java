@@ -13,30 +13,23 @@
 
 package ch.ethz.twimight.security;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Principal;
-import java.security.PublicKey;
 import java.security.Security;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
-import java.security.interfaces.RSAPublicKey;
 import java.util.Date;
 
 import org.spongycastle.jce.provider.X509CertificateObject;
-import org.spongycastle.openssl.PEMReader;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Log;
-import ch.ethz.twimight.R;
 import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.data.RevocationDBHelper;
 import ch.ethz.twimight.util.Constants;
@@ -54,7 +47,7 @@ public class CertificateManager {
 	
 	private Context context;
 	
-	private static PublicKey rootkey;
+	private CryptoContext crypto;
 	
 	static {
 	    Security.addProvider(new org.spongycastle.jce.provider.BouncyCastleProvider());
@@ -65,45 +58,19 @@ public class CertificateManager {
 	 */
 	public CertificateManager(Context context){
 		this.context = context;
-	
-	    // read the rootkey from res/raw/rootkey
-		PEMReader pem = new PEMReader(new InputStreamReader(context.getResources().openRawResource(R.raw.rootkey)));
-		try {
-			rootkey = (RSAPublicKey) pem.readObject();
-		} catch (IOException e) {
-			Log.e(TAG, "error reading root key");
-		}
-		try {
-			pem.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}		
+		// the root key is read from res/raw/rootkey once per process
+		this.crypto = CryptoContext.getInstance(context);
 	}
 	
 	/**
-	 * Parse certificate in PEM format
+	 * Parse certificate in PEM format. Certificates of peers are cached, so
+	 * the same certificate is only parsed once.
 	 */
 	public X509CertificateObject parsePem(String pemString){
 		
 		if(pemString == null) return null;
 		
-		X509CertificateObject cert = null;
-		
-		PEMReader pem = new PEMReader(new StringReader(pemString));
-		try {
-			cert = (X509CertificateObject) pem.readObject();
-		} catch (IOException e) {
-			Log.e(TAG, "error reading certificate");
-		}
-		try {
-			pem.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		//Log.i(TAG, "expires: " + cert.getNotAfter().toString());
-		
-		return cert;
+		return crypto.getPeerCertificate(pemString);
 	}
 	
 	/**
@@ -134,7 +101,7 @@ public class CertificateManager {
 	 * @return
 	 */
 	public String getSerial() {
-		X509CertificateObject cert = parsePem(getCertificate());
+		X509CertificateObject cert = crypto.getCertificate(getCertificate());
 		if(cert!=null)
 			return Long.toHexString(cert.getSerialNumber().longValue());
 		else
@@ -150,6 +117,7 @@ public class CertificateManager {
 		SharedPreferences.Editor prefEditor = prefs.edit();
 		prefEditor.putString(X509_CERTIFICATE_PEM, pemString);
 		prefEditor.commit();
+		crypto.invalidateCertificate();
 
 	}
 	
@@ -162,7 +130,7 @@ public class CertificateManager {
 		
 		if(pemString == null) return false;
 		
-		X509CertificateObject cert = parsePem(pemString);
+		X509CertificateObject cert = crypto.getCertificate(pemString);
 		
 		if(cert == null) return false;
 		
@@ -226,7 +194,7 @@ public class CertificateManager {
 	
 	private boolean checkCertificateSignature(X509CertificateObject cert){
 		try {
-			cert.verify(rootkey);
+			cert.verify(crypto.getRootKey());
 		} catch (InvalidKeyException e) {
 			Log.i(TAG, "invalid key exception while verifying certificate signature");
 			return false;
@@ -266,6 +234,7 @@ public class CertificateManager {
 		SharedPreferences.Editor prefEditor = prefs.edit();
 		prefEditor.remove(X509_CERTIFICATE_PEM);
 		prefEditor.commit();
+		crypto.invalidateCertificate();
 
 	}
 	
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.security;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.spongycastle.jce.provider.X509CertificateObject;
+import org.spongycastle.openssl.PEMReader;
+
+import android.content.Context;
+import android.util.Log;
+import ch.ethz.twimight.R;
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * Process wide cache of parsed key material. Parsing keys and certificates is
+ * expensive compared to using them, and the Bluetooth exchange verifies every
+ * received tweet. KeyManager and CertificateManager are cheap to create and
+ * share this state.
+ */
+public class CryptoContext {
+
+	private static final String TAG = "CryptoContext";
+
+	private static CryptoContext instance;
+
+	private final Context context;
+
+	// our own key pair, null if not loaded yet
+	private KeyPair keyPair;
+	// the TDS root key, null if not loaded yet
+	private PublicKey rootKey;
+	// our own certificate and the PEM it was parsed from
+	private String certificatePem;
+	private X509CertificateObject certificate;
+	// certificates of peers, keyed by the digest of the PEM
+	private final Map<String, X509CertificateObject> peerCertificates = new LinkedHashMap<String, X509CertificateObject>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, X509CertificateObject> eldest) {
+			return size() > Constants.CERTIFICATE_CACHE_SIZE;
+		}
+	};
+
+	// public keys of friends, keyed by Twitter ID
+	private final Map<Long, RSAPublicKey> publicKeys = new LinkedHashMap<Long, RSAPublicKey>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, RSAPublicKey> eldest) {
+			return size() > Constants.PUBLIC_KEY_CACHE_SIZE;
+		}
+	};
+
+	// keys of encrypted direct messages
+	private final MessageCipher messageCipher = new MessageCipher(Constants.DM_KEY_CACHE_SIZE,
+			Constants.DM_MESSAGES_PER_KEY);
+
+	private CryptoContext(Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Singleton
+	 */
+	public static synchronized CryptoContext getInstance(Context context) {
+		if (instance == null)
+			instance = new CryptoContext(context.getApplicationContext());
+		return instance;
+	}
+
+	/**
+	 * @return our key pair, null if it has not been loaded yet
+	 */
+	public synchronized KeyPair getKeyPair() {
+		return keyPair;
+	}
+
+	public synchronized void setKeyPair(KeyPair keyPair) {
+		this.keyPair = keyPair;
+	}
+
+	/**
+	 * Forgets the key pair and the certificate which belongs to it
+	 */
+	public synchronized void invalidateKeyPair() {
+		keyPair = null;
+		invalidateCertificate();
+	}
+
+	/**
+	 * Returns the TDS root key, read from res/raw/rootkey once
+	 */
+	public synchronized PublicKey getRootKey() {
+		if (rootKey == null) {
+			PEMReader pem = new PEMReader(new InputStreamReader(context.getResources().openRawResource(R.raw.rootkey)));
+			try {
+				rootKey = (PublicKey) pem.readObject();
+			} catch (IOException e) {
+				Log.e(TAG, "error reading root key");
+			}
+			try {
+				pem.close();
+			} catch (IOException e) {
+			}
+		}
+		return rootKey;
+	}
+
+	/**
+	 * Replaces the root key, for tests and benchmarks with a generated root.
+	 * Null reads it from the resources again.
+	 */
+	synchronized void setRootKey(PublicKey rootKey) {
+		this.rootKey = rootKey;
+	}
+
+	/**
+	 * Returns our own certificate, parsed only if the PEM changed
+	 */
+	public X509CertificateObject getCertificate(String pemString) {
+		if (pemString == null)
+			return null;
+		synchronized (this) {
+			if (pemString.equals(certificatePem))
+				return certificate;
+		}
+		X509CertificateObject cert = parseCertificate(pemString);
+		synchronized (this) {
+			certificatePem = pemString;
+			certificate = cert;
+		}
+		return cert;
+	}
+
+	public synchronized void invalidateCertificate() {
+		certificatePem = null;
+		certificate = null;
+	}
+
+	/**
+	 * Returns the parsed certificate of a peer, from the cache if we have seen
+	 * it recently
+	 */
+	public X509CertificateObject getPeerCertificate(String pemString) {
+		if (pemString == null)
+			return null;
+		String digest = digest(pemString);
+		synchronized (this) {
+			X509CertificateObject cert = peerCertificates.get(digest);
+			if (cert != null)
+				return cert;
+		}
+		// parse outside the lock, the worst case is parsing twice
+		X509CertificateObject cert = parseCertificate(pemString);
+		if (cert != null) {
+			synchronized (this) {
+				peerCertificates.put(digest, cert);
+			}
+		}
+		return cert;
+	}
+
+	/**
+	 * @return the parsed public key of a friend, null if it is not cached
+	 */
+	public synchronized RSAPublicKey getPublicKey(long twitterId) {
+		return publicKeys.get(twitterId);
+	}
+
+	public synchronized void putPublicKey(long twitterId, RSAPublicKey key) {
+		publicKeys.put(twitterId, key);
+	}
+
+	/**
+	 * Forgets the public keys of the given users, after their keys changed
+	 */
+	public synchronized void invalidatePublicKeys(Collection<Long> twitterIds) {
+		for (Long twitterId : twitterIds) {
+			publicKeys.remove(twitterId);
+		}
+	}
+
+	public synchronized void invalidatePublicKeys() {
+		publicKeys.clear();
+	}
+
+	public MessageCipher getMessageCipher() {
+		return messageCipher;
+	}
+
+	/**
+	 * Parse certificate in PEM format
+	 */
+	static X509CertificateObject parseCertificate(String pemString) {
+		X509CertificateObject cert = null;
+
+		PEMReader pem = new PEMReader(new StringReader(pemString));
+		try {
+			cert = (X509CertificateObject) pem.readObject();
+		} catch (IOException e) {
+			Log.e(TAG, "error reading certificate");
+		} catch (ClassCastException e) {
+			Log.e(TAG, "not a certificate");
+		}
+		try {
+			pem.close();
+		} catch (IOException e) {
+		}
+		return cert;
+	}
+
+	private static String digest(String text) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] hash = md.digest(text.getBytes());
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b & 0xff));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Android device has SHA-1, fall back to the PEM itself
+			return text;
+		}
+	}
+}
@@ -16,6 +16,7 @@ package ch.ethz.twimight.security;
 import java.io.IOException;
 import java.io.StringReader;
 import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -42,6 +43,7 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
+import ch.ethz.twimight.R;
 import ch.ethz.twimight.data.FriendsKeysDBHelper;
 import ch.ethz.twimight.util.Constants;
 
@@ -53,6 +55,9 @@ import ch.ethz.twimight.util.Constants;
  */
 public class KeyManager {
 
+	/** Prefix of direct messages encrypted with {@link MessageCipher} */
+	private static final String CIPHER_TEXT_PREFIX = "v" + MessageCipher.VERSION + ":";
+
 	// The names of the fields in shared preferences
 	private static final String PRIVATE_EXPONENT = "PRIVATE_exponent";
 	private static final String PRIVATE_MODULUS = "PRIVATE_modulus";
@@ -79,6 +84,11 @@ public class KeyManager {
 	 */
 	public KeyPair getKey() {
 
+		KeyPair cached = CryptoContext.getInstance(context).getKeyPair();
+		if (cached != null) {
+			return cached;
+		}
+
 		// load all the ingredients from shared preferences
 		String PUBLICModulusString = prefs.getString(PUBLIC_MODULUS, null);
 		String PUBLICExponentString = prefs.getString(PUBLIC_EXPONENT, null);
@@ -104,6 +114,7 @@ public class KeyManager {
 				RSAPrivateKey privKey = (RSAPrivateKey) fact.generatePrivate(priv);
 
 				KeyPair kp = new KeyPair(publicKey, privKey);
+				CryptoContext.getInstance(context).setKeyPair(kp);
 				return kp;
 
 			} catch (Exception e) {
@@ -193,6 +204,7 @@ public class KeyManager {
 
 			// finally, commit the changes to shared preferences
 			editor.commit();
+			CryptoContext.getInstance(context).setKeyPair(kp);
 
 			Log.i(TAG, "keys saved");
 			return true;
@@ -214,6 +226,7 @@ public class KeyManager {
 		editor.remove(PRIVATE_MODULUS);
 		editor.remove(PRIVATE_EXPONENT);
 		editor.commit();
+		CryptoContext.getInstance(context).invalidateKeyPair();
 
 	}
 
@@ -327,60 +340,117 @@ public class KeyManager {
 		return false;
 	}
 
+	/**
+	 * Encrypts a direct message for a friend
+	 * 
+	 * @return the cipher text or null if we don't have the key of the friend
+	 */
 	public String encrypt(String text, Long twitterId) {
-		try {
-			Cipher cipher = Cipher.getInstance("RSA");
-			// I NEED PEER'S PUBLIC KEY
-			FriendsKeysDBHelper kHelper = new FriendsKeysDBHelper(context);
-			kHelper.open();
-			if (kHelper.hasKey(twitterId)) {
-				Log.i(TAG, "has Key");
-				String publicKeyString = kHelper.getKey(twitterId);
-				RSAPublicKey publicKey = parsePem(publicKeyString);
-				cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-				byte[] cipherText = cipher.doFinal(text.getBytes());
-
-				String cipherTextString = Base64.encodeToString(cipherText, Base64.DEFAULT);
-
-				return cipherTextString;
+		// I NEED PEER'S PUBLIC KEY
+		RSAPublicKey publicKey = getPublicKey(twitterId);
+		if (publicKey != null) {
+			try {
+				MessageCipher messageCipher = CryptoContext.getInstance(context).getMessageCipher();
+				// a new key per message, unless the user opted in to reuse
+				messageCipher.setMessagesPerKey(prefs.getBoolean(context.getString(R.string.pref_key_dm_key_reuse),
+						false) ? Constants.DM_MESSAGES_PER_KEY_REUSE : Constants.DM_MESSAGES_PER_KEY);
+				byte[] cipherText = messageCipher.encrypt(text.getBytes("UTF-8"), publicKey);
+				return CIPHER_TEXT_PREFIX + Base64.encodeToString(cipherText, Base64.NO_WRAP);
+			} catch (GeneralSecurityException e) {
+				Log.e(TAG, "error", e);
+			} catch (IOException e) {
+				Log.e(TAG, "error", e);
 			}
-
-		} catch (NoSuchAlgorithmException e) {
-			Log.e(TAG, "NoSuchAlgorithmException", e);
-		} catch (NoSuchPaddingException e) {
-			Log.e(TAG, "NoSuchPaddingException", e);
-		} catch (IllegalBlockSizeException e) {
-			Log.e(TAG, "IllegalBlockSizeException", e);
-		} catch (BadPaddingException e) {
-			Log.e(TAG, "error", e);
-		} catch (InvalidKeyException e) {
-			Log.e(TAG, "error", e);
 		}
 		return null;
 
 	}
 
+	/**
+	 * Returns the public key of a friend, parsed keys are cached
+	 * 
+	 * @return the key or null if we don't have one
+	 */
+	private RSAPublicKey getPublicKey(long twitterId) {
+		CryptoContext crypto = CryptoContext.getInstance(context);
+		RSAPublicKey publicKey = crypto.getPublicKey(twitterId);
+		if (publicKey == null) {
+			FriendsKeysDBHelper kHelper = new FriendsKeysDBHelper(context);
+			kHelper.open();
+			String publicKeyString = kHelper.getKey(twitterId);
+			if (publicKeyString != null) {
+				publicKey = parsePem(publicKeyString);
+				if (publicKey != null) {
+					crypto.putPublicKey(twitterId, publicKey);
+				}
+			}
+		}
+		return publicKey;
+	}
+
+	/**
+	 * Decrypts a direct message for us. Understands the current format and
+	 * the plain RSA encryption of older versions.
+	 * 
+	 * @return the text or null if the message is not encrypted for us
+	 */
 	public String decrypt(String cipherData) {
+		if (cipherData == null)
+			return null;
 
-		try {
-			KeyPair kp = getKey();
+		KeyPair kp = getKey();
+		if (kp == null)
+			return null;
+		RSAPrivateKey privateKey = (RSAPrivateKey) kp.getPrivate();
 
-			RSAPrivateKey privateKey = (RSAPrivateKey) kp.getPrivate();
+		try {
+			if (cipherData.startsWith(CIPHER_TEXT_PREFIX)) {
+				byte[] cipherText = Base64.decode(cipherData.substring(CIPHER_TEXT_PREFIX.length()), Base64.DEFAULT);
+				return new String(CryptoContext.getInstance(context).getMessageCipher()
+						.decrypt(cipherText, privateKey), "UTF-8");
+			}
 
+			// older versions encrypted the whole text with RSA, the cipher text
+			// has the length of the modulus
+			byte[] cipherText = Base64.decode(cipherData, Base64.DEFAULT);
+			if (cipherText.length != (privateKey.getModulus().bitLength() + 7) / 8)
+				return null;
 			Cipher cipher = Cipher.getInstance("RSA");
 			cipher.init(Cipher.DECRYPT_MODE, privateKey);
-			// we get the signature in base 64 encoding -> decode first
-			String decryptedText = new String(cipher.doFinal(Base64.decode(cipherData, Base64.DEFAULT)));
-			return decryptedText;
+			return new String(cipher.doFinal(cipherText));
 
-		} catch (NoSuchAlgorithmException e) {
-		} catch (NoSuchPaddingException e) {
-		} catch (InvalidKeyException e) {
-		} catch (IllegalBlockSizeException e) {
-		} catch (BadPaddingException e) {
+		} catch (IllegalArgumentException e) {
+			// not Base64
+		} catch (GeneralSecurityException e) {
+			Log.e(TAG, "error", e);
+		} catch (IOException e) {
+			Log.e(TAG, "error", e);
 		}
 		return null;
 
 	}
 
+	/**
+	 * Does the text of a direct message look like a message encrypted for
+	 * us? If so and {@link #decrypt(String)} fails, the text is cipher text
+	 * and not a message sent in the clear.
+	 */
+	public boolean isEncrypted(String data) {
+		if (data == null)
+			return false;
+		if (data.startsWith(CIPHER_TEXT_PREFIX))
+			return true;
+
+		KeyPair kp = getKey();
+		if (kp == null)
+			return false;
+		try {
+			byte[] cipherText = Base64.decode(data, Base64.DEFAULT);
+			return cipherText.length == (((RSAPrivateKey) kp.getPrivate()).getModulus().bitLength() + 7) / 8;
+		} catch (IllegalArgumentException e) {
+			// not Base64
+			return false;
+		}
+	}
+
 }
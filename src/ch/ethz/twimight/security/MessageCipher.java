@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.security;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Hybrid encryption of disaster direct messages. A random AES key and HMAC key
+ * are wrapped with the RSA key of the receiver, the body is encrypted with
+ * AES-CBC and authenticated with HMAC-SHA256 (encrypt-then-MAC).
+ * <p>
+ * Format of version 1:
+ * <code>version (1) | length of wrapped keys (2) | wrapped keys | IV (16) | body | MAC (32)</code>
+ * , the MAC covers everything before it.
+ * <p>
+ * The RSA operations dominate the cost, so the wrapped keys of a receiver can
+ * be reused for a number of messages (with a fresh IV each), unwrapped keys
+ * are remembered on the receiving side. Reuse is off unless the user opts in,
+ * as it is a trade-off: whoever learns
+ * the symmetric keys of one message (e.g., from the key cache of the sender or
+ * the receiver) can read all messages sent with them, up to messagesPerKey,
+ * and the equal wrapped keys show which messages were sent with the same
+ * keys. Confidentiality and integrity against anyone without the keys are not
+ * affected, the IV is fresh per message and the MAC covers the IV. Pass a
+ * messagesPerKey of 1 for a new key per message.
+ * <p>
+ * The class has no Android dependencies, see MessageCipherBenchmark in the
+ * tests.
+ */
+public class MessageCipher {
+
+	public static final byte VERSION = 1;
+
+	private static final String KEY_CIPHER = "RSA/ECB/OAEPWithSHA-1AndMGF1Padding";
+	private static final String BODY_CIPHER = "AES/CBC/PKCS5Padding";
+	private static final String MAC = "HmacSHA256";
+	private static final int AES_KEY_LENGTH = 16;
+	private static final int MAC_KEY_LENGTH = 32;
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+	private static final int HEADER_LENGTH = 3;
+
+	/**
+	 * Symmetric keys and their wrapped form
+	 */
+	private static class SessionKeys {
+		final byte[] wrapped;
+		final SecretKeySpec aesKey;
+		final SecretKeySpec macKey;
+		int uses;
+
+		SessionKeys(byte[] wrapped, byte[] secret) {
+			this.wrapped = wrapped;
+			aesKey = new SecretKeySpec(secret, 0, AES_KEY_LENGTH, "AES");
+			macKey = new SecretKeySpec(secret, AES_KEY_LENGTH, MAC_KEY_LENGTH, MAC);
+		}
+	}
+
+	private final SecureRandom random = new SecureRandom();
+	private volatile int messagesPerKey;
+	// receiver's public key -> keys we send with
+	private final Map<RSAPublicKey, SessionKeys> outgoing;
+	// digest of the wrapped keys -> keys we received
+	private final Map<String, SessionKeys> incoming;
+
+	/**
+	 * @param cacheSize
+	 *            how many receivers and senders we keep keys for
+	 * @param messagesPerKey
+	 *            after how many messages to a receiver we create new keys
+	 */
+	public MessageCipher(int cacheSize, int messagesPerKey) {
+		this.messagesPerKey = messagesPerKey;
+		outgoing = lruMap(cacheSize);
+		incoming = lruMap(cacheSize);
+	}
+
+	/**
+	 * Changes after how many messages to a receiver we create new keys. Keys
+	 * used that often already are replaced with the next message.
+	 */
+	public void setMessagesPerKey(int messagesPerKey) {
+		this.messagesPerKey = messagesPerKey;
+	}
+
+	/**
+	 * Encrypts a message for the owner of the public key
+	 */
+	public byte[] encrypt(byte[] plainText, RSAPublicKey receiverKey) throws GeneralSecurityException {
+		SessionKeys keys = getOutgoingKeys(receiverKey);
+
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		Cipher cipher = Cipher.getInstance(BODY_CIPHER);
+		cipher.init(Cipher.ENCRYPT_MODE, keys.aesKey, new IvParameterSpec(iv));
+		byte[] body = cipher.doFinal(plainText);
+
+		int macOffset = HEADER_LENGTH + keys.wrapped.length + IV_LENGTH + body.length;
+		byte[] message = new byte[macOffset + MAC_LENGTH];
+		message[0] = VERSION;
+		message[1] = (byte) (keys.wrapped.length >> 8);
+		message[2] = (byte) keys.wrapped.length;
+		System.arraycopy(keys.wrapped, 0, message, HEADER_LENGTH, keys.wrapped.length);
+		System.arraycopy(iv, 0, message, HEADER_LENGTH + keys.wrapped.length, IV_LENGTH);
+		System.arraycopy(body, 0, message, HEADER_LENGTH + keys.wrapped.length + IV_LENGTH, body.length);
+
+		Mac mac = Mac.getInstance(MAC);
+		mac.init(keys.macKey);
+		mac.update(message, 0, macOffset);
+		mac.doFinal(message, macOffset);
+		return message;
+	}
+
+	/**
+	 * Decrypts a message for us
+	 *
+	 * @throws GeneralSecurityException
+	 *             if the message is malformed, not for us or was modified
+	 */
+	public byte[] decrypt(byte[] message, RSAPrivateKey privateKey) throws GeneralSecurityException {
+		if (message.length < HEADER_LENGTH || message[0] != VERSION) {
+			throw new GeneralSecurityException("unknown message version");
+		}
+		int wrappedLength = ((message[1] & 0xff) << 8) | (message[2] & 0xff);
+		int ivOffset = HEADER_LENGTH + wrappedLength;
+		int bodyOffset = ivOffset + IV_LENGTH;
+		int macOffset = message.length - MAC_LENGTH;
+		if (macOffset <= bodyOffset) {
+			throw new GeneralSecurityException("message too short");
+		}
+
+		SessionKeys keys = getIncomingKeys(Arrays.copyOfRange(message, HEADER_LENGTH, ivOffset), privateKey);
+
+		Mac mac = Mac.getInstance(MAC);
+		mac.init(keys.macKey);
+		mac.update(message, 0, macOffset);
+		if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(message, macOffset, message.length))) {
+			throw new GeneralSecurityException("message authentication failed");
+		}
+
+		Cipher cipher = Cipher.getInstance(BODY_CIPHER);
+		cipher.init(Cipher.DECRYPT_MODE, keys.aesKey, new IvParameterSpec(message, ivOffset, IV_LENGTH));
+		return cipher.doFinal(message, bodyOffset, macOffset - bodyOffset);
+	}
+
+	private SessionKeys getOutgoingKeys(RSAPublicKey receiverKey) throws GeneralSecurityException {
+		synchronized (outgoing) {
+			SessionKeys keys = outgoing.get(receiverKey);
+			if (keys != null && keys.uses < messagesPerKey) {
+				keys.uses++;
+				return keys;
+			}
+		}
+		byte[] secret = new byte[AES_KEY_LENGTH + MAC_KEY_LENGTH];
+		random.nextBytes(secret);
+		Cipher cipher = Cipher.getInstance(KEY_CIPHER);
+		cipher.init(Cipher.WRAP_MODE, receiverKey);
+		SessionKeys keys = new SessionKeys(cipher.wrap(new SecretKeySpec(secret, "RAW")), secret);
+		keys.uses = 1;
+		synchronized (outgoing) {
+			outgoing.put(receiverKey, keys);
+		}
+		return keys;
+	}
+
+	private SessionKeys getIncomingKeys(byte[] wrapped, RSAPrivateKey privateKey) throws GeneralSecurityException {
+		String digest = Arrays.toString(MessageDigest.getInstance("SHA-1").digest(wrapped));
+		synchronized (incoming) {
+			SessionKeys keys = incoming.get(digest);
+			if (keys != null) {
+				return keys;
+			}
+		}
+		Cipher cipher = Cipher.getInstance(KEY_CIPHER);
+		cipher.init(Cipher.UNWRAP_MODE, privateKey);
+		byte[] secret = cipher.unwrap(wrapped, "RAW", Cipher.SECRET_KEY).getEncoded();
+		if (secret.length != AES_KEY_LENGTH + MAC_KEY_LENGTH) {
+			throw new GeneralSecurityException("wrong key length");
+		}
+		SessionKeys keys = new SessionKeys(wrapped, secret);
+		synchronized (incoming) {
+			incoming.put(digest, keys);
+		}
+		return keys;
+	}
+
+	private static <K> Map<K, SessionKeys> lruMap(final int maxSize) {
+		return new LinkedHashMap<K, SessionKeys>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, SessionKeys> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.security;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * In-memory copy of the revoked certificate serials. Almost all certificates
+ * we check are not revoked, a Bloom filter answers those without touching the
+ * list. Hits of the filter are confirmed in a sorted array of the serials.
+ *
+ * The class has no Android dependencies, see RevocationSetBenchmark in the
+ * tests.
+ */
+public class RevocationSet {
+
+	/** bits per serial, with HASHES hash functions this gives ~1% false positives */
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int HASHES = 7;
+	private static final int MIN_CAPACITY = 1024;
+
+	private String[] serials;
+	private BitSet filter;
+	private int filterBits;
+	private int capacity;
+
+	public RevocationSet(Collection<String> serials) {
+		this.serials = new String[0];
+		buildFilter(serials.size());
+		addAll(serials);
+	}
+
+	/**
+	 * @return true if the serial is revoked
+	 */
+	public synchronized boolean contains(String serial) {
+		if (serial == null) {
+			return false;
+		}
+		int h1 = serial.hashCode();
+		int h2 = secondHash(serial);
+		for (int i = 0; i < HASHES; i++) {
+			if (!filter.get(index(h1, h2, i))) {
+				return false;
+			}
+		}
+		return Arrays.binarySearch(serials, serial) >= 0;
+	}
+
+	/**
+	 * Adds serials, e.g., from an update of the revocation list
+	 */
+	public synchronized void addAll(Collection<String> added) {
+		if (added.isEmpty()) {
+			return;
+		}
+		String[] sorted = added.toArray(new String[added.size()]);
+		Arrays.sort(sorted);
+		serials = merge(serials, sorted);
+
+		if (serials.length > capacity) {
+			buildFilter(serials.length);
+			for (String serial : serials) {
+				addToFilter(serial);
+			}
+		} else {
+			for (String serial : sorted) {
+				addToFilter(serial);
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return serials.length;
+	}
+
+	private void buildFilter(int size) {
+		capacity = Math.max(MIN_CAPACITY, 2 * size);
+		filterBits = capacity * BITS_PER_ENTRY;
+		filter = new BitSet(filterBits);
+	}
+
+	private void addToFilter(String serial) {
+		int h1 = serial.hashCode();
+		int h2 = secondHash(serial);
+		for (int i = 0; i < HASHES; i++) {
+			filter.set(index(h1, h2, i));
+		}
+	}
+
+	/**
+	 * Double hashing: the i-th hash function is h1 + i * h2
+	 */
+	private int index(int h1, int h2, int i) {
+		int h = h1 + i * h2;
+		return (h & Integer.MAX_VALUE) % filterBits;
+	}
+
+	/**
+	 * FNV-1a, independent of String.hashCode
+	 */
+	private static int secondHash(String s) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+		// odd, so that the hash functions differ
+		return h | 1;
+	}
+
+	/**
+	 * Merges two sorted arrays, dropping duplicates
+	 */
+	private static String[] merge(String[] a, String[] b) {
+		String[] result = new String[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length || j < b.length) {
+			String next;
+			if (j >= b.length || (i < a.length && a[i].compareTo(b[j]) <= 0)) {
+				next = a[i++];
+			} else {
+				next = b[j++];
+			}
+			if (n == 0 || !result[n - 1].equals(next)) {
+				result[n++] = next;
+			}
+		}
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+}
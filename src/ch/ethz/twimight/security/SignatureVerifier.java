@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.security;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.spongycastle.jce.provider.X509CertificateObject;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Base64;
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * Verifies the signatures of disaster tweets of other users in the background.
+ * Tweets are stored right away as pending and updated once the batch they are
+ * in has been verified.
+ * <ul>
+ * <li>Results are cached, so a tweet which reaches us from several peers is
+ * only verified once.</li>
+ * <li>Certificates are checked (validity, root signature, revocation) once per
+ * author and session.</li>
+ * </ul>
+ */
+public class SignatureVerifier {
+
+	/**
+	 * A tweet to verify
+	 */
+	public static class Request {
+		final long rowId;
+		final String certificate;
+		final String twitterId;
+		final String signature;
+		final String text;
+
+		/**
+		 * @param text
+		 *            the signed text (tweet text and author ID)
+		 */
+		public Request(long rowId, String certificate, String twitterId, String signature, String text) {
+			this.rowId = rowId;
+			this.certificate = certificate;
+			this.twitterId = twitterId;
+			this.signature = signature;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Receives the results of a batch, on a verification thread
+	 */
+	public static interface Listener {
+		/**
+		 * @param results
+		 *            row ID -> true if the signature is valid
+		 */
+		public void onVerified(Map<Long, Boolean> results);
+	}
+
+	private static SignatureVerifier instance;
+
+	private final CertificateManager cm;
+	private final KeyManager km;
+	private final ExecutorService executor;
+
+	// signature key -> result, kept across sessions
+	private final Map<String, Boolean> results = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > Constants.SIGNATURE_CACHE_SIZE;
+		}
+	};
+	// certificate serial and author -> result of the certificate check in the
+	// current session
+	private final Map<String, Boolean> certificates = new HashMap<String, Boolean>();
+
+	private SignatureVerifier(Context context) {
+		cm = new CertificateManager(context);
+		km = new KeyManager(context);
+		executor = new ThreadPoolExecutor(Constants.VERIFICATION_THREADS, Constants.VERIFICATION_THREADS, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(new Runnable() {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "SignatureVerifier");
+					}
+				});
+	}
+
+	/**
+	 * Singleton
+	 */
+	public static synchronized SignatureVerifier getInstance(Context context) {
+		if (instance == null)
+			instance = new SignatureVerifier(context.getApplicationContext());
+		return instance;
+	}
+
+	/**
+	 * Looks up an earlier result for the same certificate, text and signature
+	 *
+	 * @return the result or null if we have to verify
+	 */
+	public Boolean getCachedResult(String certificate, String signature, String text) {
+		X509CertificateObject cert = cm.parsePem(certificate);
+		if (cert == null || signature == null || text == null) {
+			return false;
+		}
+		synchronized (results) {
+			return results.get(getKey(cert, signature, text));
+		}
+	}
+
+	/**
+	 * Verifies a batch of tweets in the background and hands the results to
+	 * the listener
+	 */
+	public void verify(final List<Request> batch, final Listener listener) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Map<Long, Boolean> batchResults = new HashMap<Long, Boolean>();
+				for (Request request : batch) {
+					batchResults.put(request.rowId, verify(request));
+				}
+				listener.onVerified(batchResults);
+			}
+		});
+	}
+
+	/**
+	 * Forgets the certificate checks, called at the end of a Bluetooth session
+	 */
+	public void endSession() {
+		synchronized (certificates) {
+			certificates.clear();
+		}
+	}
+
+	/**
+	 * Forgets everything, e.g., after the revocation list changed
+	 */
+	public void invalidate() {
+		endSession();
+		synchronized (results) {
+			results.clear();
+		}
+	}
+
+	private boolean verify(Request request) {
+		X509CertificateObject cert = cm.parsePem(request.certificate);
+		if (cert == null || request.signature == null || request.text == null) {
+			return false;
+		}
+		String key = getKey(cert, request.signature, request.text);
+		synchronized (results) {
+			Boolean result = results.get(key);
+			if (result != null) {
+				return result;
+			}
+		}
+
+		boolean result = checkCertificate(cert, request.twitterId)
+				&& km.checkSignature(cert, request.signature, request.text);
+		synchronized (results) {
+			results.put(key, result);
+		}
+		return result;
+	}
+
+	private boolean checkCertificate(X509CertificateObject cert, String twitterId) {
+		String key = cert.getSerialNumber().toString() + ":" + twitterId;
+		synchronized (certificates) {
+			Boolean result = certificates.get(key);
+			if (result != null) {
+				return result;
+			}
+		}
+		boolean result = cm.checkCertificate(cert, twitterId);
+		synchronized (certificates) {
+			certificates.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * The disaster ID is a 32 bit hash which can be forged, the key uses a
+	 * digest of what is signed instead.
+	 */
+	private static String getKey(X509CertificateObject cert, String signature, String text) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(text.getBytes());
+			md.update((byte) 0);
+			md.update(signature.getBytes());
+			return cert.getSerialNumber().toString() + ":" + Base64.encodeToString(md.digest(), Base64.NO_WRAP);
+		} catch (NoSuchAlgorithmException e) {
+			return cert.getSerialNumber().toString() + ":" + text + ":" + signature;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+package ch.ethz.twimight.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Content addressed store for profile images exchanged in disaster mode. Each
+ * image is stored once in the internal storage under the hex SHA-1 of its
+ * bytes, no matter how many users or tweets refer to it.
+ */
+public class AvatarCache {
+
+	private static final String TAG = "AvatarCache";
+	private static final String AVATAR_DIR = "avatars";
+
+	private final File dir;
+
+	public AvatarCache(Context context) {
+		dir = new File(context.getFilesDir(), AVATAR_DIR);
+		dir.mkdirs();
+	}
+
+	/**
+	 * Stores an image (if we don't have it yet)
+	 * 
+	 * @return the hash of the image, null if it could not be stored
+	 */
+	public String put(byte[] image) {
+		String hash = hash(image);
+		if (hash == null) {
+			return null;
+		}
+		File file = getFile(hash);
+		if (file.exists()) {
+			return hash;
+		}
+		// write to a temporary file first so that readers never see a partial
+		// image under its hash
+		File tmp = new File(dir, hash + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			out.write(image);
+			out.close();
+			out = null;
+			if (tmp.renameTo(file)) {
+				return hash;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "could not store avatar", e);
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+			}
+		}
+		tmp.delete();
+		return null;
+	}
+
+	public boolean has(String hash) {
+		return hash != null && getFile(hash).exists();
+	}
+
+	public File getFile(String hash) {
+		return new File(dir, hash);
+	}
+
+	public Uri getUri(String hash) {
+		return Uri.fromFile(getFile(hash));
+	}
+
+	/**
+	 * If the given URI points into this cache, returns the hash of the image.
+	 * 
+	 * @return the hash, or null if the URI is not one of ours
+	 */
+	public String getHashOfUri(String uri) {
+		if (uri == null) {
+			return null;
+		}
+		Uri parsed = Uri.parse(uri);
+		if (!"file".equals(parsed.getScheme()) || parsed.getPath() == null) {
+			return null;
+		}
+		File file = new File(parsed.getPath());
+		if (dir.equals(file.getParentFile()) && file.exists()) {
+			return file.getName();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the hashes of all images we have
+	 */
+	public Set<String> getHashes() {
+		Set<String> hashes = new HashSet<String>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (!name.endsWith(".tmp")) {
+					hashes.add(name);
+				}
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * Hex encoded SHA-1 of the given bytes
+	 */
+	public static String hash(byte[] data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] bytes = digest.digest(data);
+			StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			Log.e(TAG, "SHA-1 not available", e);
+			return null;
+		}
+	}
+}
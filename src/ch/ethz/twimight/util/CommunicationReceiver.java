@@ -16,6 +16,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.util.Log;
 import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.net.Html.StartServiceHelper;
@@ -43,11 +44,9 @@ public class CommunicationReceiver extends BroadcastReceiver {
 			StartServiceHelper.startService(context);
 
 			// TDS communication
-			if (TDSAlarm.isTdsEnabled(context)) {
-				// remove currently scheduled updates and schedule an immediate
-				// one
-				new TDSAlarm();
-			}
+			NetworkInfo networkInfo = ((ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE))
+					.getActiveNetworkInfo();
+			TDSAlarm.onConnectivityChanged(context, networkInfo != null && networkInfo.isConnected());
 
 			if (!LoginActivity.hasTwitterId(context)) {
 				Intent loginIntent = new Intent(context, TwitterSyncService.class);
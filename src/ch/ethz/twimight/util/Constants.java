@@ -40,8 +40,12 @@ public final class Constants {
 	public static final long TDS_UPDATE_RETRY_INTERVAL = 30 * 1000L;
 	/** Opt in or opt out for TDS communication? */
 	public static final boolean TDS_DEFAULT_ON = true;
-	/** After waking up we have to wait to get connectivity */
+	/** After connectivity changed we wait for the connection to settle */
 	public static final long WAIT_FOR_CONNECTIVITY = 5 * 1000L;
+	/** New disaster tweets are uploaded this long after the last one */
+	public static final long TDS_UPLOAD_DEBOUNCE = 30 * 1000L;
+	/** but not later than this after the first one */
+	public static final long TDS_UPLOAD_MAX_DELAY = 5 * 60 * 1000L;
 	/** The URL of the TDS */
 	public static final String TDS_BASE_URL = "https://twimightserver-ethz.rhcloud.com/";
 	/** How long do we wait for a connection? */
@@ -51,10 +55,28 @@ public final class Constants {
 	 * includes authentication in the Twitter server
 	 */
 	public static final int HTTP_SOCKET_TIMEOUT = 20 * 1000;
+	/** Size of the connection pool for TDS requests */
+	public static final int TDS_MAX_CONNECTIONS = 4;
+	/** How long (millisec) do we keep idle connections to the TDS? */
+	public static final long TDS_KEEP_ALIVE = 60 * 1000L;
+	/** How many disaster tweets do we upload to the TDS in one request? */
+	public static final int TDS_UPLOAD_CHUNK_TWEETS = 50;
+	/** How many changes of the follower keys / revocation list per response? */
+	public static final int TDS_DELTA_PAGE_SIZE = 500;
+	/** How many further pages of changes do we fetch in one update? */
+	public static final int TDS_DELTA_MAX_PAGES = 20;
+	/** Approximate size cap (bytes) of the disaster tweets in one request */
+	public static final long TDS_UPLOAD_CHUNK_BYTES = 1024 * 1024L;
+	/** How many times do we upload a disaster tweet the TDS does not acknowledge? */
+	public static final int TDS_UPLOAD_MAX_ATTEMPTS = 5;
 
 	// Bluetooth scanning configuration
 	/** Interval for Bluetooth scans */
 	public static final long SCANNING_INTERVAL = 2 * 60 * 1000L;
+	/** Shortest interval for adaptive Bluetooth scans */
+	public static final long SCANNING_MIN_INTERVAL = 1 * 60 * 1000L;
+	/** Longest interval for adaptive Bluetooth scans */
+	public static final long SCANNING_MAX_INTERVAL = 10 * 60 * 1000L;
 	/** Interval for Bluetooth scans */
 	public static final long MIN_LISTEN_TIME = 10 * 1000L;
 	/** Randomization interval for scanning */
@@ -67,6 +89,16 @@ public final class Constants {
 	public static final long WAIT_FOR_BLUETOOTH = 20 * 1000L;
 	/** time interval between to successive encounters */
 	public static final long MEETINGS_INTERVAL = 60 * 1000L;
+	/** How many outgoing exchange sessions may wait for the send thread */
+	public static final int EXCHANGE_SEND_QUEUE_SIZE = 2;
+	/** How many received messages may wait for processing before we stop reading */
+	public static final int EXCHANGE_RECEIVE_QUEUE_SIZE = 32;
+	/** How many received tweets and DMs are collected before they are inserted in one batch */
+	public static final int EXCHANGE_RECEIVE_BATCH_SIZE = 200;
+	/** How long do we wait for the list of profile images the peer has? */
+	public static final long AVATAR_INVENTORY_TIMEOUT = 2 * 1000L;
+	/** How long do we wait for the peer to tell which resources of a page it lacks? */
+	public static final long HTML_RESOURCE_OFFER_TIMEOUT = 2 * 1000L;
 
 	// Message types from the BluetoothService Handler
 	public static final int MESSAGE_READ = 2;
@@ -110,6 +142,28 @@ public final class Constants {
 	public static final long DISASTER_DURATION = 7 * 24 * 60 * 60 * 1000L;
 	/** RSA Key length */
 	public static final int SECURITY_KEY_SIZE = 2048;
+	/** How many parsed certificates of peers do we keep in memory? */
+	public static final int CERTIFICATE_CACHE_SIZE = 64;
+	/** How many parsed public keys of friends do we keep in memory? */
+	public static final int PUBLIC_KEY_CACHE_SIZE = 256;
+	/** How many signature verification results do we remember? */
+	public static final int SIGNATURE_CACHE_SIZE = 1000;
+	/** How many threads verify signatures in the background? */
+	public static final int VERIFICATION_THREADS = 2;
+	/** how many pending tweets are verified in one task after a restart */
+	public static final int VERIFICATION_BATCH_SIZE = 50;
+	/** For how many peers do we keep the keys of encrypted direct messages? */
+	public static final int DM_KEY_CACHE_SIZE = 64;
+	/**
+	 * How many direct messages to one receiver are encrypted with the same
+	 * keys? By default a new key per message.
+	 */
+	public static final int DM_MESSAGES_PER_KEY = 1;
+	/**
+	 * The same if the user opted in to reusing keys: fewer RSA operations, but
+	 * a leaked key exposes that many messages, see MessageCipher
+	 */
+	public static final int DM_MESSAGES_PER_KEY_REUSE = 50;
 
 	// Twitter
 	public static final int CONSUMER_ID = 1;
@@ -145,6 +199,10 @@ public final class Constants {
 	public static final long FRIENDS_MIN_SYNCH = 120 * 60 * 1000L;
 	/** Minimum time between two updates of the list of followers */
 	public static final long FOLLOWERS_MIN_SYNCH = 120 * 60 * 1000L;
+	/** Minimum time between two updates of the tweets of a user, when shown */
+	public static final long USER_TWEETS_MIN_SYNCH = 120 * 1000L;
+	/** Minimum time between two searches for the same query, when shown */
+	public static final long SEARCH_MIN_SYNCH = 60 * 1000L;
 	/** Minmum time between two updates of a user profile */
 	public static final long USERS_MIN_SYNCH = 24 * 3600 * 1000L;
 	/** Minimum time between two updates of the direct messages */
@@ -172,9 +230,33 @@ public final class Constants {
 	/** How many users to cache from searching Twitter */
 	public static final int SEARCHUSERS_BUFFER_SIZE = 100;
 
+	// Offline pages
+	/** How many pages do we download at the same time? */
+	public static final int HTML_DOWNLOAD_THREADS = 3;
+	/** After how long (millisec) do we give up downloading a page? */
+	public static final long HTML_DOWNLOAD_TIMEOUT = 60 * 1000L;
+	/** How many resources (CSS, scripts, images) do we store with a page? */
+	public static final int HTML_MAX_RESOURCES = 50;
+	/** Larger resources (bytes) are not stored */
+	public static final long HTML_MAX_RESOURCE_SIZE = 2 * 1024 * 1024L;
+	/** How many redirects do we follow to a page or resource? */
+	public static final int HTML_MAX_REDIRECTS = 5;
+	/** Default budget (MB) of the stored pages */
+	public static final int HTML_CACHE_SIZE = 50;
+	/** Over how long (millisec) do we count the bytes offline mode downloads? */
+	public static final long HTML_PREFETCH_WINDOW = 60 * 60 * 1000L;
+	/** Bytes per window on Wi-Fi while charging, half of it on battery */
+	public static final long HTML_PREFETCH_BUDGET = 20 * 1024 * 1024L;
+	/** Bytes per window on a metered network */
+	public static final long HTML_PREFETCH_METERED_BUDGET = 2 * 1024 * 1024L;
+	/** Bytes we expect a page to take before we have seen any */
+	public static final long HTML_PREFETCH_PAGE_SIZE = 512 * 1024L;
+
 	// Other
 	/** delay after which friends and followers are downloaded */
 	public static final long FRIENDS_FOLLOWERS_DELAY = 60 * 1000L;
 	public static final long DEFAULT_UPDATE_INTERVAL = 5;
+	/** minimum time between two reloads of a list, while tweets are inserted */
+	public static final long LIST_UPDATE_THROTTLE = 1000L;
 
 }
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -180,6 +181,42 @@ public class SDCardHelper {
 		return encodedImage;
 	}
 
+	/**
+	 * Writes the image at the given URI as JPEG to a stream, without keeping
+	 * the encoded image in memory. Local JPEG files are copied as they are,
+	 * other images are decoded and compressed.
+	 * 
+	 * @return false if the image could not be loaded
+	 */
+	public boolean writeImageAsJpeg(String fileUri, OutputStream out) throws IOException {
+		Uri uri = Uri.parse(fileUri);
+		String path = uri.getPath();
+		if ("file".equals(uri.getScheme()) && path != null
+				&& (path.toLowerCase().endsWith(".jpg") || path.toLowerCase().endsWith(".jpeg"))) {
+			File file = new File(path);
+			if (file.canRead()) {
+				InputStream in = new FileInputStream(file);
+				try {
+					byte[] buffer = new byte[8 * 1024];
+					int count;
+					while ((count = in.read(buffer)) > 0) {
+						out.write(buffer, 0, count);
+					}
+				} finally {
+					in.close();
+				}
+				return true;
+			}
+		}
+
+		Bitmap bitmap = ImageLoader.getInstance().loadImageSync(fileUri);
+		if (bitmap == null) {
+			return false;
+		}
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+		return true;
+	}
+
 	/**
 	 * return file in SD card with directory name = pathName and file name =
 	 * fileName
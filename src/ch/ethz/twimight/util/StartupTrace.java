@@ -0,0 +1,59 @@
+package ch.ethz.twimight.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Logs how long the start of the app takes until the first timeline is drawn:
+ * the elapsed time since the application was created and the CPU time the
+ * main thread spent meanwhile. Filter the log by the tag to compare builds.
+ */
+public class StartupTrace {
+
+	private static final String TAG = "StartupTrace";
+
+	private static long startUptime;
+	private static long startThreadTime;
+	private static boolean firstFrameLogged;
+
+	private StartupTrace() {
+	}
+
+	/**
+	 * Starts the trace, on the main thread when the application is created
+	 */
+	public static void start() {
+		startUptime = SystemClock.uptimeMillis();
+		startThreadTime = SystemClock.currentThreadTimeMillis();
+	}
+
+	/**
+	 * Logs the time since the start, call it on the main thread
+	 */
+	public static void mark(String event) {
+		if (startUptime == 0)
+			return;
+		Log.i(TAG, event + ": " + (SystemClock.uptimeMillis() - startUptime) + " ms elapsed, "
+				+ (SystemClock.currentThreadTimeMillis() - startThreadTime) + " ms on the main thread");
+	}
+
+	/**
+	 * Logs the event the next time the view is about to be drawn, once per
+	 * process
+	 */
+	public static void onFirstFrame(final View view, final String event) {
+		if (firstFrameLogged)
+			return;
+		firstFrameLogged = true;
+		view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+			@Override
+			public boolean onPreDraw() {
+				view.getViewTreeObserver().removeOnPreDrawListener(this);
+				mark(event);
+				return true;
+			}
+		});
+	}
+}
@@ -1,10 +1,8 @@
 package ch.ethz.twimight.views;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
-import twitter4j.MediaEntity;
-import twitter4j.URLEntity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -31,7 +29,6 @@ import ch.ethz.twimight.net.twitter.Tweets;
 import ch.ethz.twimight.net.twitter.TwitterUsers;
 import ch.ethz.twimight.util.Constants;
 import ch.ethz.twimight.util.SDCardHelper;
-import ch.ethz.twimight.util.Serialization;
 
 public class TweetButtonBar extends FrameLayout {
 
@@ -275,52 +272,27 @@ public class TweetButtonBar extends FrameLayout {
 
 	// TODO: duplicate code in TweetActionService
 	private boolean hasUncachedLinks() {
-		boolean hasUncachedLinks = false;
 		mHtmlStatus = mCursor.getInt(mCursor.getColumnIndex(Tweets.COL_HTML_PAGES));
 		if (mHtmlStatus != 0) {
-			List<String> linkUrls = new LinkedList<String>();
-			byte[] serializedMediaEntities = mCursor.getBlob(mCursor.getColumnIndex(Tweets.COL_MEDIA_ENTITIES));
-			MediaEntity[] mediaEntities = Serialization.deserialize(serializedMediaEntities);
-			for (URLEntity mediaEntity : mediaEntities) {
-				linkUrls.add(mediaEntity.getURL());
-			}
-			byte[] serializedUrlEntities = mCursor.getBlob(mCursor.getColumnIndex(Tweets.COL_URL_ENTITIES));
-			URLEntity[] urlEntities = Serialization.deserialize(serializedUrlEntities);
-			for (URLEntity urlEntity : urlEntities) {
-				linkUrls.add(urlEntity.getURL());
-			}
-
 			HtmlPagesDbHelper htmlDbHelper = new HtmlPagesDbHelper(getContext());
 			htmlDbHelper.open();
-			String ownTwitterId = LoginActivity.getTwitterId(getContext());
-			for (String linkUrl : linkUrls) {
-				Cursor cursorInfo = htmlDbHelper.getPageInfo(linkUrl);
-				String filename = null;
-				boolean fileStatusNormal = true;
-				if (cursorInfo != null) {
-					// check if file status normal, exists and size
-					String[] filePath = { HtmlPage.HTML_PATH + "/" + ownTwitterId };
-					SDCardHelper sdCardHelper = new SDCardHelper();
-					if (sdCardHelper.checkSDState(filePath)) {
-
-						if (!cursorInfo.isNull(cursorInfo.getColumnIndex(HtmlPage.COL_FILENAME))) {
-							filename = cursorInfo.getString(cursorInfo.getColumnIndex(HtmlPage.COL_FILENAME));
-
-							if (sdCardHelper.getFileFromSDCard(filePath[0], filename).length() <= 1) {
-								fileStatusNormal = false;
-							}
-						}
+			List<String> linkUrls = htmlDbHelper.getLinks(mCursor.getLong(mCursor
+					.getColumnIndex(Tweets.COL_DISASTER_ID)));
+			Map<String, HtmlPagesDbHelper.PageInfo> pages = htmlDbHelper.getPages(linkUrls);
 
-					}
-
-				}
-				if (cursorInfo == null || (filename == null) || !fileStatusNormal) {
-					hasUncachedLinks = true;
-					break;
+			String[] filePath = { HtmlPage.HTML_PATH + "/" + LoginActivity.getTwitterId(getContext()) };
+			SDCardHelper sdCardHelper = new SDCardHelper();
+			boolean sdCardReady = sdCardHelper.checkSDState(filePath);
+			for (String linkUrl : linkUrls) {
+				HtmlPagesDbHelper.PageInfo page = pages.get(linkUrl);
+				// check if file status normal, exists and size
+				if (page == null || page.filename == null
+						|| (sdCardReady && sdCardHelper.getFileFromSDCard(filePath[0], page.filename).length() <= 1)) {
+					return true;
 				}
 			}
 		}
-		return hasUncachedLinks;
+		return false;
 	}
 
 	/**
@@ -206,7 +206,8 @@ public class TweetDetailView extends FrameLayout {
 		mUnverifiedInfo.setVisibility(LinearLayout.GONE);
 		if ((mBuffer & Tweets.BUFFER_DISASTER) != 0) {
 
-			if (mCursor.getInt(mCursor.getColumnIndex(Tweets.COL_IS_VERIFIED)) == 0) {
+			// not verified, or the check is still pending
+			if (mCursor.getInt(mCursor.getColumnIndex(Tweets.COL_IS_VERIFIED)) != 1) {
 				mUnverifiedInfo.setVisibility(LinearLayout.VISIBLE);
 			}
 		}
@@ -21,7 +21,6 @@ import ch.ethz.twimight.R;
 import ch.ethz.twimight.activities.LoginActivity;
 import ch.ethz.twimight.activities.PhotoViewActivity;
 import ch.ethz.twimight.activities.UserProfileActivity;
-import ch.ethz.twimight.data.HtmlPagesDbHelper;
 import ch.ethz.twimight.net.twitter.Tweets;
 import ch.ethz.twimight.net.twitter.TweetsContentProvider;
 import ch.ethz.twimight.net.twitter.TwitterUsers;
@@ -120,33 +119,21 @@ public class TweetView extends FrameLayout {
 			}
 		}
 
-		// downloading / downloaded?
+		// downloading / downloaded? the provider computes it with the query
 		int col_html = cursor.getColumnIndex(Tweets.COL_HTML_PAGES);
+		int col_offline = cursor.getColumnIndex(Tweets.COL_OFFLINE_STATUS);
 		if (col_html > -1) {
 			int hasHtml = cursor.getInt(col_html);
-
-			mIvDownloadIcon.setVisibility(View.GONE);
-
-			if (hasHtml == 1) {
-
-				HtmlPagesDbHelper htmlDbHelper = new HtmlPagesDbHelper(getContext().getApplicationContext());
-				htmlDbHelper.open();
-
-				long disId = cursor.getLong(cursor.getColumnIndex(Tweets.COL_DISASTER_ID));
-				Cursor curHtml = htmlDbHelper.getTweetUrls(disId);
-
-				if (curHtml != null && curHtml.getCount() > 0) {
-					mIvDownloadIcon.setVisibility(View.VISIBLE);
-
-					if (!htmlDbHelper.allPagesStored(curHtml)) {
-						// downloading
-						mIvDownloadIcon.setImageResource(R.drawable.ic_small_downloading);
-					} else {
-						// downloaded
-						mIvDownloadIcon.setImageResource(R.drawable.ic_small_downloaded);
-					}
-				}
-
+			int offlineStatus = col_offline > -1 ? cursor.getInt(col_offline) : Tweets.OFFLINE_NONE;
+
+			if (hasHtml == 1 && offlineStatus == Tweets.OFFLINE_DOWNLOADING) {
+				mIvDownloadIcon.setVisibility(View.VISIBLE);
+				mIvDownloadIcon.setImageResource(R.drawable.ic_small_downloading);
+			} else if (hasHtml == 1 && offlineStatus == Tweets.OFFLINE_DOWNLOADED) {
+				mIvDownloadIcon.setVisibility(View.VISIBLE);
+				mIvDownloadIcon.setImageResource(R.drawable.ic_small_downloaded);
+			} else {
+				mIvDownloadIcon.setVisibility(View.GONE);
 			}
 		}
 
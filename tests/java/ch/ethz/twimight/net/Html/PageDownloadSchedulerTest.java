@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.Html;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import ch.ethz.twimight.data.HtmlPagesDbHelper;
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * The scheduler with fetchers we finish by hand and a DB helper which only
+ * records the attempts. The scheduler runs on the main thread.
+ */
+public class PageDownloadSchedulerTest extends InstrumentationTestCase {
+
+	/**
+	 * A fetcher which is done when the test says so
+	 */
+	private static class TestFetcher implements PageFetcher {
+		final int attempts;
+		String url;
+		Callback callback;
+		boolean cancelled;
+
+		TestFetcher(int attempts) {
+			this.attempts = attempts;
+		}
+
+		@Override
+		public void start(String url, Callback callback) {
+			this.url = url;
+			this.callback = callback;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		void succeed(long size) {
+			callback.onFetched("twimight" + url.hashCode() + ".xml", size);
+		}
+
+		void fail() {
+			callback.onFetched(null, 0);
+		}
+	}
+
+	/**
+	 * Records what the scheduler writes
+	 */
+	private static class TestDbHelper extends HtmlPagesDbHelper {
+		final List<String> attempts = new ArrayList<String>();
+		final List<String> stored = new ArrayList<String>();
+
+		TestDbHelper(Context context) {
+			super(context);
+		}
+
+		@Override
+		public boolean updatePage(String url, String filename, long tweetId, int forced, int tries) {
+			attempts.add(url + " " + tries);
+			return true;
+		}
+
+		@Override
+		public boolean storePage(String url, String filename, long size) {
+			stored.add(url + " " + size);
+			return true;
+		}
+
+		@Override
+		public void notifyChange() {
+		}
+
+		@Override
+		public long getStoredSize() {
+			return 0;
+		}
+	}
+
+	private final List<TestFetcher> fetchers = new ArrayList<TestFetcher>();
+	private TestDbHelper db;
+	private PrefetchPolicy policy;
+	private PageDownloadScheduler scheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final Context context = getInstrumentation().getTargetContext();
+		db = new TestDbHelper(context);
+		policy = new PrefetchPolicy(Constants.HTML_PREFETCH_WINDOW, Constants.HTML_PREFETCH_BUDGET,
+				Constants.HTML_PREFETCH_METERED_BUDGET, Constants.HTML_PREFETCH_PAGE_SIZE);
+		// the scheduler's handler belongs to the main thread
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				scheduler = new PageDownloadScheduler(context, db, context.getCacheDir(), policy,
+						new PageFetcher.Factory() {
+							@Override
+							public PageFetcher create(int attempts) {
+								TestFetcher fetcher = new TestFetcher(attempts);
+								fetchers.add(fetcher);
+								return fetcher;
+							}
+						});
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.cancelAll();
+			}
+		});
+		super.tearDown();
+	}
+
+	public void testForcedPagesFirstAndBounded() {
+		final List<PageDownloadScheduler.Page> pages = new ArrayList<PageDownloadScheduler.Page>();
+		for (int i = 0; i < 4; i++) {
+			pages.add(page("http://normal.test/" + i, false, 0));
+		}
+		pages.add(page("http://forced.test/0", true, 0));
+		pages.add(page("http://forced.test/1", true, 0));
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.enqueue(pages);
+			}
+		});
+
+		assertEquals(Constants.HTML_DOWNLOAD_THREADS, fetchers.size());
+		assertEquals("http://forced.test/0", fetchers.get(0).url);
+		assertEquals("http://forced.test/1", fetchers.get(1).url);
+		assertEquals("http://normal.test/0", fetchers.get(2).url);
+
+		// a finished page makes room for the next one, in queue order
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				fetchers.get(0).succeed(1000);
+			}
+		});
+		assertEquals(Constants.HTML_DOWNLOAD_THREADS + 1, fetchers.size());
+		assertEquals("http://normal.test/1", fetchers.get(3).url);
+		assertEquals(Arrays.asList("http://forced.test/0 1000"), db.stored);
+	}
+
+	public void testForcedPageJumpsTheQueue() {
+		final List<PageDownloadScheduler.Page> pages = new ArrayList<PageDownloadScheduler.Page>();
+		for (int i = 0; i < Constants.HTML_DOWNLOAD_THREADS + 2; i++) {
+			pages.add(page("http://normal.test/" + i, false, 0));
+		}
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.enqueue(pages);
+				scheduler.enqueue(Arrays.asList(page("http://forced.test/late", true, 0)));
+				fetchers.get(0).fail();
+			}
+		});
+		assertEquals("http://forced.test/late", fetchers.get(Constants.HTML_DOWNLOAD_THREADS).url);
+	}
+
+	public void testAttemptIsCountedBeforeTheFetcherStarts() {
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.enqueue(Arrays.asList(page("http://a.test/", false, 0), page("http://b.test/", false, 3)));
+			}
+		});
+		assertEquals(Arrays.asList("http://a.test/ 1", "http://b.test/ 4"), db.attempts);
+		// the factory decides on the fetcher by the attempts before
+		assertEquals(0, fetchers.get(0).attempts);
+		assertEquals(3, fetchers.get(1).attempts);
+	}
+
+	public void testFailedPageCanBeRetried() {
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.enqueue(Arrays.asList(page("http://a.test/", false, 0)));
+				fetchers.get(0).fail();
+			}
+		});
+		assertTrue(scheduler.isIdle());
+		assertFalse(scheduler.isKnown("http://a.test/"));
+		assertTrue(db.stored.isEmpty());
+
+		// the next run reads the page again, with the attempt counted
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.enqueue(Arrays.asList(page("http://a.test/", false, 1)));
+				fetchers.get(1).succeed(2000);
+			}
+		});
+		assertEquals(1, fetchers.get(1).attempts);
+		assertEquals(Arrays.asList("http://a.test/ 2000"), db.stored);
+		assertTrue(scheduler.isIdle());
+	}
+
+	public void testQueuedPagesAreNotQueuedTwice() {
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.enqueue(Arrays.asList(page("http://a.test/", false, 0)));
+				scheduler.enqueue(Arrays.asList(page("http://a.test/", true, 0)));
+			}
+		});
+		assertEquals(1, fetchers.size());
+		assertTrue(scheduler.isKnown("http://a.test/"));
+	}
+
+	public void testCancelAllStopsTheFetchers() {
+		onMain(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.enqueue(Arrays.asList(page("http://a.test/", false, 0), page("http://b.test/", false, 0)));
+				scheduler.cancelAll();
+				// a late callback is ignored
+				fetchers.get(0).succeed(1000);
+			}
+		});
+		assertTrue(fetchers.get(0).cancelled);
+		assertTrue(fetchers.get(1).cancelled);
+		assertTrue(scheduler.isIdle());
+		assertTrue(db.stored.isEmpty());
+	}
+
+	private static PageDownloadScheduler.Page page(String url, boolean forced, int attempts) {
+		return new PageDownloadScheduler.Page(url, 1, forced, attempts, 1, false);
+	}
+
+	private void onMain(Runnable runnable) {
+		getInstrumentation().runOnMainSync(runnable);
+	}
+}
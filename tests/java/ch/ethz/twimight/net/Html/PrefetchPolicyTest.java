@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+
+package ch.ethz.twimight.net.Html;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Admission by budget and score, with the clock passed by hand
+ */
+public class PrefetchPolicyTest extends TestCase {
+
+	private static final long WINDOW = 60 * 60 * 1000L;
+	private static final long PAGE = 100 * 1024L;
+	private static final long BUDGET = 10 * PAGE;
+	private static final long METERED_BUDGET = 4 * PAGE;
+	private static final long NOW = 1400000000000L;
+
+	private static final PrefetchPolicy.Conditions WIFI_CHARGING = new PrefetchPolicy.Conditions(false, true);
+	private static final PrefetchPolicy.Conditions METERED_CHARGING = new PrefetchPolicy.Conditions(true, true);
+	private static final PrefetchPolicy.Conditions METERED_BATTERY = new PrefetchPolicy.Conditions(true, false);
+
+	private PrefetchPolicy policy;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		policy = new PrefetchPolicy(WINDOW, BUDGET, METERED_BUDGET, PAGE);
+	}
+
+	public void testBudgetLimitsTheAdmittedPages() {
+		List<PrefetchPolicy.Candidate> selected = policy.select(pages("a", 15), WIFI_CHARGING, NOW);
+		assertEquals(10, selected.size());
+		assertEquals(10 * PAGE, policy.getReservedBytes());
+		assertEquals(5, counter("skippedBudget"));
+	}
+
+	public void testPagesInFlightCountForTheNextSelection() {
+		policy.select(pages("a", 6), WIFI_CHARGING, NOW);
+		// none of them has finished yet
+		assertEquals(4, policy.select(pages("b", 6), WIFI_CHARGING, NOW + 1000).size());
+		assertTrue(policy.select(pages("c", 6), WIFI_CHARGING, NOW + 2000).isEmpty());
+	}
+
+	public void testFinishedPagesReleaseTheirReservation() {
+		List<PrefetchPolicy.Candidate> selected = policy.select(pages("a", 10), WIFI_CHARGING, NOW);
+		policy.onFetched(selected.get(0).url, PAGE, NOW + 1000);
+		policy.onFailed(selected.get(1).url);
+		assertEquals(8 * PAGE, policy.getReservedBytes());
+		assertEquals(PAGE, policy.getWindowBytes());
+		// the failed page gave its bytes back, the fetched one used them
+		assertEquals(1, policy.select(pages("b", 5), WIFI_CHARGING, NOW + 2000).size());
+
+		// a second result for the same page releases nothing more
+		policy.onFailed(selected.get(1).url);
+		assertEquals(9 * PAGE, policy.getReservedBytes());
+	}
+
+	public void testCancelReleasesAllReservations() {
+		policy.select(pages("a", 10), WIFI_CHARGING, NOW);
+		policy.onCancelled();
+		assertEquals(0, policy.getReservedBytes());
+		assertEquals(10, policy.select(pages("b", 10), WIFI_CHARGING, NOW).size());
+	}
+
+	public void testNewWindowResetsTheFetchedBytes() {
+		List<PrefetchPolicy.Candidate> selected = policy.select(pages("a", 10), WIFI_CHARGING, NOW);
+		for (PrefetchPolicy.Candidate page : selected) {
+			policy.onFetched(page.url, PAGE, NOW + 1000);
+		}
+		assertTrue(policy.select(pages("b", 1), WIFI_CHARGING, NOW + 2000).isEmpty());
+		assertEquals(1, policy.select(pages("b", 1), WIFI_CHARGING, NOW + WINDOW + 2000).size());
+	}
+
+	public void testHalfTheBudgetOnBattery() {
+		assertEquals(5, policy.select(pages("a", 10), new PrefetchPolicy.Conditions(false, false), NOW).size());
+	}
+
+	public void testMeteredBudget() {
+		assertEquals(4, policy.select(pages("a", 10), METERED_CHARGING, NOW).size());
+	}
+
+	public void testMeteredOnBatteryOnlyTakesValuablePages() {
+		PrefetchPolicy.Candidate page = candidate("http://news.test/1", false, 1, false);
+		PrefetchPolicy.Candidate image = candidate("http://imgur.com/1", false, 1, false);
+		PrefetchPolicy.Candidate disasterImage = candidate("http://imgur.com/2", false, 1, true);
+		PrefetchPolicy.Candidate video = candidate("http://youtube.com/1", false, 1, false);
+		List<PrefetchPolicy.Candidate> all = Arrays.asList(video, image, disasterImage, page);
+
+		List<PrefetchPolicy.Candidate> selected = policy.select(all, METERED_BATTERY, NOW);
+		assertEquals(Arrays.asList(disasterImage, page), selected);
+		assertEquals(2, counter("skippedScore"));
+
+		// the same pages while charging
+		policy.onCancelled();
+		assertEquals(4, policy.select(all, METERED_CHARGING, NOW).size());
+	}
+
+	public void testFilesAreNeverAdmitted() {
+		assertTrue(policy.select(Arrays.asList(candidate("http://a.test/doc.pdf?x=1", false, 5, true)),
+				WIFI_CHARGING, NOW).isEmpty());
+		assertEquals(1, counter("skippedType"));
+	}
+
+	public void testForcedPagesAreAlwaysAdmitted() {
+		policy.select(pages("a", 10), WIFI_CHARGING, NOW);
+		List<PrefetchPolicy.Candidate> forced = new ArrayList<PrefetchPolicy.Candidate>();
+		forced.add(candidate("http://imgur.com/forced", true, 1, false));
+		forced.add(candidate("http://a.test/forced.pdf", true, 1, false));
+		forced.add(candidate("http://a.test/normal", false, 1, false));
+
+		List<PrefetchPolicy.Candidate> selected = policy.select(forced, METERED_BATTERY, NOW + 1000);
+		assertEquals(forced.subList(0, 2), selected);
+		// their bytes count nevertheless
+		assertEquals(12 * PAGE, policy.getReservedBytes());
+	}
+
+	public void testFailingDomainsScoreLess() {
+		PrefetchPolicy.Candidate page = candidate("http://www.flaky.test/1", false, 1, false);
+		float score = policy.getScore(page);
+		policy.onFailed("http://flaky.test/2");
+		assertTrue(policy.getScore(page) < score);
+	}
+
+	private long counter(String name) {
+		long[] counters = policy.getCounters();
+		return counters[Arrays.asList(PrefetchPolicy.COUNTER_NAMES).indexOf(name)];
+	}
+
+	private static List<PrefetchPolicy.Candidate> pages(String prefix, int count) {
+		List<PrefetchPolicy.Candidate> pages = new ArrayList<PrefetchPolicy.Candidate>();
+		for (int i = 0; i < count; i++) {
+			pages.add(candidate("http://" + prefix + ".test/" + i, false, 1, false));
+		}
+		return pages;
+	}
+
+	private static PrefetchPolicy.Candidate candidate(String url, boolean forced, int popularity, boolean disaster) {
+		return new PrefetchPolicy.Candidate(url, forced, popularity, disaster);
+	}
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+
+package ch.ethz.twimight.net.Html;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.json.JSONException;
+
+import junit.framework.TestCase;
+
+/**
+ * The store in a temporary directory
+ */
+public class ResourceStoreTest extends TestCase {
+
+	private static final long OLD = 1000000000000L;
+
+	private File dir;
+	private ResourceStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("store", "");
+		dir.delete();
+		store = new ResourceStore(dir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+		super.tearDown();
+	}
+
+	public void testSameDataIsStoredOnce() throws Exception {
+		byte[] data = "img".getBytes("UTF-8");
+		String hash = store.put(new ByteArrayInputStream(data), 100);
+		assertEquals(hash, store.put(new ByteArrayInputStream(data), 100));
+		assertTrue(store.put(hash, data));
+		assertEquals(1, dir.listFiles().length);
+		assertEquals("img", new String(store.read(hash), "UTF-8"));
+	}
+
+	public void testReusedResourceIsTouched() throws Exception {
+		byte[] data = "img".getBytes("UTF-8");
+		String hash = store.put(new ByteArrayInputStream(data), 100);
+		File file = store.getFile(hash);
+		assertTrue(file.setLastModified(OLD));
+		store.put(new ByteArrayInputStream(data), 100);
+		assertTrue(file.lastModified() > OLD);
+	}
+
+	public void testReceivedResourceIsTouched() throws Exception {
+		byte[] data = "img".getBytes("UTF-8");
+		String hash = store.put(new ByteArrayInputStream(data), 100);
+		File file = store.getFile(hash);
+		assertTrue(file.setLastModified(OLD));
+		assertTrue(store.put(hash, data));
+		assertTrue(file.lastModified() > OLD);
+	}
+
+	public void testWrongHashIsRejected() throws Exception {
+		assertFalse(store.put("0123", "img".getBytes("UTF-8")));
+		assertFalse(store.has("0123"));
+	}
+
+	public void testPathsAreNotHashes() throws Exception {
+		assertTrue(ResourceStore.isHash("0123456789abcdef0123456789abcdef01234567"));
+		assertFalse(ResourceStore.isHash("0123456789ABCDEF0123456789ABCDEF01234567"));
+		assertFalse(ResourceStore.isHash("../../shared_prefs/ch.ethz.twimight_pref"));
+		assertFalse(ResourceStore.isHash(null));
+		assertFalse(store.has("../" + dir.getName()));
+		try {
+			store.getFile("../x");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testManifestWithPathIsRejected() throws Exception {
+		String manifest = "{\"resources\":[{\"url\":\"http://a.test/\",\"hash\":\"../../shared_prefs/x.xml\"}]}";
+		try {
+			PageManifest.parse(manifest);
+			fail();
+		} catch (JSONException e) {
+			// expected
+		}
+	}
+
+	public void testTooLargeIsNotStored() throws Exception {
+		try {
+			store.put(new ByteArrayInputStream(new byte[101]), 100);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, dir.listFiles().length);
+	}
+}
@@ -0,0 +1,158 @@
+package ch.ethz.twimight.net.Html;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares the {@link WebArchiveIndex} with parsing the archive into a DOM, the
+ * way WebArchiveReader used to, on a generated archive. Reports the time to
+ * open the archive, the heap the open archive holds on to and the time to
+ * serve resources. Runs on a desktop JVM, usage:
+ * <code>WebArchiveIndexBenchmark [resources] [resource bytes]</code>
+ */
+public class WebArchiveIndexBenchmark {
+
+	private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	public static void main(String[] args) throws Exception {
+		int resources = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int resourceBytes = args.length > 1 ? Integer.parseInt(args[1]) : 32 * 1024;
+		Random random = new Random(42);
+
+		File file = File.createTempFile("archive", ".xml");
+		file.deleteOnExit();
+		List<String> urls = writeArchive(file, resources, resourceBytes, random);
+		System.out.println("archive: " + file.length() / 1024 + " kB, " + urls.size() + " resources");
+
+		long heap = usedHeap();
+		long start = System.nanoTime();
+		WebArchiveIndex index = WebArchiveIndex.read(file);
+		report("index: open", start, 1);
+		System.out.println("index: heap " + (usedHeap() - heap) / 1024 + " kB");
+
+		start = System.nanoTime();
+		long bytes = 0;
+		for (int i = 0; i < urls.size(); i++) {
+			bytes += index.readData(index.find(urls.get(random.nextInt(urls.size())))).length;
+		}
+		report("index: serve " + bytes / 1024 + " kB", start, urls.size());
+
+		heap = usedHeap();
+		start = System.nanoTime();
+		DomArchive dom = new DomArchive(file);
+		report("dom: open", start, 1);
+		System.out.println("dom: heap " + (usedHeap() - heap) / 1024 + " kB");
+
+		start = System.nanoTime();
+		bytes = 0;
+		for (int i = 0; i < urls.size(); i++) {
+			bytes += dom.readData(urls.get(random.nextInt(urls.size()))).length;
+		}
+		report("dom: serve " + bytes / 1024 + " kB", start, urls.size());
+
+		// keep both alive until measured
+		if (index.size() != dom.urlList.size())
+			throw new AssertionError("index and DOM disagree");
+	}
+
+	/**
+	 * The old reader: the whole document in memory, a list of urls
+	 */
+	private static class DomArchive {
+		final List<String> urlList = new ArrayList<String>();
+		final List<Element> urlNodes = new ArrayList<Element>();
+
+		DomArchive(File file) throws Exception {
+			InputStream is = new FileInputStream(file);
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
+			is.close();
+			NodeList nl = doc.getElementsByTagName("url");
+			for (int i = 0; i < nl.getLength(); i++) {
+				Element el = (Element) nl.item(i);
+				urlList.add(new String(WebArchiveIndex.decode(el.getTextContent().getBytes("US-ASCII")), "UTF-8"));
+				urlNodes.add((Element) el.getParentNode());
+			}
+		}
+
+		byte[] readData(String url) throws IOException {
+			Element parent = urlNodes.get(urlList.indexOf(url));
+			Node data = parent.getElementsByTagName("data").item(0);
+			return WebArchiveIndex.decode(data.getTextContent().getBytes("US-ASCII"));
+		}
+	}
+
+	private static List<String> writeArchive(File file, int resources, int resourceBytes, Random random)
+			throws IOException {
+		List<String> urls = new ArrayList<String>();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		write(out, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Archive><mainResource>");
+		for (int i = 0; i < resources; i++) {
+			if (i == 1)
+				write(out, "</mainResource><subresources>");
+			String url = "http://www.example.com/" + (i == 0 ? "index.html" : "static/resource" + i + ".png");
+			urls.add(url);
+			byte[] data = new byte[resourceBytes];
+			random.nextBytes(data);
+			write(out, "<ArchiveResource><url>" + encode(url.getBytes("UTF-8")) + "</url><mimeType>"
+					+ encode((i == 0 ? "text/html" : "image/png").getBytes("UTF-8")) + "</mimeType><textEncoding>"
+					+ encode("UTF-8".getBytes("UTF-8")) + "</textEncoding><frameName/><data>" + encode(data)
+					+ "</data></ArchiveResource>");
+		}
+		write(out, resources > 1 ? "</subresources></Archive>" : "</mainResource></Archive>");
+		out.close();
+		return urls;
+	}
+
+	private static void write(OutputStream out, String s) throws IOException {
+		out.write(s.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Base64 with line breaks every 76 characters, like android.util.Base64
+	 */
+	private static String encode(byte[] data) {
+		StringBuilder s = new StringBuilder(data.length * 4 / 3 + data.length / 57 + 4);
+		for (int i = 0; i < data.length; i += 3) {
+			int b = (data[i] & 0xff) << 16;
+			if (i + 1 < data.length)
+				b |= (data[i + 1] & 0xff) << 8;
+			if (i + 2 < data.length)
+				b |= data[i + 2] & 0xff;
+			s.append(ALPHABET.charAt(b >> 18 & 63)).append(ALPHABET.charAt(b >> 12 & 63));
+			s.append(i + 1 < data.length ? ALPHABET.charAt(b >> 6 & 63) : '=');
+			s.append(i + 2 < data.length ? ALPHABET.charAt(b & 63) : '=');
+			if ((i / 3 + 1) % 19 == 0)
+				s.append('\n');
+		}
+		return s.toString();
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void report(String what, long start, int operations) {
+		long nanos = System.nanoTime() - start;
+		System.out.println(what + ": " + nanos / 1000000 + " ms total, " + nanos / operations / 1000 + " us/op");
+	}
+}
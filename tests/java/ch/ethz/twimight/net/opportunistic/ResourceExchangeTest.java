@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+
+package ch.ethz.twimight.net.opportunistic;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import ch.ethz.twimight.net.Html.ResourceStore;
+
+/**
+ * Offers and answers between two sides, the messages passed by hand
+ */
+public class ResourceExchangeTest extends TestCase {
+
+	private static final String A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+	private static final String B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+
+	private File dir;
+	private ResourceStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("store", "");
+		dir.delete();
+		store = new ResourceStore(dir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+		super.tearDown();
+	}
+
+	public void testOnlyMissingResourcesAreRequested() throws Exception {
+		byte[] data = "body { color: red }".getBytes("UTF-8");
+		String known = store.put(new ByteArrayInputStream(data), 1000);
+		String unknown = "0123456789abcdef0123456789abcdef01234567";
+
+		ResourceExchange sender = new ResourceExchange();
+		String offer = sender.getOfferMessage(Arrays.asList(known, unknown));
+		assertTrue(offer.startsWith(ResourceExchange.OFFER_PREFIX));
+		String answer = ResourceExchange.getMissingMessage(offer, store);
+		assertTrue(answer.startsWith(ResourceExchange.MISSING_PREFIX));
+		sender.onMissingReceived(answer);
+
+		assertEquals(new HashSet<String>(Arrays.asList(unknown)), sender.awaitMissing(1000));
+		assertTrue(sender.isPeerAnswering());
+	}
+
+	public void testNothingMissing() throws Exception {
+		String known = store.put(new ByteArrayInputStream(new byte[] { 1, 2, 3 }), 1000);
+		ResourceExchange sender = new ResourceExchange();
+		sender.onMissingReceived(ResourceExchange.getMissingMessage(sender.getOfferMessage(Arrays.asList(known)),
+				store));
+		assertTrue(sender.awaitMissing(1000).isEmpty());
+	}
+
+	public void testWithoutStoreEverythingIsMissing() {
+		ResourceExchange sender = new ResourceExchange();
+		sender.onMissingReceived(ResourceExchange.getMissingMessage(sender.getOfferMessage(Arrays.asList(A, B)),
+				null));
+		assertEquals(new HashSet<String>(Arrays.asList(A, B)), sender.awaitMissing(1000));
+	}
+
+	public void testLateAnswerIsIgnored() {
+		ResourceExchange sender = new ResourceExchange();
+		String first = sender.getOfferMessage(Arrays.asList(A));
+		sender.getOfferMessage(Arrays.asList(B));
+		// the answer to the first offer arrives after the second one was sent
+		sender.onMissingReceived(ResourceExchange.getMissingMessage(first, null));
+		assertNull(sender.awaitMissing(10));
+	}
+
+	public void testSilentPeerIsNotAskedAgain() {
+		ResourceExchange sender = new ResourceExchange();
+		sender.getOfferMessage(Arrays.asList(A));
+		assertNull(sender.awaitMissing(10));
+		assertFalse(sender.isPeerAnswering());
+
+		// a new connection may be with a peer which answers
+		sender.reset();
+		assertTrue(sender.isPeerAnswering());
+	}
+
+	public void testAnswerFromAnotherThread() throws Exception {
+		final ResourceExchange sender = new ResourceExchange();
+		final String offer = sender.getOfferMessage(Arrays.asList(A, B));
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				sender.onMissingReceived(ResourceExchange.getMissingMessage(offer, null));
+			}
+		};
+		reader.start();
+		Set<String> missing = sender.awaitMissing(5000);
+		reader.join();
+		assertEquals(2, missing.size());
+	}
+
+	public void testPathsAreNotHashes() {
+		ResourceExchange sender = new ResourceExchange();
+		String offer = sender.getOfferMessage(Arrays.asList("../../shared_prefs/x.xml", A, A.toUpperCase()));
+		sender.onMissingReceived(ResourceExchange.getMissingMessage(offer, store));
+		assertEquals(new HashSet<String>(Arrays.asList(A)), sender.awaitMissing(1000));
+	}
+
+	public void testMalformedOfferIsNotAnswered() {
+		assertNull(ResourceExchange.getMissingMessage(ResourceExchange.OFFER_PREFIX + "garbage", null));
+	}
+}
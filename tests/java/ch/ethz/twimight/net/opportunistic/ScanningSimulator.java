@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+package ch.ethz.twimight.net.opportunistic;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * Deterministic replay of device sighting traces against the
+ * {@link ScanningPolicy}. A trace is a list of contacts (a device being in
+ * range from start to end). Every discovery round sees the devices in range at
+ * that moment, and a contact counts as captured if at least one round falls
+ * into it. The result tells how many scans were needed for how many captured
+ * contacts, compared with scanning at a fixed interval.
+ *
+ * Trace files have one contact per line: <code>mac,start,end[,twimight]</code>
+ * with times in milliseconds and an optional boolean telling whether the
+ * device runs Twimight (connections to other devices fail). Usage:
+ * <code>ScanningSimulator trace.csv [pendingMessages]</code>
+ */
+public class ScanningSimulator {
+
+	/**
+	 * A device in range during a time window
+	 */
+	public static class Contact {
+		final String mac;
+		final long start;
+		final long end;
+		final boolean twimight;
+
+		public Contact(String mac, long start, long end, boolean twimight) {
+			this.mac = mac;
+			this.start = start;
+			this.end = end;
+			this.twimight = twimight;
+		}
+	}
+
+	public static class Result {
+		public int scans;
+		public int contacts;
+		public int captured;
+
+		public float getCaptureRate() {
+			return contacts == 0 ? 0 : (float) captured / contacts;
+		}
+
+		@Override
+		public String toString() {
+			return "scans: " + scans + ", contacts: " + contacts + ", captured: " + captured + " ("
+					+ Math.round(getCaptureRate() * 100) + "%)";
+		}
+	}
+
+	/**
+	 * Replays the trace with the adaptive policy.
+	 *
+	 * @param pendingMessages
+	 *            constant number of messages waiting to be handed out
+	 */
+	public static Result simulate(List<Contact> trace, ScanningPolicy policy, int pendingMessages) {
+		return run(trace, policy, pendingMessages, 0);
+	}
+
+	/**
+	 * Replays the trace scanning at a fixed interval (the old behavior).
+	 */
+	public static Result simulateFixed(List<Contact> trace, long interval) {
+		return run(trace, null, 0, interval);
+	}
+
+	private static Result run(List<Contact> trace, ScanningPolicy policy, int pendingMessages, long fixedInterval) {
+		Result result = new Result();
+		result.contacts = trace.size();
+		if (trace.isEmpty()) {
+			return result;
+		}
+
+		long begin = Long.MAX_VALUE;
+		long finish = Long.MIN_VALUE;
+		for (Contact contact : trace) {
+			begin = Math.min(begin, contact.start);
+			finish = Math.max(finish, contact.end);
+		}
+
+		boolean[] captured = new boolean[trace.size()];
+		long time = begin;
+		while (time <= finish) {
+			result.scans++;
+			Set<String> found = new HashSet<String>();
+			for (int i = 0; i < trace.size(); i++) {
+				Contact contact = trace.get(i);
+				if (contact.start <= time && time < contact.end) {
+					found.add(contact.mac);
+					if (policy != null) {
+						policy.onConnectionResult(contact.twimight);
+					}
+					if (contact.twimight && !captured[i]) {
+						captured[i] = true;
+						result.captured++;
+					}
+				}
+			}
+
+			long interval;
+			if (policy != null) {
+				policy.onScanFinished(found);
+				interval = policy.getInterval(pendingMessages);
+			} else {
+				interval = fixedInterval;
+			}
+			time += Math.max(interval, 1);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads a trace file
+	 */
+	public static List<Contact> readTrace(String path) throws IOException {
+		List<Contact> trace = new ArrayList<Contact>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split(",");
+				boolean twimight = fields.length < 4 || Boolean.parseBoolean(fields[3].trim());
+				trace.add(new Contact(fields[0].trim(), Long.parseLong(fields[1].trim()), Long.parseLong(fields[2]
+						.trim()), twimight));
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: ScanningSimulator trace.csv [pendingMessages]");
+			return;
+		}
+		List<Contact> trace = readTrace(args[0]);
+		int pending = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+
+		ScanningPolicy policy = new ScanningPolicy(Constants.SCANNING_MIN_INTERVAL, Constants.SCANNING_MAX_INTERVAL);
+		System.out.println("adaptive: " + simulate(trace, policy, pending));
+		System.out.println("fixed:    " + simulateFixed(trace, Constants.SCANNING_INTERVAL));
+	}
+}
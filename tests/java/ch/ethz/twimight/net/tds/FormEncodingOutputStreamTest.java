@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import junit.framework.TestCase;
+
+/**
+ * The stream has to encode exactly like URLEncoder, which the request used
+ * before it was streamed.
+ */
+public class FormEncodingOutputStreamTest extends TestCase {
+
+	public void testEncodesLikeUrlEncoder() throws IOException {
+		String[] texts = { "", "abcXYZ019", ".-*_", "a b", "{\"version\":1,\"mac\":\"00:11:22\"}", "&=+%/?#~!",
+				"\u00e4\u00f6\u00fc \u20ac \ud83d\ude00", "line\nbreak\ttab\r" };
+		for (String text : texts) {
+			assertEquals(text, URLEncoder.encode(text, "UTF-8"), encode(text));
+		}
+	}
+
+	public void testEncodesAllBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = new FormEncodingOutputStream(bytes);
+		for (int b = 0; b < 256; b++) {
+			out.write(b);
+		}
+		out.flush();
+
+		String encoded = bytes.toString("US-ASCII");
+		for (int b = 0; b < 256; b++) {
+			String expected;
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.' || b == '-'
+					|| b == '*' || b == '_') {
+				expected = String.valueOf((char) b);
+			} else if (b == ' ') {
+				expected = "+";
+			} else {
+				expected = String.format("%%%02X", b);
+			}
+			assertTrue("byte " + b, encoded.startsWith(expected));
+			encoded = encoded.substring(expected.length());
+		}
+		assertEquals("", encoded);
+	}
+
+	public void testLongTextCrossesTheBuffer() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			text.append(i % 7 == 0 ? "\u00e9 " : "x");
+		}
+		String encoded = encode(text.toString());
+		assertEquals(URLEncoder.encode(text.toString(), "UTF-8"), encoded);
+		assertEquals(text.toString(), URLDecoder.decode(encoded, "UTF-8"));
+	}
+
+	public void testWritesOnlyOnFlush() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = new FormEncodingOutputStream(bytes);
+		out.write("a b".getBytes("US-ASCII"));
+		assertEquals(0, bytes.size());
+		out.flush();
+		assertEquals("a+b", bytes.toString("US-ASCII"));
+	}
+
+	public void testCloseKeepsTheStreamOpen() throws IOException {
+		final boolean[] closed = new boolean[1];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+			@Override
+			public void close() throws IOException {
+				closed[0] = true;
+			}
+		};
+		OutputStream out = new FormEncodingOutputStream(bytes);
+		out.write('%');
+		out.close();
+		assertFalse(closed[0]);
+		assertEquals("%25", bytes.toString("US-ASCII"));
+	}
+
+	private static String encode(String text) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamWriter(new FormEncodingOutputStream(bytes), "UTF-8");
+		writer.write(text);
+		writer.close();
+		return bytes.toString("US-ASCII");
+	}
+}
@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.JsonReader;
+import ch.ethz.twimight.net.twitter.Tweets;
+import ch.ethz.twimight.security.RevocationListEntry;
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * The request as the TDS receives it and the response as the streaming
+ * reader understands it. The large round trips go through files in the cache
+ * directory, which stand in for the TDS, and print the peak heap.
+ */
+public class TDSCommunicationTest extends AndroidTestCase {
+
+	private static final String MESSAGE = "message=";
+
+	private static final int TWEETS = 200;
+	private static final int PHOTO_BYTES = 128 * 1024;
+	private static final int REVOKED = 50000;
+	private static final int UNREVOKED = 10000;
+	private static final int KEYS = 5000;
+
+	private TDSCommunication tds;
+	private File photo;
+	private File request;
+	private File response;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		tds = new TDSCommunication(getContext(), Constants.CONSUMER_ID, "token", "secret &=+ \u00e9");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : new File[] { photo, request, response }) {
+			if (file != null)
+				file.delete();
+		}
+		super.tearDown();
+	}
+
+	public void testRequestIsFormEncodedJson() throws Exception {
+		tds.createBluetoothObject("00:11:22:33:44:55");
+		tds.createRevocationObject(3, 17);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		tds.createRequestEntity().writeTo(bytes);
+		String body = bytes.toString("US-ASCII");
+
+		assertTrue(body.startsWith(MESSAGE));
+		JSONObject request = new JSONObject(URLDecoder.decode(body.substring(MESSAGE.length()), "UTF-8"));
+		assertEquals(Constants.TDS_MESSAGE_VERSION, request.getInt("version"));
+		assertEquals("secret &=+ \u00e9", request.getJSONObject("authentication").getString("access_token_secret"));
+		assertEquals("00:11:22:33:44:55", request.getJSONObject("bluetooth").getString("mac"));
+		assertTrue(request.has("revocation"));
+		assertFalse(request.has("follower"));
+		assertFalse(request.has("disaster_tweets"));
+	}
+
+	public void testResponseIsRead() throws Exception {
+		tds.createRevocationObject(3, 5);
+		tds.createFollowerObject(0, 0);
+
+		String response = "{\"message\":{" + "\"authentication\":{\"twitter_id\":\"42\"},"
+				+ "\"revocation\":{\"status\":200,\"version\":4,\"seq\":9,\"more\":true,"
+				+ "\"added\":[[6,\"ab\",1000],[4,\"old\",1000]],\"removed\":[[7,\"cd\"]]},"
+				+ "\"follower\":{\"status\":200,\"last_update\":1234,\"update\":[[1,\"pem\"],[2,null],[0,\"x\"]]},"
+				+ "\"unknown\":[1,{\"a\":null}]," + "\"version\":" + Constants.TDS_MESSAGE_VERSION + "}}";
+		assertEquals(0, tds.disassembleResponse(stream(response)));
+
+		assertEquals("42", tds.parseAuthentication());
+
+		TDSDelta<String, RevocationListEntry> revocation = tds.parseRevocationDelta();
+		assertNotNull(revocation);
+		assertEquals(1, revocation.getAdded().size());
+		assertEquals("ab", revocation.getAdded().iterator().next().getSerial());
+		assertTrue(revocation.getRemoved().contains("cd"));
+		assertEquals(9, revocation.getSeq());
+		assertTrue(revocation.hasMore());
+		assertEquals(4, tds.parseRevocationVersion());
+
+		List<TDSPublicKey> keys = tds.parseFollower();
+		assertEquals(1, keys.size());
+		assertEquals(1234, tds.parseFollowerLastUpdate());
+		assertNull(tds.parseFollowerDelta());
+	}
+
+	public void testVersionMismatchIsRejected() throws Exception {
+		// the version comes last, the objects before it must not be used
+		String response = "{\"message\":{\"authentication\":{\"twitter_id\":\"42\"},"
+				+ "\"disaster_tweets\":{\"status\":200,\"content\":[]},\"version\":"
+				+ (Constants.TDS_MESSAGE_VERSION + 1) + "}}";
+		assertEquals(-1, tds.disassembleResponse(stream(response)));
+		assertNull(tds.parseAuthentication());
+		assertNull(tds.parseDisTweets());
+	}
+
+	public void testDisTweetsErrorIsNoAcknowledgement() throws Exception {
+		String response = "{\"message\":{\"version\":" + Constants.TDS_MESSAGE_VERSION
+				+ ",\"authentication\":{\"twitter_id\":\"42\"},\"disaster_tweets\":{\"status\":500}}}";
+		assertEquals(0, tds.disassembleResponse(stream(response)));
+		try {
+			tds.parseDisTweets();
+			fail("an error status must not count as acknowledged");
+		} catch (JSONException e) {
+			// the chunk stays pending
+		}
+	}
+
+	public void testDisTweetsAcknowledgements() throws Exception {
+		String response = "{\"message\":{\"version\":" + Constants.TDS_MESSAGE_VERSION
+				+ ",\"authentication\":{\"twitter_id\":\"42\"},"
+				+ "\"disaster_tweets\":{\"status\":200,\"content\":[[7,123],[8,0]]}}}";
+		assertEquals(0, tds.disassembleResponse(stream(response)));
+		Map<Long, Long> posted = tds.parseDisTweets();
+		assertEquals(2, posted.size());
+		assertEquals(Long.valueOf(123), posted.get(7L));
+	}
+
+	public void testMissingAuthenticationIsRejected() throws Exception {
+		String response = "{\"message\":{\"version\":" + Constants.TDS_MESSAGE_VERSION
+				+ ",\"notification\":{\"text\":\"hi\"}}}";
+		assertEquals(-1, tds.disassembleResponse(stream(response)));
+		assertNull(tds.getNotification());
+	}
+
+	public void testLargeRequestIsStreamed() throws Exception {
+		photo = new File(getContext().getCacheDir(), "tds_test_photo.jpg");
+		byte[] data = new byte[PHOTO_BYTES];
+		new Random(42).nextBytes(data);
+		OutputStream photoOut = new FileOutputStream(photo);
+		photoOut.write(data);
+		photoOut.close();
+
+		MatrixCursor tweets = new MatrixCursor(new String[] { Tweets.COL_TEXT_PLAIN, Tweets.COL_USER_TID,
+				Tweets.COL_DISASTER_ID, Tweets.COL_SIGNATURE, Tweets.COL_CREATED_AT, Tweets.COL_MEDIA_URIS });
+		for (int i = 0; i < TWEETS; i++) {
+			tweets.addRow(new Object[] { "disaster tweet " + i + " \u00e9&=+", 42L, (long) i, "signature" + i,
+					System.currentTimeMillis(), Uri.fromFile(photo).toString() });
+		}
+		tds.createDisTweetsObject(tweets);
+
+		request = new File(getContext().getCacheDir(), "tds_test_request");
+		HeapSampler heap = new HeapSampler();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(request));
+		try {
+			tds.createRequestEntity().writeTo(out);
+		} finally {
+			out.close();
+		}
+		long peak = heap.finish();
+		System.out.println("TDS request: " + request.length() / 1024 + " kB, peak heap +" + peak / 1024 + " kB");
+		// a request assembled in memory would take at least its size
+		assertTrue("request not streamed, peak heap +" + peak, peak < request.length());
+
+		// read back the way the TDS would: form decoding, then JSON
+		InputStream in = new FormDecodingInputStream(new BufferedInputStream(new FileInputStream(request)));
+		try {
+			for (int i = 0; i < MESSAGE.length(); i++) {
+				assertEquals(MESSAGE.charAt(i), in.read());
+			}
+			JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+			int count = 0;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!"disaster_tweets".equals(reader.nextName())) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginObject();
+				assertEquals("content", reader.nextName());
+				reader.beginArray();
+				while (reader.hasNext()) {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String name = reader.nextName();
+						if ("photo".equals(name)) {
+							assertEquals((PHOTO_BYTES + 2) / 3 * 4, reader.nextString().length());
+						} else if (Tweets.COL_TEXT_PLAIN.equals(name)) {
+							assertEquals("disaster tweet " + count + " \u00e9&=+", reader.nextString());
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+					count++;
+				}
+				reader.endArray();
+				reader.endObject();
+			}
+			reader.endObject();
+			assertEquals(TWEETS, count);
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testLargeResponseIsStreamed() throws Exception {
+		tds.createRevocationObject(3, 5);
+		tds.createFollowerObject(0, 5);
+
+		response = new File(getContext().getCacheDir(), "tds_test_response");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(response), "UTF-8"));
+		try {
+			writeResponse(writer);
+		} finally {
+			writer.close();
+		}
+
+		HeapSampler heap = new HeapSampler();
+		InputStream in = new BufferedInputStream(new FileInputStream(response));
+		try {
+			assertEquals(0, tds.disassembleResponse(in));
+		} finally {
+			in.close();
+		}
+		long peak = heap.finish();
+		System.out.println("TDS response: " + response.length() / 1024 + " kB, peak heap +" + peak / 1024 + " kB");
+
+		TDSDelta<String, RevocationListEntry> revocation = tds.parseRevocationDelta();
+		assertEquals(REVOKED, revocation.getAdded().size());
+		assertEquals(UNREVOKED, revocation.getRemoved().size());
+		assertEquals(5 + REVOKED + UNREVOKED, revocation.getSeq());
+		TDSDelta<Long, TDSPublicKey> follower = tds.parseFollowerDelta();
+		assertEquals(KEYS, follower.getAdded().size());
+		assertEquals(5 + KEYS, follower.getSeq());
+	}
+
+	private static void writeResponse(Writer writer) throws IOException {
+		writer.write("{\"message\":{\"version\":" + Constants.TDS_MESSAGE_VERSION
+				+ ",\"authentication\":{\"twitter_id\":\"42\"},\"revocation\":{\"status\":200,\"version\":4,\"seq\":"
+				+ (5 + REVOKED + UNREVOKED) + ",\"more\":false,\"added\":[");
+		long seq = 5;
+		for (int i = 0; i < REVOKED; i++) {
+			writer.write((i == 0 ? "" : ",") + "[" + ++seq + ",\"serial" + i + "\",1500000000]");
+		}
+		writer.write("],\"removed\":[");
+		for (int i = 0; i < UNREVOKED; i++) {
+			writer.write((i == 0 ? "" : ",") + "[" + ++seq + ",\"old" + i + "\"]");
+		}
+		writer.write("]},\"follower\":{\"status\":200,\"last_update\":1234,\"seq\":" + (5 + KEYS)
+				+ ",\"more\":false,\"added\":[");
+		StringBuilder key = new StringBuilder("-----BEGIN PUBLIC KEY-----\\n");
+		for (int i = 0; i < 4; i++) {
+			key.append("MIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQC7vbqajDw4o6gJy8UtmIbkcpnkO3Kwc4qsEnSZp\\n");
+		}
+		key.append("-----END PUBLIC KEY-----");
+		for (int i = 0; i < KEYS; i++) {
+			writer.write((i == 0 ? "" : ",") + "[" + (6 + i) + "," + (1000 + i) + ",\"" + key + "\"]");
+		}
+		writer.write("]}}}");
+	}
+
+	/**
+	 * Samples the used heap in the background
+	 */
+	private static class HeapSampler extends Thread {
+		private final long start;
+		private volatile boolean running = true;
+		private long peak;
+
+		HeapSampler() {
+			System.gc();
+			start = used();
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				peak = Math.max(peak, used());
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return the peak heap above the heap at the start
+		 */
+		long finish() throws InterruptedException {
+			running = false;
+			join();
+			return Math.max(peak, used()) - start;
+		}
+
+		private static long used() {
+			Runtime runtime = Runtime.getRuntime();
+			return runtime.totalMemory() - runtime.freeMemory();
+		}
+	}
+
+	/**
+	 * Undoes application/x-www-form-urlencoded
+	 */
+	private static class FormDecodingInputStream extends FilterInputStream {
+
+		FormDecodingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = in.read();
+			if (c == '+')
+				return ' ';
+			if (c == '%')
+				return Integer.parseInt("" + (char) in.read() + (char) in.read(), 16);
+			return c;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int i = 0;
+			while (i < count) {
+				int c = read();
+				if (c < 0)
+					return i == 0 ? -1 : i;
+				buffer[offset + i++] = (byte) c;
+			}
+			return i;
+		}
+	}
+
+	private static ByteArrayInputStream stream(String json) throws Exception {
+		return new ByteArrayInputStream(json.getBytes("UTF-8"));
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Pages of changes as the TDS sends them, applied to a local copy of the list
+ */
+public class TDSDeltaTest extends TestCase {
+
+	public void testChangesAfterTheSeq() {
+		TDSDelta<Long, String> delta = new TDSDelta<Long, String>(10);
+		delta.add(11, 1L, "one");
+		delta.add(12, 2L, "two");
+		delta.remove(13, 3L);
+		delta.setPage(13, false);
+
+		assertEquals(Arrays.asList("one", "two"), new ArrayList<String>(delta.getAdded()));
+		assertEquals(Arrays.asList(3L), new ArrayList<Long>(delta.getRemoved()));
+		assertEquals(13, delta.getSeq());
+		assertFalse(delta.hasMore());
+		assertFalse(delta.isEmpty());
+	}
+
+	public void testAppliedChangesAreIgnored() {
+		TDSDelta<Long, String> delta = new TDSDelta<Long, String>(10);
+		delta.add(9, 1L, "old");
+		delta.remove(10, 2L);
+		delta.setPage(10, false);
+
+		assertTrue(delta.isEmpty());
+		assertEquals(10, delta.getSeq());
+	}
+
+	public void testLatestChangeOfAKeyCounts() {
+		TDSDelta<Long, String> delta = new TDSDelta<Long, String>(0);
+		delta.add(1, 1L, "first");
+		delta.remove(2, 1L);
+		delta.add(3, 2L, "two");
+		delta.add(5, 2L, "two again");
+		// out of order, older than the change we have
+		delta.add(4, 2L, "stale");
+		delta.remove(3, 3L);
+		delta.add(6, 3L, "three");
+
+		assertEquals(Arrays.asList("two again", "three"), new ArrayList<String>(delta.getAdded()));
+		assertEquals(Arrays.asList(1L), new ArrayList<Long>(delta.getRemoved()));
+	}
+
+	public void testSeqNeverGoesBack() {
+		TDSDelta<Long, String> delta = new TDSDelta<Long, String>(100);
+		delta.setPage(50, true);
+		assertEquals(100, delta.getSeq());
+		// no progress, we must not ask for the same page again
+		assertFalse(delta.hasMore());
+	}
+
+	public void testMoreOnlyWithProgress() {
+		TDSDelta<Long, String> delta = new TDSDelta<Long, String>(100);
+		delta.setPage(100, true);
+		assertFalse(delta.hasMore());
+		delta.setPage(101, true);
+		assertTrue(delta.hasMore());
+		delta.setPage(102, false);
+		assertFalse(delta.hasMore());
+	}
+
+	public void testPagingReachesTheServerState() {
+		// the TDS log of changes, the seq is the position in the log
+		Server server = new Server();
+		for (long key = 1; key <= 30; key++) {
+			server.add(key, "v" + key);
+		}
+		for (long key = 1; key <= 30; key += 3) {
+			server.remove(key);
+		}
+		for (long key = 2; key <= 30; key += 5) {
+			server.add(key, "w" + key);
+		}
+
+		Map<Long, String> local = new HashMap<Long, String>();
+		long seq = 0;
+		int pages = 0;
+		boolean more = true;
+		while (more) {
+			TDSDelta<Long, String> delta = server.page(seq, 7);
+			apply(delta, local);
+			seq = delta.getSeq();
+			more = delta.hasMore();
+			pages++;
+			assertTrue("paging does not end", pages < 100);
+		}
+		assertEquals(server.state, local);
+		assertEquals(server.log.size(), seq);
+	}
+
+	public void testApplyingAPageTwiceChangesNothing() {
+		Server server = new Server();
+		server.add(1L, "v1");
+		server.add(2L, "v2");
+		server.remove(1L);
+
+		Map<Long, String> local = new HashMap<Long, String>();
+		apply(server.page(0, 10), local);
+		Map<Long, String> once = new HashMap<Long, String>(local);
+		apply(server.page(0, 10), local);
+		assertEquals(once, local);
+		assertEquals(server.state, local);
+	}
+
+	private static void apply(TDSDelta<Long, String> delta, Map<Long, String> local) {
+		for (Long key : delta.getRemoved()) {
+			local.remove(key);
+		}
+		// the value carries its key after the first letter in these tests
+		for (String value : delta.getAdded()) {
+			local.put(Long.valueOf(value.substring(1)), value);
+		}
+	}
+
+	/**
+	 * The change log of a list on the TDS
+	 */
+	private static class Server {
+		final List<Object[]> log = new ArrayList<Object[]>();
+		final Map<Long, String> state = new HashMap<Long, String>();
+
+		void add(Long key, String value) {
+			log.add(new Object[] { key, value });
+			state.put(key, value);
+		}
+
+		void remove(Long key) {
+			log.add(new Object[] { key, null });
+			state.remove(key);
+		}
+
+		/**
+		 * The changes after seq, at most size of them
+		 */
+		TDSDelta<Long, String> page(long seq, int size) {
+			TDSDelta<Long, String> delta = new TDSDelta<Long, String>(seq);
+			int end = (int) Math.min(log.size(), seq + size);
+			for (int i = (int) seq; i < end; i++) {
+				Object[] change = log.get(i);
+				if (change[1] == null) {
+					delta.remove(i + 1, (Long) change[0]);
+				} else {
+					delta.add(i + 1, (Long) change[0], (String) change[1]);
+				}
+			}
+			delta.setPage(end, end < log.size());
+			return delta;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+
+package ch.ethz.twimight.net.tds;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.x509.X509V3CertificateGenerator;
+
+import android.test.AndroidTestCase;
+
+/**
+ * The shared TDS client against a local HTTPS server with a self signed
+ * certificate: connection reuse, gzip in both directions and the metrics.
+ */
+public class TDSHttpClientTest extends AndroidTestCase {
+
+	private TestServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Security.addProvider(new BouncyCastleProvider());
+		server = new TestServer();
+		server.start();
+		TDSHttpClient.closeIdleConnections();
+		TDSHttpClient.resetMetrics();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TDSHttpClient.closeIdleConnections();
+		server.close();
+		super.tearDown();
+	}
+
+	public void testTwoRequestsOneHandshake() throws Exception {
+		String first = post(request(1));
+		String second = post(request(2));
+
+		assertEquals(TestServer.response(1), first);
+		assertEquals(TestServer.response(2), second);
+
+		// the listener may be called on another thread
+		for (int i = 0; i < 50 && TDSHttpClient.getHandshakes() == 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, TDSHttpClient.getHandshakes());
+		assertEquals(1, server.getConnections());
+	}
+
+	public void testGzipIsNegotiated() throws Exception {
+		post(request(1));
+		post(request(2));
+
+		List<TestServer.Request> requests = server.getRequests();
+		assertEquals(2, requests.size());
+		for (TestServer.Request request : requests) {
+			assertTrue(request.headers.get("accept-encoding").contains("gzip"));
+		}
+		// the first response told us the server takes gzip bodies
+		TestServer.Request second = requests.get(1);
+		assertEquals("gzip", second.headers.get("content-encoding"));
+		assertEquals(request(2), second.body);
+		assertTrue(second.wireBytes < request(2).length());
+	}
+
+	public void testBytesAreCountedOnTheWire() throws Exception {
+		post(request(1));
+		post(request(2));
+
+		long sent = 0;
+		long received = 0;
+		for (TestServer.Request request : server.getRequests()) {
+			sent += request.wireBytes;
+			received += request.responseBytes;
+		}
+		assertEquals(sent, TDSHttpClient.getBytesSent());
+		assertEquals(received, TDSHttpClient.getBytesReceived());
+		// compressed, the responses are much smaller than their content
+		assertTrue(received < TestServer.response(1).length());
+	}
+
+	private String post(String body) throws Exception {
+		HttpPost post = new HttpPost("https://localhost:" + server.getPort() + "/");
+		post.setEntity(new StringEntity(body, "UTF-8"));
+		HttpResponse response = TDSHttpClient.getInstance().execute(post);
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		// reading the whole response returns the connection to the pool
+		return EntityUtils.toString(response.getEntity(), "UTF-8");
+	}
+
+	private static String request(int n) {
+		StringBuilder s = new StringBuilder("message=");
+		for (int i = 0; i < 200; i++) {
+			s.append("request ").append(n).append(" line ").append(i).append('\n');
+		}
+		return s.toString();
+	}
+
+	/**
+	 * A keep-alive HTTPS server which answers every POST with a gzipped text
+	 * when the client accepts it, and tells the client it takes gzip bodies
+	 */
+	private static class TestServer extends Thread {
+
+		/**
+		 * A request as the server received it
+		 */
+		static class Request {
+			final Map<String, String> headers = new HashMap<String, String>();
+			String body;
+			/** bytes of the body, before chunked decoding was undone */
+			long wireBytes;
+			/** bytes of the response body */
+			long responseBytes;
+		}
+
+		private final SSLServerSocket serverSocket;
+		private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+		private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+		TestServer() throws Exception {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			KeyPair key = generator.generateKeyPair();
+			KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+			keyStore.load(null, null);
+			keyStore.setKeyEntry("server", key.getPrivate(), new char[0], new Certificate[] { certify(key) });
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, new char[0]);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagers.getKeyManagers(), null, null);
+			serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+			setDaemon(true);
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		int getConnections() {
+			return sockets.size();
+		}
+
+		List<Request> getRequests() {
+			synchronized (requests) {
+				return new ArrayList<Request>(requests);
+			}
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+			synchronized (sockets) {
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					sockets.add(socket);
+					new Thread() {
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					}.start();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void serve(Socket socket) {
+			try {
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				String line;
+				while ((line = readLine(in)) != null) {
+					if (line.length() == 0)
+						continue;
+					Request request = new Request();
+					while ((line = readLine(in)) != null && line.length() > 0) {
+						int colon = line.indexOf(':');
+						request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line
+								.substring(colon + 1).trim());
+					}
+					byte[] body = readBody(in, request.headers);
+					request.wireBytes = body.length;
+					if ("gzip".equals(request.headers.get("content-encoding"))) {
+						body = gunzip(body);
+					}
+					request.body = new String(body, "UTF-8");
+					int n = Character.getNumericValue(request.body.charAt("message=request ".length()));
+
+					byte[] response = response(n).getBytes("UTF-8");
+					String accept = request.headers.get("accept-encoding");
+					boolean gzip = accept != null && accept.contains("gzip");
+					if (gzip) {
+						response = gzip(response);
+					}
+					request.responseBytes = response.length;
+					requests.add(request);
+
+					StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n");
+					head.append("Content-Type: text/plain; charset=UTF-8\r\n");
+					if (gzip)
+						head.append("Content-Encoding: gzip\r\n");
+					head.append("Accept-Encoding: gzip\r\n");
+					head.append("Content-Length: ").append(response.length).append("\r\n");
+					head.append("Connection: keep-alive\r\n\r\n");
+					out.write(head.toString().getBytes("US-ASCII"));
+					out.write(response);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// the client closed the connection
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		static String response(int n) {
+			StringBuilder s = new StringBuilder();
+			for (int i = 0; i < 500; i++) {
+				s.append("response ").append(n).append(" line ").append(i).append('\n');
+			}
+			return s.toString();
+		}
+
+		private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+				int size;
+				while ((size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+					copy(in, body, size);
+					readLine(in);
+				}
+				// trailers
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+				}
+			} else if (headers.containsKey("content-length")) {
+				copy(in, body, Integer.parseInt(headers.get("content-length")));
+			}
+			return body.toByteArray();
+		}
+
+		private static void copy(InputStream in, OutputStream out, int count) throws IOException {
+			byte[] buffer = new byte[4096];
+			while (count > 0) {
+				int read = in.read(buffer, 0, Math.min(buffer.length, count));
+				if (read < 0)
+					throw new IOException("end of stream in the body");
+				out.write(buffer, 0, read);
+				count -= read;
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1) {
+				if (c == '\n') {
+					int end = line.length();
+					return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+				}
+				line.append((char) c);
+			}
+			return line.length() > 0 ? line.toString() : null;
+		}
+
+		private static byte[] gzip(byte[] data) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+			gzip.write(data);
+			gzip.close();
+			return bytes.toByteArray();
+		}
+
+		private static byte[] gunzip(byte[] data) throws IOException {
+			GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data));
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = gzip.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		}
+
+		@SuppressWarnings("deprecation")
+		private static Certificate certify(KeyPair key) throws Exception {
+			X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+			generator.setSerialNumber(BigInteger.ONE);
+			generator.setIssuerDN(new X500Principal("CN=localhost"));
+			generator.setSubjectDN(new X500Principal("CN=localhost"));
+			generator.setNotBefore(new Date(System.currentTimeMillis() - 3600 * 1000L));
+			generator.setNotAfter(new Date(System.currentTimeMillis() + 24 * 3600 * 1000L));
+			generator.setPublicKey(key.getPublic());
+			generator.setSignatureAlgorithm("SHA1withRSA");
+			return generator.generate(key.getPrivate(), "SC");
+		}
+	}
+}
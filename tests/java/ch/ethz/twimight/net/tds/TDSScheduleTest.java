@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.net.tds;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * The schedule with a clock we move by hand
+ */
+public class TDSScheduleTest extends TestCase {
+
+	private static final long UPDATE_INTERVAL = 60 * 60 * 1000L;
+	private static final long MIN_RETRY = 60 * 1000L;
+	private static final long DEBOUNCE = 30 * 1000L;
+	private static final long MAX_DEBOUNCE = 5 * 60 * 1000L;
+
+	private static class TestClock implements TDSSchedule.Clock {
+		long now = 1400000000000L;
+
+		@Override
+		public long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	private TestClock clock;
+	private TDSSchedule schedule;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		clock = new TestClock();
+		schedule = newSchedule(new Random(42));
+	}
+
+	private TDSSchedule newSchedule(Random random) {
+		return new TDSSchedule(clock, random, UPDATE_INTERVAL, MIN_RETRY, DEBOUNCE, MAX_DEBOUNCE);
+	}
+
+	public void testFirstUpdateIsDue() {
+		assertTrue(schedule.isDue());
+	}
+
+	public void testFailedFirstUpdateBacksOff() {
+		sync(false);
+		assertFalse(schedule.isDue());
+		assertTrue(schedule.getDelay() >= MIN_RETRY);
+	}
+
+	public void testPeriodicUpdate() {
+		sync(true);
+		assertEquals(UPDATE_INTERVAL, schedule.getDelay());
+		clock.now += UPDATE_INTERVAL - 1;
+		assertFalse(schedule.isDue());
+		clock.now += 1;
+		assertTrue(schedule.isDue());
+	}
+
+	public void testBackoffDoublesUpToTheUpdateInterval() {
+		sync(true);
+		clock.now += UPDATE_INTERVAL;
+		long interval = MIN_RETRY;
+		for (int i = 0; i < 10; i++) {
+			sync(false);
+			long delay = schedule.getDelay();
+			assertTrue("retry " + i + " too early: " + delay, delay >= interval);
+			assertTrue("retry " + i + " too late: " + delay, delay <= interval * 3 / 2);
+			interval = Math.min(2 * interval, UPDATE_INTERVAL);
+			assertEquals(interval, schedule.getRetryInterval());
+			clock.now += delay;
+			assertTrue(schedule.isDue());
+		}
+	}
+
+	public void testSuccessResetsTheBackoff() {
+		sync(false);
+		sync(false);
+		sync(false);
+		assertEquals(8 * MIN_RETRY, schedule.getRetryInterval());
+		sync(true);
+		assertEquals(MIN_RETRY, schedule.getRetryInterval());
+		assertEquals(0, schedule.getRetryAt());
+		assertEquals(UPDATE_INTERVAL, schedule.getDelay());
+	}
+
+	public void testJitterSpreadsTheRetries() {
+		Set<Long> retries = new HashSet<Long>();
+		for (int seed = 0; seed < 20; seed++) {
+			schedule = newSchedule(new Random(seed));
+			sync(false);
+			long delay = schedule.getDelay();
+			assertTrue(delay >= MIN_RETRY);
+			assertTrue(delay < MIN_RETRY * 3 / 2);
+			retries.add(delay);
+		}
+		assertTrue("retries not spread: " + retries, retries.size() > 10);
+	}
+
+	public void testConnectivityRegainedRetriesAFailedUpdate() {
+		sync(false);
+		sync(false);
+		assertFalse(schedule.isDue());
+		clock.now += 1000;
+		schedule.onConnectivityRegained();
+		assertTrue(schedule.isDue());
+		assertEquals(MIN_RETRY, schedule.getRetryInterval());
+	}
+
+	public void testConnectivityRegainedAfterSuccessWaits() {
+		sync(true);
+		clock.now += 1000;
+		schedule.onConnectivityRegained();
+		assertEquals(UPDATE_INTERVAL - 1000, schedule.getDelay());
+	}
+
+	public void testConnectivityLostAndRegainedDuringBackoff() {
+		sync(true);
+		clock.now += UPDATE_INTERVAL;
+		// fails without connectivity
+		sync(false);
+		sync(false);
+		long retryAt = schedule.getRetryAt();
+		assertTrue(retryAt > clock.now);
+		// back online: retry now, and a further failure starts from the
+		// minimum again
+		schedule.onConnectivityRegained();
+		assertTrue(schedule.isDue());
+		sync(false);
+		assertTrue(schedule.getDelay() < MIN_RETRY * 3 / 2);
+	}
+
+	public void testUploadRequestsAreDebounced() {
+		sync(true);
+		schedule.onUploadRequested();
+		assertEquals(DEBOUNCE, schedule.getDelay());
+		clock.now += DEBOUNCE / 2;
+		schedule.onUploadRequested();
+		assertEquals(DEBOUNCE, schedule.getDelay());
+	}
+
+	public void testUploadRequestsWaitAtMostTheMaximumDelay() {
+		sync(true);
+		long first = clock.now;
+		schedule.onUploadRequested();
+		for (int i = 0; i < 20; i++) {
+			clock.now += DEBOUNCE / 2;
+			schedule.onUploadRequested();
+		}
+		assertEquals(first + MAX_DEBOUNCE, schedule.getNextSync());
+	}
+
+	public void testUploadRequestedDuringTheUpdateStaysPending() {
+		sync(true);
+		schedule.onUploadRequested();
+		clock.now += DEBOUNCE;
+		schedule.onSyncStarted();
+		clock.now += 1000;
+		schedule.onUploadRequested();
+		clock.now += 1000;
+		schedule.onSyncFinished(true);
+		assertTrue(schedule.getFirstUploadRequest() > schedule.getSyncStarted());
+		assertEquals(DEBOUNCE - 1000, schedule.getDelay());
+
+		schedule.onSyncStarted();
+		schedule.onSyncFinished(true);
+		assertEquals(0, schedule.getFirstUploadRequest());
+		assertEquals(UPDATE_INTERVAL, schedule.getDelay());
+	}
+
+	public void testRestoreKeepsTheState() {
+		sync(false);
+		schedule.onUploadRequested();
+		TDSSchedule restored = newSchedule(new Random(1));
+		restored.restore(schedule.getLastSuccess(), schedule.getRetryAt(), schedule.getRetryInterval(),
+				schedule.getFirstUploadRequest(), schedule.getLastUploadRequest(), schedule.getSyncStarted());
+		assertEquals(schedule.getNextSync(), restored.getNextSync());
+		assertEquals(schedule.getRetryInterval(), restored.getRetryInterval());
+	}
+
+	public void testRestoreBoundsTheRetryInterval() {
+		schedule.restore(0, 0, 1, 0, 0, 0);
+		assertEquals(MIN_RETRY, schedule.getRetryInterval());
+		schedule.restore(0, 0, 100 * UPDATE_INTERVAL, 0, 0, 0);
+		assertEquals(UPDATE_INTERVAL, schedule.getRetryInterval());
+	}
+
+	private void sync(boolean success) {
+		schedule.onSyncStarted();
+		schedule.onSyncFinished(success);
+	}
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.security;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+
+import ch.ethz.twimight.util.Constants;
+
+/**
+ * Measures encryption and decryption of direct messages with plain RSA and
+ * with {@link MessageCipher}. Runs on a desktop JVM, usage:
+ * <code>MessageCipherBenchmark [messages] [length]</code>
+ */
+public class MessageCipherBenchmark {
+
+	public static void main(String[] args) throws GeneralSecurityException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : Constants.TWEET_LENGTH;
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(Constants.SECURITY_KEY_SIZE);
+		KeyPair kp = kpg.genKeyPair();
+		RSAPublicKey publicKey = (RSAPublicKey) kp.getPublic();
+		RSAPrivateKey privateKey = (RSAPrivateKey) kp.getPrivate();
+
+		List<byte[]> messages = randomMessages(new Random(42), count, length);
+
+		// plain RSA, what we had before
+		Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		List<byte[]> encrypted = new ArrayList<byte[]>(count);
+		long start = System.nanoTime();
+		for (byte[] message : messages) {
+			rsa.init(Cipher.ENCRYPT_MODE, publicKey);
+			encrypted.add(rsa.doFinal(message));
+		}
+		report("rsa encrypt", start, count);
+		start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			rsa.init(Cipher.DECRYPT_MODE, privateKey);
+			check(messages.get(i), rsa.doFinal(encrypted.get(i)));
+		}
+		report("rsa decrypt", start, count);
+
+		// hybrid, new keys for every message
+		run("hybrid, one message per key", new MessageCipher(1, 1), new MessageCipher(1, 1), messages, kp);
+
+		// hybrid, keys reused as in the app when the user opted in
+		run("hybrid, " + Constants.DM_MESSAGES_PER_KEY_REUSE + " messages per key", new MessageCipher(
+				Constants.DM_KEY_CACHE_SIZE, Constants.DM_MESSAGES_PER_KEY_REUSE), new MessageCipher(
+				Constants.DM_KEY_CACHE_SIZE, Constants.DM_MESSAGES_PER_KEY_REUSE), messages, kp);
+	}
+
+	private static void run(String what, MessageCipher sender, MessageCipher receiver, List<byte[]> messages,
+			KeyPair kp) throws GeneralSecurityException {
+		List<byte[]> encrypted = new ArrayList<byte[]>(messages.size());
+		long start = System.nanoTime();
+		for (byte[] message : messages) {
+			encrypted.add(sender.encrypt(message, (RSAPublicKey) kp.getPublic()));
+		}
+		report(what + " encrypt", start, messages.size());
+		start = System.nanoTime();
+		for (int i = 0; i < messages.size(); i++) {
+			check(messages.get(i), receiver.decrypt(encrypted.get(i), (RSAPrivateKey) kp.getPrivate()));
+		}
+		report(what + " decrypt", start, messages.size());
+	}
+
+	private static List<byte[]> randomMessages(Random random, int count, int length) {
+		List<byte[]> messages = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			StringBuilder text = new StringBuilder(length);
+			for (int j = 0; j < length; j++) {
+				text.append((char) ('a' + random.nextInt(26)));
+			}
+			messages.add(text.toString().getBytes());
+		}
+		return messages;
+	}
+
+	private static void check(byte[] expected, byte[] actual) {
+		if (!Arrays.equals(expected, actual)) {
+			throw new AssertionError("decrypted message differs");
+		}
+	}
+
+	private static void report(String what, long start, int operations) {
+		long nanos = System.nanoTime() - start;
+		System.out.println(what + ": " + nanos / 1000000 + " ms total, " + nanos / operations / 1000 + " us/msg");
+	}
+}
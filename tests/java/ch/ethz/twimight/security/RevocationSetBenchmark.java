@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+package ch.ethz.twimight.security;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures building, updating and querying a {@link RevocationSet} with large
+ * revocation lists. Runs on a desktop JVM, usage:
+ * <code>RevocationSetBenchmark [serials] [lookups]</code>
+ */
+public class RevocationSetBenchmark {
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		Random random = new Random(42);
+
+		List<String> revoked = randomSerials(random, count);
+		List<String> update = randomSerials(random, count / 100);
+		List<String> valid = randomSerials(random, 1000);
+
+		long start = System.nanoTime();
+		RevocationSet set = new RevocationSet(revoked);
+		report("load " + count + " serials", start, 1);
+
+		start = System.nanoTime();
+		set.addAll(update);
+		report("add " + update.size() + " serials", start, 1);
+
+		int falsePositives = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			if (set.contains(valid.get(i % valid.size()))) {
+				falsePositives++;
+			}
+		}
+		report("lookup of valid serials", start, lookups);
+
+		start = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			if (!set.contains(revoked.get(i % revoked.size()))) {
+				throw new AssertionError("revoked serial not found");
+			}
+		}
+		report("lookup of revoked serials", start, lookups);
+
+		System.out.println("size: " + set.size() + ", valid serials reported revoked: " + falsePositives);
+	}
+
+	/**
+	 * Serials like the ones of the TDS certificates (decimal, 64 bit)
+	 */
+	private static List<String> randomSerials(Random random, int count) {
+		List<String> serials = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			serials.add(new BigInteger(63, random).toString());
+		}
+		return serials;
+	}
+
+	private static void report(String what, long start, int operations) {
+		long nanos = System.nanoTime() - start;
+		System.out.println(what + ": " + nanos / 1000000 + " ms total, " + nanos / operations + " ns/op");
+	}
+}
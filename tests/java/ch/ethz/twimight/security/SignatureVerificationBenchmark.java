@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2011 ETH Zurich.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Paolo Carta - Implementation
+ *     Theus Hossmann - Implementation
+ *     Dominik Schatzmann - Message specification
+ ******************************************************************************/
+
+
+package ch.ethz.twimight.security;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.security.auth.x500.X500Principal;
+
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.jce.provider.X509CertificateObject;
+import org.spongycastle.openssl.PEMReader;
+import org.spongycastle.openssl.PEMWriter;
+import org.spongycastle.x509.X509V3CertificateGenerator;
+
+import android.test.AndroidTestCase;
+import android.util.Base64;
+
+/**
+ * Measures the verification of received disaster tweets with the shipped
+ * classes: CertificateManager.parsePem, CertificateManager.checkCertificate
+ * (validity, root signature, revocation list) and KeyManager.checkSignature.
+ * The tweets are verified twice, once parsing the root key and the
+ * certificate of the author for every tweet, as before {@link CryptoContext}
+ * cached them, and once through the cache. The certificates are signed by a
+ * generated root key which replaces the TDS key in the CryptoContext while
+ * the benchmark runs. The timings are printed to System.out.
+ */
+public class SignatureVerificationBenchmark extends AndroidTestCase {
+
+	private static final int TWEETS = 1000;
+	private static final int AUTHORS = 20;
+
+	private CryptoContext crypto;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Security.addProvider(new BouncyCastleProvider());
+		crypto = CryptoContext.getInstance(getContext());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		// the app reads the TDS root key again
+		crypto.setRootKey(null);
+		super.tearDown();
+	}
+
+	public void testVerification() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		KeyPair root = generator.generateKeyPair();
+		String rootPem = toPem(root.getPublic());
+
+		List<String> certificates = new ArrayList<String>();
+		List<KeyPair> keys = new ArrayList<KeyPair>();
+		for (int i = 0; i < AUTHORS; i++) {
+			KeyPair key = generator.generateKeyPair();
+			keys.add(key);
+			certificates.add(toPem(certify(key, root, i)));
+		}
+		List<String> texts = new ArrayList<String>();
+		List<String> signatures = new ArrayList<String>();
+		for (int i = 0; i < TWEETS; i++) {
+			String text = "disaster tweet " + i + getAuthor(i);
+			texts.add(text);
+			signatures.add(sign(text, keys.get(i % AUTHORS)));
+		}
+
+		CertificateManager cm = new CertificateManager(getContext());
+		KeyManager km = new KeyManager(getContext());
+
+		// warm up both paths
+		verifyParsing(cm, km, rootPem, certificates, texts, signatures, 100);
+		verifyCached(cm, km, root.getPublic(), certificates, texts, signatures, 100);
+
+		long start = System.nanoTime();
+		verifyParsing(cm, km, rootPem, certificates, texts, signatures, TWEETS);
+		report("parsing every time", start, TWEETS);
+
+		start = System.nanoTime();
+		verifyCached(cm, km, root.getPublic(), certificates, texts, signatures, TWEETS);
+		report("parsed keys cached", start, TWEETS);
+	}
+
+	private void verifyParsing(CertificateManager cm, KeyManager km, String rootPem, List<String> certificates,
+			List<String> texts, List<String> signatures, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			crypto.setRootKey((PublicKey) readPem(rootPem));
+			X509CertificateObject cert = CryptoContext.parseCertificate(certificates.get(i % AUTHORS));
+			verify(cm, km, cert, i, texts, signatures);
+		}
+	}
+
+	private void verifyCached(CertificateManager cm, KeyManager km, PublicKey rootKey, List<String> certificates,
+			List<String> texts, List<String> signatures, int count) {
+		crypto.setRootKey(rootKey);
+		for (int i = 0; i < count; i++) {
+			X509CertificateObject cert = cm.parsePem(certificates.get(i % AUTHORS));
+			verify(cm, km, cert, i, texts, signatures);
+		}
+	}
+
+	private static void verify(CertificateManager cm, KeyManager km, X509CertificateObject cert, int i,
+			List<String> texts, List<String> signatures) {
+		if (!cm.checkCertificate(cert, getAuthor(i)) || !km.checkSignature(cert, signatures.get(i), texts.get(i)))
+			throw new AssertionError("tweet " + i + " not verified");
+	}
+
+	private static String getAuthor(int i) {
+		return String.valueOf(1000 + i % AUTHORS);
+	}
+
+	private static String sign(String text, KeyPair key) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, key.getPrivate());
+		return Base64.encodeToString(cipher.doFinal(MessageDigest.getInstance("SHA-1").digest(text.getBytes())),
+				Base64.DEFAULT);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static X509CertificateObject certify(KeyPair key, KeyPair root, int author) throws Exception {
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(author + 1));
+		generator.setIssuerDN(new X500Principal("CN=TDS"));
+		// CertificateManager takes the Twitter ID from the DN after "T="
+		generator.setSubjectDN(new X500Principal("T=" + getAuthor(author)));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600 * 1000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 24 * 3600 * 1000L));
+		generator.setPublicKey(key.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+		return (X509CertificateObject) generator.generate(root.getPrivate(), "SC");
+	}
+
+	private static String toPem(Object object) throws IOException {
+		StringWriter writer = new StringWriter();
+		PEMWriter pem = new PEMWriter(writer);
+		pem.writeObject(object);
+		pem.close();
+		return writer.toString();
+	}
+
+	private static Object readPem(String pemString) throws IOException {
+		PEMReader pem = new PEMReader(new StringReader(pemString));
+		try {
+			return pem.readObject();
+		} finally {
+			pem.close();
+		}
+	}
+
+	private static void report(String what, long start, int operations) {
+		long nanos = System.nanoTime() - start;
+		System.out.println(what + ": " + nanos / 1000000 + " ms total, " + nanos / operations / 1000 + " us/tweet");
+	}
+}